@@ -0,0 +1,60 @@
+package com.example.delayedretry.benchmark;
+
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExponentialDelayHandlerBenchmark {
+
+    @Param({"0", "2", "10"})
+    int retryCount;
+
+    ExponentialDelayHandler delayHandler;
+
+    @Setup
+    public void setUp() {
+        delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(5)
+                .multiplier(2.0)
+                .build();
+    }
+
+    @Benchmark
+    public String getDelay() {
+        return delayHandler.getDelay(retryCount);
+    }
+
+    @Benchmark
+    public String expirationFor() {
+        return delayHandler.expirationFor(retryCount);
+    }
+
+    @Benchmark
+    public long delayMillis() {
+        return delayHandler.delayMillis(retryCount);
+    }
+
+    @Benchmark
+    public boolean canRetry() {
+        return delayHandler.canRetry(retryCount);
+    }
+}
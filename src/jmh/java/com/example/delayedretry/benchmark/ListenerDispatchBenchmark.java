@@ -0,0 +1,139 @@
+package com.example.delayedretry.benchmark;
+
+import com.example.delayedretry.rabbit.VirtualThreadDispatcher;
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to handle a burst of deliveries by a listener blocking on I/O, on the consumer threads of a platform container
+ * and on the virtual threads of the {@link VirtualThreadDispatcher}. The virtual mode needs Java 21:
+ * mvn -Pbenchmark,java21 verify -DskipTests -Djmh.args="ListenerDispatchBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+
+    static final int DELIVERIES = 1_000;
+
+    @Param({"platform", "virtual"})
+    String mode;
+
+    @Param({"10"})
+    int consumers;
+
+    @Param({"256"})
+    int maxInFlight;
+
+    @Param({"1"})
+    long listenerMillis;
+
+    ExecutorService consumerThreads;
+    VirtualThreadDispatcher dispatcher;
+    Channel channel;
+    Message message;
+
+    @Setup
+    public void setUp() {
+        if ("virtual".equals(mode)) {
+            if (!VirtualThreadDispatcher.isSupported()) {
+                throw new IllegalStateException("The virtual mode needs Java 21, run with the java21 profile");
+            }
+            dispatcher = new VirtualThreadDispatcher(maxInFlight);
+        } else {
+            consumerThreads = Executors.newFixedThreadPool(consumers);
+        }
+        channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class},
+                (proxy, method, args) -> null);
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setDeliveryTag(1L);
+        message = new Message("{\"orderId\":42}".getBytes(), messageProperties);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        if (consumerThreads != null) {
+            consumerThreads.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public void handleBurst() throws Throwable {
+        CountDownLatch handled = new CountDownLatch(DELIVERIES);
+        for (int i = 0; i < DELIVERIES; i++) {
+            if (dispatcher != null) {
+                dispatcher.invoke(new BlockingListenerInvocation(channel, message, listenerMillis, handled));
+            } else {
+                consumerThreads.execute(() -> blockingListener(listenerMillis, handled));
+            }
+        }
+        handled.await();
+    }
+
+    static Object blockingListener(long listenerMillis, CountDownLatch handled) {
+        try {
+            Thread.sleep(listenerMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        handled.countDown();
+        return null;
+    }
+
+    record BlockingListenerInvocation(Channel channel, Message message, long listenerMillis, CountDownLatch handled)
+            implements MethodInvocation {
+
+        @Override
+        public Method getMethod() {
+            return null;
+        }
+
+        @Override
+        public Object[] getArguments() {
+            return new Object[]{channel, message};
+        }
+
+        @Override
+        public Object proceed() {
+            return blockingListener(listenerMillis, handled);
+        }
+
+        @Override
+        public Object getThis() {
+            return null;
+        }
+
+        @Override
+        public AccessibleObject getStaticPart() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.delayedretry.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.MessagePropertiesBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of copying the properties of a failed message, as done when a copy is built for republishing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCopyBenchmark {
+
+    Message message;
+
+    @Setup
+    public void setUp() {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("consumer.order.created");
+        messageProperties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        messageProperties.setMessageId("8c4c2b4e-5f0e-4c11-9d8b-0b7f3b0a6a21");
+        messageProperties.setHeader("x-death", List.of(Map.of("count", 1L, "reason", "expired", "queue", "retry.consumer.order.created")));
+        messageProperties.setHeader("x-exception-message", "Expected exception");
+        message = new Message("{\"orderId\":42}".getBytes(), messageProperties);
+    }
+
+    @Benchmark
+    public Message copyProperties() {
+        return MessageBuilder.withBody(message.getBody())
+                .andProperties(MessagePropertiesBuilder.fromProperties(message.getMessageProperties()).build())
+                .build();
+    }
+
+    @Benchmark
+    public Message cloneMessage() {
+        return MessageBuilder.fromClonedMessage(message).build();
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.delayedretry.benchmark;
+
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RepublishTieredMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RetryRoutingCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.ListenerExecutionFailedException;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the failure path up to the publish, against a template that drops the messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecovererBenchmark {
+
+    static final String QUEUE = "consumer.order.created";
+
+    RepublishDelayedMessageRecoverer cachedRecoverer;
+    RepublishDelayedMessageRecoverer spelRecoverer;
+    RepublishTieredMessageRecoverer tieredRecoverer;
+    Throwable cause;
+    Message message;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(5)
+                .multiplier(2.0)
+                .build();
+        RetryRoutingCache routingCache = new RetryRoutingCache();
+        routingCache.register(QUEUE, delayHandler.delays);
+        NoOpRabbitTemplate template = new NoOpRabbitTemplate(blackhole);
+        SpelExpressionParser parser = new SpelExpressionParser();
+
+        cachedRecoverer = new RepublishDelayedMessageRecoverer(template, delayHandler, routingCache);
+        spelRecoverer = new RepublishDelayedMessageRecoverer(template, delayHandler,
+                parser.parseExpression("'retry.' + messageProperties.consumerQueue"),
+                parser.parseExpression("'dlq.' + messageProperties.consumerQueue"));
+        tieredRecoverer = new RepublishTieredMessageRecoverer(template, delayHandler, routingCache);
+        cause = new ListenerExecutionFailedException("Listener threw exception", new RuntimeException("Expected exception"));
+    }
+
+    @Setup(Level.Invocation)
+    public void newMessage() {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue(QUEUE);
+        messageProperties.setReceivedExchange("");
+        messageProperties.setReceivedRoutingKey(QUEUE);
+        messageProperties.setHeader("x-death", List.of(Map.of("count", 1L, "reason", "expired", "queue", "retry." + QUEUE)));
+        message = new Message("{\"orderId\":42}".getBytes(), messageProperties);
+    }
+
+    @Benchmark
+    public void recoverWithRoutingCache() {
+        cachedRecoverer.recover(message, cause);
+    }
+
+    @Benchmark
+    public void recoverWithSpelRouting() {
+        spelRecoverer.recover(message, cause);
+    }
+
+    @Benchmark
+    public void recoverToTier() {
+        tieredRecoverer.recover(message, cause);
+    }
+
+    static class NoOpRabbitTemplate extends RabbitTemplate {
+
+        private final Blackhole blackhole;
+
+        NoOpRabbitTemplate(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void send(String exchange, String routingKey, Message message) throws AmqpException {
+            blackhole.consume(routingKey);
+            blackhole.consume(message);
+        }
+    }
+}
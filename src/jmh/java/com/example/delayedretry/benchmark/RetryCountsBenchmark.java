@@ -0,0 +1,65 @@
+package com.example.delayedretry.benchmark;
+
+import com.example.delayedretry.rabbit.retry.RetryCounts;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reading the retry count of a message from its "x-death" header, as laid out by the broker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetryCountsBenchmark {
+
+    @Param({"0", "1", "5"})
+    int xDeathEntries;
+
+    Message message;
+
+    @Setup
+    public void setUp() {
+        MessageProperties messageProperties = new MessageProperties();
+        if (xDeathEntries > 0) {
+            List<Map<String, ?>> xDeath = new ArrayList<>();
+            for (int i = 0; i < xDeathEntries; i++) {
+                Map<String, Object> entry = new HashMap<>();
+                entry.put("count", 1L);
+                entry.put("reason", "expired");
+                entry.put("queue", "retry.consumer.order.created." + (1000 << i));
+                entry.put("time", new Date());
+                entry.put("exchange", "");
+                entry.put("routing-keys", List.of("retry.consumer.order.created." + (1000 << i)));
+                xDeath.add(entry);
+            }
+            messageProperties.setHeader("x-death", xDeath);
+        }
+        message = new Message("{\"orderId\":42}".getBytes(), messageProperties);
+    }
+
+    @Benchmark
+    public long retryCount() {
+        return RetryCounts.of(message);
+    }
+}
@@ -12,6 +12,8 @@ public class Listener {
     private final Logger log = Logger.getLogger(Listener.class.getName());
 
     @RabbitListener(queues = Queues.ORDER_STATUS_UPDATE_QUEUE)
+    @RabbitListener(queues = Queues.ORDER_STATUS_UPDATE_REDELIVERY_QUEUE, containerFactory = "redeliveryRabbitListenerContainerFactory",
+            autoStartup = "${app.rabbitmq.isolated-redelivery}")
     public void listen(String in) {
         log.info("\n");
         log.info(String.format("Message received. message=%s",in));
@@ -1,13 +1,48 @@
 package com.example.delayedretry.config;
 
+import com.example.delayedretry.rabbit.AdaptiveConcurrencyController;
+import com.example.delayedretry.rabbit.DeadLetterRedriver;
+import com.example.delayedretry.rabbit.IdempotentListenerInterceptor;
+import com.example.delayedretry.rabbit.ListenerCircuitBreaker;
+import com.example.delayedretry.rabbit.MessageKeys;
+import com.example.delayedretry.rabbit.ProcessedMessageCache;
+import com.example.delayedretry.rabbit.QueueFamily;
+import com.example.delayedretry.rabbit.QueueTopologyOptions;
+import com.example.delayedretry.rabbit.QueueTopologyRegistry;
+import com.example.delayedretry.rabbit.retry.ConfirmedRecoveryInterceptor;
+import com.example.delayedretry.rabbit.retry.ExceptionClassifier;
+import com.example.delayedretry.rabbit.retry.ExceptionHeaderPolicy;
 import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
 import com.example.delayedretry.rabbit.QueueTopologyTemplate;
+import com.example.delayedretry.rabbit.VirtualThreadDispatcher;
+import com.example.delayedretry.rabbit.retry.LocalRetryScheduler;
+import com.example.delayedretry.rabbit.retry.PublisherConfirmWindow;
+import com.example.delayedretry.rabbit.retry.RepublishSpillJournal;
+import com.example.delayedretry.rabbit.retry.RetryBudgets;
+import com.example.delayedretry.rabbit.retry.RetryDeadline;
+import com.example.delayedretry.rabbit.retry.RetryMetrics;
+import com.example.delayedretry.rabbit.retry.RetryMetricsInterceptor;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.aopalliance.aop.Advice;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.AmqpTemplate;
 import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.retry.interceptor.RetryOperationsInterceptor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.example.delayedretry.config.Queues.ORDER_STATUS_UPDATE_QUEUE;
 
@@ -15,37 +50,379 @@ import static com.example.delayedretry.config.Queues.ORDER_STATUS_UPDATE_QUEUE;
 public class AmqpConfig {
 
     private final RabbitConfigurationProperties rabbitProperties;
-    private final QueueTopologyTemplate queueTopologyTemplate;
+    private final RetryMetrics retryMetrics;
+    private final RetryBudgets retryBudgets;
+    private final RetryDeadline retryDeadline;
 
-    public AmqpConfig(QueueTopologyTemplate queueTopologyTemplate, RabbitConfigurationProperties rabbitProperties) {
-        this.queueTopologyTemplate = queueTopologyTemplate;
+    public AmqpConfig(RabbitConfigurationProperties rabbitProperties, RetryMetrics retryMetrics) {
         this.rabbitProperties = rabbitProperties;
+        this.retryMetrics = retryMetrics;
+        this.retryBudgets = rabbitProperties.isRetryBudget()
+                ? new RetryBudgets(rabbitProperties.getRetryBudgetRatio(), rabbitProperties.getRetryBudgetMinPerSecond(),
+                        rabbitProperties.getRetryBudgetWindow(), rabbitProperties.getRetryBudgetExhaustion())
+                : null;
+        this.retryDeadline = rabbitProperties.isRetryDeadline()
+                ? new RetryDeadline(rabbitProperties.getRetryDeadlineHeader(), rabbitProperties.getRetryMaxAge(),
+                        rabbitProperties.getRetryDeadlineExpiry(), rabbitProperties.getRetryDeadlineMargin())
+                : null;
+    }
+
+    @Bean
+    public QueueTopologyTemplate queueTopologyTemplate(AmqpTemplate amqpTemplate, AmqpAdmin amqpAdmin,
+            ObjectProvider<RepublishSpillJournal> republishSpillJournal) {
+        QueueTopologyOptions options = QueueTopologyOptions.builder()
+                .retryHeaders(rabbitProperties.isRetryStateHeader(), rabbitProperties.isStripRetryHeaders())
+                .exceptionHeaderPolicy(exceptionHeaderPolicy())
+                .exceptionClassifier(exceptionClassifier())
+                .retryBudgets(retryBudgets)
+                .isolatedRedelivery(rabbitProperties.isIsolatedRedelivery())
+                .retryShards(rabbitProperties.getRetryShards(), MessageKeys.headerOrMessageId(rabbitProperties.getRetryShardKeyHeader()))
+                .spillJournal(republishSpillJournal.getIfAvailable())
+                .retryDeadline(retryDeadline)
+                .build();
+        return new QueueTopologyTemplate(amqpTemplate, amqpAdmin, retryMetrics, options);
+    }
+
+    @Bean
+    public QueueTopologyRegistry queueTopologyRegistry(QueueTopologyTemplate queueTopologyTemplate) {
+        QueueTopologyRegistry registry = new QueueTopologyRegistry(queueTopologyTemplate, rabbitProperties.getDeclarationParallelism());
+        registry.register(new QueueFamily(ORDER_STATUS_UPDATE_QUEUE, rabbitProperties.getRetryTopology(), delayHandler()));
+        for (QueueProperties queue : rabbitProperties.getQueues()) {
+            registry.register(new QueueFamily(queue.getName(),
+                    queue.getRetryTopology() != null ? queue.getRetryTopology() : rabbitProperties.getRetryTopology(),
+                    delayHandler(queue), exceptionClassifier(queue)));
+        }
+        return registry;
+    }
+
+    @Bean
+    public InitializingBean setupQueues(QueueTopologyRegistry queueTopologyRegistry) {
+        return queueTopologyRegistry::declareAll;
+    }
+
+    @Bean
+    public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory(ConnectionFactory connectionFactory,
+            ObjectProvider<AdaptiveConcurrencyController> adaptiveConcurrencyController,
+            ObjectProvider<ListenerCircuitBreaker> listenerCircuitBreaker,
+            ObjectProvider<VirtualThreadDispatcher> virtualThreadDispatcher,
+            ObjectProvider<IdempotentListenerInterceptor> idempotentListenerInterceptor, QueueTopologyTemplate queueTopologyTemplate) {
+        AdaptiveConcurrencyController concurrencyController = adaptiveConcurrencyController.getIfAvailable();
+        ListenerCircuitBreaker circuitBreaker = listenerCircuitBreaker.getIfAvailable();
+        VirtualThreadDispatcher dispatcher = virtualThreadDispatcher.getIfAvailable();
+        // a single consumer feeds the virtual threads, its prefetch bounds the deliveries in flight
+        int concurrentConsumers = dispatcher != null ? 1 : rabbitProperties.getConcurrentConsumers();
+        int maxConcurrentConsumers = dispatcher != null ? 1 : rabbitProperties.getMaxConcurrentConsumers();
+        int prefetchCount = dispatcher != null ? rabbitProperties.getVirtualMaxInFlight() : rabbitProperties.getPrefetchCount();
+
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setMaxConcurrentConsumers(maxConcurrentConsumers);
+        factory.setConcurrentConsumers(concurrentConsumers);
+        factory.setPrefetchCount(prefetchCount);
+        factory.setConnectionFactory(connectionFactory);
+
+        List<Advice> adviceChain = new ArrayList<>();
+        if (dispatcher != null) {
+            factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+            adviceChain.add(dispatcher);
+        }
+        adviceChain.add(new RetryMetricsInterceptor(retryMetrics));
+        if (circuitBreaker != null) {
+            // before the recovery, so the deliveries rejected by an open circuit stay in the main queue
+            adviceChain.add(circuitBreaker.gate());
+        }
+        if (retryBudgets != null) {
+            adviceChain.add(retryBudgets.attempts());
+        }
+        adviceChain.add(recoveryAdvice(queueTopologyTemplate, factory, connectionFactory, circuitBreaker));
+        if (retryDeadline != null) {
+            // after the recovery, which dead letters the expired messages, and before the observers, which must not count them as failures
+            adviceChain.add(retryDeadline.guard());
+        }
+        // last, to observe the listener exceptions before they are recovered
+        if (concurrencyController != null) {
+            adviceChain.add(concurrencyController);
+        }
+        if (circuitBreaker != null) {
+            adviceChain.add(circuitBreaker.observer());
+        }
+        // innermost, a skipped duplicate is acked by the advices above as a success
+        idempotentListenerInterceptor.ifAvailable(adviceChain::add);
+        factory.setAdviceChain(adviceChain.toArray(Advice[]::new));
+        factory.setContainerCustomizer(container -> {
+            if (concurrencyController != null) {
+                concurrencyController.register(container);
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.register(container, concurrentConsumers, maxConcurrentConsumers, prefetchCount);
+            }
+        });
+        factory.setDefaultRequeueRejected(false);
+        factory.setMissingQueuesFatal(false);
+        return factory;
     }
 
+    /**
+     * Container factory of the redelivery queues of the isolated redelivery, consuming the retried messages with their own
+     * consumers and prefetch, so a retry storm does not delay the fresh messages of the queues.
+     */
     @Bean
-    public InitializingBean setupQueues() {
-        return () -> queueTopologyTemplate.createQueue(ORDER_STATUS_UPDATE_QUEUE);
+    public SimpleRabbitListenerContainerFactory redeliveryRabbitListenerContainerFactory(ConnectionFactory connectionFactory,
+            ObjectProvider<ListenerCircuitBreaker> listenerCircuitBreaker,
+            ObjectProvider<IdempotentListenerInterceptor> idempotentListenerInterceptor, QueueTopologyTemplate queueTopologyTemplate) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setMaxConcurrentConsumers(rabbitProperties.getRedeliveryMaxConcurrentConsumers());
+        factory.setConcurrentConsumers(rabbitProperties.getRedeliveryConcurrentConsumers());
+        factory.setPrefetchCount(rabbitProperties.getRedeliveryPrefetchCount());
+        factory.setConnectionFactory(connectionFactory);
+        ListenerCircuitBreaker circuitBreaker = listenerCircuitBreaker.getIfAvailable();
+
+        List<Advice> adviceChain = new ArrayList<>();
+        adviceChain.add(new RetryMetricsInterceptor(retryMetrics));
+        if (circuitBreaker != null) {
+            adviceChain.add(circuitBreaker.gate());
+        }
+        adviceChain.add(recoveryAdvice(queueTopologyTemplate, factory, connectionFactory, circuitBreaker));
+        if (retryDeadline != null) {
+            adviceChain.add(retryDeadline.guard());
+        }
+        if (circuitBreaker != null) {
+            adviceChain.add(circuitBreaker.observer());
+        }
+        idempotentListenerInterceptor.ifAvailable(adviceChain::add);
+        factory.setAdviceChain(adviceChain.toArray(Advice[]::new));
+        if (circuitBreaker != null) {
+            factory.setContainerCustomizer(container -> circuitBreaker.register(container,
+                    rabbitProperties.getRedeliveryConcurrentConsumers(), rabbitProperties.getRedeliveryMaxConcurrentConsumers(),
+                    rabbitProperties.getRedeliveryPrefetchCount()));
+        }
+        factory.setDefaultRequeueRejected(false);
+        factory.setMissingQueuesFatal(false);
+        return factory;
     }
 
+    /**
+     * Container factory of the batch listeners, which receive up to batch size messages as a {@code List<Message>}
+     * and report the failed ones with a {@link com.example.delayedretry.rabbit.retry.PartialBatchFailureException}.
+     * The failed messages are republished synchronously, whatever the async republish setting.
+     */
     @Bean
-    public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+    public SimpleRabbitListenerContainerFactory batchRabbitListenerContainerFactory(ConnectionFactory connectionFactory,
+            QueueTopologyTemplate queueTopologyTemplate) {
         SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
         factory.setMaxConcurrentConsumers(rabbitProperties.getMaxConcurrentConsumers());
         factory.setConcurrentConsumers(rabbitProperties.getConcurrentConsumers());
-        factory.setPrefetchCount(rabbitProperties.getPrefetchCount());
+        // a batch is only complete once enough messages are prefetched
+        factory.setPrefetchCount(Math.max(rabbitProperties.getPrefetchCount(), rabbitProperties.getBatchSize()));
         factory.setConnectionFactory(connectionFactory);
-        factory.setAdviceChain(retryInterceptor());
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(rabbitProperties.getBatchSize());
+        factory.setReceiveTimeout(rabbitProperties.getBatchReceiveTimeout());
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        List<Advice> adviceChain = new ArrayList<>();
+        adviceChain.add(new RetryMetricsInterceptor(retryMetrics));
+        if (retryBudgets != null) {
+            adviceChain.add(retryBudgets.attempts());
+        }
+        adviceChain.add(queueTopologyTemplate.createBatchRetryInterceptor(delayHandler(), rabbitProperties.getRetryTopology()));
+        factory.setAdviceChain(adviceChain.toArray(Advice[]::new));
         factory.setDefaultRequeueRejected(false);
         factory.setMissingQueuesFatal(false);
         return factory;
     }
 
-    private RetryOperationsInterceptor retryInterceptor() {
-        return queueTopologyTemplate.createDelayedRetryInterceptor(ExponentialDelayHandler.builder()
+    @Bean
+    @ConditionalOnProperty(prefix = "app.rabbitmq", name = "adaptive-concurrency", havingValue = "true")
+    public AdaptiveConcurrencyController adaptiveConcurrencyController() {
+        return AdaptiveConcurrencyController.builder()
+                .minConsumers(rabbitProperties.getAdaptiveMinConsumers())
+                .maxConsumers(rabbitProperties.getMaxConcurrentConsumers())
+                .maxPrefetch(rabbitProperties.getPrefetchCount())
+                .failureRateThreshold(rabbitProperties.getAdaptiveFailureRateThreshold())
+                .latencyThreshold(rabbitProperties.getAdaptiveLatencyThreshold())
+                .interval(rabbitProperties.getAdaptiveInterval())
+                .build();
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "app.rabbitmq", name = "circuit-breaker", havingValue = "true")
+    public ListenerCircuitBreaker listenerCircuitBreaker() {
+        Assert.state(!rabbitProperties.isAdaptiveConcurrency(), "The adaptive concurrency cannot resize the consumers of a circuit breaker");
+        return ListenerCircuitBreaker.builder()
+                .failureRateThreshold(rabbitProperties.getCircuitBreakerFailureRateThreshold())
+                .minSamples(rabbitProperties.getCircuitBreakerMinSamples())
+                .window(rabbitProperties.getCircuitBreakerWindow())
+                .openDuration(rabbitProperties.getCircuitBreakerOpenDuration())
+                .probes(rabbitProperties.getCircuitBreakerProbes())
+                .manualAck(rabbitProperties.isAsyncRepublish())
+                .build();
+    }
+
+    @Bean
+    public DeadLetterRedriver deadLetterRedriver(CachingConnectionFactory connectionFactory) {
+        return DeadLetterRedriver.builder()
+                .connectionFactory(connectionFactory.getRabbitConnectionFactory())
+                .batchSize(rabbitProperties.getRedriveBatchSize())
+                .prefetch(Math.max(rabbitProperties.getRedrivePrefetch(), rabbitProperties.getRedriveBatchSize()))
+                .rate(rabbitProperties.getRedriveRate())
+                .maxQueueDepth(rabbitProperties.getRedriveMaxQueueDepth())
+                .confirmTimeout(rabbitProperties.getRepublishConfirmTimeout())
+                .deadlineHeader(rabbitProperties.getRetryDeadlineHeader())
+                .build();
+    }
+
+    /**
+     * The journal of the copies spilled by the recoverers, its segments left by a previous run are replayed on startup.
+     */
+    @Bean(initMethod = "start")
+    @ConditionalOnProperty(prefix = "app.rabbitmq", name = "spill-journal", havingValue = "true")
+    public RepublishSpillJournal republishSpillJournal(CachingConnectionFactory connectionFactory) {
+        RepublishSpillJournal journal = RepublishSpillJournal.builder()
+                .directory(Path.of(rabbitProperties.getSpillJournalDirectory()))
+                .segmentSize(rabbitProperties.getSpillJournalSegmentSize())
+                .connectionFactory(connectionFactory.getRabbitConnectionFactory())
+                .replayInterval(rabbitProperties.getSpillJournalReplayInterval())
+                .replayBatchSize(rabbitProperties.getSpillJournalReplayBatchSize())
+                .confirmTimeout(rabbitProperties.getRepublishConfirmTimeout())
+                .build();
+        // the recoverers publish through the connections of this factory
+        connectionFactory.addConnectionListener(connection -> connection.addBlockedListener(journal.blockedListener()));
+        return journal;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "app.rabbitmq", name = "virtual-threads", havingValue = "true")
+    public VirtualThreadDispatcher virtualThreadDispatcher() {
+        Assert.state(!rabbitProperties.isAsyncRepublish(), "The async republish acks the deliveries itself, it cannot run on virtual threads");
+        Assert.state(!rabbitProperties.isAdaptiveConcurrency(), "The adaptive concurrency cannot change the consumers of virtual threads");
+        return new VirtualThreadDispatcher(rabbitProperties.getVirtualMaxInFlight());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "app.rabbitmq", name = "idempotency", havingValue = "true")
+    public IdempotentListenerInterceptor idempotentListenerInterceptor(MeterRegistry meterRegistry) {
+        ProcessedMessageCache cache = new ProcessedMessageCache(rabbitProperties.getIdempotencyCapacity(),
+                rabbitProperties.getIdempotencyTtl(), rabbitProperties.isIdempotencyOffHeap());
+        String keyHeader = rabbitProperties.getIdempotencyKeyHeader();
+        return new IdempotentListenerInterceptor(cache,
+                keyHeader == null || keyHeader.isEmpty() ? IdempotentListenerInterceptor.messageId() : IdempotentListenerInterceptor.header(keyHeader),
+                meterRegistry);
+    }
+
+    // the async republish acks the deliveries itself
+    private Advice recoveryAdvice(QueueTopologyTemplate queueTopologyTemplate, SimpleRabbitListenerContainerFactory factory,
+            ConnectionFactory connectionFactory, ListenerCircuitBreaker circuitBreaker) {
+        if (rabbitProperties.isAsyncRepublish()) {
+            factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+            ConfirmedRecoveryInterceptor interceptor = confirmedRetryInterceptor(queueTopologyTemplate, connectionFactory);
+            if (circuitBreaker != null) {
+                // the locally retried deliveries are handed to the listener again behind the gate of the circuit
+                interceptor.redeliveryGate(circuitBreaker.closedCircuit());
+            }
+            return interceptor;
+        }
+        return retryInterceptor(queueTopologyTemplate);
+    }
+
+    private RetryOperationsInterceptor retryInterceptor(QueueTopologyTemplate queueTopologyTemplate) {
+        return queueTopologyTemplate.createDelayedRetryInterceptor(delayHandler(), rabbitProperties.getRetryTopology());
+    }
+
+    private ConfirmedRecoveryInterceptor confirmedRetryInterceptor(QueueTopologyTemplate queueTopologyTemplate, ConnectionFactory connectionFactory) {
+        PublisherConfirmWindow confirmWindow = new PublisherConfirmWindow(rabbitProperties.getMaxInFlightRepublishes(),
+                rabbitProperties.getRepublishConfirmTimeout());
+        return queueTopologyTemplate.createConfirmedRetryInterceptor(delayHandler(), rabbitProperties.getRetryTopology(),
+                connectionFactory, confirmWindow, localRetryScheduler());
+    }
+
+    private LocalRetryScheduler localRetryScheduler() {
+        if (rabbitProperties.getLocalRetryCeiling() <= 0) {
+            return null;
+        }
+        // keep one prefetch slot per consumer for fresh messages
+        int maxParkedPerChannel = rabbitProperties.getPrefetchCount() - 1;
+        // rejects instead of blocking the timing wheel, the queue holds all the messages the consumers can park
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("local-retry-");
+        executor.setDaemon(true);
+        executor.setCorePoolSize(rabbitProperties.getMaxConcurrentConsumers());
+        executor.setMaxPoolSize(rabbitProperties.getMaxConcurrentConsumers());
+        executor.setQueueCapacity(Math.max(1, rabbitProperties.getMaxConcurrentConsumers() * maxParkedPerChannel));
+        executor.initialize();
+        return new LocalRetryScheduler(rabbitProperties.getLocalRetryCeiling(),
+                maxParkedPerChannel, rabbitProperties.getLocalRetryTick(), executor)
+                .retryBudgets(retryBudgets);
+    }
+
+    private ExponentialDelayHandler delayHandler(QueueProperties queue) {
+        return ExponentialDelayHandler.builder()
+                .maxRetryAttempts(queue.getMaxRetryAttempts() != null ? queue.getMaxRetryAttempts() : rabbitProperties.getMaxRetryAttempts())
+                .initialDelay(queue.getInitialDelay() != null ? queue.getInitialDelay() : rabbitProperties.getInitialDelay())
+                .multiplier(queue.getMultiplier() != null ? queue.getMultiplier() : rabbitProperties.getMultiplier())
+                .maxDelay(queue.getMaxDelay() != null ? queue.getMaxDelay() : rabbitProperties.getMaxDelay())
+                .jitter(queue.getJitter() != null ? queue.getJitter() : rabbitProperties.getJitter())
+                .build();
+    }
+
+    private ExceptionClassifier exceptionClassifier() {
+        if (!rabbitProperties.isExceptionClassification()) {
+            return null;
+        }
+        return exceptionClassifier(null, rabbitProperties.getFatalExceptions(), rabbitProperties.getRetryableExceptions(),
+                rabbitProperties.getExceptionSchedules());
+    }
+
+    // null for the queues without their own exceptions, they use the classifier of the template
+    private ExceptionClassifier exceptionClassifier(QueueProperties queue) {
+        if (!rabbitProperties.isExceptionClassification() || queue.getFatalExceptions() == null
+                && queue.getRetryableExceptions() == null && queue.getExceptionSchedules() == null) {
+            return null;
+        }
+        return exceptionClassifier(queue,
+                queue.getFatalExceptions() != null ? queue.getFatalExceptions() : rabbitProperties.getFatalExceptions(),
+                queue.getRetryableExceptions() != null ? queue.getRetryableExceptions() : rabbitProperties.getRetryableExceptions(),
+                queue.getExceptionSchedules() != null ? queue.getExceptionSchedules() : rabbitProperties.getExceptionSchedules());
+    }
+
+    private ExceptionClassifier exceptionClassifier(QueueProperties queue, List<String> fatalExceptions, List<String> retryableExceptions,
+            List<ExceptionScheduleProperties> exceptionSchedules) {
+        ExceptionClassifier.Builder builder = ExceptionClassifier.builder().defaults();
+        fatalExceptions.forEach(exception -> builder.fatal(exceptionType(exception)));
+        retryableExceptions.forEach(exception -> builder.retryable(exceptionType(exception)));
+        QueueProperties defaults = queue != null ? queue : new QueueProperties();
+        for (ExceptionScheduleProperties schedule : exceptionSchedules) {
+            builder.retryable(exceptionType(schedule.getException()), delayHandler(new QueueProperties()
+                    .setInitialDelay(schedule.getInitialDelay() != null ? schedule.getInitialDelay() : defaults.getInitialDelay())
+                    .setMaxDelay(schedule.getMaxDelay() != null ? schedule.getMaxDelay() : defaults.getMaxDelay())
+                    .setMaxRetryAttempts(schedule.getMaxRetryAttempts() != null ? schedule.getMaxRetryAttempts() : defaults.getMaxRetryAttempts())
+                    .setMultiplier(schedule.getMultiplier() != null ? schedule.getMultiplier() : defaults.getMultiplier())
+                    .setJitter(defaults.getJitter())));
+        }
+        return builder.build();
+    }
+
+    private Class<? extends Throwable> exceptionType(String className) {
+        Class<?> type = ClassUtils.resolveClassName(className, getClass().getClassLoader());
+        Assert.isTrue(Throwable.class.isAssignableFrom(type), () -> className + " is not an exception");
+        return type.asSubclass(Throwable.class);
+    }
+
+    private ExceptionHeaderPolicy exceptionHeaderPolicy() {
+        return switch (rabbitProperties.getRetryExceptionHeaders()) {
+            case FULL -> null;
+            case TRUNCATED -> ExceptionHeaderPolicy.truncated(rabbitProperties.getRetryExceptionMaxFrames());
+            case FINGERPRINT -> ExceptionHeaderPolicy.fingerprint(rabbitProperties.getRetryExceptionMaxFrames(),
+                    rabbitProperties.getExceptionFingerprintCacheSize());
+        };
+    }
+
+    private ExponentialDelayHandler delayHandler() {
+        return ExponentialDelayHandler.builder()
                 .maxRetryAttempts(rabbitProperties.getMaxRetryAttempts())
                 .initialDelay(rabbitProperties.getInitialDelay())
                 .multiplier(rabbitProperties.getMultiplier())
                 .maxDelay(rabbitProperties.getMaxDelay())
-                .build());
+                .jitter(rabbitProperties.getJitter())
+                .build();
     }
 }
@@ -0,0 +1,85 @@
+package com.example.delayedretry.config;
+
+import com.example.delayedretry.rabbit.DeadLetterRedriver;
+import org.springframework.amqp.core.Message;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Actuator endpoint starting, following and cancelling the redrive of the dlq of a queue.
+ * Like the other endpoints it must be exposed explicitly, with management.endpoints.web.exposure.include=dlqredrive.
+ */
+@Component
+@Endpoint(id = "dlqredrive")
+public class DeadLetterRedriveEndpoint {
+
+    private final DeadLetterRedriver deadLetterRedriver;
+
+    public DeadLetterRedriveEndpoint(DeadLetterRedriver deadLetterRedriver) {
+        this.deadLetterRedriver = deadLetterRedriver;
+    }
+
+    @ReadOperation
+    public Map<String, Object> progress(@Selector String queue) {
+        DeadLetterRedriver.Redrive redrive = deadLetterRedriver.progress(queue);
+        return redrive == null ? null : describe(redrive);
+    }
+
+    /**
+     * Starts the redrive of the dlq of the queue.
+     *
+     * @param queue
+     * @param exceptionType the fully qualified name of the exception of the replayed messages, or null for all
+     * @param failedAfter   the ISO-8601 time after which the replayed messages first failed, or null
+     * @param failedBefore  the ISO-8601 time before which the replayed messages first failed, or null
+     * @return
+     */
+    @WriteOperation
+    public Map<String, Object> redrive(@Selector String queue, @Nullable String exceptionType,
+            @Nullable String failedAfter, @Nullable String failedBefore) {
+        Predicate<Message> filter = message -> true;
+        if (exceptionType != null) {
+            filter = filter.and(DeadLetterRedriver.exceptionType(exceptionType));
+        }
+        if (failedAfter != null) {
+            filter = filter.and(DeadLetterRedriver.failedAfter(Instant.parse(failedAfter)));
+        }
+        if (failedBefore != null) {
+            filter = filter.and(DeadLetterRedriver.failedBefore(Instant.parse(failedBefore)));
+        }
+        return describe(deadLetterRedriver.redrive(queue, filter));
+    }
+
+    @DeleteOperation
+    public Map<String, Object> cancel(@Selector String queue) {
+        DeadLetterRedriver.Redrive redrive = deadLetterRedriver.progress(queue);
+        if (redrive == null) {
+            return null;
+        }
+        redrive.cancel();
+        return describe(redrive);
+    }
+
+    private static Map<String, Object> describe(DeadLetterRedriver.Redrive redrive) {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("queue", redrive.getQueueName());
+        description.put("state", redrive.getState());
+        description.put("total", redrive.getTotal());
+        description.put("redriven", redrive.getRedriven());
+        description.put("skipped", redrive.getSkipped());
+        if (redrive.getFailure() != null) {
+            description.put("failure", redrive.getFailure().toString());
+        }
+        return description;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.delayedretry.config;
+
+/**
+ * Delay schedule of the messages failed by an exception, the settings left empty default to the ones of the queue.
+ */
+public class ExceptionScheduleProperties {
+
+    private String exception;
+    private Integer initialDelay;
+    private Integer maxDelay;
+    private Integer maxRetryAttempts;
+    private Double multiplier;
+
+    public String getException() {
+        return exception;
+    }
+
+    public ExceptionScheduleProperties setException(String exception) {
+        this.exception = exception;
+        return this;
+    }
+
+    public Integer getInitialDelay() {
+        return initialDelay;
+    }
+
+    public ExceptionScheduleProperties setInitialDelay(Integer initialDelay) {
+        this.initialDelay = initialDelay;
+        return this;
+    }
+
+    public Integer getMaxDelay() {
+        return maxDelay;
+    }
+
+    public ExceptionScheduleProperties setMaxDelay(Integer maxDelay) {
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    public Integer getMaxRetryAttempts() {
+        return maxRetryAttempts;
+    }
+
+    public ExceptionScheduleProperties setMaxRetryAttempts(Integer maxRetryAttempts) {
+        this.maxRetryAttempts = maxRetryAttempts;
+        return this;
+    }
+
+    public Double getMultiplier() {
+        return multiplier;
+    }
+
+    public ExceptionScheduleProperties setMultiplier(Double multiplier) {
+        this.multiplier = multiplier;
+        return this;
+    }
+}
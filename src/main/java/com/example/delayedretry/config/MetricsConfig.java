@@ -0,0 +1,15 @@
+package com.example.delayedretry.config;
+
+import com.example.delayedretry.rabbit.retry.RetryMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public RetryMetrics retryMetrics(MeterRegistry meterRegistry) {
+        return new RetryMetrics(meterRegistry);
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.delayedretry.config;
+
+import com.example.delayedretry.rabbit.RetryTopology;
+import com.example.delayedretry.rabbit.retry.Jitter;
+
+import java.util.List;
+
+/**
+ * Retry settings of a consumer queue, the settings left empty default to the ones of {@link RabbitConfigurationProperties}.
+ */
+public class QueueProperties {
+
+    private String name;
+    private RetryTopology retryTopology;
+    private Integer initialDelay;
+    private Integer maxDelay;
+    private Integer maxRetryAttempts;
+    private Double multiplier;
+    private Jitter jitter;
+    private List<String> fatalExceptions;
+    private List<String> retryableExceptions;
+    private List<ExceptionScheduleProperties> exceptionSchedules;
+
+    public String getName() {
+        return name;
+    }
+
+    public QueueProperties setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public RetryTopology getRetryTopology() {
+        return retryTopology;
+    }
+
+    public QueueProperties setRetryTopology(RetryTopology retryTopology) {
+        this.retryTopology = retryTopology;
+        return this;
+    }
+
+    public Integer getInitialDelay() {
+        return initialDelay;
+    }
+
+    public QueueProperties setInitialDelay(Integer initialDelay) {
+        this.initialDelay = initialDelay;
+        return this;
+    }
+
+    public Integer getMaxDelay() {
+        return maxDelay;
+    }
+
+    public QueueProperties setMaxDelay(Integer maxDelay) {
+        this.maxDelay = maxDelay;
+        return this;
+    }
+
+    public Integer getMaxRetryAttempts() {
+        return maxRetryAttempts;
+    }
+
+    public QueueProperties setMaxRetryAttempts(Integer maxRetryAttempts) {
+        this.maxRetryAttempts = maxRetryAttempts;
+        return this;
+    }
+
+    public Double getMultiplier() {
+        return multiplier;
+    }
+
+    public QueueProperties setMultiplier(Double multiplier) {
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    public Jitter getJitter() {
+        return jitter;
+    }
+
+    public QueueProperties setJitter(Jitter jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    public List<String> getFatalExceptions() {
+        return fatalExceptions;
+    }
+
+    public QueueProperties setFatalExceptions(List<String> fatalExceptions) {
+        this.fatalExceptions = fatalExceptions;
+        return this;
+    }
+
+    public List<String> getRetryableExceptions() {
+        return retryableExceptions;
+    }
+
+    public QueueProperties setRetryableExceptions(List<String> retryableExceptions) {
+        this.retryableExceptions = retryableExceptions;
+        return this;
+    }
+
+    public List<ExceptionScheduleProperties> getExceptionSchedules() {
+        return exceptionSchedules;
+    }
+
+    public QueueProperties setExceptionSchedules(List<ExceptionScheduleProperties> exceptionSchedules) {
+        this.exceptionSchedules = exceptionSchedules;
+        return this;
+    }
+}
@@ -1,5 +1,7 @@
 package com.example.delayedretry.config;
 
+import com.example.delayedretry.rabbit.QueueTopologyTemplate;
+
 public class Queues {
 
     private Queues() {
@@ -7,4 +9,6 @@ public class Queues {
 
     public static final String ORDER_STATUS_UPDATE_QUEUE = "consumer.order.created";
 
+    public static final String ORDER_STATUS_UPDATE_REDELIVERY_QUEUE = QueueTopologyTemplate.DEFAULT_REDELIVERY_QUEUE_PREFIX + ORDER_STATUS_UPDATE_QUEUE;
+
 }
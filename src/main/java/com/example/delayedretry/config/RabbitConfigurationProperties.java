@@ -1,7 +1,15 @@
 package com.example.delayedretry.config;
 
+import com.example.delayedretry.rabbit.RetryTopology;
+import com.example.delayedretry.rabbit.retry.ExceptionHeaderPolicy;
+import com.example.delayedretry.rabbit.retry.Jitter;
+import com.example.delayedretry.rabbit.retry.RetryBudget;
+import com.example.delayedretry.rabbit.retry.RetryDeadline;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @ConfigurationProperties(prefix = "app.rabbitmq")
 public class RabbitConfigurationProperties {
 
@@ -12,6 +20,69 @@ public class RabbitConfigurationProperties {
     private int maxDelay;
     private int maxRetryAttempts;
     private double multiplier;
+    private Jitter jitter = Jitter.NONE;
+    private RetryTopology retryTopology = RetryTopology.PER_MESSAGE_TTL;
+    private boolean asyncRepublish;
+    private int maxInFlightRepublishes = 256;
+    private long republishConfirmTimeout = 5000;
+    private long localRetryCeiling;
+    private long localRetryTick = 10;
+    private boolean adaptiveConcurrency;
+    private int adaptiveMinConsumers = 1;
+    private double adaptiveFailureRateThreshold = 0.2;
+    private long adaptiveLatencyThreshold;
+    private long adaptiveInterval = 1000;
+    private boolean circuitBreaker;
+    private double circuitBreakerFailureRateThreshold = 0.5;
+    private int circuitBreakerMinSamples = 20;
+    private long circuitBreakerWindow = 10000;
+    private long circuitBreakerOpenDuration = 30000;
+    private int circuitBreakerProbes = 3;
+    private int batchSize = 50;
+    private long batchReceiveTimeout = 1000;
+    private List<QueueProperties> queues = new ArrayList<>();
+    private int declarationParallelism = 4;
+    private boolean retryStateHeader;
+    private boolean stripRetryHeaders;
+    private ExceptionHeaderPolicy.Mode retryExceptionHeaders = ExceptionHeaderPolicy.Mode.FULL;
+    private int retryExceptionMaxFrames = 20;
+    private int exceptionFingerprintCacheSize = 1024;
+    private int redriveBatchSize = 500;
+    private int redrivePrefetch = 1000;
+    private double redriveRate;
+    private long redriveMaxQueueDepth;
+    private boolean virtualThreads;
+    private int virtualMaxInFlight = 256;
+    private boolean idempotency;
+    private String idempotencyKeyHeader;
+    private int idempotencyCapacity = 65536;
+    private long idempotencyTtl = 600000;
+    private boolean idempotencyOffHeap;
+    private boolean exceptionClassification;
+    private List<String> fatalExceptions = new ArrayList<>();
+    private List<String> retryableExceptions = new ArrayList<>();
+    private List<ExceptionScheduleProperties> exceptionSchedules = new ArrayList<>();
+    private boolean retryBudget;
+    private double retryBudgetRatio = 0.2;
+    private double retryBudgetMinPerSecond = 10;
+    private long retryBudgetWindow = 10000;
+    private RetryBudget.Exhaustion retryBudgetExhaustion = RetryBudget.Exhaustion.MAX_DELAY;
+    private boolean isolatedRedelivery;
+    private int redeliveryConcurrentConsumers = 1;
+    private int redeliveryMaxConcurrentConsumers = 2;
+    private int redeliveryPrefetchCount = 1;
+    private int retryShards = 1;
+    private String retryShardKeyHeader;
+    private boolean spillJournal;
+    private String spillJournalDirectory = "spill-journal";
+    private int spillJournalSegmentSize = 64 * 1024 * 1024;
+    private long spillJournalReplayInterval = 1000;
+    private int spillJournalReplayBatchSize = 100;
+    private boolean retryDeadline;
+    private String retryDeadlineHeader = RetryDeadline.X_DEADLINE;
+    private long retryMaxAge;
+    private RetryDeadline.Expiry retryDeadlineExpiry = RetryDeadline.Expiry.DEAD_LETTER;
+    private long retryDeadlineMargin = 1000;
 
     public int getMaxConcurrentConsumers() {
         return maxConcurrentConsumers;
@@ -75,4 +146,571 @@ public class RabbitConfigurationProperties {
         this.multiplier = multiplier;
         return this;
     }
+
+    public Jitter getJitter() {
+        return jitter;
+    }
+
+    public RabbitConfigurationProperties setJitter(Jitter jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    public RetryTopology getRetryTopology() {
+        return retryTopology;
+    }
+
+    public RabbitConfigurationProperties setRetryTopology(RetryTopology retryTopology) {
+        this.retryTopology = retryTopology;
+        return this;
+    }
+
+    public boolean isAsyncRepublish() {
+        return asyncRepublish;
+    }
+
+    public RabbitConfigurationProperties setAsyncRepublish(boolean asyncRepublish) {
+        this.asyncRepublish = asyncRepublish;
+        return this;
+    }
+
+    public int getMaxInFlightRepublishes() {
+        return maxInFlightRepublishes;
+    }
+
+    public RabbitConfigurationProperties setMaxInFlightRepublishes(int maxInFlightRepublishes) {
+        this.maxInFlightRepublishes = maxInFlightRepublishes;
+        return this;
+    }
+
+    public long getRepublishConfirmTimeout() {
+        return republishConfirmTimeout;
+    }
+
+    public RabbitConfigurationProperties setRepublishConfirmTimeout(long republishConfirmTimeout) {
+        this.republishConfirmTimeout = republishConfirmTimeout;
+        return this;
+    }
+
+    public long getLocalRetryCeiling() {
+        return localRetryCeiling;
+    }
+
+    public RabbitConfigurationProperties setLocalRetryCeiling(long localRetryCeiling) {
+        this.localRetryCeiling = localRetryCeiling;
+        return this;
+    }
+
+    public long getLocalRetryTick() {
+        return localRetryTick;
+    }
+
+    public RabbitConfigurationProperties setLocalRetryTick(long localRetryTick) {
+        this.localRetryTick = localRetryTick;
+        return this;
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public RabbitConfigurationProperties setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+        return this;
+    }
+
+    public int getAdaptiveMinConsumers() {
+        return adaptiveMinConsumers;
+    }
+
+    public RabbitConfigurationProperties setAdaptiveMinConsumers(int adaptiveMinConsumers) {
+        this.adaptiveMinConsumers = adaptiveMinConsumers;
+        return this;
+    }
+
+    public double getAdaptiveFailureRateThreshold() {
+        return adaptiveFailureRateThreshold;
+    }
+
+    public RabbitConfigurationProperties setAdaptiveFailureRateThreshold(double adaptiveFailureRateThreshold) {
+        this.adaptiveFailureRateThreshold = adaptiveFailureRateThreshold;
+        return this;
+    }
+
+    public long getAdaptiveLatencyThreshold() {
+        return adaptiveLatencyThreshold;
+    }
+
+    public RabbitConfigurationProperties setAdaptiveLatencyThreshold(long adaptiveLatencyThreshold) {
+        this.adaptiveLatencyThreshold = adaptiveLatencyThreshold;
+        return this;
+    }
+
+    public long getAdaptiveInterval() {
+        return adaptiveInterval;
+    }
+
+    public RabbitConfigurationProperties setAdaptiveInterval(long adaptiveInterval) {
+        this.adaptiveInterval = adaptiveInterval;
+        return this;
+    }
+
+    public boolean isCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public RabbitConfigurationProperties setCircuitBreaker(boolean circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    public double getCircuitBreakerFailureRateThreshold() {
+        return circuitBreakerFailureRateThreshold;
+    }
+
+    public RabbitConfigurationProperties setCircuitBreakerFailureRateThreshold(double circuitBreakerFailureRateThreshold) {
+        this.circuitBreakerFailureRateThreshold = circuitBreakerFailureRateThreshold;
+        return this;
+    }
+
+    public int getCircuitBreakerMinSamples() {
+        return circuitBreakerMinSamples;
+    }
+
+    public RabbitConfigurationProperties setCircuitBreakerMinSamples(int circuitBreakerMinSamples) {
+        this.circuitBreakerMinSamples = circuitBreakerMinSamples;
+        return this;
+    }
+
+    public long getCircuitBreakerWindow() {
+        return circuitBreakerWindow;
+    }
+
+    public RabbitConfigurationProperties setCircuitBreakerWindow(long circuitBreakerWindow) {
+        this.circuitBreakerWindow = circuitBreakerWindow;
+        return this;
+    }
+
+    public long getCircuitBreakerOpenDuration() {
+        return circuitBreakerOpenDuration;
+    }
+
+    public RabbitConfigurationProperties setCircuitBreakerOpenDuration(long circuitBreakerOpenDuration) {
+        this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+        return this;
+    }
+
+    public int getCircuitBreakerProbes() {
+        return circuitBreakerProbes;
+    }
+
+    public RabbitConfigurationProperties setCircuitBreakerProbes(int circuitBreakerProbes) {
+        this.circuitBreakerProbes = circuitBreakerProbes;
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public RabbitConfigurationProperties setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public long getBatchReceiveTimeout() {
+        return batchReceiveTimeout;
+    }
+
+    public RabbitConfigurationProperties setBatchReceiveTimeout(long batchReceiveTimeout) {
+        this.batchReceiveTimeout = batchReceiveTimeout;
+        return this;
+    }
+
+    public List<QueueProperties> getQueues() {
+        return queues;
+    }
+
+    public RabbitConfigurationProperties setQueues(List<QueueProperties> queues) {
+        this.queues = queues;
+        return this;
+    }
+
+    public int getDeclarationParallelism() {
+        return declarationParallelism;
+    }
+
+    public RabbitConfigurationProperties setDeclarationParallelism(int declarationParallelism) {
+        this.declarationParallelism = declarationParallelism;
+        return this;
+    }
+
+    public boolean isRetryStateHeader() {
+        return retryStateHeader;
+    }
+
+    public RabbitConfigurationProperties setRetryStateHeader(boolean retryStateHeader) {
+        this.retryStateHeader = retryStateHeader;
+        return this;
+    }
+
+    public boolean isStripRetryHeaders() {
+        return stripRetryHeaders;
+    }
+
+    public RabbitConfigurationProperties setStripRetryHeaders(boolean stripRetryHeaders) {
+        this.stripRetryHeaders = stripRetryHeaders;
+        return this;
+    }
+
+    public ExceptionHeaderPolicy.Mode getRetryExceptionHeaders() {
+        return retryExceptionHeaders;
+    }
+
+    public RabbitConfigurationProperties setRetryExceptionHeaders(ExceptionHeaderPolicy.Mode retryExceptionHeaders) {
+        this.retryExceptionHeaders = retryExceptionHeaders;
+        return this;
+    }
+
+    public int getRetryExceptionMaxFrames() {
+        return retryExceptionMaxFrames;
+    }
+
+    public RabbitConfigurationProperties setRetryExceptionMaxFrames(int retryExceptionMaxFrames) {
+        this.retryExceptionMaxFrames = retryExceptionMaxFrames;
+        return this;
+    }
+
+    public int getExceptionFingerprintCacheSize() {
+        return exceptionFingerprintCacheSize;
+    }
+
+    public RabbitConfigurationProperties setExceptionFingerprintCacheSize(int exceptionFingerprintCacheSize) {
+        this.exceptionFingerprintCacheSize = exceptionFingerprintCacheSize;
+        return this;
+    }
+
+    public int getRedriveBatchSize() {
+        return redriveBatchSize;
+    }
+
+    public RabbitConfigurationProperties setRedriveBatchSize(int redriveBatchSize) {
+        this.redriveBatchSize = redriveBatchSize;
+        return this;
+    }
+
+    public int getRedrivePrefetch() {
+        return redrivePrefetch;
+    }
+
+    public RabbitConfigurationProperties setRedrivePrefetch(int redrivePrefetch) {
+        this.redrivePrefetch = redrivePrefetch;
+        return this;
+    }
+
+    public double getRedriveRate() {
+        return redriveRate;
+    }
+
+    public RabbitConfigurationProperties setRedriveRate(double redriveRate) {
+        this.redriveRate = redriveRate;
+        return this;
+    }
+
+    public long getRedriveMaxQueueDepth() {
+        return redriveMaxQueueDepth;
+    }
+
+    public RabbitConfigurationProperties setRedriveMaxQueueDepth(long redriveMaxQueueDepth) {
+        this.redriveMaxQueueDepth = redriveMaxQueueDepth;
+        return this;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public RabbitConfigurationProperties setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public int getVirtualMaxInFlight() {
+        return virtualMaxInFlight;
+    }
+
+    public RabbitConfigurationProperties setVirtualMaxInFlight(int virtualMaxInFlight) {
+        this.virtualMaxInFlight = virtualMaxInFlight;
+        return this;
+    }
+
+    public boolean isIdempotency() {
+        return idempotency;
+    }
+
+    public RabbitConfigurationProperties setIdempotency(boolean idempotency) {
+        this.idempotency = idempotency;
+        return this;
+    }
+
+    public String getIdempotencyKeyHeader() {
+        return idempotencyKeyHeader;
+    }
+
+    public RabbitConfigurationProperties setIdempotencyKeyHeader(String idempotencyKeyHeader) {
+        this.idempotencyKeyHeader = idempotencyKeyHeader;
+        return this;
+    }
+
+    public int getIdempotencyCapacity() {
+        return idempotencyCapacity;
+    }
+
+    public RabbitConfigurationProperties setIdempotencyCapacity(int idempotencyCapacity) {
+        this.idempotencyCapacity = idempotencyCapacity;
+        return this;
+    }
+
+    public long getIdempotencyTtl() {
+        return idempotencyTtl;
+    }
+
+    public RabbitConfigurationProperties setIdempotencyTtl(long idempotencyTtl) {
+        this.idempotencyTtl = idempotencyTtl;
+        return this;
+    }
+
+    public boolean isIdempotencyOffHeap() {
+        return idempotencyOffHeap;
+    }
+
+    public RabbitConfigurationProperties setIdempotencyOffHeap(boolean idempotencyOffHeap) {
+        this.idempotencyOffHeap = idempotencyOffHeap;
+        return this;
+    }
+
+    public boolean isExceptionClassification() {
+        return exceptionClassification;
+    }
+
+    public RabbitConfigurationProperties setExceptionClassification(boolean exceptionClassification) {
+        this.exceptionClassification = exceptionClassification;
+        return this;
+    }
+
+    public List<String> getFatalExceptions() {
+        return fatalExceptions;
+    }
+
+    public RabbitConfigurationProperties setFatalExceptions(List<String> fatalExceptions) {
+        this.fatalExceptions = fatalExceptions;
+        return this;
+    }
+
+    public List<String> getRetryableExceptions() {
+        return retryableExceptions;
+    }
+
+    public RabbitConfigurationProperties setRetryableExceptions(List<String> retryableExceptions) {
+        this.retryableExceptions = retryableExceptions;
+        return this;
+    }
+
+    public List<ExceptionScheduleProperties> getExceptionSchedules() {
+        return exceptionSchedules;
+    }
+
+    public RabbitConfigurationProperties setExceptionSchedules(List<ExceptionScheduleProperties> exceptionSchedules) {
+        this.exceptionSchedules = exceptionSchedules;
+        return this;
+    }
+
+    public boolean isRetryBudget() {
+        return retryBudget;
+    }
+
+    public RabbitConfigurationProperties setRetryBudget(boolean retryBudget) {
+        this.retryBudget = retryBudget;
+        return this;
+    }
+
+    public double getRetryBudgetRatio() {
+        return retryBudgetRatio;
+    }
+
+    public RabbitConfigurationProperties setRetryBudgetRatio(double retryBudgetRatio) {
+        this.retryBudgetRatio = retryBudgetRatio;
+        return this;
+    }
+
+    public double getRetryBudgetMinPerSecond() {
+        return retryBudgetMinPerSecond;
+    }
+
+    public RabbitConfigurationProperties setRetryBudgetMinPerSecond(double retryBudgetMinPerSecond) {
+        this.retryBudgetMinPerSecond = retryBudgetMinPerSecond;
+        return this;
+    }
+
+    public long getRetryBudgetWindow() {
+        return retryBudgetWindow;
+    }
+
+    public RabbitConfigurationProperties setRetryBudgetWindow(long retryBudgetWindow) {
+        this.retryBudgetWindow = retryBudgetWindow;
+        return this;
+    }
+
+    public RetryBudget.Exhaustion getRetryBudgetExhaustion() {
+        return retryBudgetExhaustion;
+    }
+
+    public RabbitConfigurationProperties setRetryBudgetExhaustion(RetryBudget.Exhaustion retryBudgetExhaustion) {
+        this.retryBudgetExhaustion = retryBudgetExhaustion;
+        return this;
+    }
+
+    public boolean isIsolatedRedelivery() {
+        return isolatedRedelivery;
+    }
+
+    public RabbitConfigurationProperties setIsolatedRedelivery(boolean isolatedRedelivery) {
+        this.isolatedRedelivery = isolatedRedelivery;
+        return this;
+    }
+
+    public int getRedeliveryConcurrentConsumers() {
+        return redeliveryConcurrentConsumers;
+    }
+
+    public RabbitConfigurationProperties setRedeliveryConcurrentConsumers(int redeliveryConcurrentConsumers) {
+        this.redeliveryConcurrentConsumers = redeliveryConcurrentConsumers;
+        return this;
+    }
+
+    public int getRedeliveryMaxConcurrentConsumers() {
+        return redeliveryMaxConcurrentConsumers;
+    }
+
+    public RabbitConfigurationProperties setRedeliveryMaxConcurrentConsumers(int redeliveryMaxConcurrentConsumers) {
+        this.redeliveryMaxConcurrentConsumers = redeliveryMaxConcurrentConsumers;
+        return this;
+    }
+
+    public int getRedeliveryPrefetchCount() {
+        return redeliveryPrefetchCount;
+    }
+
+    public RabbitConfigurationProperties setRedeliveryPrefetchCount(int redeliveryPrefetchCount) {
+        this.redeliveryPrefetchCount = redeliveryPrefetchCount;
+        return this;
+    }
+
+    public int getRetryShards() {
+        return retryShards;
+    }
+
+    public RabbitConfigurationProperties setRetryShards(int retryShards) {
+        this.retryShards = retryShards;
+        return this;
+    }
+
+    public String getRetryShardKeyHeader() {
+        return retryShardKeyHeader;
+    }
+
+    public RabbitConfigurationProperties setRetryShardKeyHeader(String retryShardKeyHeader) {
+        this.retryShardKeyHeader = retryShardKeyHeader;
+        return this;
+    }
+
+    public boolean isSpillJournal() {
+        return spillJournal;
+    }
+
+    public RabbitConfigurationProperties setSpillJournal(boolean spillJournal) {
+        this.spillJournal = spillJournal;
+        return this;
+    }
+
+    public String getSpillJournalDirectory() {
+        return spillJournalDirectory;
+    }
+
+    public RabbitConfigurationProperties setSpillJournalDirectory(String spillJournalDirectory) {
+        this.spillJournalDirectory = spillJournalDirectory;
+        return this;
+    }
+
+    public int getSpillJournalSegmentSize() {
+        return spillJournalSegmentSize;
+    }
+
+    public RabbitConfigurationProperties setSpillJournalSegmentSize(int spillJournalSegmentSize) {
+        this.spillJournalSegmentSize = spillJournalSegmentSize;
+        return this;
+    }
+
+    public long getSpillJournalReplayInterval() {
+        return spillJournalReplayInterval;
+    }
+
+    public RabbitConfigurationProperties setSpillJournalReplayInterval(long spillJournalReplayInterval) {
+        this.spillJournalReplayInterval = spillJournalReplayInterval;
+        return this;
+    }
+
+    public int getSpillJournalReplayBatchSize() {
+        return spillJournalReplayBatchSize;
+    }
+
+    public RabbitConfigurationProperties setSpillJournalReplayBatchSize(int spillJournalReplayBatchSize) {
+        this.spillJournalReplayBatchSize = spillJournalReplayBatchSize;
+        return this;
+    }
+
+    public boolean isRetryDeadline() {
+        return retryDeadline;
+    }
+
+    public RabbitConfigurationProperties setRetryDeadline(boolean retryDeadline) {
+        this.retryDeadline = retryDeadline;
+        return this;
+    }
+
+    public String getRetryDeadlineHeader() {
+        return retryDeadlineHeader;
+    }
+
+    public RabbitConfigurationProperties setRetryDeadlineHeader(String retryDeadlineHeader) {
+        this.retryDeadlineHeader = retryDeadlineHeader;
+        return this;
+    }
+
+    public long getRetryMaxAge() {
+        return retryMaxAge;
+    }
+
+    public RabbitConfigurationProperties setRetryMaxAge(long retryMaxAge) {
+        this.retryMaxAge = retryMaxAge;
+        return this;
+    }
+
+    public RetryDeadline.Expiry getRetryDeadlineExpiry() {
+        return retryDeadlineExpiry;
+    }
+
+    public RabbitConfigurationProperties setRetryDeadlineExpiry(RetryDeadline.Expiry retryDeadlineExpiry) {
+        this.retryDeadlineExpiry = retryDeadlineExpiry;
+        return this;
+    }
+
+    public long getRetryDeadlineMargin() {
+        return retryDeadlineMargin;
+    }
+
+    public RabbitConfigurationProperties setRetryDeadlineMargin(long retryDeadlineMargin) {
+        this.retryDeadlineMargin = retryDeadlineMargin;
+        return this;
+    }
 }
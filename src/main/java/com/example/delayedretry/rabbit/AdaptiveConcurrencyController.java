@@ -0,0 +1,274 @@
+package com.example.delayedretry.rabbit;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.util.Assert;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adjusts the consumers and the prefetch count of each listener container from the failure rate and the latency of its listener,
+ * additively increasing them while the listener is healthy and multiplicatively decreasing them when it fails or slows down.
+ * It replaces the scaling of the {@link SimpleMessageListenerContainer}, which only looks at busy consumers and scales up
+ * during a downstream outage, by pinning the concurrent and max consumers to the same value.
+ * It must be the last advice of the chain, so it observes the listener exceptions before they are recovered.
+ * The prefetch count applies to the consumers started after the change.
+ */
+public class AdaptiveConcurrencyController implements MethodInterceptor, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveConcurrencyController.class);
+
+    private final int minConsumers;
+    private final int maxConsumers;
+    private final int minPrefetch;
+    private final int maxPrefetch;
+    private final double failureRateThreshold;
+    private final long latencyThresholdNanos;
+    private final long minSamples;
+    private final double decreaseFactor;
+
+    private final List<ContainerState> containers = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, ContainerState> queueContainers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private AdaptiveConcurrencyController(Builder builder) {
+        Assert.isTrue(builder.minConsumers > 0, "'minConsumers' must be greater than zero");
+        Assert.isTrue(builder.maxConsumers >= builder.minConsumers, "'maxConsumers' cannot be lower than 'minConsumers'");
+        Assert.isTrue(builder.minPrefetch > 0, "'minPrefetch' must be greater than zero");
+        Assert.isTrue(builder.maxPrefetch >= builder.minPrefetch, "'maxPrefetch' cannot be lower than 'minPrefetch'");
+        Assert.isTrue(builder.decreaseFactor > 0 && builder.decreaseFactor < 1, "'decreaseFactor' must be between zero and one");
+        this.minConsumers = builder.minConsumers;
+        this.maxConsumers = builder.maxConsumers;
+        this.minPrefetch = builder.minPrefetch;
+        this.maxPrefetch = builder.maxPrefetch;
+        this.failureRateThreshold = builder.failureRateThreshold;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(builder.latencyThreshold);
+        this.minSamples = builder.minSamples;
+        this.decreaseFactor = builder.decreaseFactor;
+
+        if (builder.interval > 0) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "adaptive-concurrency");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.scheduler.scheduleWithFixedDelay(this::adjust, builder.interval, builder.interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Registers a container, its consumers and prefetch count are controlled from now on, starting from the min consumers
+     * and the max prefetch count.
+     *
+     * @param container
+     */
+    public void register(SimpleMessageListenerContainer container) {
+        ContainerState state = new ContainerState(container, minConsumers, maxPrefetch);
+        container.setMaxConcurrentConsumers(state.consumers);
+        container.setConcurrentConsumers(state.consumers);
+        container.setPrefetchCount(state.prefetch);
+        containers.add(state);
+        for (String queueName : container.getQueueNames()) {
+            queueContainers.put(queueName, state);
+        }
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        ContainerState state = invocation.getArguments()[1] instanceof Message message
+                ? queueContainers.get(String.valueOf(message.getMessageProperties().getConsumerQueue()))
+                : null;
+        if (state == null) {
+            return invocation.proceed();
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+            Object result = invocation.proceed();
+            state.successes.increment();
+            return result;
+        } catch (Throwable e) {
+            state.failures.increment();
+            throw e;
+        } finally {
+            state.latencyNanos.add(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Adjusts the consumers and the prefetch count of each container from the deliveries handled since the last adjustment.
+     */
+    void adjust() {
+        for (ContainerState state : containers) {
+            try {
+                adjust(state);
+            } catch (RuntimeException e) {
+                log.warn("Failed to adjust the concurrency of the listener of {}", state.container.getQueueNames(), e);
+            }
+        }
+    }
+
+    private void adjust(ContainerState state) {
+        long successes = state.successes.sumThenReset();
+        long failures = state.failures.sumThenReset();
+        long latencyNanos = state.latencyNanos.sumThenReset();
+        long samples = successes + failures;
+        if (samples == 0 || samples < minSamples) {
+            return;
+        }
+
+        double failureRate = (double) failures / samples;
+        long meanLatencyNanos = latencyNanos / samples;
+        boolean degraded = failureRate > failureRateThreshold
+                || (latencyThresholdNanos > 0 && meanLatencyNanos > latencyThresholdNanos);
+
+        int consumers = degraded
+                ? Math.max(minConsumers, (int) (state.consumers * decreaseFactor))
+                : Math.min(maxConsumers, state.consumers + 1);
+        int prefetch = degraded
+                ? Math.max(minPrefetch, (int) (state.prefetch * decreaseFactor))
+                : Math.min(maxPrefetch, state.prefetch + 1);
+
+        if (consumers != state.consumers || prefetch != state.prefetch) {
+            log.debug("Adjusting listener of {} to consumers={} prefetch={}, failureRate={} meanLatency={}ms",
+                    state.container.getQueueNames(), consumers, prefetch, failureRate, TimeUnit.NANOSECONDS.toMillis(meanLatencyNanos));
+            state.container.setPrefetchCount(prefetch);
+            // the max consumers cannot be lower than the concurrent consumers
+            if (consumers > state.consumers) {
+                state.container.setMaxConcurrentConsumers(consumers);
+                state.container.setConcurrentConsumers(consumers);
+            } else {
+                state.container.setConcurrentConsumers(consumers);
+                state.container.setMaxConcurrentConsumers(consumers);
+            }
+            state.consumers = consumers;
+            state.prefetch = prefetch;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static final class ContainerState {
+
+        private final SimpleMessageListenerContainer container;
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        // only touched by the adjusting thread
+        private int consumers;
+        private int prefetch;
+
+        private ContainerState(SimpleMessageListenerContainer container, int consumers, int prefetch) {
+            this.container = container;
+            this.consumers = consumers;
+            this.prefetch = prefetch;
+        }
+    }
+
+    public static class Builder {
+
+        private int minConsumers = 1;
+        private int maxConsumers = 1;
+        private int minPrefetch = 1;
+        private int maxPrefetch = 250;
+        private double failureRateThreshold = 0.2;
+        private long latencyThreshold;
+        private long minSamples = 10;
+        private double decreaseFactor = 0.5;
+        private long interval = 1_000;
+
+        private Builder() {
+        }
+
+        public Builder minConsumers(int minConsumers) {
+            this.minConsumers = minConsumers;
+            return this;
+        }
+
+        public Builder maxConsumers(int maxConsumers) {
+            this.maxConsumers = maxConsumers;
+            return this;
+        }
+
+        public Builder minPrefetch(int minPrefetch) {
+            this.minPrefetch = minPrefetch;
+            return this;
+        }
+
+        public Builder maxPrefetch(int maxPrefetch) {
+            this.maxPrefetch = maxPrefetch;
+            return this;
+        }
+
+        /**
+         * Rate of failed deliveries above which the consumers are decreased.
+         * @param failureRateThreshold
+         * @return
+         */
+        public Builder failureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        /**
+         * Mean listener latency in milliseconds above which the consumers are decreased, zero to ignore the latency.
+         * @param latencyThreshold
+         * @return
+         */
+        public Builder latencyThreshold(long latencyThreshold) {
+            this.latencyThreshold = latencyThreshold;
+            return this;
+        }
+
+        /**
+         * Deliveries needed between two adjustments to change the consumers.
+         * @param minSamples
+         * @return
+         */
+        public Builder minSamples(long minSamples) {
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        public Builder decreaseFactor(double decreaseFactor) {
+            this.decreaseFactor = decreaseFactor;
+            return this;
+        }
+
+        /**
+         * Interval between two adjustments in milliseconds, zero to adjust only on demand.
+         * @param interval
+         * @return
+         */
+        public Builder interval(long interval) {
+            this.interval = interval;
+            return this;
+        }
+
+        public AdaptiveConcurrencyController build() {
+            return new AdaptiveConcurrencyController(this);
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExceptionHeaderPolicy;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RetryCounts;
+import com.example.delayedretry.rabbit.retry.RetryDeadline;
+import com.example.delayedretry.rabbit.retry.RetryMetrics;
+import com.example.delayedretry.rabbit.retry.RetryState;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.retry.RepublishMessageRecoverer;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_DLQ_QUEUE_PREFIX;
+import static org.springframework.amqp.rabbit.core.RabbitAdmin.DEFAULT_EXCHANGE_NAME;
+
+/**
+ * Replays the messages of a dead letter queue to their queue with a fresh retry schedule.
+ * The messages in the dlq when the redrive starts are consumed with a prefetch on a dedicated connection, so a redrive does not
+ * compete with the listeners for their channels, and republished in batches: each batch is acked on the dlq once all its copies
+ * are confirmed, so a failed redrive leaves the unconfirmed messages in the dlq, and may publish some of them twice.
+ * The messages rejected by the filter are republished to the tail of the dlq, behind the messages counted at the start.
+ * A redriven message also gets a new retry deadline: its deadline header is removed and its timestamp is refreshed.
+ * The publishing is paced by a rate and, optionally, paused while the queue holds too many messages for its consumers.
+ */
+public class DeadLetterRedriver {
+
+    private static final Logger log = LoggerFactory.getLogger(DeadLetterRedriver.class);
+
+    public static final String X_REDRIVE_COUNT = "x-redrive-count";
+
+    // written by the broker and the recoverers on the failed attempts, removed so the redriven message starts a new retry schedule
+    private static final List<String> RETRY_HEADERS = List.of(
+            "x-death", "x-first-death-exchange", "x-first-death-queue", "x-first-death-reason",
+            "x-last-death-exchange", "x-last-death-queue", "x-last-death-reason",
+            RetryState.X_RETRY_STATE,
+            RetryCounts.X_LOCAL_RETRY_COUNT,
+            RepublishDelayedMessageRecoverer.X_RETRY_DELAY,
+            RepublishDelayedMessageRecoverer.X_RETRY_SCHEDULED_DELAY,
+            RetryMetrics.X_RETRY_PUBLISHED_AT,
+            ExceptionHeaderPolicy.X_EXCEPTION_FINGERPRINT,
+            RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE,
+            RepublishMessageRecoverer.X_EXCEPTION_MESSAGE,
+            RepublishMessageRecoverer.X_ORIGINAL_EXCHANGE,
+            RepublishMessageRecoverer.X_ORIGINAL_ROUTING_KEY);
+
+    private static final long CAPACITY_CHECK_INTERVAL = 1_000;
+
+    private final ConnectionFactory connectionFactory;
+    private final int batchSize;
+    private final int prefetch;
+    private final double rate;
+    private final long maxQueueDepth;
+    private final long confirmTimeout;
+    private final long idleTimeout;
+    private final String deadlineHeader;
+    private final Executor executor;
+    private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+    private final ConcurrentMap<String, Redrive> redrives = new ConcurrentHashMap<>();
+
+    private DeadLetterRedriver(Builder builder) {
+        Assert.notNull(builder.connectionFactory, "'connectionFactory' cannot be null");
+        Assert.isTrue(builder.batchSize > 0, "'batchSize' must be greater than zero");
+        Assert.isTrue(builder.prefetch >= builder.batchSize, "'prefetch' cannot be lower than 'batchSize'");
+        Assert.isTrue(builder.rate >= 0, "'rate' cannot be negative");
+        Assert.isTrue(builder.confirmTimeout > 0, "'confirmTimeout' must be greater than zero");
+        Assert.isTrue(builder.idleTimeout > 0, "'idleTimeout' must be greater than zero");
+        this.connectionFactory = builder.connectionFactory;
+        this.batchSize = builder.batchSize;
+        this.prefetch = builder.prefetch;
+        this.rate = builder.rate;
+        this.maxQueueDepth = builder.maxQueueDepth;
+        this.confirmTimeout = builder.confirmTimeout;
+        this.idleTimeout = builder.idleTimeout;
+        this.deadlineHeader = builder.deadlineHeader;
+        this.executor = builder.executor != null ? builder.executor : new SimpleAsyncTaskExecutor("dlq-redrive-");
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Starts replaying the dlq of the given queue, only one redrive of a queue runs at a time.
+     *
+     * @param queueName the queue whose dlq is replayed
+     * @param filter    the messages to replay, the others stay in the dlq
+     * @return the progress of the redrive
+     */
+    public Redrive redrive(String queueName, Predicate<Message> filter) {
+        Assert.hasText(queueName, "'queueName' cannot be empty");
+        Assert.notNull(filter, "'filter' cannot be null");
+        Redrive redrive = new Redrive(queueName);
+        Redrive current = redrives.compute(queueName,
+                (name, previous) -> previous != null && previous.getState() == Redrive.State.RUNNING ? previous : redrive);
+        Assert.state(current == redrive, () -> "A redrive of " + queueName + " is already running");
+        executor.execute(() -> run(redrive, filter));
+        return redrive;
+    }
+
+    /**
+     * Returns the progress of the last redrive of the given queue, or null.
+     *
+     * @param queueName
+     * @return
+     */
+    public Redrive progress(String queueName) {
+        return redrives.get(queueName);
+    }
+
+    /**
+     * Matches the messages that failed with the given exception type, either thrown by the listener or a cause of it.
+     *
+     * @param exceptionType the fully qualified name of the exception
+     * @return
+     */
+    public static Predicate<Message> exceptionType(String exceptionType) {
+        Assert.hasText(exceptionType, "'exceptionType' cannot be empty");
+        return message -> {
+            Object stackTrace = message.getMessageProperties().getHeader(RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE);
+            return stackTrace != null && throwsType(stackTrace.toString(), exceptionType);
+        };
+    }
+
+    /**
+     * Matches the messages whose first failure happened at or after the given time, messages without a known failure time don't match.
+     *
+     * @param instant
+     * @return
+     */
+    public static Predicate<Message> failedAfter(Instant instant) {
+        long millis = instant.toEpochMilli();
+        return message -> {
+            long firstFailureAt = firstFailureAt(message.getMessageProperties());
+            return firstFailureAt >= 0 && firstFailureAt >= millis;
+        };
+    }
+
+    /**
+     * Matches the messages whose first failure happened before the given time, messages without a known failure time don't match.
+     *
+     * @param instant
+     * @return
+     */
+    public static Predicate<Message> failedBefore(Instant instant) {
+        long millis = instant.toEpochMilli();
+        return message -> {
+            long firstFailureAt = firstFailureAt(message.getMessageProperties());
+            return firstFailureAt >= 0 && firstFailureAt < millis;
+        };
+    }
+
+    private void run(Redrive redrive, Predicate<Message> filter) {
+        String dlqName = DEFAULT_DLQ_QUEUE_PREFIX.concat(redrive.queueName);
+        try (Connection connection = connectionFactory.newConnection("dlq-redrive-" + redrive.queueName)) {
+            Channel consumeChannel = connection.createChannel();
+            Channel publishChannel = connection.createChannel();
+            drain(redrive, filter, dlqName, consumeChannel, publishChannel);
+            redrive.finish(redrive.cancelled ? Redrive.State.CANCELLED : Redrive.State.COMPLETED, null);
+            log.info("Redrive of {} finished: {}", dlqName, redrive);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            redrive.finish(Redrive.State.CANCELLED, e);
+        } catch (Exception e) {
+            redrive.finish(Redrive.State.FAILED, e);
+            log.warn("Redrive of {} failed, the unconfirmed messages stay in the dlq: {}", dlqName, redrive, e);
+        }
+    }
+
+    private void drain(Redrive redrive, Predicate<Message> filter, String dlqName, Channel consumeChannel, Channel publishChannel)
+            throws Exception {
+        publishChannel.confirmSelect();
+        consumeChannel.basicQos(prefetch);
+        long remaining = consumeChannel.queueDeclarePassive(dlqName).getMessageCount();
+        redrive.total = remaining;
+        log.info("Redriving {} messages of {} to {}", remaining, dlqName, redrive.queueName);
+        if (remaining == 0) {
+            return;
+        }
+
+        BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<>();
+        String consumerTag = consumeChannel.basicConsume(dlqName, false, new DefaultConsumer(consumeChannel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                deliveries.add(new Delivery(envelope, properties, body));
+            }
+        });
+
+        List<Delivery> batch = new ArrayList<>(batchSize);
+        long nextBatchNanos = System.nanoTime();
+        while (remaining > 0 && !redrive.cancelled) {
+            Delivery first = deliveries.poll(idleTimeout, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                log.info("No message received from {} within {}ms, it was drained by another consumer", dlqName, idleTimeout);
+                break;
+            }
+            batch.add(first);
+            deliveries.drainTo(batch, (int) Math.min(batchSize, remaining) - 1);
+
+            awaitCapacity(redrive, publishChannel);
+            publish(redrive, filter, dlqName, batch, consumeChannel, publishChannel);
+            remaining -= batch.size();
+            batch.clear();
+
+            if (rate > 0) {
+                // a late batch does not earn a burst
+                nextBatchNanos = Math.max(nextBatchNanos, System.nanoTime()) + (long) (redrive.lastBatch * 1_000_000_000L / rate);
+                long sleep = nextBatchNanos - System.nanoTime();
+                if (sleep > 0) {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+            }
+        }
+        consumeChannel.basicCancel(consumerTag);
+    }
+
+    private void awaitCapacity(Redrive redrive, Channel publishChannel) throws Exception {
+        if (maxQueueDepth <= 0) {
+            return;
+        }
+        while (!redrive.cancelled && publishChannel.queueDeclarePassive(redrive.queueName).getMessageCount() >= maxQueueDepth) {
+            log.debug("Redrive of {} paused, the queue holds more than {} messages", redrive.queueName, maxQueueDepth);
+            Thread.sleep(CAPACITY_CHECK_INTERVAL);
+        }
+    }
+
+    private void publish(Redrive redrive, Predicate<Message> filter, String dlqName, List<Delivery> batch,
+            Channel consumeChannel, Channel publishChannel) throws Exception {
+        long redriven = 0;
+        for (Delivery delivery : batch) {
+            MessageProperties messageProperties = messagePropertiesConverter.toMessageProperties(
+                    delivery.getProperties(), delivery.getEnvelope(), StandardCharsets.UTF_8.name());
+            if (filter.test(new Message(delivery.getBody(), messageProperties))) {
+                resetRetryState(messageProperties, deadlineHeader, System.currentTimeMillis());
+                publishChannel.basicPublish(DEFAULT_EXCHANGE_NAME, redrive.queueName, false,
+                        messagePropertiesConverter.fromMessageProperties(messageProperties, StandardCharsets.UTF_8.name()),
+                        delivery.getBody());
+                redriven++;
+            } else {
+                publishChannel.basicPublish(DEFAULT_EXCHANGE_NAME, dlqName, false, delivery.getProperties(), delivery.getBody());
+            }
+        }
+        // throws if a copy is nacked or not confirmed in time, the batch is then requeued when the channel is closed
+        publishChannel.waitForConfirmsOrDie(confirmTimeout);
+        consumeChannel.basicAck(batch.get(batch.size() - 1).getEnvelope().getDeliveryTag(), true);
+
+        redrive.redriven.addAndGet(redriven);
+        redrive.skipped.addAndGet(batch.size() - redriven);
+        redrive.lastBatch = batch.size();
+        log.debug("Redrive of {} progressed: {}", dlqName, redrive);
+    }
+
+    static void resetRetryState(MessageProperties messageProperties, String deadlineHeader, long now) {
+        Map<String, Object> headers = messageProperties.getHeaders();
+        for (String header : RETRY_HEADERS) {
+            headers.remove(header);
+        }
+        // the deadline of the failed attempts has likely passed, the guard would send the redriven message straight back
+        if (deadlineHeader != null) {
+            headers.remove(deadlineHeader);
+        }
+        if (messageProperties.getTimestamp() != null) {
+            messageProperties.setTimestamp(new Date(now));
+        }
+        Object redriveCount = headers.get(X_REDRIVE_COUNT);
+        headers.put(X_REDRIVE_COUNT, redriveCount instanceof Number number ? number.longValue() + 1 : 1L);
+        messageProperties.setExpiration(null);
+    }
+
+    static long firstFailureAt(MessageProperties messageProperties) {
+        RetryState retryState = RetryState.of(messageProperties);
+        if (retryState != null) {
+            return retryState.getFirstFailureAt();
+        }
+        List<Map<String, ?>> xDeathHeader = messageProperties.getXDeathHeader();
+        long firstFailureAt = -1L;
+        if (xDeathHeader != null) {
+            for (Map<String, ?> xDeath : xDeathHeader) {
+                if (xDeath.get("time") instanceof Date time && (firstFailureAt < 0 || time.getTime() < firstFailureAt)) {
+                    firstFailureAt = time.getTime();
+                }
+            }
+        }
+        return firstFailureAt;
+    }
+
+    private static boolean throwsType(String stackTrace, String exceptionType) {
+        int index = stackTrace.startsWith(exceptionType) ? 0 : stackTrace.indexOf("Caused by: " + exceptionType);
+        while (index >= 0) {
+            int end = stackTrace.indexOf(exceptionType, index) + exceptionType.length();
+            if (end == stackTrace.length() || stackTrace.charAt(end) == ':' || stackTrace.charAt(end) == '\n' || stackTrace.charAt(end) == '\r') {
+                return true;
+            }
+            index = stackTrace.indexOf("Caused by: " + exceptionType, end);
+        }
+        return false;
+    }
+
+    /**
+     * Progress of a redrive, updated once each batch is confirmed.
+     */
+    public static final class Redrive {
+
+        public enum State {
+            RUNNING, COMPLETED, CANCELLED, FAILED
+        }
+
+        private final String queueName;
+        private final AtomicLong redriven = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile long total = -1L;
+        private volatile int lastBatch;
+        private volatile boolean cancelled;
+        private volatile State state = State.RUNNING;
+        private volatile Throwable failure;
+
+        private Redrive(String queueName) {
+            this.queueName = queueName;
+        }
+
+        public String getQueueName() {
+            return queueName;
+        }
+
+        /**
+         * Returns the number of messages in the dlq when the redrive started, or -1 until it is known.
+         *
+         * @return
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        public long getRedriven() {
+            return redriven.get();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * Stops the redrive after the current batch.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Waits for the redrive to finish.
+         *
+         * @param timeout
+         * @param unit
+         * @return false if it is still running
+         * @throws InterruptedException
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+
+        private void finish(State state, Throwable failure) {
+            this.failure = failure;
+            this.state = state;
+            done.countDown();
+        }
+
+        @Override
+        public String toString() {
+            return "state=" + state + ", total=" + total + ", redriven=" + redriven + ", skipped=" + skipped;
+        }
+    }
+
+    public static class Builder {
+
+        private ConnectionFactory connectionFactory;
+        private int batchSize = 500;
+        private int prefetch = 1_000;
+        private double rate;
+        private long maxQueueDepth;
+        private long confirmTimeout = 5_000;
+        private long idleTimeout = 5_000;
+        private String deadlineHeader = RetryDeadline.X_DEADLINE;
+        private Executor executor;
+
+        private Builder() {
+        }
+
+        /**
+         * Factory of the dedicated connection of each redrive.
+         * @param connectionFactory
+         * @return
+         */
+        public Builder connectionFactory(ConnectionFactory connectionFactory) {
+            this.connectionFactory = connectionFactory;
+            return this;
+        }
+
+        /**
+         * Messages republished before waiting for their confirms and acking them on the dlq.
+         * @param batchSize
+         * @return
+         */
+        public Builder batchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Unacked messages delivered by the dlq, at least the batch size.
+         * @param prefetch
+         * @return
+         */
+        public Builder prefetch(int prefetch) {
+            this.prefetch = prefetch;
+            return this;
+        }
+
+        /**
+         * Max messages republished per second, zero for no limit.
+         * @param rate
+         * @return
+         */
+        public Builder rate(double rate) {
+            this.rate = rate;
+            return this;
+        }
+
+        /**
+         * Depth of the queue above which the redrive pauses, zero for no limit.
+         * @param maxQueueDepth
+         * @return
+         */
+        public Builder maxQueueDepth(long maxQueueDepth) {
+            this.maxQueueDepth = maxQueueDepth;
+            return this;
+        }
+
+        /**
+         * Time in milliseconds to wait for the confirms of a batch.
+         * @param confirmTimeout
+         * @return
+         */
+        public Builder confirmTimeout(long confirmTimeout) {
+            this.confirmTimeout = confirmTimeout;
+            return this;
+        }
+
+        /**
+         * Time in milliseconds without delivery after which the dlq is considered drained.
+         * @param idleTimeout
+         * @return
+         */
+        public Builder idleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * Header holding the retry deadline, removed from the redriven messages, {@link RetryDeadline#X_DEADLINE} by default.
+         * @param deadlineHeader
+         * @return
+         */
+        public Builder deadlineHeader(String deadlineHeader) {
+            this.deadlineHeader = deadlineHeader;
+            return this;
+        }
+
+        /**
+         * Executor running the redrives, a new thread per redrive by default.
+         * @param executor
+         * @return
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public DeadLetterRedriver build() {
+            return new DeadLetterRedriver(this);
+        }
+    }
+}
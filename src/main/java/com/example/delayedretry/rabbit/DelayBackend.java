@@ -0,0 +1,67 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RetryRoutingCache;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.AmqpTemplate;
+
+import java.util.List;
+
+/**
+ * Delays the retries of a {@link QueueFamily}: declares the queues or exchanges holding its failed messages until their delay elapsed,
+ * and creates the recoverer publishing them there. Once delayed, a retry is delivered back to the retried queue of the family,
+ * the queue itself or its redelivery queue. Each {@link RetryTopology} is backed by one implementation.
+ */
+public interface DelayBackend {
+
+    /**
+     * Declares the topology delaying the retries of the family, before the queues of the family.
+     *
+     * @param amqpAdmin
+     * @param queueFamily
+     * @param retriedQueueName the queue the delayed retries are delivered to
+     * @param retryShards      the number of shards of each retry queue
+     */
+    void declare(AmqpAdmin amqpAdmin, QueueFamily queueFamily, String retriedQueueName, int retryShards);
+
+    /**
+     * Binds the delay topology to the retried queue, once the queues of the family are declared.
+     *
+     * @param amqpAdmin
+     * @param queueFamily
+     * @param retriedQueueName the queue the delayed retries are delivered to
+     */
+    default void bind(AmqpAdmin amqpAdmin, QueueFamily queueFamily, String retriedQueueName) {
+    }
+
+    /**
+     * Returns the names of the queues declared by {@link #declare}, empty when the retries are not delayed in queues.
+     *
+     * @param queueFamily
+     * @param retriedQueueName
+     * @param retryShards
+     * @return
+     */
+    List<String> delayQueueNames(QueueFamily queueFamily, String retriedQueueName, int retryShards);
+
+    /**
+     * Returns the delays whose routes are registered in the routing cache ahead of the first failure.
+     *
+     * @param queueFamily
+     * @return the delays of the tier queues, empty by default
+     */
+    default List<Long> tierDelays(QueueFamily queueFamily) {
+        return List.of();
+    }
+
+    /**
+     * Creates the recoverer publishing the failed messages to the delay topology, or to the dlq once they cannot be retried.
+     *
+     * @param amqpTemplate
+     * @param delayHandler
+     * @param routingCache
+     * @return
+     */
+    RepublishDelayedMessageRecoverer createRecoverer(AmqpTemplate amqpTemplate, ExponentialDelayHandler delayHandler, RetryRoutingCache routingCache);
+}
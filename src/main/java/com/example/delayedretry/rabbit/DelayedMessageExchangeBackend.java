@@ -0,0 +1,66 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedExchangeMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RetryRoutingCache;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.CustomExchange;
+import org.springframework.amqp.core.ExchangeTypes;
+import org.springframework.util.Assert;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link DelayBackend} of {@link RetryTopology#DELAYED_MESSAGE_EXCHANGE}: a durable "x-delayed-message" exchange, shared by all the families,
+ * with each retried queue bound to it with its name. It requires the rabbitmq_delayed_message_exchange plugin, no retry queue is declared.
+ */
+public class DelayedMessageExchangeBackend implements DelayBackend {
+
+    public static final String DEFAULT_DELAYED_EXCHANGE_NAME = "retry.delayed";
+    public static final String X_DELAYED_MESSAGE = "x-delayed-message";
+    public static final String X_DELAYED_TYPE = "x-delayed-type";
+
+    private final String exchangeName;
+
+    public DelayedMessageExchangeBackend() {
+        this(DEFAULT_DELAYED_EXCHANGE_NAME);
+    }
+
+    /**
+     * Creates a backend delaying the retries in the given exchange.
+     *
+     * @param exchangeName
+     */
+    public DelayedMessageExchangeBackend(String exchangeName) {
+        Assert.hasText(exchangeName, "'exchangeName' cannot be empty");
+        this.exchangeName = exchangeName;
+    }
+
+    @Override
+    public void declare(AmqpAdmin amqpAdmin, QueueFamily queueFamily, String retriedQueueName, int retryShards) {
+        amqpAdmin.declareExchange(new CustomExchange(exchangeName, X_DELAYED_MESSAGE, true, false, Map.of(X_DELAYED_TYPE, ExchangeTypes.DIRECT)));
+    }
+
+    @Override
+    public void bind(AmqpAdmin amqpAdmin, QueueFamily queueFamily, String retriedQueueName) {
+        amqpAdmin.declareBinding(new Binding(retriedQueueName, Binding.DestinationType.QUEUE, exchangeName, retriedQueueName, null));
+    }
+
+    @Override
+    public List<String> delayQueueNames(QueueFamily queueFamily, String retriedQueueName, int retryShards) {
+        return List.of();
+    }
+
+    @Override
+    public RepublishDelayedMessageRecoverer createRecoverer(AmqpTemplate amqpTemplate, ExponentialDelayHandler delayHandler, RetryRoutingCache routingCache) {
+        return new RepublishDelayedExchangeMessageRecoverer(amqpTemplate, delayHandler, routingCache, exchangeName);
+    }
+
+    public String getExchangeName() {
+        return exchangeName;
+    }
+}
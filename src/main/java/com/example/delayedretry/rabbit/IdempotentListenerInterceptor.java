@@ -0,0 +1,110 @@
+package com.example.delayedretry.rabbit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.util.function.Function;
+
+/**
+ * Skips the listener for the deliveries whose message was already processed, such as the redelivery of a message
+ * whose ack was lost or the retry copy of a message whose listener failed after its side effects were committed.
+ * A message is recorded in the {@link ProcessedMessageCache} once the listener returns, or when the listener marks it
+ * with {@link #markProcessed(Message)}; a duplicate returns as if the listener succeeded, so it is acked by the container
+ * or the outer advices, which must come before this one in the chain.
+ * The keys are scoped by the queue of the family, so a retry redelivered to the redelivery queue of a family
+ * is a duplicate of the message processed from its queue.
+ * Messages without a key, by default without a message id, are always processed.
+ */
+public class IdempotentListenerInterceptor implements MethodInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotentListenerInterceptor.class);
+
+    static final String LOOKUPS = "rabbitmq.listener.idempotency.lookups";
+
+    private final ProcessedMessageCache cache;
+    private final Function<Message, String> keyExtractor;
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * @param cache
+     * @param keyExtractor  the key of a message, or null to skip the deduplication
+     * @param meterRegistry the registry of the hit and miss counters, or null
+     */
+    public IdempotentListenerInterceptor(ProcessedMessageCache cache, Function<Message, String> keyExtractor, MeterRegistry meterRegistry) {
+        Assert.notNull(cache, "'cache' cannot be null");
+        Assert.notNull(keyExtractor, "'keyExtractor' cannot be null");
+        this.cache = cache;
+        this.keyExtractor = keyExtractor;
+        this.hits = meterRegistry == null ? null : Counter.builder(LOOKUPS).tag("result", "hit").register(meterRegistry);
+        this.misses = meterRegistry == null ? null : Counter.builder(LOOKUPS).tag("result", "miss").register(meterRegistry);
+    }
+
+    /**
+     * Returns the key extractor reading the message id.
+     *
+     * @return
+     */
+    public static Function<Message, String> messageId() {
+        return MessageKeys.messageId();
+    }
+
+    /**
+     * Returns the key extractor reading the given header.
+     *
+     * @param header
+     * @return
+     */
+    public static Function<Message, String> header(String header) {
+        return MessageKeys.header(header);
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Object data = invocation.getArguments()[1];
+        if (!(data instanceof Message message)) {
+            return invocation.proceed();
+        }
+        long hash = hash(message);
+        if (hash == 0L) {
+            return invocation.proceed();
+        }
+
+        if (cache.contains(hash, System.currentTimeMillis())) {
+            if (hits != null) {
+                hits.increment();
+            }
+            log.debug("The message {} was already processed, skipping the listener", message.getMessageProperties().getMessageId());
+            return null;
+        }
+        if (misses != null) {
+            misses.increment();
+        }
+        Object result = invocation.proceed();
+        cache.put(hash, System.currentTimeMillis());
+        return result;
+    }
+
+    /**
+     * Records the message as processed, for listeners that may fail after committing their side effects.
+     *
+     * @param message
+     */
+    public void markProcessed(Message message) {
+        long hash = hash(message);
+        if (hash != 0L) {
+            cache.put(hash, System.currentTimeMillis());
+        }
+    }
+
+    private long hash(Message message) {
+        String key = keyExtractor.apply(message);
+        return key == null ? 0L : ProcessedMessageCache.hash(QueueTopologyTemplate.familyQueueName(message.getMessageProperties().getConsumerQueue()), key);
+    }
+}
@@ -0,0 +1,359 @@
+package com.example.delayedretry.rabbit;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.ImmediateRequeueAmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.util.Assert;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Circuit breaker of the listener containers, pausing consumption while the listener keeps failing
+ * instead of cycling every message through the retry queue.
+ * Once the failure rate of a container crosses the threshold the circuit opens: the container is stopped, so the messages stay
+ * in the main queue, and the deliveries already prefetched are requeued. After the open duration the circuit half opens:
+ * the container is started again with a single consumer prefetching the probes only, so the probe messages reach the listener
+ * one at a time instead of being requeued in a loop. The circuit closes if they all succeed, restoring the consumers and
+ * the prefetch of the container, and opens again as soon as one fails.
+ * The {@link #gate()} must be the first advice of the chain after the metrics, and the {@link #observer()} the last one,
+ * so it observes the listener exceptions before they are recovered.
+ */
+public class ListenerCircuitBreaker implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ListenerCircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final double failureRateThreshold;
+    private final int minSamples;
+    private final long window;
+    private final long openDuration;
+    private final int probes;
+    private final boolean manualAck;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "listener-circuit-breaker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ListenerCircuitBreaker(Builder builder) {
+        Assert.isTrue(builder.failureRateThreshold > 0 && builder.failureRateThreshold <= 1, "'failureRateThreshold' must be between zero and one");
+        Assert.isTrue(builder.minSamples > 0, "'minSamples' must be greater than zero");
+        Assert.isTrue(builder.window > 0, "'window' must be greater than zero");
+        Assert.isTrue(builder.openDuration > 0, "'openDuration' must be greater than zero");
+        Assert.isTrue(builder.probes > 0, "'probes' must be greater than zero");
+        this.failureRateThreshold = builder.failureRateThreshold;
+        this.minSamples = builder.minSamples;
+        this.window = builder.window;
+        this.openDuration = builder.openDuration;
+        this.probes = builder.probes;
+        this.manualAck = builder.manualAck;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Registers a container, a circuit is kept for its queues from now on.
+     *
+     * @param container
+     * @param concurrentConsumers    the consumers of the container, restored when the circuit closes
+     * @param maxConcurrentConsumers the max consumers of the container, restored when the circuit closes
+     * @param prefetchCount          the prefetch of the container, restored when the circuit closes
+     */
+    public void register(SimpleMessageListenerContainer container, int concurrentConsumers, int maxConcurrentConsumers, int prefetchCount) {
+        Circuit circuit = new Circuit(container, concurrentConsumers, maxConcurrentConsumers, prefetchCount);
+        for (String queueName : container.getQueueNames()) {
+            circuits.put(queueName, circuit);
+        }
+    }
+
+    /**
+     * Returns the state of the circuit of the given queue, or null if its container is not registered.
+     *
+     * @param queueName
+     * @return
+     */
+    public State state(String queueName) {
+        Circuit circuit = circuits.get(queueName);
+        return circuit != null ? circuit.state : null;
+    }
+
+    /**
+     * Returns the predicate admitting the messages of the queues whose circuit is closed or not registered,
+     * for the deliveries handed to the listener again without going through the {@link #gate()}.
+     *
+     * @return
+     */
+    public Predicate<Message> closedCircuit() {
+        return message -> {
+            State state = state(String.valueOf(message.getMessageProperties().getConsumerQueue()));
+            return state == null || state == State.CLOSED;
+        };
+    }
+
+    /**
+     * Returns the advice requeueing the deliveries while the circuit is open.
+     *
+     * @return
+     */
+    public MethodInterceptor gate() {
+        return this::gate;
+    }
+
+    /**
+     * Returns the advice recording the outcome of the listener.
+     *
+     * @return
+     */
+    public MethodInterceptor observer() {
+        return this::observe;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private Object gate(MethodInvocation invocation) throws Throwable {
+        Circuit circuit = circuit(invocation);
+        if (circuit == null || circuit.admit()) {
+            return invocation.proceed();
+        }
+
+        Message message = (Message) invocation.getArguments()[1];
+        if (manualAck) {
+            ((Channel) invocation.getArguments()[0]).basicNack(message.getMessageProperties().getDeliveryTag(), false, true);
+            return null;
+        }
+        throw new ImmediateRequeueAmqpException("The circuit of queue " + message.getMessageProperties().getConsumerQueue() + " is open");
+    }
+
+    private Object observe(MethodInvocation invocation) throws Throwable {
+        Circuit circuit = circuit(invocation);
+        if (circuit == null) {
+            return invocation.proceed();
+        }
+        try {
+            Object result = invocation.proceed();
+            circuit.succeeded();
+            return result;
+        } catch (Throwable e) {
+            circuit.failed();
+            throw e;
+        }
+    }
+
+    private Circuit circuit(MethodInvocation invocation) {
+        return invocation.getArguments()[1] instanceof Message message
+                ? circuits.get(String.valueOf(message.getMessageProperties().getConsumerQueue()))
+                : null;
+    }
+
+    private final class Circuit {
+
+        private final SimpleMessageListenerContainer container;
+        private final int concurrentConsumers;
+        private final int maxConcurrentConsumers;
+        private final int prefetchCount;
+        private final AtomicInteger probePermits = new AtomicInteger();
+        private final AtomicInteger probeSuccesses = new AtomicInteger();
+        private volatile State state = State.CLOSED;
+        // guarded by this
+        private long windowStart = System.currentTimeMillis();
+        private int successes;
+        private int failures;
+
+        private Circuit(SimpleMessageListenerContainer container, int concurrentConsumers, int maxConcurrentConsumers, int prefetchCount) {
+            this.container = container;
+            this.concurrentConsumers = concurrentConsumers;
+            this.maxConcurrentConsumers = maxConcurrentConsumers;
+            this.prefetchCount = prefetchCount;
+        }
+
+        private boolean admit() {
+            State current = state;
+            return current == State.CLOSED || (current == State.HALF_OPEN && probePermits.getAndDecrement() > 0);
+        }
+
+        private void succeeded() {
+            switch (state) {
+                case CLOSED -> record(false);
+                case HALF_OPEN -> {
+                    if (probeSuccesses.incrementAndGet() >= probes) {
+                        closeCircuit();
+                    }
+                }
+                default -> {
+                    // deliveries completing after the circuit opened are not counted
+                }
+            }
+        }
+
+        private void failed() {
+            switch (state) {
+                case CLOSED -> record(true);
+                case HALF_OPEN -> openCircuit(State.HALF_OPEN);
+                default -> {
+                    // deliveries completing after the circuit opened are not counted
+                }
+            }
+        }
+
+        private synchronized void record(boolean failure) {
+            long now = System.currentTimeMillis();
+            if (now - windowStart >= window) {
+                windowStart = now;
+                successes = 0;
+                failures = 0;
+            }
+            if (failure) {
+                failures++;
+            } else {
+                successes++;
+            }
+            int samples = successes + failures;
+            if (failure && samples >= minSamples && (double) failures / samples >= failureRateThreshold) {
+                openCircuit(State.CLOSED);
+            }
+        }
+
+        private synchronized void openCircuit(State from) {
+            if (state != from) {
+                return;
+            }
+            state = State.OPEN;
+            log.warn("Opening the circuit of the listener of {}, consumption is paused for {}ms", Arrays.toString(container.getQueueNames()), openDuration);
+            // stopping waits for the consumers, which must not be done on a listener thread; it cancels them first,
+            // so the deliveries requeued by the gate meanwhile are not redelivered to them
+            scheduler.execute(container::stop);
+            scheduler.schedule(this::halfOpenCircuit, openDuration, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void halfOpenCircuit() {
+            if (state != State.OPEN) {
+                return;
+            }
+            probeSuccesses.set(0);
+            probePermits.set(probes);
+            state = State.HALF_OPEN;
+            log.info("Half opening the circuit of the listener of {} with {} probes", Arrays.toString(container.getQueueNames()), probes);
+            // a single consumer handles the probes one after the other, no delivery beyond them is prefetched
+            container.setConcurrentConsumers(1);
+            container.setMaxConcurrentConsumers(1);
+            container.setPrefetchCount(probes);
+            container.start();
+        }
+
+        private synchronized void closeCircuit() {
+            if (state != State.HALF_OPEN) {
+                return;
+            }
+            windowStart = System.currentTimeMillis();
+            successes = 0;
+            failures = 0;
+            state = State.CLOSED;
+            log.info("Closing the circuit of the listener of {}", Arrays.toString(container.getQueueNames()));
+            // the new consumers prefetch as configured, the probing one keeps its prefetch until the container restarts
+            scheduler.execute(() -> {
+                container.setPrefetchCount(prefetchCount);
+                container.setMaxConcurrentConsumers(maxConcurrentConsumers);
+                container.setConcurrentConsumers(concurrentConsumers);
+            });
+        }
+    }
+
+    public static class Builder {
+
+        private double failureRateThreshold = 0.5;
+        private int minSamples = 20;
+        private long window = 10_000;
+        private long openDuration = 30_000;
+        private int probes = 3;
+        private boolean manualAck;
+
+        private Builder() {
+        }
+
+        /**
+         * Rate of failed deliveries within a window above which the circuit opens.
+         * @param failureRateThreshold
+         * @return
+         */
+        public Builder failureRateThreshold(double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        /**
+         * Deliveries needed within a window before the circuit can open.
+         * @param minSamples
+         * @return
+         */
+        public Builder minSamples(int minSamples) {
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Duration in milliseconds of the window the failure rate is computed on.
+         * @param window
+         * @return
+         */
+        public Builder window(long window) {
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * Duration in milliseconds the consumption is paused before probing the listener.
+         * @param openDuration
+         * @return
+         */
+        public Builder openDuration(long openDuration) {
+            this.openDuration = openDuration;
+            return this;
+        }
+
+        /**
+         * Successful probe messages needed to close the circuit.
+         * @param probes
+         * @return
+         */
+        public Builder probes(int probes) {
+            this.probes = probes;
+            return this;
+        }
+
+        /**
+         * True if the container uses the manual acknowledge mode, the deliveries rejected by the gate are then nacked by it.
+         * @param manualAck
+         * @return
+         */
+        public Builder manualAck(boolean manualAck) {
+            this.manualAck = manualAck;
+            return this;
+        }
+
+        public ListenerCircuitBreaker build() {
+            return new ListenerCircuitBreaker(this);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.delayedretry.rabbit;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.util.function.Function;
+
+/**
+ * Extractors of the key identifying a message, such as the key of its retry shard or of its deduplication.
+ */
+public final class MessageKeys {
+
+    private MessageKeys() {
+    }
+
+    /**
+     * Returns the key extractor reading the message id.
+     *
+     * @return
+     */
+    public static Function<Message, String> messageId() {
+        return message -> message.getMessageProperties().getMessageId();
+    }
+
+    /**
+     * Returns the key extractor reading the given header.
+     *
+     * @param header
+     * @return
+     */
+    public static Function<Message, String> header(String header) {
+        Assert.hasText(header, "'header' cannot be empty");
+        return message -> {
+            Object key = message.getMessageProperties().getHeader(header);
+            return key == null ? null : key.toString();
+        };
+    }
+
+    /**
+     * Returns the key extractor reading the given header, or the message id when no header is given.
+     *
+     * @param header the header, or null or empty to read the message id
+     * @return
+     */
+    public static Function<Message, String> headerOrMessageId(String header) {
+        return header == null || header.isEmpty() ? messageId() : header(header);
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RetryRoutingCache;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.AmqpTemplate;
+
+import java.util.List;
+
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_RETRY_QUEUE_PREFIX;
+
+/**
+ * The {@link DelayBackend} of {@link RetryTopology#PER_MESSAGE_TTL}: a single "retry.{queue}" queue dead lettering into the retried queue,
+ * the delay is the expiration of each message.
+ */
+public class PerMessageTtlDelayBackend implements DelayBackend {
+
+    @Override
+    public void declare(AmqpAdmin amqpAdmin, QueueFamily queueFamily, String retriedQueueName, int retryShards) {
+        for (String retryQueueName : delayQueueNames(queueFamily, retriedQueueName, retryShards)) {
+            amqpAdmin.declareQueue(QueueTopologyTemplate.retryQueue(retryQueueName, retriedQueueName, retryShards).build());
+        }
+    }
+
+    @Override
+    public List<String> delayQueueNames(QueueFamily queueFamily, String retriedQueueName, int retryShards) {
+        return QueueTopologyTemplate.retryShardNames(DEFAULT_RETRY_QUEUE_PREFIX.concat(retriedQueueName), retryShards);
+    }
+
+    @Override
+    public RepublishDelayedMessageRecoverer createRecoverer(AmqpTemplate amqpTemplate, ExponentialDelayHandler delayHandler, RetryRoutingCache routingCache) {
+        return new RepublishDelayedMessageRecoverer(amqpTemplate, delayHandler, routingCache);
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.Fnv1a;
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Bounded cache of the keys of the processed messages, expiring after a time to live.
+ * Keys are stored as 64 bit hashes with their expiration time in a flat array of longs, on or off heap, so a lookup allocates nothing.
+ * The cache is 8-way set associative: a key can only live in the 8 slots of its bucket, an insert into a full bucket evicts
+ * the key closest to expiring, and each bucket is guarded by one of a few striped locks.
+ * Two keys with the same hash are seen as the same key, which is unlikely with 64 bit hashes.
+ */
+public class ProcessedMessageCache {
+
+    static final int WAYS = 8;
+
+    private static final int SLOT_LONGS = 2;
+    private static final int MAX_STRIPES = 64;
+    private static final long EMPTY = 0L;
+
+    // per slot: the hash of the key, then its expiration time
+    private final LongBuffer slots;
+    private final int bucketMask;
+    private final Object[] locks;
+    private final long ttl;
+
+    /**
+     * @param capacity the max number of keys, rounded up to a power of two
+     * @param ttl      the time in milliseconds a key is kept
+     * @param offHeap  true to store the keys in a direct buffer
+     */
+    public ProcessedMessageCache(int capacity, long ttl, boolean offHeap) {
+        Assert.isTrue(capacity > 0, "'capacity' must be greater than zero");
+        Assert.isTrue(ttl > 0, "'ttl' must be greater than zero");
+        int buckets = Integer.highestOneBit(Math.max((capacity + WAYS - 1) / WAYS, 1) * 2 - 1);
+        int longs = buckets * WAYS * SLOT_LONGS;
+        this.slots = offHeap
+                ? ByteBuffer.allocateDirect(longs * Long.BYTES).asLongBuffer()
+                : LongBuffer.wrap(new long[longs]);
+        this.bucketMask = buckets - 1;
+        this.locks = new Object[Math.min(buckets, MAX_STRIPES)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.ttl = ttl;
+    }
+
+    /**
+     * Returns true if the key was put less than the time to live ago.
+     *
+     * @param hash the hash of the key, from {@link #hash(String, String)}
+     * @param now  the current time in milliseconds
+     * @return
+     */
+    public boolean contains(long hash, long now) {
+        int bucket = bucket(hash);
+        synchronized (lock(bucket)) {
+            int index = bucket * WAYS * SLOT_LONGS;
+            for (int way = 0; way < WAYS; way++, index += SLOT_LONGS) {
+                if (slots.get(index) == hash) {
+                    return slots.get(index + 1) > now;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Puts the key, or renews its time to live.
+     *
+     * @param hash the hash of the key, from {@link #hash(String, String)}
+     * @param now  the current time in milliseconds
+     */
+    public void put(long hash, long now) {
+        int bucket = bucket(hash);
+        synchronized (lock(bucket)) {
+            int start = bucket * WAYS * SLOT_LONGS;
+            int victim = start;
+            long victimExpiration = Long.MAX_VALUE;
+            for (int way = 0, index = start; way < WAYS; way++, index += SLOT_LONGS) {
+                long slotHash = slots.get(index);
+                if (slotHash == hash) {
+                    victim = index;
+                    break;
+                }
+                long expiration = slotHash == EMPTY ? Long.MIN_VALUE : slots.get(index + 1);
+                if (expiration < victimExpiration) {
+                    victim = index;
+                    victimExpiration = expiration;
+                }
+            }
+            slots.put(victim, hash);
+            slots.put(victim + 1, now + ttl);
+        }
+    }
+
+    /**
+     * Returns the number of slots, the max number of keys.
+     *
+     * @return
+     */
+    public int capacity() {
+        return (bucketMask + 1) * WAYS;
+    }
+
+    /**
+     * Hashes the key of a message consumed from the given queue, the same message consumed from two queues has two keys.
+     *
+     * @param queue
+     * @param key
+     * @return a non zero hash
+     */
+    public static long hash(String queue, String key) {
+        long hash = Fnv1a.OFFSET_BASIS;
+        if (queue != null) {
+            hash = Fnv1a.hash(hash, queue);
+        }
+        hash = Fnv1a.hash(hash, '\n');
+        hash = Fnv1a.hash(hash, key);
+        // spread the low bits used to pick the bucket
+        hash ^= hash >>> 32;
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    private int bucket(long hash) {
+        return (int) hash & bucketMask;
+    }
+
+    private Object lock(int bucket) {
+        return locks[bucket & (locks.length - 1)];
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExceptionClassifier;
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import org.springframework.util.Assert;
+
+/**
+ * A consumer queue with its retry queues and dlq, delayed by its own delay handler.
+ */
+public class QueueFamily {
+
+    private final String queueName;
+    private final RetryTopology retryTopology;
+    private final ExponentialDelayHandler delayHandler;
+    private final ExceptionClassifier exceptionClassifier;
+
+    public QueueFamily(String queueName, RetryTopology retryTopology, ExponentialDelayHandler delayHandler) {
+        this(queueName, retryTopology, delayHandler, null);
+    }
+
+    /**
+     * Creates a family whose failed messages are classified by its own exception classifier.
+     *
+     * @param queueName
+     * @param retryTopology
+     * @param delayHandler
+     * @param exceptionClassifier the classifier, or null to use the one of the {@link QueueTopologyTemplate}
+     */
+    public QueueFamily(String queueName, RetryTopology retryTopology, ExponentialDelayHandler delayHandler, ExceptionClassifier exceptionClassifier) {
+        Assert.hasText(queueName, "'queueName' cannot be empty");
+        Assert.notNull(retryTopology, "'retryTopology' cannot be null");
+        Assert.notNull(delayHandler, "'delayHandler' cannot be null");
+        this.queueName = queueName;
+        this.retryTopology = retryTopology;
+        this.delayHandler = delayHandler;
+        this.exceptionClassifier = exceptionClassifier;
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    public RetryTopology getRetryTopology() {
+        return retryTopology;
+    }
+
+    public ExponentialDelayHandler getDelayHandler() {
+        return delayHandler;
+    }
+
+    public ExceptionClassifier getExceptionClassifier() {
+        return exceptionClassifier;
+    }
+}
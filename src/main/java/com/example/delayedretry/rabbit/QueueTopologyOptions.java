@@ -0,0 +1,211 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExceptionClassifier;
+import com.example.delayedretry.rabbit.retry.ExceptionHeaderPolicy;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RepublishSpillJournal;
+import com.example.delayedretry.rabbit.retry.RetryBudgets;
+import com.example.delayedretry.rabbit.retry.RetryDeadline;
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.util.function.Function;
+
+/**
+ * The options of the queues declared and of the recoverers created by a {@link QueueTopologyTemplate}, fixed when the template is created.
+ */
+public final class QueueTopologyOptions {
+
+    private static final QueueTopologyOptions DEFAULTS = builder().build();
+
+    private final boolean retryState;
+    private final boolean stripRetryHeaders;
+    private final ExceptionHeaderPolicy exceptionHeaderPolicy;
+    private final ExceptionClassifier exceptionClassifier;
+    private final RetryBudgets retryBudgets;
+    private final boolean isolatedRedelivery;
+    private final int retryShards;
+    private final Function<Message, String> retryShardKey;
+    private final RepublishSpillJournal spillJournal;
+    private final RetryDeadline retryDeadline;
+
+    private QueueTopologyOptions(Builder builder) {
+        Assert.isTrue(builder.retryState || !builder.stripRetryHeaders, "The retry headers can only be stripped with the retry state");
+        Assert.isTrue(builder.retryShards > 0, "'retryShards' must be greater than zero");
+        this.retryState = builder.retryState;
+        this.stripRetryHeaders = builder.stripRetryHeaders;
+        this.exceptionHeaderPolicy = builder.exceptionHeaderPolicy;
+        this.exceptionClassifier = builder.exceptionClassifier;
+        this.retryBudgets = builder.retryBudgets;
+        this.isolatedRedelivery = builder.isolatedRedelivery;
+        this.retryShards = builder.retryShards;
+        this.retryShardKey = builder.retryShardKey != null ? builder.retryShardKey : message -> null;
+        this.spillJournal = builder.spillJournal;
+        this.retryDeadline = builder.retryDeadline;
+    }
+
+    /**
+     * Returns the options of a plain topology, a single retry queue per delay and the recoverers retrying all the failures.
+     *
+     * @return
+     */
+    public static QueueTopologyOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public boolean isRetryState() {
+        return retryState;
+    }
+
+    public boolean isStripRetryHeaders() {
+        return stripRetryHeaders;
+    }
+
+    public ExceptionHeaderPolicy getExceptionHeaderPolicy() {
+        return exceptionHeaderPolicy;
+    }
+
+    public ExceptionClassifier getExceptionClassifier() {
+        return exceptionClassifier;
+    }
+
+    public RetryBudgets getRetryBudgets() {
+        return retryBudgets;
+    }
+
+    public boolean isIsolatedRedelivery() {
+        return isolatedRedelivery;
+    }
+
+    public int getRetryShards() {
+        return retryShards;
+    }
+
+    public Function<Message, String> getRetryShardKey() {
+        return retryShardKey;
+    }
+
+    public RepublishSpillJournal getSpillJournal() {
+        return spillJournal;
+    }
+
+    public RetryDeadline getRetryDeadline() {
+        return retryDeadline;
+    }
+
+    public static class Builder {
+
+        private boolean retryState;
+        private boolean stripRetryHeaders;
+        private ExceptionHeaderPolicy exceptionHeaderPolicy;
+        private ExceptionClassifier exceptionClassifier;
+        private RetryBudgets retryBudgets;
+        private boolean isolatedRedelivery;
+        private int retryShards = 1;
+        private Function<Message, String> retryShardKey;
+        private RepublishSpillJournal spillJournal;
+        private RetryDeadline retryDeadline;
+
+        private Builder() {
+        }
+
+        /**
+         * Whether the recoverers write the compact retry state and strip the retry headers,
+         * see {@link RepublishDelayedMessageRecoverer#retryState(boolean)} and {@link RepublishDelayedMessageRecoverer#stripRetryHeaders(boolean)}.
+         * @param retryState
+         * @param stripRetryHeaders
+         * @return
+         */
+        public Builder retryHeaders(boolean retryState, boolean stripRetryHeaders) {
+            this.retryState = retryState;
+            this.stripRetryHeaders = stripRetryHeaders;
+            return this;
+        }
+
+        /**
+         * Policy of the exception headers of the retry copies, null to write the full stack trace.
+         * @param exceptionHeaderPolicy
+         * @return
+         */
+        public Builder exceptionHeaderPolicy(ExceptionHeaderPolicy exceptionHeaderPolicy) {
+            this.exceptionHeaderPolicy = exceptionHeaderPolicy;
+            return this;
+        }
+
+        /**
+         * Classifier of the failures of the queue families without their own, null to retry all the failures.
+         * @param exceptionClassifier
+         * @return
+         */
+        public Builder exceptionClassifier(ExceptionClassifier exceptionClassifier) {
+            this.exceptionClassifier = exceptionClassifier;
+            return this;
+        }
+
+        /**
+         * Retry budgets of the recoverers, null to retry all the messages, see {@link RepublishDelayedMessageRecoverer#retryBudgets(RetryBudgets)}.
+         * @param retryBudgets
+         * @return
+         */
+        public Builder retryBudgets(RetryBudgets retryBudgets) {
+            this.retryBudgets = retryBudgets;
+            return this;
+        }
+
+        /**
+         * Whether the families dead letter their retries into a "redelivery.{queue}" queue instead of their queue,
+         * so the retries are consumed by their own container and do not compete with the fresh messages.
+         * The retry queues are then named after the redelivery queue, the retry queues of the queue are left unused.
+         * @param isolatedRedelivery
+         * @return
+         */
+        public Builder isolatedRedelivery(boolean isolatedRedelivery) {
+            this.isolatedRedelivery = isolatedRedelivery;
+            return this;
+        }
+
+        /**
+         * Splits each retry queue in the given number of shards, named "{retry queue}.shard-{n}", all dead lettering into the same queue.
+         * A failed message is republished to the shard of the hash of its shard key, so the retries of a queue are spread over
+         * the leaders of the shards instead of a single quorum queue leader.
+         * @param retryShards the number of shards of each retry queue, 1 to keep a single retry queue
+         * @param shardKey    the key of the messages hashed to pick their shard, null for a random shard
+         * @return
+         */
+        public Builder retryShards(int retryShards, Function<Message, String> shardKey) {
+            this.retryShards = retryShards;
+            this.retryShardKey = shardKey;
+            return this;
+        }
+
+        /**
+         * Journal the recoverers spill their copies to, null to let the publishes block or fail,
+         * see {@link RepublishDelayedMessageRecoverer#spillJournal(RepublishSpillJournal)}.
+         * @param spillJournal
+         * @return
+         */
+        public Builder spillJournal(RepublishSpillJournal spillJournal) {
+            this.spillJournal = spillJournal;
+            return this;
+        }
+
+        /**
+         * Deadline of the retried messages, null to retry the messages regardless of their age,
+         * see {@link RepublishDelayedMessageRecoverer#deadline(RetryDeadline)}.
+         * @param retryDeadline
+         * @return
+         */
+        public Builder retryDeadline(RetryDeadline retryDeadline) {
+            this.retryDeadline = retryDeadline;
+            return this;
+        }
+
+        public QueueTopologyOptions build() {
+            return new QueueTopologyOptions(this);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.delayedretry.rabbit;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.util.Assert;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the queue families consumed by the application, declared in parallel at startup.
+ * Each family is declared on its own channel by the {@link QueueTopologyTemplate}, at most parallelism families at a time.
+ * The families already declared are declared again: a passive check only tells a queue exists, not its arguments,
+ * while the broker rejects the declaration of an existing queue with other arguments with PRECONDITION_FAILED.
+ */
+public class QueueTopologyRegistry {
+
+    private final QueueTopologyTemplate queueTopologyTemplate;
+    private final int parallelism;
+    private final List<QueueFamily> queueFamilies = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param queueTopologyTemplate
+     * @param parallelism the max number of families declared at a time
+     */
+    public QueueTopologyRegistry(QueueTopologyTemplate queueTopologyTemplate, int parallelism) {
+        Assert.notNull(queueTopologyTemplate, "'queueTopologyTemplate' cannot be null");
+        Assert.isTrue(parallelism > 0, "'parallelism' must be greater than zero");
+        this.queueTopologyTemplate = queueTopologyTemplate;
+        this.parallelism = parallelism;
+    }
+
+    public QueueTopologyRegistry register(QueueFamily queueFamily) {
+        queueFamilies.add(queueFamily);
+        return this;
+    }
+
+    public List<QueueFamily> getQueueFamilies() {
+        return Collections.unmodifiableList(queueFamilies);
+    }
+
+    /**
+     * Declares the registered families in parallel, waiting for all of them.
+     * The first declaration failure is rethrown once all declarations completed.
+     */
+    public void declareAll() {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("queue-declaration-");
+        executor.setConcurrencyLimit(parallelism);
+
+        CompletableFuture<?>[] declarations = queueFamilies.stream()
+                .map(queueFamily -> CompletableFuture.runAsync(() -> queueTopologyTemplate.createQueue(queueFamily), executor))
+                .toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(declarations).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
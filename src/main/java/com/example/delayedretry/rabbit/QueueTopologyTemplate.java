@@ -1,31 +1,93 @@
 package com.example.delayedretry.rabbit;
 
+import com.example.delayedretry.rabbit.retry.BatchRecoveryInterceptor;
+import com.example.delayedretry.rabbit.retry.ConfirmTrackingRabbitTemplate;
+import com.example.delayedretry.rabbit.retry.ConfirmedRecoveryInterceptor;
+import com.example.delayedretry.rabbit.retry.ExceptionClassifier;
 import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.LocalRetryScheduler;
+import com.example.delayedretry.rabbit.retry.PublisherConfirmWindow;
+import com.example.delayedretry.rabbit.retry.QueueDispatchingMessageRecoverer;
 import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RetryMetrics;
+import com.example.delayedretry.rabbit.retry.RetryRoutingCache;
+import org.aopalliance.intercept.MethodInterceptor;
 import org.springframework.amqp.core.AmqpAdmin;
 import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.QueueBuilder;
 import org.springframework.amqp.rabbit.config.RetryInterceptorBuilder;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.retry.MessageRecoverer;
 import org.springframework.retry.interceptor.RetryOperationsInterceptor;
-import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static org.springframework.amqp.core.QueueBuilder.durable;
 import static org.springframework.amqp.rabbit.core.RabbitAdmin.DEFAULT_EXCHANGE_NAME;
 
-@Component
 public class QueueTopologyTemplate {
 
     public static final String X_DEAD_LETTER_EXCHANGE = "x-dead-letter-exchange";
     public static final String X_DEAD_LETTER_ROUTING_KEY = "x-dead-letter-routing-key";
     public static final String DEFAULT_DLQ_QUEUE_PREFIX = "dlq.";
     public static final String DEFAULT_RETRY_QUEUE_PREFIX = "retry.";
+    public static final String DEFAULT_REDELIVERY_QUEUE_PREFIX = "redelivery.";
+    public static final String X_MESSAGE_TTL = "x-message-ttl";
+    public static final String RETRY_SHARD_SEPARATOR = ".shard-";
+    public static final String X_QUEUE_LEADER_LOCATOR = "x-queue-leader-locator";
+    public static final String BALANCED_LEADER_LOCATOR = "balanced";
 
     private final AmqpTemplate amqpTemplate;
     private final AmqpAdmin amqpAdmin;
+    private final RetryMetrics retryMetrics;
+    private final RetryRoutingCache routingCache = new RetryRoutingCache();
+    private final ConcurrentMap<String, QueueFamily> queueFamilies = new ConcurrentHashMap<>();
+    private final QueueTopologyOptions options;
 
     public QueueTopologyTemplate(AmqpTemplate amqpTemplate, AmqpAdmin amqpAdmin) {
+        this(amqpTemplate, amqpAdmin, null, QueueTopologyOptions.defaults());
+    }
+
+    /**
+     * Creates a template whose recoverers record the retried and dead lettered messages in the given metrics.
+     *
+     * @param amqpTemplate
+     * @param amqpAdmin
+     * @param retryMetrics the metrics of the recoverers, or null to disable them
+     * @param options      the options of the queues declared and of the recoverers created by the template
+     */
+    public QueueTopologyTemplate(AmqpTemplate amqpTemplate, AmqpAdmin amqpAdmin, RetryMetrics retryMetrics, QueueTopologyOptions options) {
+        Assert.notNull(options, "'options' cannot be null");
         this.amqpTemplate = amqpTemplate;
         this.amqpAdmin = amqpAdmin;
+        this.retryMetrics = retryMetrics;
+        this.options = options;
+        routingCache.setShards(options.getRetryShards(), options.getRetryShardKey());
+    }
+
+    /**
+     * Returns the routing keys of the queues declared by this template, shared by the recoverers it creates.
+     *
+     * @return
+     */
+    public RetryRoutingCache getRoutingCache() {
+        return routingCache;
+    }
+
+    public QueueTopologyOptions getOptions() {
+        return options;
+    }
+
+    public boolean isIsolatedRedelivery() {
+        return options.isIsolatedRedelivery();
+    }
+
+    public int getRetryShards() {
+        return options.getRetryShards();
     }
 
     /**
@@ -35,13 +97,91 @@ public class QueueTopologyTemplate {
      * @return
      */
     public RetryOperationsInterceptor createDelayedRetryInterceptor(ExponentialDelayHandler delayHandler) {
-        MessageRecoverer recoverer = new RepublishDelayedMessageRecoverer(amqpTemplate, delayHandler);
+        return createDelayedRetryInterceptor(delayHandler, RetryTopology.PER_MESSAGE_TTL);
+    }
+
+    /**
+     * Creates a retry interceptor with a recoverer matching the given retry topology
+     *
+     * @param delayHandler
+     * @param retryTopology
+     * @return
+     */
+    public RetryOperationsInterceptor createDelayedRetryInterceptor(ExponentialDelayHandler delayHandler, RetryTopology retryTopology) {
         return RetryInterceptorBuilder.stateless()
-                .recoverer(recoverer)
+                .recoverer(createRecoverer(amqpTemplate, delayHandler, retryTopology))
                 .maxAttempts(1)
                 .build();
     }
 
+    /**
+     * Creates an interceptor republishing failed messages asynchronously with correlated publisher confirms.
+     * The container must use the manual acknowledge mode, the interceptor acks each delivery once it is handled
+     * or once its retry or dlq copy is confirmed.
+     *
+     * @param delayHandler
+     * @param retryTopology
+     * @param connectionFactory a connection factory with correlated publisher confirms enabled
+     * @param confirmWindow
+     * @return
+     */
+    public ConfirmedRecoveryInterceptor createConfirmedRetryInterceptor(ExponentialDelayHandler delayHandler, RetryTopology retryTopology,
+            ConnectionFactory connectionFactory, PublisherConfirmWindow confirmWindow) {
+        return createConfirmedRetryInterceptor(delayHandler, retryTopology, connectionFactory, confirmWindow, null);
+    }
+
+    /**
+     * Creates an interceptor republishing failed messages asynchronously with correlated publisher confirms,
+     * retrying in process the failed messages whose delay is accepted by the local retry scheduler.
+     *
+     * @param delayHandler
+     * @param retryTopology
+     * @param connectionFactory   a connection factory with correlated publisher confirms enabled
+     * @param confirmWindow
+     * @param localRetryScheduler the scheduler of the short retries, or null to retry all messages through the broker
+     * @return
+     */
+    public ConfirmedRecoveryInterceptor createConfirmedRetryInterceptor(ExponentialDelayHandler delayHandler, RetryTopology retryTopology,
+            ConnectionFactory connectionFactory, PublisherConfirmWindow confirmWindow, LocalRetryScheduler localRetryScheduler) {
+        AmqpTemplate confirmTemplate = new ConfirmTrackingRabbitTemplate(connectionFactory, confirmWindow);
+        return new ConfirmedRecoveryInterceptor(createRecoverer(confirmTemplate, delayHandler, retryTopology), confirmWindow, localRetryScheduler);
+    }
+
+    /**
+     * Creates an interceptor for consumer batch containers in manual acknowledge mode, recovering only the failed messages of each batch
+     * and acking the batch with a single multiple ack.
+     *
+     * @param delayHandler
+     * @param retryTopology
+     * @return
+     */
+    public MethodInterceptor createBatchRetryInterceptor(ExponentialDelayHandler delayHandler, RetryTopology retryTopology) {
+        return new BatchRecoveryInterceptor(createRecoverer(amqpTemplate, delayHandler, retryTopology));
+    }
+
+    private MessageRecoverer createRecoverer(AmqpTemplate template, ExponentialDelayHandler delayHandler, RetryTopology retryTopology) {
+        // queue families are resolved on their first failure, they may be declared after the interceptor is created
+        return new QueueDispatchingMessageRecoverer(createQueueRecoverer(template, delayHandler, retryTopology, null), queueName -> {
+            QueueFamily queueFamily = queueFamilies.get(queueName);
+            return queueFamily == null
+                    ? null
+                    : createQueueRecoverer(template, queueFamily.getDelayHandler(), queueFamily.getRetryTopology(), queueFamily.getExceptionClassifier());
+        });
+    }
+
+    private RepublishDelayedMessageRecoverer createQueueRecoverer(AmqpTemplate template, ExponentialDelayHandler delayHandler, RetryTopology retryTopology,
+            ExceptionClassifier queueExceptionClassifier) {
+        RepublishDelayedMessageRecoverer recoverer = retryTopology.getDelayBackend().createRecoverer(template, delayHandler, routingCache);
+        return recoverer.metrics(retryMetrics)
+                .retryState(options.isRetryState())
+                .stripRetryHeaders(options.isStripRetryHeaders())
+                .exceptionHeaderPolicy(options.getExceptionHeaderPolicy())
+                .exceptionClassifier(queueExceptionClassifier != null ? queueExceptionClassifier : options.getExceptionClassifier())
+                .retryBudgets(options.getRetryBudgets())
+                .spillJournal(options.getSpillJournal())
+                .deadline(options.getRetryDeadline());
+    }
+
 
     /**
      * Creates a queue with dead lettered retry and dead lettered queues
@@ -49,8 +189,12 @@ public class QueueTopologyTemplate {
      * @param queueName
      */
     public void createQueue(String queueName) {
+        routingCache.register(queueName, List.of());
+
         // declare dead lettered retry queue
-        declareDeadLetteredQueue(amqpAdmin, DEFAULT_RETRY_QUEUE_PREFIX.concat(queueName), queueName);
+        for (String retryQueueName : retryShardNames(DEFAULT_RETRY_QUEUE_PREFIX.concat(queueName), getRetryShards())) {
+            amqpAdmin.declareQueue(retryQueue(retryQueueName, queueName, getRetryShards()).build());
+        }
 
         // declare dead lettered queue
         declareDeadLetteredQueue(amqpAdmin, queueName, DEFAULT_DLQ_QUEUE_PREFIX.concat(queueName));
@@ -61,7 +205,188 @@ public class QueueTopologyTemplate {
                 .build());
     }
 
-    private static void declareDeadLetteredQueue(AmqpAdmin amqpAdmin, String queueName, String routingKey) {
+    /**
+     * Creates a queue with the retry queues of the given topology and a dead lettered queue.
+     * With {@link RetryTopology#TIERED_TTL} one retry queue is declared for each distinct delay of the delay handler.
+     *
+     * @param queueName
+     * @param retryTopology
+     * @param delayHandler
+     */
+    public void createQueue(String queueName, RetryTopology retryTopology, ExponentialDelayHandler delayHandler) {
+        createQueue(new QueueFamily(queueName, retryTopology, delayHandler));
+    }
+
+    /**
+     * Creates the queues of the given family, its failed messages are then retried with its own delay handler
+     * and delayed by the {@link DelayBackend} of its topology.
+     * With the isolated redelivery the retries are delivered to the redelivery queue of the family, which dead letters into its dlq.
+     *
+     * @param queueFamily
+     */
+    public void createQueue(QueueFamily queueFamily) {
+        registerQueue(queueFamily);
+        String queueName = queueFamily.getQueueName();
+        String retriedQueueName = isIsolatedRedelivery() ? redeliveryQueueName(queueName) : queueName;
+        DelayBackend delayBackend = queueFamily.getRetryTopology().getDelayBackend();
+        delayBackend.declare(amqpAdmin, queueFamily, retriedQueueName, getRetryShards());
+
+        if (isIsolatedRedelivery()) {
+            // declare dead lettered redelivery queue
+            declareDeadLetteredQueue(amqpAdmin, retriedQueueName, DEFAULT_DLQ_QUEUE_PREFIX.concat(queueName));
+        }
+
+        // declare dead lettered queue
+        declareDeadLetteredQueue(amqpAdmin, queueName, DEFAULT_DLQ_QUEUE_PREFIX.concat(queueName));
+
+        // declare dlq
+        amqpAdmin.declareQueue(durable(DEFAULT_DLQ_QUEUE_PREFIX.concat(queueName))
+                .quorum()
+                .build());
+
+        delayBackend.bind(amqpAdmin, queueFamily, retriedQueueName);
+    }
+
+    /**
+     * Registers the routes and the delay handler of a family whose queues are already declared.
+     * With the isolated redelivery the messages failed on the redelivery queue are retried like the ones failed on the queue.
+     *
+     * @param queueFamily
+     */
+    public void registerQueue(QueueFamily queueFamily) {
+        List<Long> tierDelays = queueFamily.getRetryTopology().getDelayBackend().tierDelays(queueFamily);
+        String queueName = queueFamily.getQueueName();
+        if (isIsolatedRedelivery()) {
+            String redeliveryQueueName = redeliveryQueueName(queueName);
+            routingCache.register(queueName, redeliveryQueueName, tierDelays);
+            queueFamilies.put(redeliveryQueueName, queueFamily);
+            if (options.getRetryBudgets() != null) {
+                // the redelivered messages are retries of the queue
+                options.getRetryBudgets().share(redeliveryQueueName, queueName);
+            }
+        } else {
+            routingCache.register(queueName, tierDelays);
+        }
+        queueFamilies.put(queueName, queueFamily);
+    }
+
+    /**
+     * Returns the names of the queues declared for the given family, the dlq last.
+     *
+     * @param queueFamily
+     * @return
+     */
+    public static List<String> queueNames(QueueFamily queueFamily) {
+        return queueNames(queueFamily, false);
+    }
+
+    /**
+     * Returns the names of the queues declared for the given family with or without the isolated redelivery, the dlq last.
+     *
+     * @param queueFamily
+     * @param isolatedRedelivery
+     * @return
+     */
+    public static List<String> queueNames(QueueFamily queueFamily, boolean isolatedRedelivery) {
+        return queueNames(queueFamily, isolatedRedelivery, 1);
+    }
+
+    /**
+     * Returns the names of the queues declared for the given family with or without the isolated redelivery
+     * and with the given number of retry queue shards, the dlq last. The exchanges declared by the delay backend are not listed.
+     *
+     * @param queueFamily
+     * @param isolatedRedelivery
+     * @param retryShards
+     * @return
+     */
+    public static List<String> queueNames(QueueFamily queueFamily, boolean isolatedRedelivery, int retryShards) {
+        String queueName = queueFamily.getQueueName();
+        String retriedQueueName = isolatedRedelivery ? redeliveryQueueName(queueName) : queueName;
+        List<String> queueNames = new ArrayList<>(queueFamily.getRetryTopology().getDelayBackend().delayQueueNames(queueFamily, retriedQueueName, retryShards));
+        if (isolatedRedelivery) {
+            queueNames.add(retriedQueueName);
+        }
+        queueNames.add(queueName);
+        queueNames.add(DEFAULT_DLQ_QUEUE_PREFIX.concat(queueName));
+        return queueNames;
+    }
+
+    /**
+     * Returns the name of the queue the retries of the given queue are dead lettered into with the isolated redelivery.
+     *
+     * @param queueName
+     * @return
+     */
+    public static String redeliveryQueueName(String queueName) {
+        return DEFAULT_REDELIVERY_QUEUE_PREFIX + queueName;
+    }
+
+    /**
+     * Returns the queue of the family the given consumer queue belongs to, the queue itself for a redelivery queue.
+     *
+     * @param consumerQueue
+     * @return
+     */
+    public static String familyQueueName(String consumerQueue) {
+        return consumerQueue != null && consumerQueue.startsWith(DEFAULT_REDELIVERY_QUEUE_PREFIX)
+                ? consumerQueue.substring(DEFAULT_REDELIVERY_QUEUE_PREFIX.length())
+                : consumerQueue;
+    }
+
+    /**
+     * Returns the name of the retry queue holding the messages delayed by the given delay.
+     *
+     * @param queueName
+     * @param delay
+     * @return
+     */
+    public static String tieredRetryQueueName(String queueName, long delay) {
+        return DEFAULT_RETRY_QUEUE_PREFIX + queueName + "." + delay;
+    }
+
+    /**
+     * Returns the name of a shard of the given retry queue.
+     *
+     * @param retryQueueName
+     * @param shard
+     * @return
+     */
+    public static String retryShardName(String retryQueueName, int shard) {
+        return retryQueueName + RETRY_SHARD_SEPARATOR + shard;
+    }
+
+    static List<String> retryShardNames(String retryQueueName, int shards) {
+        if (shards == 1) {
+            return List.of(retryQueueName);
+        }
+        List<String> names = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            names.add(retryShardName(retryQueueName, shard));
+        }
+        return names;
+    }
+
+    /**
+     * Returns the builder of a quorum retry queue dead lettering into the retried queue. The shards of a sharded retry queue
+     * are placed with the "balanced" leader locator instead of the default "client-local" one, which would put all their leaders
+     * on the node of the declaring connection.
+     *
+     * @param retryQueueName
+     * @param retriedQueueName
+     * @param retryShards      the number of shards of the retry queue
+     * @return
+     */
+    static QueueBuilder retryQueue(String retryQueueName, String retriedQueueName, int retryShards) {
+        QueueBuilder builder = durable(retryQueueName)
+                .withArgument(X_DEAD_LETTER_EXCHANGE, DEFAULT_EXCHANGE_NAME)
+                .withArgument(X_DEAD_LETTER_ROUTING_KEY, retriedQueueName)
+                .quorum();
+        // QueueBuilder.leaderLocator writes the "x-queue-master-locator" of the classic queues
+        return retryShards > 1 ? builder.withArgument(X_QUEUE_LEADER_LOCATOR, BALANCED_LEADER_LOCATOR) : builder;
+    }
+
+    static void declareDeadLetteredQueue(AmqpAdmin amqpAdmin, String queueName, String routingKey) {
         amqpAdmin.declareQueue(durable(queueName)
                 .withArgument(X_DEAD_LETTER_EXCHANGE, DEFAULT_EXCHANGE_NAME)
                 .withArgument(X_DEAD_LETTER_ROUTING_KEY, routingKey)
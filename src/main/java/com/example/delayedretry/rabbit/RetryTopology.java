@@ -0,0 +1,36 @@
+package com.example.delayedretry.rabbit;
+
+/**
+ * Defines how the retry queues of a consumer queue are declared and how failed messages are delayed, by its {@link DelayBackend}.
+ */
+public enum RetryTopology {
+
+    /**
+     * A single retry queue, the delay is set on each message through the expiration property.
+     * RabbitMQ only expires messages at the head of the queue, so a long delay blocks the shorter ones behind it.
+     */
+    PER_MESSAGE_TTL(new PerMessageTtlDelayBackend()),
+
+    /**
+     * One retry queue per distinct delay, the delay is set on each queue through the "x-message-ttl" argument.
+     * All messages of a tier share the same TTL, so they expire in order and no message waits behind a longer one.
+     */
+    TIERED_TTL(new TieredTtlDelayBackend()),
+
+    /**
+     * No retry queue, the messages are delayed by an "x-delayed-message" exchange through their "x-delay" header,
+     * so no message waits behind a longer one. Requires the rabbitmq_delayed_message_exchange plugin, the delayed messages
+     * are kept on a single node.
+     */
+    DELAYED_MESSAGE_EXCHANGE(new DelayedMessageExchangeBackend());
+
+    private final DelayBackend delayBackend;
+
+    RetryTopology(DelayBackend delayBackend) {
+        this.delayBackend = delayBackend;
+    }
+
+    public DelayBackend getDelayBackend() {
+        return delayBackend;
+    }
+}
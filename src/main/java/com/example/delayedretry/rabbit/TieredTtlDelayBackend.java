@@ -0,0 +1,53 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RepublishTieredMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RetryRoutingCache;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.AmqpTemplate;
+
+import java.util.List;
+
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.X_MESSAGE_TTL;
+
+/**
+ * The {@link DelayBackend} of {@link RetryTopology#TIERED_TTL}: one "retry.{queue}.{delay}" queue per distinct delay of the delay handler,
+ * each with the delay as its "x-message-ttl" and dead lettering into the retried queue.
+ */
+public class TieredTtlDelayBackend implements DelayBackend {
+
+    @Override
+    public void declare(AmqpAdmin amqpAdmin, QueueFamily queueFamily, String retriedQueueName, int retryShards) {
+        for (long delay : distinctDelays(queueFamily)) {
+            for (String retryQueueName : QueueTopologyTemplate.retryShardNames(QueueTopologyTemplate.tieredRetryQueueName(retriedQueueName, delay), retryShards)) {
+                amqpAdmin.declareQueue(QueueTopologyTemplate.retryQueue(retryQueueName, retriedQueueName, retryShards)
+                        .withArgument(X_MESSAGE_TTL, delay)
+                        .build());
+            }
+        }
+    }
+
+    @Override
+    public List<String> delayQueueNames(QueueFamily queueFamily, String retriedQueueName, int retryShards) {
+        return distinctDelays(queueFamily).stream()
+                .flatMap(delay -> QueueTopologyTemplate.retryShardNames(QueueTopologyTemplate.tieredRetryQueueName(retriedQueueName, delay), retryShards).stream())
+                .toList();
+    }
+
+    @Override
+    public List<Long> tierDelays(QueueFamily queueFamily) {
+        return queueFamily.getDelayHandler().delays;
+    }
+
+    @Override
+    public RepublishDelayedMessageRecoverer createRecoverer(AmqpTemplate amqpTemplate, ExponentialDelayHandler delayHandler, RetryRoutingCache routingCache) {
+        return new RepublishTieredMessageRecoverer(amqpTemplate, delayHandler, routingCache);
+    }
+
+    private static List<Long> distinctDelays(QueueFamily queueFamily) {
+        return queueFamily.getDelayHandler().delays.stream()
+                .distinct()
+                .toList();
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.delayedretry.rabbit;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.ImmediateRequeueAmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First advice of a listener container in manual acknowledge mode, running the rest of the advice chain and the listener
+ * of each delivery on its own virtual thread, so blocking listeners are bounded by the in-flight permits instead of the consumer threads.
+ * The consumer thread waits for a permit before handing a delivery off, the permits should match the prefetch count
+ * so the broker stops delivering once they are all taken.
+ * The deliveries are settled like the auto acknowledge mode of the container: acked once the chain returns, requeued if it throws
+ * an {@link ImmediateRequeueAmqpException} and rejected otherwise, so the recovery advices must not ack themselves.
+ * Deliveries are processed concurrently, out of order.
+ */
+public class VirtualThreadDispatcher implements MethodInterceptor, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadDispatcher.class);
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a dispatcher running the deliveries on virtual threads, requires Java 21.
+     *
+     * @param maxInFlight the max number of deliveries running at once
+     */
+    public VirtualThreadDispatcher(int maxInFlight) {
+        this(maxInFlight, virtualThreadPerTaskExecutor("listener-virtual-"));
+    }
+
+    VirtualThreadDispatcher(int maxInFlight, ExecutorService executor) {
+        Assert.isTrue(maxInFlight > 0, "'maxInFlight' must be greater than zero");
+        Assert.notNull(executor, "'executor' cannot be null");
+        this.permits = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns true if the running JVM supports virtual threads.
+     *
+     * @return
+     */
+    public static boolean isSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Object[] arguments = invocation.getArguments();
+        Channel channel = (Channel) arguments[0];
+        long deliveryTag = ((Message) arguments[1]).getMessageProperties().getDeliveryTag();
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            // the container is stopping
+            Thread.currentThread().interrupt();
+            channel.basicNack(deliveryTag, false, true);
+            return null;
+        }
+        try {
+            executor.execute(() -> dispatch(invocation, channel, deliveryTag));
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of deliveries running.
+     *
+     * @return
+     */
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * Stops accepting deliveries and waits for the running ones, those still running after the timeout are redelivered by the broker.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("{} deliveries still running after {}s", inFlight(), CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch(MethodInvocation invocation, Channel channel, long deliveryTag) {
+        try {
+            invocation.proceed();
+            channel.basicAck(deliveryTag, false);
+        } catch (Throwable e) {
+            boolean requeue = e instanceof ImmediateRequeueAmqpException;
+            log.debug("The delivery {} failed, requeue={}", deliveryTag, requeue, e);
+            nack(channel, deliveryTag, requeue);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static void nack(Channel channel, long deliveryTag, boolean requeue) {
+        try {
+            channel.basicNack(deliveryTag, false, requeue);
+        } catch (IOException | RuntimeException e) {
+            // a closed channel throws an AlreadyClosedException, the broker then redelivers the delivery
+            log.warn("Failed to nack delivery {}", deliveryTag, e);
+        }
+    }
+
+    // resolved at runtime, the default build targets Java 17
+    private static ExecutorService virtualThreadPerTaskExecutor(String prefix) {
+        Assert.state(isSupported(), "Virtual threads require Java 21, build and run with the java21 profile");
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create the virtual thread executor", e);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.amqp.rabbit.support.ListenerExecutionFailedException;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Listener advice of consumer batch containers in manual acknowledge mode.
+ * When the batch listener throws a {@link PartialBatchFailureException} only the failed messages are handed to the recoverer,
+ * each of them routed to the retry queue or the dlq from its own retry count, any other exception fails the whole batch.
+ * The batch is then acked with a single multiple ack, after nacking and requeueing the failed messages whose recovery failed.
+ * A multiple ack must not cover a nacked tag, so once a message is nacked the batch is multiple acked up to the tag before
+ * the first nacked one and the messages after it are acked one by one.
+ */
+public class BatchRecoveryInterceptor implements MethodInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchRecoveryInterceptor.class);
+
+    private final MessageRecoverer recoverer;
+
+    public BatchRecoveryInterceptor(MessageRecoverer recoverer) {
+        Assert.notNull(recoverer, "'recoverer' cannot be null");
+        this.recoverer = recoverer;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Channel channel = (Channel) invocation.getArguments()[0];
+        @SuppressWarnings("unchecked")
+        List<Message> messages = (List<Message>) invocation.getArguments()[1];
+        if (messages.isEmpty()) {
+            return invocation.proceed();
+        }
+
+        long lastDeliveryTag = 0;
+        for (Message message : messages) {
+            lastDeliveryTag = Math.max(lastDeliveryTag, message.getMessageProperties().getDeliveryTag());
+        }
+
+        Object result;
+        Set<Long> nackedTags = Set.of();
+        try {
+            result = invocation.proceed();
+        } catch (Throwable cause) {
+            PartialBatchFailureException partialFailure = partialFailure(cause);
+            nackedTags = new HashSet<>();
+            for (Message message : messages) {
+                Throwable failure = partialFailure != null ? partialFailure.failureOf(message) : cause;
+                if (failure != null && !recover(channel, message, failure)) {
+                    nackedTags.add(message.getMessageProperties().getDeliveryTag());
+                }
+            }
+            result = null;
+        }
+
+        // the failed messages are already nacked, or republished and acked along with the handled ones
+        if (nackedTags.isEmpty()) {
+            channel.basicAck(lastDeliveryTag, true);
+        } else {
+            ackAround(channel, messages, nackedTags);
+        }
+        return result;
+    }
+
+    private static void ackAround(Channel channel, List<Message> messages, Set<Long> nackedTags) throws IOException {
+        long firstNackedTag = Collections.min(nackedTags);
+        long lastTagBefore = 0;
+        List<Long> tagsAfter = new ArrayList<>();
+        for (Message message : messages) {
+            long deliveryTag = message.getMessageProperties().getDeliveryTag();
+            if (deliveryTag < firstNackedTag) {
+                lastTagBefore = Math.max(lastTagBefore, deliveryTag);
+            } else if (!nackedTags.contains(deliveryTag)) {
+                tagsAfter.add(deliveryTag);
+            }
+        }
+        if (lastTagBefore > 0) {
+            channel.basicAck(lastTagBefore, true);
+        }
+        for (long deliveryTag : tagsAfter) {
+            channel.basicAck(deliveryTag, false);
+        }
+    }
+
+    // returns false when the message could not be recovered and was nacked
+    private boolean recover(Channel channel, Message message, Throwable failure) throws IOException {
+        Throwable cause = failure instanceof ListenerExecutionFailedException
+                ? failure
+                : new ListenerExecutionFailedException("Batch listener failed", failure, message);
+        try {
+            recoverer.recover(message, cause);
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Failed to recover message of the batch, it will be requeued", e);
+            channel.basicNack(message.getMessageProperties().getDeliveryTag(), false, true);
+            return false;
+        }
+    }
+
+    private static PartialBatchFailureException partialFailure(Throwable cause) {
+        for (Throwable current = cause; current != null; current = current.getCause()) {
+            if (current instanceof PartialBatchFailureException partialFailure) {
+                return partialFailure;
+            }
+        }
+        return null;
+    }
+}
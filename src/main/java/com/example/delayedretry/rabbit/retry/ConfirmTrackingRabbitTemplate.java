@@ -0,0 +1,32 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link RabbitTemplate} that correlates the messages it sends to the delivery opened in the {@link PublisherConfirmWindow},
+ * so the recoverers can republish through it unchanged and the original delivery is only acked once its copy is confirmed.
+ * The connection factory must have correlated publisher confirms enabled.
+ */
+public class ConfirmTrackingRabbitTemplate extends RabbitTemplate {
+
+    private final PublisherConfirmWindow confirmWindow;
+
+    public ConfirmTrackingRabbitTemplate(ConnectionFactory connectionFactory, PublisherConfirmWindow confirmWindow) {
+        super(connectionFactory);
+        Assert.state(connectionFactory.isPublisherConfirms(), "Correlated publisher confirms must be enabled on the connection factory");
+        Assert.notNull(confirmWindow, "'confirmWindow' cannot be null");
+        this.confirmWindow = confirmWindow;
+        setMandatory(connectionFactory.isPublisherReturns());
+    }
+
+    @Override
+    public void send(String exchange, String routingKey, Message message) throws AmqpException {
+        CorrelationData correlationData = confirmWindow.correlate();
+        send(exchange, routingKey, message, correlationData);
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.util.Assert;
+
+import java.util.function.Predicate;
+
+/**
+ * Listener advice acking deliveries itself, for containers in manual acknowledge mode.
+ * A delivery handled successfully is acked right away. A failed delivery is handed to the recoverer inside the
+ * {@link PublisherConfirmWindow}, so it is acked once its retry or dlq copy is confirmed by the broker, and requeued otherwise.
+ * The listener thread does not wait for the confirm, only for a free slot of the window.
+ * With a {@link LocalRetryScheduler}, retryable failed deliveries with a short delay in the schedule of their queue are kept unacked and handed
+ * to the listener again in process, unless the redelivery gate refuses them once their delay elapsed, they are then requeued.
+ */
+public class ConfirmedRecoveryInterceptor implements MethodInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(ConfirmedRecoveryInterceptor.class);
+
+    private final MessageRecoverer recoverer;
+    private final PublisherConfirmWindow confirmWindow;
+    private final LocalRetryScheduler localRetryScheduler;
+    private Predicate<Message> redeliveryGate = message -> true;
+
+    public ConfirmedRecoveryInterceptor(MessageRecoverer recoverer, PublisherConfirmWindow confirmWindow) {
+        this(recoverer, confirmWindow, null);
+    }
+
+    public ConfirmedRecoveryInterceptor(MessageRecoverer recoverer, PublisherConfirmWindow confirmWindow, LocalRetryScheduler localRetryScheduler) {
+        Assert.notNull(recoverer, "'recoverer' cannot be null");
+        Assert.notNull(confirmWindow, "'confirmWindow' cannot be null");
+        this.recoverer = recoverer;
+        this.confirmWindow = confirmWindow;
+        this.localRetryScheduler = localRetryScheduler;
+    }
+
+    /**
+     * Admits the parked deliveries back to the listener, the refused ones are requeued. The parked deliveries skip the advices
+     * before this one, such as the gate of a circuit breaker, and must be checked again once their delay elapsed.
+     *
+     * @param redeliveryGate
+     * @return
+     */
+    public ConfirmedRecoveryInterceptor redeliveryGate(Predicate<Message> redeliveryGate) {
+        Assert.notNull(redeliveryGate, "'redeliveryGate' cannot be null");
+        this.redeliveryGate = redeliveryGate;
+        return this;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Channel channel = (Channel) invocation.getArguments()[0];
+        Message message = (Message) invocation.getArguments()[1];
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+
+        // cloned before proceeding, so the listener can be invoked again once the local delay elapsed
+        MethodInvocation redelivery = localRetryScheduler != null && invocation instanceof ProxyMethodInvocation proxyInvocation
+                ? proxyInvocation.invocableClone()
+                : null;
+
+        Object result;
+        try {
+            result = invocation.proceed();
+        } catch (Throwable cause) {
+            ExponentialDelayHandler schedule = redelivery != null ? localRetrySchedule(message, cause) : null;
+            if (schedule == null || !localRetryScheduler.park(channel, message, schedule, () -> redeliver(channel, deliveryTag, message, redelivery),
+                    // on the thread of the timing wheel, a full window requeues the delivery instead of waiting
+                    () -> recover(channel, deliveryTag, message, cause, false))) {
+                recover(channel, deliveryTag, message, cause, true);
+            }
+            return null;
+        }
+        channel.basicAck(deliveryTag, false);
+        return result;
+    }
+
+    private void recover(Channel channel, long deliveryTag, Message message, Throwable cause, boolean wait) {
+        confirmWindow.open(channel, deliveryTag, wait);
+        try {
+            recoverer.recover(message, cause);
+            confirmWindow.close();
+        } catch (RuntimeException e) {
+            log.warn("Failed to republish the failed message, it will be requeued", e);
+            confirmWindow.fail();
+        }
+    }
+
+    // the schedule of the failure in the queue the message was consumed from, or null to recover it through the broker,
+    // which dead letters the fatal failures
+    private ExponentialDelayHandler localRetrySchedule(Message message, Throwable cause) {
+        MessageRecoverer queueRecoverer = recoverer instanceof QueueDispatchingMessageRecoverer dispatchingRecoverer
+                ? dispatchingRecoverer.recovererOf(message)
+                : recoverer;
+        return queueRecoverer instanceof RepublishDelayedMessageRecoverer delayedRecoverer ? delayedRecoverer.localRetrySchedule(cause) : null;
+    }
+
+    private void redeliver(Channel channel, long deliveryTag, Message message, MethodInvocation redelivery) {
+        try {
+            if (!redeliveryGate.test(message)) {
+                log.debug("The redelivery of the parked message was refused, it is requeued");
+                channel.basicNack(deliveryTag, false, true);
+                return;
+            }
+            invoke(redelivery);
+        } catch (Throwable e) {
+            log.warn("Failed to redeliver the parked message", e);
+        }
+    }
+}
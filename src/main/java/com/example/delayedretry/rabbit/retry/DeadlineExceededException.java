@@ -0,0 +1,22 @@
+package com.example.delayedretry.rabbit.retry;
+
+/**
+ * Thrown by the {@link RetryDeadline#guard()} instead of invoking the listener with a message past its deadline,
+ * the recoverer then sends the message to the dlq.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    private final long deadline;
+
+    /**
+     * @param deadline the deadline of the message, in epoch milliseconds
+     */
+    public DeadlineExceededException(long deadline) {
+        super("The message expired at " + deadline);
+        this.deadline = deadline;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Turns the nominal delay of the exponential schedule into the delay a failed message is actually retried with.
+ * Jittered strategies spread the retries of messages that failed together, so they do not all come back from the retry queue
+ * at the same instant. Random numbers are drawn from {@link ThreadLocalRandom}, which does not allocate nor contend between threads.
+ */
+@FunctionalInterface
+public interface DelayStrategy {
+
+    /**
+     * The nominal delay, without jitter.
+     */
+    DelayStrategy NONE = (nominalDelay, previousDelay) -> nominalDelay;
+
+    /**
+     * A random delay between zero and the nominal delay.
+     */
+    DelayStrategy FULL_JITTER = (nominalDelay, previousDelay) -> nominalDelay <= 0
+            ? 0
+            : ThreadLocalRandom.current().nextLong(nominalDelay + 1);
+
+    /**
+     * Half of the nominal delay plus a random delay up to the other half.
+     */
+    DelayStrategy EQUAL_JITTER = (nominalDelay, previousDelay) -> {
+        long half = nominalDelay / 2;
+        return nominalDelay - half + (half <= 0 ? 0 : ThreadLocalRandom.current().nextLong(half + 1));
+    };
+
+    /**
+     * Returns the delay of the given attempt.
+     *
+     * @param nominalDelay  the delay of the exponential schedule for this attempt, in milliseconds
+     * @param previousDelay the delay of the previous attempt, or zero for the first retry
+     * @return the delay in milliseconds
+     */
+    long delayMillis(long nominalDelay, long previousDelay);
+
+    /**
+     * A random delay between the base delay and three times the previous delay, capped to the max delay.
+     * The delays grow from the previous one rather than from the attempt number, so they keep drifting apart across retries.
+     *
+     * @param baseDelay
+     * @param maxDelay
+     * @return
+     */
+    static DelayStrategy decorrelatedJitter(long baseDelay, long maxDelay) {
+        Assert.isTrue(baseDelay >= 0, "'baseDelay' cannot be negative");
+        Assert.isTrue(maxDelay >= baseDelay, "'maxDelay' cannot be lower than 'baseDelay'");
+        return (nominalDelay, previousDelay) -> {
+            long upper = Math.min(maxDelay, 3 * Math.max(previousDelay, baseDelay));
+            return upper <= baseDelay ? baseDelay : ThreadLocalRandom.current().nextLong(baseDelay, upper + 1);
+        };
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.messaging.handler.invocation.MethodArgumentResolutionException;
+import org.springframework.util.Assert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Classifies the exceptions of the failed messages as fatal, sent to the dlq on their first failure, or retryable,
+ * optionally with their own delay schedule.
+ * An exception is classified by the closest of its classes, from its own class up to {@link Throwable}, that is registered
+ * or annotated with {@link NonRetryable}. Unless disabled, the cause chain is walked until an exception is classified,
+ * so the listener exceptions wrapped by the container are classified too. Unclassified exceptions are retryable.
+ * The classification of each exception class is cached, a chain is then classified without walking the class hierarchies again.
+ */
+public class ExceptionClassifier {
+
+    // bounds the walk of cyclic cause chains
+    private static final int MAX_CAUSE_DEPTH = 16;
+    private static final Classification UNCLASSIFIED = new Classification(false, null);
+
+    private final Map<Class<?>, Classification> classifications;
+    private final boolean traverseCauses;
+    private final ConcurrentMap<Class<?>, Classification> cache = new ConcurrentHashMap<>();
+
+    private ExceptionClassifier(Map<Class<?>, Classification> classifications, boolean traverseCauses) {
+        this.classifications = Map.copyOf(classifications);
+        this.traverseCauses = traverseCauses;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Classifies the cause of a failed message.
+     *
+     * @param cause
+     * @return the classification, retryable with the schedule of the queue if the cause is not classified
+     */
+    public Classification classify(Throwable cause) {
+        Throwable throwable = cause;
+        for (int depth = 0; throwable != null && depth < MAX_CAUSE_DEPTH; depth++) {
+            Classification classification = cache.computeIfAbsent(throwable.getClass(), this::classifyType);
+            if (classification != UNCLASSIFIED) {
+                return classification;
+            }
+            if (!traverseCauses || throwable.getCause() == throwable) {
+                break;
+            }
+            throwable = throwable.getCause();
+        }
+        return Classification.RETRYABLE;
+    }
+
+    private Classification classifyType(Class<?> type) {
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            Classification classification = classifications.get(current);
+            if (classification != null) {
+                return classification;
+            }
+            if (current.isAnnotationPresent(NonRetryable.class)) {
+                return Classification.FATAL;
+            }
+        }
+        return UNCLASSIFIED;
+    }
+
+    /**
+     * The decision taken for an exception.
+     */
+    public static final class Classification {
+
+        public static final Classification RETRYABLE = new Classification(false, null);
+        public static final Classification FATAL = new Classification(true, null);
+
+        private final boolean fatal;
+        private final ExponentialDelayHandler delayHandler;
+
+        private Classification(boolean fatal, ExponentialDelayHandler delayHandler) {
+            this.fatal = fatal;
+            this.delayHandler = delayHandler;
+        }
+
+        /**
+         * Returns true if the message must be sent to the dlq without being retried.
+         *
+         * @return
+         */
+        public boolean isFatal() {
+            return fatal;
+        }
+
+        /**
+         * Returns the delay schedule of the exception.
+         *
+         * @return the delay handler, or null to retry with the one of the queue
+         */
+        public ExponentialDelayHandler getDelayHandler() {
+            return delayHandler;
+        }
+    }
+
+    public static class Builder {
+
+        private final Map<Class<?>, Classification> classifications = new LinkedHashMap<>();
+        private boolean traverseCauses = true;
+
+        private Builder() {
+        }
+
+        /**
+         * Registers the exceptions the listener container itself treats as fatal: the message conversion
+         * and the listener method argument resolution failures, {@link NoSuchMethodException} and {@link ClassCastException}.
+         *
+         * @return
+         */
+        public Builder defaults() {
+            return fatal(MessageConversionException.class)
+                    .fatal(org.springframework.messaging.converter.MessageConversionException.class)
+                    .fatal(MethodArgumentResolutionException.class)
+                    .fatal(NoSuchMethodException.class)
+                    .fatal(ClassCastException.class);
+        }
+
+        /**
+         * Sends the messages failed by the given exception, or one of its subclasses, to the dlq on their first failure.
+         *
+         * @param type
+         * @return
+         */
+        public Builder fatal(Class<? extends Throwable> type) {
+            return classify(type, Classification.FATAL);
+        }
+
+        /**
+         * Retries the messages failed by the given exception with the schedule of the queue,
+         * even if a superclass is fatal or annotated with {@link NonRetryable}.
+         *
+         * @param type
+         * @return
+         */
+        public Builder retryable(Class<? extends Throwable> type) {
+            return classify(type, Classification.RETRYABLE);
+        }
+
+        /**
+         * Retries the messages failed by the given exception with their own delays and max retry attempts.
+         * The schedule only applies to the per message TTL topology, the tiered retry queues are declared
+         * for the delays of the queue.
+         *
+         * @param type
+         * @param delayHandler
+         * @return
+         */
+        public Builder retryable(Class<? extends Throwable> type, ExponentialDelayHandler delayHandler) {
+            Assert.notNull(delayHandler, "'delayHandler' cannot be null");
+            return classify(type, new Classification(false, delayHandler));
+        }
+
+        /**
+         * Walks the cause chain until an exception is classified, true by default.
+         *
+         * @param traverseCauses
+         * @return
+         */
+        public Builder traverseCauses(boolean traverseCauses) {
+            this.traverseCauses = traverseCauses;
+            return this;
+        }
+
+        public ExceptionClassifier build() {
+            return new ExceptionClassifier(classifications, traverseCauses);
+        }
+
+        private Builder classify(Class<? extends Throwable> type, Classification classification) {
+            Assert.notNull(type, "'type' cannot be null");
+            classifications.put(type, classification);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides how the exception of a failed message is written on its retry copies.
+ * The full stack trace of a deep listener stack is tens of KB, published again on each retry, so it can be truncated to a number
+ * of frames per exception, or replaced by a fingerprint in the "x-exception-fingerprint" header.
+ * The fingerprint is a hash of the exception types and frames, without the messages, so the same failure has the same fingerprint
+ * on all consumers; the trace of each fingerprint is logged once and kept in a bounded cache.
+ */
+public class ExceptionHeaderPolicy {
+
+    public static final String X_EXCEPTION_FINGERPRINT = "x-exception-fingerprint";
+
+    private static final Logger log = LoggerFactory.getLogger(ExceptionHeaderPolicy.class);
+
+    public enum Mode {
+        FULL, TRUNCATED, FINGERPRINT
+    }
+
+    private final Mode mode;
+    private final int maxFrames;
+    private final Map<String, String> traces;
+
+    private ExceptionHeaderPolicy(Mode mode, int maxFrames, int cacheSize) {
+        this.mode = mode;
+        this.maxFrames = maxFrames;
+        this.traces = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    /**
+     * Returns the policy writing the full stack trace, the default of the {@link org.springframework.amqp.rabbit.retry.RepublishMessageRecoverer}.
+     *
+     * @return
+     */
+    public static ExceptionHeaderPolicy full() {
+        return new ExceptionHeaderPolicy(Mode.FULL, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Returns the policy writing the stack trace truncated to the given number of frames per exception of the cause chain.
+     *
+     * @param maxFrames
+     * @return
+     */
+    public static ExceptionHeaderPolicy truncated(int maxFrames) {
+        Assert.isTrue(maxFrames > 0, "'maxFrames' must be greater than zero");
+        return new ExceptionHeaderPolicy(Mode.TRUNCATED, maxFrames, 0);
+    }
+
+    /**
+     * Returns the policy writing a fingerprint instead of the stack trace.
+     *
+     * @param maxFrames the frames of the trace logged for a new fingerprint
+     * @param cacheSize the max number of fingerprints whose trace is kept
+     * @return
+     */
+    public static ExceptionHeaderPolicy fingerprint(int maxFrames, int cacheSize) {
+        Assert.isTrue(maxFrames > 0, "'maxFrames' must be greater than zero");
+        Assert.isTrue(cacheSize > 0, "'cacheSize' must be greater than zero");
+        return new ExceptionHeaderPolicy(Mode.FINGERPRINT, maxFrames, cacheSize);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the stack trace written in the "x-exception-stacktrace" header, empty with the fingerprint mode.
+     *
+     * @param cause
+     * @return
+     */
+    public String stackTrace(Throwable cause) {
+        return switch (mode) {
+            case FULL -> fullStackTrace(cause);
+            case TRUNCATED -> truncatedStackTrace(cause, maxFrames);
+            case FINGERPRINT -> "";
+        };
+    }
+
+    /**
+     * Returns the fingerprint of the exception, logging its trace the first time it is seen.
+     *
+     * @param cause
+     * @return
+     */
+    public String fingerprint(Throwable cause) {
+        String fingerprint = Long.toHexString(hash(cause));
+        if (!traces.containsKey(fingerprint)) {
+            String trace = truncatedStackTrace(cause, maxFrames);
+            if (traces.putIfAbsent(fingerprint, trace) == null) {
+                log.info("Retrying messages failed with exception fingerprint={}\n{}", fingerprint, trace);
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Returns the trace of a fingerprint still in the cache, or null.
+     *
+     * @param fingerprint
+     * @return
+     */
+    public String stackTraceOf(String fingerprint) {
+        return traces.get(fingerprint);
+    }
+
+    static long hash(Throwable cause) {
+        long hash = Fnv1a.OFFSET_BASIS;
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Throwable throwable = cause; throwable != null && seen.add(throwable); throwable = throwable.getCause()) {
+            hash = Fnv1a.hash(hash, throwable.getClass().getName());
+            for (StackTraceElement frame : throwable.getStackTrace()) {
+                hash = Fnv1a.hash(hash, frame.getClassName());
+                hash = Fnv1a.hash(hash, frame.getMethodName());
+                hash = Fnv1a.hash(hash, frame.getLineNumber());
+            }
+        }
+        return hash;
+    }
+
+    private static String fullStackTrace(Throwable cause) {
+        StringWriter writer = new StringWriter();
+        cause.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    static String truncatedStackTrace(Throwable cause, int maxFrames) {
+        StringBuilder trace = new StringBuilder(256);
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Throwable throwable = cause; throwable != null && seen.add(throwable); throwable = throwable.getCause()) {
+            if (throwable != cause) {
+                trace.append("Caused by: ");
+            }
+            trace.append(throwable).append('\n');
+            StackTraceElement[] frames = throwable.getStackTrace();
+            int frameCount = Math.min(frames.length, maxFrames);
+            for (int i = 0; i < frameCount; i++) {
+                trace.append("\tat ").append(frames[i]).append('\n');
+            }
+            if (frames.length > frameCount) {
+                trace.append("\t... ").append(frames.length - frameCount).append(" more\n");
+            }
+        }
+        return trace.toString();
+    }
+}
@@ -1,8 +1,7 @@
 package com.example.delayedretry.rabbit.retry;
 
-import com.rabbitmq.client.RecoveryDelayHandler;
-
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ExponentialDelayHandler {
@@ -11,15 +10,37 @@ public class ExponentialDelayHandler {
     private final double multiplier;
     private final int maxRetryAttempts;
     private final long maxDelay;
+    private final DelayStrategy delayStrategy;
 
     public final List<Long> delays;
 
-    private ExponentialDelayHandler(long initialDelay, long maxDelay, double multiplier, int maxRetryAttempts) {
+    // lookup tables built once, so the delay lookups on the listener threads do not allocate
+    private final long[] delayTable;
+    private final String[] expirationTable;
+    // the next lower distinct delay of each attempt, bounding the jitter of the tiered retry queues
+    private final long[] tierFloorTable;
+
+    private ExponentialDelayHandler(long initialDelay, long maxDelay, double multiplier, int maxRetryAttempts, DelayStrategy delayStrategy) {
         this.initialDelay = initialDelay;
         this.maxDelay = maxDelay;
         this.multiplier = multiplier;
         this.maxRetryAttempts = maxRetryAttempts;
-        this.delays = getDelays();
+        this.delayStrategy = delayStrategy;
+        this.delays = Collections.unmodifiableList(getDelays());
+        this.delayTable = new long[delays.size()];
+        this.expirationTable = new String[delays.size()];
+        this.tierFloorTable = new long[delays.size()];
+        for (int i = 0; i < delayTable.length; i++) {
+            delayTable[i] = delays.get(i);
+            expirationTable[i] = String.valueOf(delayTable[i]);
+        }
+        for (int i = 0; i < delayTable.length; i++) {
+            for (long delay : delayTable) {
+                if (delay < delayTable[i]) {
+                    tierFloorTable[i] = Math.max(tierFloorTable[i], delay);
+                }
+            }
+        }
     }
 
     private List<Long> getDelays() {
@@ -46,8 +67,69 @@ public class ExponentialDelayHandler {
      * @return
      */
     public String getDelay(Integer messageCount) {
-        RecoveryDelayHandler.ExponentialBackoffDelayHandler exponentialBackoffDelayHandler = new RecoveryDelayHandler.ExponentialBackoffDelayHandler(delays);
-        return String.valueOf(exponentialBackoffDelayHandler.getDelay(messageCount));
+        return expirationFor(messageCount);
+    }
+
+    /**
+     * Returns the delay in milliseconds for the given message count.
+     * Counts out of range are clamped to the first or the last delay.
+     * @param messageCount
+     * @return
+     */
+    public long delayMillis(int messageCount) {
+        return delayTable[index(messageCount)];
+    }
+
+    /**
+     * Returns the delay for the given message count rendered as a message expiration.
+     * Counts out of range are clamped to the first or the last delay.
+     * @param messageCount
+     * @return
+     */
+    public String expirationFor(int messageCount) {
+        return expirationTable[index(messageCount)];
+    }
+
+    /**
+     * Returns true if the delays are jittered, in which case they are drawn by {@link #nextDelay(int, long)}
+     * instead of being read from the delay table.
+     * @return
+     */
+    public boolean isJittered() {
+        return delayStrategy != DelayStrategy.NONE;
+    }
+
+    /**
+     * Returns the delay in milliseconds of the given message count, drawn by the delay strategy.
+     * @param messageCount
+     * @param previousDelay the delay of the previous retry, or zero
+     * @return
+     */
+    public long nextDelay(int messageCount, long previousDelay) {
+        return Math.max(delayStrategy.delayMillis(delayMillis(messageCount), previousDelay), 0L);
+    }
+
+    /**
+     * Returns the delay in milliseconds of the given message count drawn by the delay strategy,
+     * scaled between the next lower delay and the delay of the message count.
+     * The delay stays within the retry queue of its tier, and messages of a tier are not blocked by a longer delay than the tier width.
+     * @param messageCount
+     * @param previousDelay the delay of the previous retry, or zero
+     * @return
+     */
+    public long nextDelayWithinTier(int messageCount, long previousDelay) {
+        int index = index(messageCount);
+        long tier = delayTable[index];
+        if (tier <= 0) {
+            return tier;
+        }
+        long floor = tierFloorTable[index];
+        long delay = Math.min(Math.max(delayStrategy.delayMillis(tier, previousDelay), 0L), tier);
+        return floor + (long) ((double) delay / tier * (tier - floor));
+    }
+
+    private int index(int messageCount) {
+        return messageCount < 0 ? 0 : Math.min(messageCount, delayTable.length - 1);
     }
 
     public static Builder builder() {
@@ -72,6 +154,8 @@ public class ExponentialDelayHandler {
         private double multiplier;
         private int maxRetryAttempts;
         private long maxDelay;
+        private Jitter jitter = Jitter.NONE;
+        private DelayStrategy delayStrategy;
 
         public Builder initialDelay(long initialDelay) {
             this.initialDelay = initialDelay;
@@ -98,9 +182,31 @@ public class ExponentialDelayHandler {
             return this;
         }
 
+        /**
+         * Jitter applied to the delays, none by default.
+         * @param jitter
+         * @return
+         */
+        public Builder jitter(Jitter jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Custom strategy drawing the delays, takes precedence over the jitter.
+         * @param delayStrategy
+         * @return
+         */
+        public Builder delayStrategy(DelayStrategy delayStrategy) {
+            this.delayStrategy = delayStrategy;
+            return this;
+        }
 
         public ExponentialDelayHandler build() {
-            return new ExponentialDelayHandler(initialDelay, maxDelay, multiplier, maxRetryAttempts);
+            DelayStrategy strategy = delayStrategy != null
+                    ? delayStrategy
+                    : (jitter != null ? jitter : Jitter.NONE).strategy(initialDelay, maxDelay);
+            return new ExponentialDelayHandler(initialDelay, maxDelay, multiplier, maxRetryAttempts, strategy);
         }
     }
 }
@@ -0,0 +1,39 @@
+package com.example.delayedretry.rabbit.retry;
+
+/**
+ * The 64 bits FNV-1a hash, cheap enough to hash the idempotency keys and the exception fingerprints of every delivery.
+ */
+public final class Fnv1a {
+
+    public static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    private Fnv1a() {
+    }
+
+    /**
+     * Folds the characters of the given value into the hash.
+     *
+     * @param hash
+     * @param value
+     * @return
+     */
+    public static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = hash(hash, value.charAt(i));
+        }
+        return hash;
+    }
+
+    /**
+     * Folds the given value into the hash.
+     *
+     * @param hash
+     * @param value
+     * @return
+     */
+    public static long hash(long hash, int value) {
+        return (hash ^ value) * PRIME;
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.delayedretry.rabbit.retry;
+
+/**
+ * The jitter applied to the exponential delays, see {@link DelayStrategy}.
+ */
+public enum Jitter {
+
+    /**
+     * The delays of the exponential schedule, messages failed together are retried together.
+     */
+    NONE,
+
+    /**
+     * A random delay between zero and the exponential delay.
+     */
+    FULL,
+
+    /**
+     * Half of the exponential delay plus a random delay up to the other half.
+     */
+    EQUAL,
+
+    /**
+     * A random delay between the initial delay and three times the previous delay, capped to the max delay.
+     */
+    DECORRELATED;
+
+    DelayStrategy strategy(long initialDelay, long maxDelay) {
+        return switch (this) {
+            case NONE -> DelayStrategy.NONE;
+            case FULL -> DelayStrategy.FULL_JITTER;
+            case EQUAL -> DelayStrategy.EQUAL_JITTER;
+            case DECORRELATED -> DelayStrategy.decorrelatedJitter(initialDelay, Math.max(initialDelay, maxDelay));
+        };
+    }
+}
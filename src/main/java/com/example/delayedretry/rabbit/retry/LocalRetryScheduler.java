@@ -0,0 +1,135 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.example.delayedretry.rabbit.retry.RetryCounts.X_LOCAL_RETRY_COUNT;
+
+/**
+ * Retries failed deliveries in process when their delay is short, instead of republishing them to the retry queue.
+ * The delivery stays unacked while it is parked in a {@link TimingWheel}, so it is redelivered by the broker if the consumer goes away,
+ * and the listener is invoked again on the executor once the delay of the {@link ExponentialDelayHandler} of the failure elapsed.
+ * The executor must reject the redeliveries it cannot take instead of blocking the thread of the wheel,
+ * a rejected redelivery is recovered through the broker without blocking either.
+ * Delays above the ceiling are left to the broker, as well as deliveries of a channel that already parks
+ * as many messages as allowed, which should stay below the prefetch count so the consumer keeps receiving fresh messages.
+ * With {@link RetryBudgets} each parked delivery takes a retry from the budget of its queue, an exhausted budget leaves the delivery
+ * to the broker, whose recoverer then applies the exhaustion policy of the budgets.
+ */
+public class LocalRetryScheduler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalRetryScheduler.class);
+
+    private final long ceiling;
+    private final int maxParkedPerChannel;
+    private final Executor executor;
+    private final TimingWheel timingWheel;
+    private final ConcurrentMap<Channel, AtomicInteger> parked = new ConcurrentHashMap<>();
+    private RetryBudgets retryBudgets;
+
+    /**
+     * @param ceiling the highest delay retried in process, in milliseconds
+     * @param maxParkedPerChannel the max number of unacked deliveries parked per channel, lower than the prefetch count
+     * @param tickMillis the precision of the delays
+     * @param executor the executor invoking the listener again, rejecting the redeliveries it cannot take right away
+     */
+    public LocalRetryScheduler(long ceiling, int maxParkedPerChannel, long tickMillis, Executor executor) {
+        Assert.notNull(executor, "'executor' cannot be null");
+        this.ceiling = ceiling;
+        this.maxParkedPerChannel = maxParkedPerChannel;
+        this.executor = executor;
+        this.timingWheel = new TimingWheel("local-retry-wheel", tickMillis, 64, ceiling);
+    }
+
+    /**
+     * Takes each local retry from the budget of the queue of the message, the budgets shared with the recoverers.
+     *
+     * @param retryBudgets the budgets, or null to retry all the messages locally
+     * @return
+     */
+    public LocalRetryScheduler retryBudgets(RetryBudgets retryBudgets) {
+        this.retryBudgets = retryBudgets;
+        return this;
+    }
+
+    /**
+     * Parks the failed delivery until its delay elapsed, then runs the redelivery on the executor,
+     * or the fallback on the thread of the wheel if the executor rejects it.
+     *
+     * @param channel    the channel the message was delivered on
+     * @param message      the failed message
+     * @param delayHandler the schedule of the failure, the one of the queue the message was consumed from
+     * @param redelivery   invokes the listener again with the message
+     * @param fallback     recovers the delivery through the broker without blocking
+     * @return false if the delivery must be recovered through the broker
+     */
+    public boolean park(Channel channel, Message message, ExponentialDelayHandler delayHandler, Runnable redelivery, Runnable fallback) {
+        long retryCount = RetryCounts.of(message);
+        if (!delayHandler.canRetry(retryCount)) {
+            return false;
+        }
+        long delay = delayHandler.delayMillis((int) retryCount);
+        if (delay > ceiling) {
+            return false;
+        }
+
+        AtomicInteger channelParked = parked.computeIfAbsent(channel, c -> new AtomicInteger());
+        if (channelParked.incrementAndGet() > maxParkedPerChannel) {
+            channelParked.decrementAndGet();
+            return false;
+        }
+        if (retryBudgets != null && !retryBudgets.budgetOf(message).tryAcquire(System.currentTimeMillis())) {
+            channelParked.decrementAndGet();
+            log.debug("The retry budget is exhausted, the failed message is recovered through the broker");
+            return false;
+        }
+
+        long localRetryCount = RetryCounts.localRetryCount(message.getMessageProperties());
+        message.getMessageProperties().setHeader(X_LOCAL_RETRY_COUNT, localRetryCount + 1);
+        boolean scheduled = timingWheel.schedule(delay, () -> {
+            channelParked.decrementAndGet();
+            if (channel.isOpen()) {
+                try {
+                    executor.execute(redelivery);
+                } catch (RejectedExecutionException e) {
+                    log.debug("The redelivery of the parked message was rejected, it is recovered through the broker");
+                    fallback.run();
+                }
+            } else {
+                parked.remove(channel, channelParked);
+                log.debug("The channel of the parked message was closed, the broker will redeliver it");
+            }
+        });
+        if (!scheduled) {
+            channelParked.decrementAndGet();
+            message.getMessageProperties().setHeader(X_LOCAL_RETRY_COUNT, localRetryCount);
+            return false;
+        }
+
+        log.debug("The failed message is parked locally with delay={}ms", delay);
+        return true;
+    }
+
+    /**
+     * Returns the number of deliveries parked.
+     *
+     * @return
+     */
+    public int parked() {
+        return timingWheel.size();
+    }
+
+    @Override
+    public void close() {
+        timingWheel.close();
+    }
+}
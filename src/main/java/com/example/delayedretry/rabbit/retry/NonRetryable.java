@@ -0,0 +1,17 @@
+package com.example.delayedretry.rabbit.retry;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an exception, and its subclasses, that can never succeed on a retry.
+ * The failed messages are sent to the dlq on their first failure by the recoverers with an {@link ExceptionClassifier}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface NonRetryable {
+}
@@ -0,0 +1,43 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Thrown by a batch listener to report the messages of the batch it failed to handle, the other messages are considered handled.
+ * The listener must receive the batch as a {@code List<Message>}, the failures are matched to the messages of the batch by identity.
+ * Only the failed messages are recovered by the {@link BatchRecoveryInterceptor}, each with the exception it failed with.
+ */
+public class PartialBatchFailureException extends RuntimeException {
+
+    private final Map<Message, Throwable> failures;
+
+    /**
+     * @param failures the exception of each failed message, keyed by the message instances of the batch
+     */
+    public PartialBatchFailureException(Map<Message, ? extends Throwable> failures) {
+        super(failures.size() + " messages of the batch failed");
+        Assert.notEmpty(failures, "'failures' cannot be empty");
+        Map<Message, Throwable> copy = new IdentityHashMap<>(failures.size());
+        copy.putAll(failures);
+        this.failures = Collections.unmodifiableMap(copy);
+    }
+
+    public Map<Message, Throwable> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns the exception the given message failed with, or null if it was handled.
+     *
+     * @param message
+     * @return
+     */
+    public Throwable failureOf(Message message) {
+        return failures.get(message);
+    }
+}
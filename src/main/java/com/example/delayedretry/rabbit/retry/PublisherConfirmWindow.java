@@ -0,0 +1,172 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpTimeoutException;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded window of republished messages waiting for their publisher confirm.
+ * A failed delivery is opened on the listener thread before its retry or dlq copy is published, each copy published while it is open
+ * is correlated to the delivery, and the delivery is acked once all its copies are confirmed.
+ * The delivery is nacked and requeued if a copy is nacked, returned or not confirmed within the confirm timeout.
+ * When the window is full the listener thread waits for a free slot up to the confirm timeout, the threads that must not block
+ * open their delivery without waiting, its copies then fail right away.
+ */
+public class PublisherConfirmWindow {
+
+    private static final Logger log = LoggerFactory.getLogger(PublisherConfirmWindow.class);
+
+    private final ThreadLocal<Delivery> currentDelivery = new ThreadLocal<>();
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final long confirmTimeout;
+
+    public PublisherConfirmWindow(int maxInFlight, long confirmTimeout) {
+        Assert.isTrue(maxInFlight > 0, "'maxInFlight' must be greater than zero");
+        Assert.isTrue(confirmTimeout > 0, "'confirmTimeout' must be greater than zero");
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.confirmTimeout = confirmTimeout;
+    }
+
+    /**
+     * Opens the given delivery on the current thread, the copies published until it is closed are correlated to it.
+     *
+     * @param channel
+     * @param deliveryTag
+     */
+    public void open(Channel channel, long deliveryTag) {
+        open(channel, deliveryTag, true);
+    }
+
+    /**
+     * Opens the given delivery on the current thread, the copies published until it is closed are correlated to it.
+     *
+     * @param channel
+     * @param deliveryTag
+     * @param wait        false to fail the copies right away when the window is full, for the threads that must not block
+     */
+    public void open(Channel channel, long deliveryTag, boolean wait) {
+        currentDelivery.set(new Delivery(channel, deliveryTag, wait));
+    }
+
+    /**
+     * Closes the delivery opened on the current thread, it is acked right away if no copy was published.
+     */
+    public void close() {
+        Delivery delivery = currentDelivery.get();
+        currentDelivery.remove();
+        if (delivery != null) {
+            delivery.confirmed();
+        }
+    }
+
+    /**
+     * Closes the delivery opened on the current thread and requeues it, whatever the state of its published copies.
+     */
+    public void fail() {
+        Delivery delivery = currentDelivery.get();
+        currentDelivery.remove();
+        if (delivery != null) {
+            delivery.failed();
+        }
+    }
+
+    /**
+     * Returns the correlation data of a copy of the delivery opened on the current thread, or null when no delivery is open.
+     * Throws an {@link AmqpTimeoutException} when no slot of the window is released within the confirm timeout.
+     *
+     * @return
+     */
+    public CorrelationData correlate() {
+        Delivery delivery = currentDelivery.get();
+        if (delivery == null) {
+            return null;
+        }
+        if (!acquire(delivery.wait)) {
+            throw new AmqpTimeoutException("No publisher confirm slot released within " + (delivery.wait ? confirmTimeout : 0) + "ms");
+        }
+
+        CorrelationData correlationData = new CorrelationData();
+        delivery.pending.incrementAndGet();
+        correlationData.getFuture()
+                .orTimeout(confirmTimeout, TimeUnit.MILLISECONDS)
+                .whenComplete((confirm, ex) -> {
+                    if (ex == null && confirm.isAck() && correlationData.getReturned() == null) {
+                        delivery.confirmed();
+                    } else {
+                        log.warn("The failed message copy was not confirmed, the failed message will be requeued. reason={}",
+                                ex != null ? ex.toString() : confirm.getReason());
+                        delivery.failed();
+                    }
+                    inFlight.release();
+                });
+        return correlationData;
+    }
+
+    /**
+     * Returns the number of copies waiting for their publisher confirm.
+     *
+     * @return
+     */
+    public int inFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    private boolean acquire(boolean wait) {
+        if (!wait) {
+            return inFlight.tryAcquire();
+        }
+        try {
+            return inFlight.tryAcquire(confirmTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static final class Delivery {
+
+        private final Channel channel;
+        private final long deliveryTag;
+        private final boolean wait;
+        // the listener thread holds one count until the delivery is closed
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Delivery(Channel channel, long deliveryTag, boolean wait) {
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+            this.wait = wait;
+        }
+
+        private void confirmed() {
+            if (pending.decrementAndGet() == 0 && settled.compareAndSet(false, true)) {
+                try {
+                    channel.basicAck(deliveryTag, false);
+                } catch (IOException e) {
+                    log.warn("Failed to ack delivery {}", deliveryTag, e);
+                }
+            }
+        }
+
+        private void failed() {
+            if (settled.compareAndSet(false, true)) {
+                try {
+                    channel.basicNack(deliveryTag, false, true);
+                } catch (IOException e) {
+                    log.warn("Failed to nack delivery {}", deliveryTag, e);
+                }
+            }
+        }
+    }
+}
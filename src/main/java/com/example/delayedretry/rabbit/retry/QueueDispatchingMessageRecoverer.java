@@ -0,0 +1,58 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.util.Assert;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A {@link MessageRecoverer} delegating to the recoverer of the queue the message was consumed from,
+ * so the queues sharing a listener container can be retried with their own delays.
+ * The recoverer of each queue is resolved once and cached, queues without their own recoverer use the default one.
+ */
+public class QueueDispatchingMessageRecoverer implements MessageRecoverer {
+
+    private final MessageRecoverer defaultRecoverer;
+    private final Function<String, MessageRecoverer> queueRecoverers;
+    private final ConcurrentMap<String, MessageRecoverer> recoverers = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultRecoverer
+     * @param queueRecoverers  returns the recoverer of a queue, or null to use the default one
+     */
+    public QueueDispatchingMessageRecoverer(MessageRecoverer defaultRecoverer, Function<String, MessageRecoverer> queueRecoverers) {
+        Assert.notNull(defaultRecoverer, "'defaultRecoverer' cannot be null");
+        Assert.notNull(queueRecoverers, "'queueRecoverers' cannot be null");
+        this.defaultRecoverer = defaultRecoverer;
+        this.queueRecoverers = queueRecoverers;
+    }
+
+    @Override
+    public void recover(Message message, Throwable cause) {
+        recovererOf(message).recover(message, cause);
+    }
+
+    /**
+     * Returns the recoverer of the queue the message was consumed from.
+     *
+     * @param message
+     * @return
+     */
+    public MessageRecoverer recovererOf(Message message) {
+        return recovererOf(message.getMessageProperties().getConsumerQueue());
+    }
+
+    private MessageRecoverer recovererOf(String queueName) {
+        if (queueName == null) {
+            return defaultRecoverer;
+        }
+        MessageRecoverer recoverer = recoverers.get(queueName);
+        return recoverer != null ? recoverer : recoverers.computeIfAbsent(queueName, name -> {
+            MessageRecoverer queueRecoverer = queueRecoverers.apply(name);
+            return queueRecoverer != null ? queueRecoverer : defaultRecoverer;
+        });
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.delayedretry.rabbit.retry;
+
+import jakarta.annotation.Nonnull;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link MessageRecoverer} that republishes messages to an "x-delayed-message" exchange or to a dead letter queue.
+ * The exchange holds each message for the delay of its "x-delay" header, then routes it back to the retried queue bound with its name,
+ * so a short delay never waits behind a longer one. The exchange does not add a "x-death" header, the retry count is always written
+ * to the "x-retry-state" header. The delayed messages are stored on a single node by the exchange, they are not replicated like
+ * the ones of a quorum retry queue.
+ */
+public class RepublishDelayedExchangeMessageRecoverer extends RepublishDelayedMessageRecoverer {
+
+    /**
+     * Creates a recoverer publishing the retries to the given exchange with the retried queue name as routing key,
+     * and resolving the dlq routing key from the given cache.
+     *
+     * @param amqpTemplate
+     * @param delayHandler
+     * @param routingCache
+     * @param exchangeName the name of the "x-delayed-message" exchange
+     */
+    public RepublishDelayedExchangeMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull ExponentialDelayHandler delayHandler,
+            @Nonnull RetryRoutingCache routingCache, @Nonnull String exchangeName) {
+        this(new RoutingKeyResolvingMessageRecoverer(amqpTemplate, exchangeName, routingCache::retriedQueueName),
+                routingKeyResolvingRecoverer(amqpTemplate, routingCache, routingCache::dlqRoutingKey),
+                delayHandler);
+        Assert.hasText(exchangeName, "'exchangeName' cannot be empty");
+    }
+
+    public RepublishDelayedExchangeMessageRecoverer(MessageRecoverer retryMessageRecoverer, MessageRecoverer errorMessageRecoverer, ExponentialDelayHandler delayHandler) {
+        super(retryMessageRecoverer, errorMessageRecoverer, delayHandler);
+        super.retryState(true);
+    }
+
+    /**
+     * The retry state is always written, the retry count cannot be read from the "x-death" header.
+     *
+     * @param retryState ignored
+     * @return
+     */
+    @Override
+    public RepublishDelayedMessageRecoverer retryState(boolean retryState) {
+        return super.retryState(true);
+    }
+
+    /**
+     * Writes the delay to the "x-delay" header read by the exchange, no expiration is set on the message.
+     *
+     * @param message
+     * @param attempt the retry count of the message
+     * @param delay   the delay in milliseconds
+     */
+    @Override
+    protected void applyDelay(Message message, int attempt, String delay) {
+        MessageProperties messageProperties = message.getMessageProperties();
+        // it would expire in the retried queue once delivered
+        messageProperties.setExpiration(null);
+        messageProperties.setDelay((int) Math.min(Long.parseLong(delay), Integer.MAX_VALUE));
+    }
+}
@@ -5,42 +5,90 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.AmqpTemplate;
 import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.retry.MessageRecoverer;
 import org.springframework.amqp.rabbit.retry.RepublishMessageRecoverer;
 import org.springframework.expression.Expression;
 import org.springframework.expression.common.LiteralExpression;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.util.Assert;
 
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+
+import static com.example.delayedretry.rabbit.retry.RetryCounts.X_LOCAL_RETRY_COUNT;
+import static com.example.delayedretry.rabbit.retry.RetryState.X_RETRY_STATE;
 
-import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_DLQ_QUEUE_PREFIX;
-import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_RETRY_QUEUE_PREFIX;
 import static org.springframework.amqp.rabbit.core.RabbitAdmin.DEFAULT_EXCHANGE_NAME;
 
 /**
  * A {@link MessageRecoverer} that republishes messages to a retry queue with a delay or a dead letter queue.
  * If the message has a "x-death" header with a "count" greater than the maxAttempts, it will be republished to the dlq exchange.
  * If the message has a "x-death" header with a "count" less than the maxAttempts, it will be republished to the retry exchange with a delay.
+ * With the compact retry state enabled the retry count is written in the "x-retry-state" header instead,
+ * and the "x-death" and exception headers can be stripped from the retry copies so their size stays constant across retries.
+ * With an {@link ExceptionClassifier} the fatal failures are sent to the dlq on their first failure,
+ * and with {@link RetryBudgets} the retries of a queue are capped to a share of its first attempts.
+ * With a {@link RepublishSpillJournal} the copies that cannot be published are spilled to it and replayed later.
+ * With a {@link RetryDeadline} the messages past their deadline are not retried, and the last delay is clipped to come back
+ * a margin before the deadline, the messages that cannot come back in time are not retried either.
  */
 public class RepublishDelayedMessageRecoverer implements MessageRecoverer {
 
+    public static final String X_RETRY_DELAY = "x-retry-delay";
+    public static final String X_RETRY_SCHEDULED_DELAY = "x-retry-scheduled-delay";
+
     private static final Logger log = LoggerFactory.getLogger(RepublishDelayedMessageRecoverer.class);
 
-    private static final Expression RETRY_ROUTING_KEY_EXPRESSION = new SpelExpressionParser().parseExpression("\"" + DEFAULT_RETRY_QUEUE_PREFIX + "\" + messageProperties.consumerQueue");
-    private static final Expression DLQ_ROUTING_KEY_EXPRESSION = new SpelExpressionParser().parseExpression("\"" + DEFAULT_DLQ_QUEUE_PREFIX + "\" + messageProperties.consumerQueue");
     private static final LiteralExpression DEFAULT_EXCHANGE_EXPRESSION = new LiteralExpression(DEFAULT_EXCHANGE_NAME);
+    private static final String X_DEATH = "x-death";
+    // added again by the retry recoverer on each failure, the dlq copy keeps them
+    private static final List<String> EXCEPTION_HEADERS = List.of(
+            RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE,
+            RepublishMessageRecoverer.X_EXCEPTION_MESSAGE,
+            RepublishMessageRecoverer.X_ORIGINAL_EXCHANGE,
+            RepublishMessageRecoverer.X_ORIGINAL_ROUTING_KEY);
 
     private final MessageRecoverer retryMessageRecoverer;
     private final MessageRecoverer errorMessageRecoverer;
     private final ExponentialDelayHandler delayHandler;
+    private RetryMetrics metrics;
+    private boolean retryState;
+    private boolean stripRetryHeaders;
+    private ExceptionClassifier exceptionClassifier;
+    private RetryBudgets retryBudgets;
+    private RetryDeadline deadline;
 
     public RepublishDelayedMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull ExponentialDelayHandler delayHandler) {
-        Assert.notNull(amqpTemplate, "'amqpTemplate' cannot be null");
-        this.retryMessageRecoverer = new RepublishMessageRecoverer(amqpTemplate, DEFAULT_EXCHANGE_EXPRESSION, RETRY_ROUTING_KEY_EXPRESSION);
-        this.errorMessageRecoverer = new RepublishMessageRecoverer(amqpTemplate, DEFAULT_EXCHANGE_EXPRESSION, DLQ_ROUTING_KEY_EXPRESSION);
-        this.delayHandler = delayHandler;
+        this(amqpTemplate, delayHandler, new RetryRoutingCache());
+    }
+
+    /**
+     * Creates a recoverer resolving the retry and dlq routing keys from the given cache.
+     *
+     * @param amqpTemplate
+     * @param delayHandler
+     * @param routingCache
+     */
+    public RepublishDelayedMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull ExponentialDelayHandler delayHandler, @Nonnull RetryRoutingCache routingCache) {
+        this(routingKeyResolvingRecoverer(amqpTemplate, routingCache, routingCache::retryRoutingKey),
+                routingKeyResolvingRecoverer(amqpTemplate, routingCache, routingCache::dlqRoutingKey),
+                delayHandler);
+    }
+
+    /**
+     * Creates a recoverer evaluating the given SpEL expressions against each message to resolve the retry and dlq routing keys.
+     *
+     * @param amqpTemplate
+     * @param delayHandler
+     * @param retryRoutingKeyExpression
+     * @param dlqRoutingKeyExpression
+     */
+    public RepublishDelayedMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull ExponentialDelayHandler delayHandler,
+            @Nonnull Expression retryRoutingKeyExpression, @Nonnull Expression dlqRoutingKeyExpression) {
+        this(new RepublishMessageRecoverer(amqpTemplate, DEFAULT_EXCHANGE_EXPRESSION, retryRoutingKeyExpression),
+                new RepublishMessageRecoverer(amqpTemplate, DEFAULT_EXCHANGE_EXPRESSION, dlqRoutingKeyExpression),
+                delayHandler);
     }
 
     public RepublishDelayedMessageRecoverer(MessageRecoverer retryMessageRecoverer, MessageRecoverer errorMessageRecoverer, ExponentialDelayHandler delayHandler) {
@@ -53,6 +101,118 @@ public class RepublishDelayedMessageRecoverer implements MessageRecoverer {
         this.delayHandler = delayHandler;
     }
 
+    /**
+     * Records the retried and dead lettered messages in the given metrics.
+     *
+     * @param metrics
+     * @return
+     */
+    public RepublishDelayedMessageRecoverer metrics(RetryMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Writes the compact "x-retry-state" header on the retry copies, the retry count is then read from it instead of the "x-death" header.
+     * It must be enabled on all the consumers of the queue, a consumer ignoring it would republish a stale state.
+     *
+     * @param retryState
+     * @return
+     */
+    public RepublishDelayedMessageRecoverer retryState(boolean retryState) {
+        Assert.isTrue(retryState || !stripRetryHeaders, "The retry headers can only be stripped with the retry state");
+        this.retryState = retryState;
+        return this;
+    }
+
+    /**
+     * Strips the "x-death" and exception headers from the retry copies, only supported by the recoverers created with
+     * a {@link RetryRoutingCache}. Requires the retry state, the "x-death" header only counts the last retry once stripped.
+     *
+     * @param stripRetryHeaders
+     * @return
+     */
+    public RepublishDelayedMessageRecoverer stripRetryHeaders(boolean stripRetryHeaders) {
+        Assert.isTrue(retryState || !stripRetryHeaders, "The retry headers can only be stripped with the retry state");
+        if (retryMessageRecoverer instanceof RoutingKeyResolvingMessageRecoverer routingKeyResolvingRecoverer) {
+            routingKeyResolvingRecoverer.setStrippedHeaders(stripRetryHeaders ? EXCEPTION_HEADERS : List.of());
+        } else {
+            Assert.state(!stripRetryHeaders, "The retry headers can only be stripped by a recoverer created with a retry routing cache");
+        }
+        this.stripRetryHeaders = stripRetryHeaders;
+        return this;
+    }
+
+    /**
+     * Writes the exception of the retry copies with the given policy, the dlq copy keeps the full stack trace.
+     * Only supported by the recoverers created with a {@link RetryRoutingCache}.
+     *
+     * @param exceptionHeaderPolicy the policy, or null to write the full stack trace
+     * @return
+     */
+    public RepublishDelayedMessageRecoverer exceptionHeaderPolicy(ExceptionHeaderPolicy exceptionHeaderPolicy) {
+        if (retryMessageRecoverer instanceof RoutingKeyResolvingMessageRecoverer routingKeyResolvingRecoverer) {
+            routingKeyResolvingRecoverer.setExceptionHeaderPolicy(exceptionHeaderPolicy);
+        } else {
+            Assert.state(exceptionHeaderPolicy == null, "The exception header policy requires a recoverer created with a retry routing cache");
+        }
+        return this;
+    }
+
+    /**
+     * Classifies the exceptions of the failed messages, the fatal ones are sent to the dlq without being retried
+     * and the ones with their own schedule are retried with it.
+     *
+     * @param exceptionClassifier the classifier, or null to retry all the exceptions with the delay handler
+     * @return
+     */
+    public RepublishDelayedMessageRecoverer exceptionClassifier(ExceptionClassifier exceptionClassifier) {
+        this.exceptionClassifier = exceptionClassifier;
+        return this;
+    }
+
+    /**
+     * Takes each retry from the budget of the queue of the message, the messages failed once the budget is exhausted
+     * are dead lettered or retried with the longest delay.
+     *
+     * @param retryBudgets the budgets, or null to retry all the messages
+     * @return
+     */
+    public RepublishDelayedMessageRecoverer retryBudgets(RetryBudgets retryBudgets) {
+        this.retryBudgets = retryBudgets;
+        return this;
+    }
+
+    /**
+     * Spills the retry and dlq copies to the given journal while the broker blocks the publishers or when publishing them fails.
+     * Only supported by the recoverers created with a {@link RetryRoutingCache}.
+     *
+     * @param spillJournal the journal, or null to let the publish block or fail
+     * @return
+     */
+    public RepublishDelayedMessageRecoverer spillJournal(RepublishSpillJournal spillJournal) {
+        for (MessageRecoverer recoverer : List.of(retryMessageRecoverer, errorMessageRecoverer)) {
+            if (recoverer instanceof RoutingKeyResolvingMessageRecoverer routingKeyResolvingRecoverer) {
+                routingKeyResolvingRecoverer.setSpillJournal(spillJournal);
+            } else {
+                Assert.state(spillJournal == null, "The spill journal requires a recoverer created with a retry routing cache");
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Dead letters or discards the messages past their deadline instead of retrying them,
+     * and clips the delay of a retry to the time left before the deadline of the message.
+     *
+     * @param deadline the deadline, or null to retry the messages regardless of their age
+     * @return
+     */
+    public RepublishDelayedMessageRecoverer deadline(RetryDeadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
     /**
      * Recovers the message by republishing it to the exchange it was originally sent to.
      * If the message was marked as mandatory but cannot be routed, it will be republished to the default exchange.
@@ -65,20 +225,195 @@ public class RepublishDelayedMessageRecoverer implements MessageRecoverer {
      */
     @Override
     public void recover(Message message, Throwable cause) {
-        List<Map<String, ?>> xDeathHeader = message.getMessageProperties().getXDeathHeader();
-
-        long retryCount = xDeathHeader == null ? 0L : (Long) xDeathHeader.get(0).get("count");
+        long startNanos = System.nanoTime();
+        long retryCount = RetryCounts.of(message);
+        ExponentialDelayHandler delayHandler = this.delayHandler;
+        // the latest delay bringing a retry back with the margin left to handle it before the deadline
+        long maxDelay = deadline != null ? deadline.remaining(message, System.currentTimeMillis()) - deadline.getMargin() : Long.MAX_VALUE;
+        if (maxDelay <= 0) {
+            log.debug("The failed message cannot be retried before its deadline");
+            expire(message, cause, startNanos);
+            return;
+        }
+        if (exceptionClassifier != null) {
+            ExceptionClassifier.Classification classification = exceptionClassifier.classify(cause);
+            if (classification.isFatal()) {
+                log.debug("The failure is not retryable, sending failed message to dead letter queue");
+                deadLetter(message, cause, startNanos);
+                return;
+            }
+            delayHandler = scheduleOf(classification);
+        }
 
         if (delayHandler.canRetry(retryCount)) {
-            String delay = delayHandler.getDelay((int) retryCount);
-            message.getMessageProperties().setExpiration(delay);
+            int attempt = (int) retryCount;
+            if (retryBudgets != null && !retryBudgets.budgetOf(message).tryAcquire(System.currentTimeMillis())) {
+                if (retryBudgets.getExhaustion() == RetryBudget.Exhaustion.DEAD_LETTER) {
+                    log.debug("The retry budget is exhausted, sending failed message to dead letter queue");
+                    deadLetter(message, cause, startNanos);
+                    return;
+                }
+                log.debug("The retry budget is exhausted, the failed message will be retried with the longest delay");
+                attempt = delayHandler.delays.size() - 1;
+            }
+            long delayMillis;
+            String delay;
+            if (delayHandler.isJittered()) {
+                MessageProperties messageProperties = message.getMessageProperties();
+                delayMillis = jitteredDelay(delayHandler, attempt, previousDelay(messageProperties));
+                delay = Long.toString(delayMillis);
+                // read back as the previous delay of the next retry
+                messageProperties.setHeader(X_RETRY_SCHEDULED_DELAY, delay);
+            } else {
+                delayMillis = delayHandler.delayMillis(attempt);
+                delay = delayHandler.getDelay(attempt);
+            }
+            if (delayMillis > maxDelay) {
+                delayMillis = applyClippedDelay(message, attempt, maxDelay);
+                if (delayMillis < 0) {
+                    log.debug("The failed message cannot be delayed by at most {}ms, it cannot be retried before its deadline", maxDelay);
+                    expire(message, cause, startNanos);
+                    return;
+                }
+                delay = Long.toString(delayMillis);
+            } else {
+                applyDelay(message, attempt, delay);
+            }
+            updateRetryState(message.getMessageProperties(), retryCount, delayMillis);
+            if (metrics != null) {
+                metrics.beforeRetry(message, delay);
+            }
 
             log.debug("The failed message will be sent to retry queue with delay={}ms", delay);
             retryMessageRecoverer.recover(message, cause);
+            if (metrics != null) {
+                metrics.retried(message, retryCount, delayMillis, startNanos);
+            }
 
         } else {
             log.debug("Retries count exceed max attempts, sending failed message to dead letter queue");
-            errorMessageRecoverer.recover(message, cause);
+            deadLetter(message, cause, startNanos);
+        }
+    }
+
+    private void expire(Message message, Throwable cause, long startNanos) {
+        if (deadline.getExpiry() == RetryDeadline.Expiry.DISCARD) {
+            log.debug("The expired message is discarded");
+            return;
+        }
+        log.debug("Sending expired message to dead letter queue");
+        deadLetter(message, cause, startNanos);
+    }
+
+    private void deadLetter(Message message, Throwable cause, long startNanos) {
+        errorMessageRecoverer.recover(message, cause);
+        if (metrics != null) {
+            metrics.deadLettered(message, cause, startNanos);
         }
     }
+
+    /**
+     * Sets the delay of the message before it is republished to the retry queue, as its expiration.
+     *
+     * @param message
+     * @param attempt the retry count of the message
+     * @param delay   the delay in milliseconds, rendered as an expiration
+     */
+    protected void applyDelay(Message message, int attempt, String delay) {
+        message.getMessageProperties().setExpiration(delay);
+    }
+
+    /**
+     * Sets a delay clipped to come back before the deadline of the message, shorter than the delay of the attempt.
+     *
+     * @param message
+     * @param attempt the retry count of the message
+     * @param maxDelay the longest delay in milliseconds bringing the message back in time
+     * @return the delay applied, or -1 if the message cannot be delayed by at most the max delay, it is then not retried
+     */
+    protected long applyClippedDelay(Message message, int attempt, long maxDelay) {
+        applyDelay(message, attempt, Long.toString(maxDelay));
+        return maxDelay;
+    }
+
+    /**
+     * Draws the jittered delay of the given attempt.
+     *
+     * @param delayHandler  the schedule of the failure
+     * @param attempt       the retry count of the message
+     * @param previousDelay the delay of the previous retry, or zero
+     * @return
+     */
+    protected long jitteredDelay(ExponentialDelayHandler delayHandler, int attempt, long previousDelay) {
+        return delayHandler.nextDelay(attempt, previousDelay);
+    }
+
+    /**
+     * Returns the schedule of a retryable failure.
+     *
+     * @param classification
+     * @return the schedule of the exception if it has one, the delay handler otherwise
+     */
+    protected ExponentialDelayHandler scheduleOf(ExceptionClassifier.Classification classification) {
+        return classification.getDelayHandler() != null ? classification.getDelayHandler() : delayHandler;
+    }
+
+    private void updateRetryState(MessageProperties messageProperties, long retryCount, long delayMillis) {
+        Map<String, Object> headers = messageProperties.getHeaders();
+        if (!retryState) {
+            // a state left by a consumer that had it enabled would hide the "x-death" count
+            if (headers.containsKey(X_RETRY_STATE)) {
+                headers.remove(X_RETRY_STATE);
+            }
+            return;
+        }
+        RetryState previous = RetryState.of(messageProperties);
+        long firstFailureAt = previous != null ? previous.getFirstFailureAt() : System.currentTimeMillis();
+        headers.put(X_RETRY_STATE, new RetryState(retryCount + 1, firstFailureAt, delayMillis).render());
+        // local retries are folded into the attempt of the state
+        headers.remove(X_LOCAL_RETRY_COUNT);
+        if (stripRetryHeaders) {
+            headers.remove(X_DEATH);
+        }
+    }
+
+    /**
+     * Returns the schedule of the failed message when it is retried in process by a {@link LocalRetryScheduler},
+     * classified like the failures recovered through the broker.
+     *
+     * @param cause
+     * @return the schedule of the failure, or null if it is fatal and must be dead lettered
+     */
+    public ExponentialDelayHandler localRetrySchedule(Throwable cause) {
+        if (exceptionClassifier == null) {
+            return delayHandler;
+        }
+        ExceptionClassifier.Classification classification = exceptionClassifier.classify(cause);
+        return classification.isFatal() ? null : scheduleOf(classification);
+    }
+
+    protected ExponentialDelayHandler getDelayHandler() {
+        return delayHandler;
+    }
+
+    private static long previousDelay(MessageProperties messageProperties) {
+        Object previousDelay = messageProperties.getHeader(X_RETRY_SCHEDULED_DELAY);
+        if (previousDelay == null) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(previousDelay.toString());
+        } catch (NumberFormatException e) {
+            // set by another publisher, the delay is then drawn as for a first retry
+            log.debug("Ignoring the invalid previous delay {}", previousDelay);
+            return 0L;
+        }
+    }
+
+    static MessageRecoverer routingKeyResolvingRecoverer(AmqpTemplate amqpTemplate, RetryRoutingCache routingCache,
+            Function<Message, String> routingKeyResolver) {
+        Assert.notNull(amqpTemplate, "'amqpTemplate' cannot be null");
+        Assert.notNull(routingCache, "'routingCache' cannot be null");
+        return new RoutingKeyResolvingMessageRecoverer(amqpTemplate, routingKeyResolver);
+    }
 }
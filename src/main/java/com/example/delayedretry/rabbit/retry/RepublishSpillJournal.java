@@ -0,0 +1,551 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.impl.ContentHeaderPropertyWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Local append only journal of the retry and dlq copies that could not be published, so the listener threads neither block
+ * on a broker raising a memory or disk alarm nor lose the copy when the publish fails.
+ * The copies are appended to memory mapped segment files, each record being its length, the CRC32 of its payload, a replayed flag
+ * and the exchange, routing key, properties and body of the copy, the properties encoded as in an AMQP content header.
+ * The length is written last, a record torn by a crash fails its checksum and ends its segment.
+ * A background replayer publishes the records with publisher confirms on its own connection while the broker is not blocked,
+ * flags them replayed once confirmed, and deletes the segments once all their records are replayed.
+ * The segments left by a previous run are replayed on {@link #start()}.
+ * The records survive a crash of the process, not of the host: the segments are only forced to disk when rolled and closed.
+ * A record is replayed at least once, it is published again if the replayer stops between its confirm and its flag.
+ */
+public class RepublishSpillJournal implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(RepublishSpillJournal.class);
+
+    private static final String SEGMENT_PREFIX = "spill-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    // length, checksum and replayed flag
+    private static final int RECORD_HEADER = 9;
+    private static final int LENGTH_OFFSET = 0;
+    private static final int CHECKSUM_OFFSET = 4;
+    private static final int FLAG_OFFSET = 8;
+    private static final byte PENDING = 1;
+    private static final byte REPLAYED = 2;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ConnectionFactory connectionFactory;
+    private final long replayInterval;
+    private final int replayBatchSize;
+    private final long confirmTimeout;
+    private final MessagePropertiesConverter messagePropertiesConverter = new DefaultMessagePropertiesConverter();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "retry-spill-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // oldest first, the last one is appended to
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId;
+    private long pending;
+    private volatile boolean blocked;
+    private Connection connection;
+    private Channel channel;
+
+    private RepublishSpillJournal(Builder builder) {
+        Assert.notNull(builder.directory, "'directory' cannot be null");
+        Assert.notNull(builder.connectionFactory, "'connectionFactory' cannot be null");
+        Assert.isTrue(builder.segmentSize > RECORD_HEADER, "'segmentSize' must be greater than " + RECORD_HEADER);
+        Assert.isTrue(builder.replayInterval > 0, "'replayInterval' must be greater than zero");
+        Assert.isTrue(builder.replayBatchSize > 0, "'replayBatchSize' must be greater than zero");
+        Assert.isTrue(builder.confirmTimeout > 0, "'confirmTimeout' must be greater than zero");
+        this.directory = builder.directory;
+        this.segmentSize = builder.segmentSize;
+        this.connectionFactory = builder.connectionFactory;
+        this.replayInterval = builder.replayInterval;
+        this.replayBatchSize = builder.replayBatchSize;
+        this.confirmTimeout = builder.confirmTimeout;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Recovers the segments left by a previous run and schedules the replayer.
+     *
+     * @throws UncheckedIOException if the segments cannot be read
+     */
+    public void start() {
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to recover the spill journal " + directory, e);
+        }
+        scheduler.scheduleWithFixedDelay(this::replayQuietly, replayInterval, replayInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns true while the broker blocks the publishers, the copies are then appended without trying to publish them.
+     *
+     * @return
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * Returns the listener tracking the blocked state of the broker, to be added to the connections of the publishers.
+     *
+     * @return
+     */
+    public BlockedListener blockedListener() {
+        return new BlockedListener() {
+            @Override
+            public void handleBlocked(String reason) {
+                log.warn("The broker blocks the publishers, the retry and dlq copies are spilled to {}. reason={}", directory, reason);
+                blocked = true;
+            }
+
+            @Override
+            public void handleUnblocked() {
+                log.info("The broker unblocked the publishers, replaying the spilled copies");
+                blocked = false;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of records not replayed yet.
+     *
+     * @return
+     */
+    public synchronized long pending() {
+        return pending;
+    }
+
+    /**
+     * Appends a copy to the journal.
+     *
+     * @param exchange
+     * @param routingKey
+     * @param message
+     * @throws IllegalArgumentException if the copy does not fit in a segment
+     * @throws UncheckedIOException     if a new segment cannot be created
+     */
+    public void append(String exchange, String routingKey, Message message) {
+        byte[] payload = encode(exchange, routingKey, message);
+        Assert.isTrue(RECORD_HEADER + payload.length <= segmentSize,
+                () -> "The copy of " + payload.length + " bytes does not fit in a spill journal segment");
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        synchronized (this) {
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.sealed || segment.writePosition + RECORD_HEADER + payload.length > segment.size) {
+                segment = roll(segment);
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int position = segment.writePosition;
+            buffer.put(position + RECORD_HEADER, payload);
+            buffer.putInt(position + CHECKSUM_OFFSET, (int) crc.getValue());
+            buffer.put(position + FLAG_OFFSET, PENDING);
+            // written last, the record is complete once its length is set
+            buffer.putInt(position + LENGTH_OFFSET, payload.length);
+            segment.writePosition = position + RECORD_HEADER + payload.length;
+            pending++;
+        }
+    }
+
+    /**
+     * Publishes a batch of pending records and waits for their confirms, unless the broker blocks the publishers.
+     *
+     * @return the number of records replayed
+     * @throws Exception if the records could not be published or were not confirmed, they stay pending
+     */
+    public int replay() throws Exception {
+        if (blocked) {
+            return 0;
+        }
+        List<Record> batch = nextBatch();
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Channel channel = channel();
+        for (Record record : batch) {
+            channel.basicPublish(record.exchange, record.routingKey, false, record.properties, record.body);
+        }
+        channel.waitForConfirmsOrDie(confirmTimeout);
+        replayed(batch);
+        return batch.size();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        synchronized (this) {
+            closeConnection();
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+
+    private void replayQuietly() {
+        try {
+            int replayed;
+            do {
+                replayed = replay();
+            } while (replayed > 0 && !Thread.currentThread().isInterrupted());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Failed to replay the spilled copies, {} are pending", pending(), e);
+            synchronized (this) {
+                closeConnection();
+            }
+        }
+    }
+
+    private synchronized List<Record> nextBatch() throws IOException {
+        List<Record> batch = new ArrayList<>();
+        for (Segment segment : segments) {
+            int position = segment.readPosition;
+            while (batch.size() < replayBatchSize && position < segment.writePosition) {
+                int length = segment.buffer.getInt(position + LENGTH_OFFSET);
+                if (segment.buffer.get(position + FLAG_OFFSET) == PENDING) {
+                    byte[] payload = new byte[length];
+                    segment.buffer.get(position + RECORD_HEADER, payload);
+                    batch.add(decode(segment, position, payload));
+                }
+                position += RECORD_HEADER + length;
+            }
+            if (batch.size() == replayBatchSize) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    private synchronized void replayed(List<Record> batch) {
+        for (Record record : batch) {
+            record.segment.buffer.put(record.position + FLAG_OFFSET, REPLAYED);
+            record.segment.readPosition = Math.max(record.segment.readPosition,
+                    record.position + RECORD_HEADER + record.segment.buffer.getInt(record.position + LENGTH_OFFSET));
+            pending--;
+        }
+        // the segment appended to is kept
+        while (segments.size() > 1 && segments.peekFirst().readPosition == segments.peekFirst().writePosition) {
+            segments.pollFirst().delete();
+        }
+    }
+
+    private Channel channel() throws IOException {
+        synchronized (this) {
+            if (channel != null && channel.isOpen()) {
+                return channel;
+            }
+            closeConnection();
+        }
+        Connection connection;
+        try {
+            connection = connectionFactory.newConnection("retry-spill-replay");
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out connecting to the broker", e);
+        }
+        connection.addBlockedListener(blockedListener());
+        Channel channel = connection.createChannel();
+        channel.confirmSelect();
+        synchronized (this) {
+            this.connection = connection;
+            this.channel = channel;
+        }
+        return channel;
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                log.debug("Failed to close the replay connection", e);
+            }
+        }
+        connection = null;
+        channel = null;
+    }
+
+    private synchronized void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+        for (Path path : paths) {
+            long id = segmentId(path);
+            Segment segment = Segment.open(path, (int) Math.min(Files.size(path), Integer.MAX_VALUE));
+            int position = 0;
+            long segmentPending = 0;
+            CRC32 crc = new CRC32();
+            while (position + RECORD_HEADER <= segment.size) {
+                int length = segment.buffer.getInt(position + LENGTH_OFFSET);
+                if (length <= 0 || position + RECORD_HEADER + length > segment.size) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                segment.buffer.get(position + RECORD_HEADER, payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != segment.buffer.getInt(position + CHECKSUM_OFFSET)) {
+                    log.warn("Torn record at {} of {}, the rest of the segment is ignored", position, path);
+                    break;
+                }
+                if (segment.buffer.get(position + FLAG_OFFSET) == PENDING) {
+                    segmentPending++;
+                } else if (segmentPending == 0) {
+                    segment.readPosition = position + RECORD_HEADER + length;
+                }
+                position += RECORD_HEADER + length;
+            }
+            segment.writePosition = position;
+            // the bytes after the last record may be a torn record, the next copies go to a new segment
+            segment.sealed = true;
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            if (segmentPending == 0) {
+                segment.delete();
+                continue;
+            }
+            pending += segmentPending;
+            segments.addLast(segment);
+        }
+        if (pending > 0) {
+            log.info("Recovered {} spilled copies from {}", pending, directory);
+        }
+    }
+
+    private Segment roll(Segment current) {
+        if (current != null) {
+            current.buffer.force();
+            // the replayer keeps the segment appended to, even once all its records are replayed
+            if (current.readPosition == current.writePosition) {
+                segments.remove(current);
+                current.delete();
+            }
+        }
+        Path path = directory.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, nextSegmentId++, SEGMENT_SUFFIX));
+        try {
+            Files.createDirectories(directory);
+            Segment segment = Segment.open(path, segmentSize);
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create the spill journal segment " + path, e);
+        }
+    }
+
+    private byte[] encode(String exchange, String routingKey, Message message) {
+        AMQP.BasicProperties properties = messagePropertiesConverter.fromMessageProperties(message.getMessageProperties(),
+                StandardCharsets.UTF_8.name());
+        byte[] body = message.getBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(exchange != null ? exchange : "");
+            out.writeUTF(routingKey != null ? routingKey : "");
+            // laid out as a content header without its class id, so it is read back by the properties constructor
+            out.writeShort(0);
+            out.writeLong(body.length);
+            properties.writePropertiesTo(new ContentHeaderPropertyWriter(out));
+            out.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(Segment segment, int position, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String exchange = in.readUTF();
+        String routingKey = in.readUTF();
+        AMQP.BasicProperties properties = new AMQP.BasicProperties(in);
+        byte[] body = new byte[(int) properties.getBodySize()];
+        in.readFully(body);
+        return new Record(segment, position, exchange, routingKey, properties, body);
+    }
+
+    private static long segmentId(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private record Record(Segment segment, int position, String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+    }
+
+    private static final class Segment {
+
+        private final Path path;
+        private final FileChannel fileChannel;
+        private final MappedByteBuffer buffer;
+        private final int size;
+        private int writePosition;
+        private boolean sealed;
+        // the records before it are all replayed
+        private int readPosition;
+
+        private Segment(Path path, FileChannel fileChannel, MappedByteBuffer buffer, int size) {
+            this.path = path;
+            this.fileChannel = fileChannel;
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        private static Segment open(Path path, int size) throws IOException {
+            FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                return new Segment(path, fileChannel, fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size), size);
+            } catch (IOException e) {
+                fileChannel.close();
+                throw e;
+            }
+        }
+
+        private void close() {
+            buffer.force();
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the spill journal segment {}", path, e);
+            }
+        }
+
+        private void delete() {
+            try {
+                fileChannel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Failed to delete the replayed spill journal segment {}", path, e);
+            }
+        }
+    }
+
+    public static class Builder {
+
+        private Path directory;
+        private int segmentSize = 64 * 1024 * 1024;
+        private ConnectionFactory connectionFactory;
+        private long replayInterval = 1000;
+        private int replayBatchSize = 100;
+        private long confirmTimeout = 5000;
+
+        private Builder() {
+        }
+
+        /**
+         * The directory of the segment files, created if missing.
+         *
+         * @param directory
+         * @return
+         */
+        public Builder directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * The size in bytes of the segment files, 64MB by default. A copy larger than a segment cannot be spilled.
+         *
+         * @param segmentSize
+         * @return
+         */
+        public Builder segmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * The connection factory of the replayer, which opens its own connection.
+         *
+         * @param connectionFactory
+         * @return
+         */
+        public Builder connectionFactory(ConnectionFactory connectionFactory) {
+            this.connectionFactory = connectionFactory;
+            return this;
+        }
+
+        /**
+         * The time in milliseconds between two replays of the pending records, 1000 by default.
+         *
+         * @param replayInterval
+         * @return
+         */
+        public Builder replayInterval(long replayInterval) {
+            this.replayInterval = replayInterval;
+            return this;
+        }
+
+        /**
+         * The number of records published before waiting for their confirms, 100 by default.
+         *
+         * @param replayBatchSize
+         * @return
+         */
+        public Builder replayBatchSize(int replayBatchSize) {
+            this.replayBatchSize = replayBatchSize;
+            return this;
+        }
+
+        /**
+         * The time in milliseconds to wait for the confirms of a batch, 5000 by default.
+         *
+         * @param confirmTimeout
+         * @return
+         */
+        public Builder confirmTimeout(long confirmTimeout) {
+            this.confirmTimeout = confirmTimeout;
+            return this;
+        }
+
+        public RepublishSpillJournal build() {
+            return new RepublishSpillJournal(this);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.delayedretry.rabbit.retry;
+
+import jakarta.annotation.Nonnull;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.expression.Expression;
+
+/**
+ * A {@link MessageRecoverer} that republishes messages to the fixed TTL retry queue matching their delay or to a dead letter queue.
+ * The retry count is read by {@link RetryCounts}, adding up the "x-death" counts as each retry queue adds its own "x-death" entry.
+ * The delay is written to the "x-retry-delay" header and used to route the message to the "retry.{queue}.{delay}" queue,
+ * no expiration is set on the message unless the delays are jittered. A jittered delay is drawn between the next lower tier and the tier
+ * and set as the expiration, which RabbitMQ applies together with the TTL of the tier queue.
+ */
+public class RepublishTieredMessageRecoverer extends RepublishDelayedMessageRecoverer {
+
+    public RepublishTieredMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull ExponentialDelayHandler delayHandler) {
+        this(amqpTemplate, delayHandler, new RetryRoutingCache());
+    }
+
+    /**
+     * Creates a recoverer resolving the retry and dlq routing keys from the given cache.
+     *
+     * @param amqpTemplate
+     * @param delayHandler
+     * @param routingCache
+     */
+    public RepublishTieredMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull ExponentialDelayHandler delayHandler, @Nonnull RetryRoutingCache routingCache) {
+        super(routingKeyResolvingRecoverer(amqpTemplate, routingCache, routingCache::tieredRetryRoutingKey),
+                routingKeyResolvingRecoverer(amqpTemplate, routingCache, routingCache::dlqRoutingKey),
+                delayHandler);
+    }
+
+    /**
+     * Creates a recoverer evaluating the given SpEL expressions against each message to resolve the retry and dlq routing keys.
+     *
+     * @param amqpTemplate
+     * @param delayHandler
+     * @param retryRoutingKeyExpression
+     * @param dlqRoutingKeyExpression
+     */
+    public RepublishTieredMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull ExponentialDelayHandler delayHandler,
+            @Nonnull Expression retryRoutingKeyExpression, @Nonnull Expression dlqRoutingKeyExpression) {
+        super(amqpTemplate, delayHandler, retryRoutingKeyExpression, dlqRoutingKeyExpression);
+    }
+
+    public RepublishTieredMessageRecoverer(MessageRecoverer retryMessageRecoverer, MessageRecoverer errorMessageRecoverer, ExponentialDelayHandler delayHandler) {
+        super(retryMessageRecoverer, errorMessageRecoverer, delayHandler);
+    }
+
+    /**
+     * Writes the delay tier to the "x-retry-delay" header routing the message to the retry queue of its tier.
+     *
+     * @param message
+     * @param attempt the retry count of the message
+     * @param delay   the delay in milliseconds, rendered as an expiration
+     */
+    @Override
+    protected void applyDelay(Message message, int attempt, String delay) {
+        ExponentialDelayHandler delayHandler = getDelayHandler();
+        message.getMessageProperties().setHeader(X_RETRY_DELAY, delayHandler.getDelay(attempt));
+        if (delayHandler.isJittered()) {
+            message.getMessageProperties().setExpiration(delay);
+        }
+    }
+
+    /**
+     * Routes the message to the longest tier not exceeding the clipped delay, without expiration: a shorter expiration
+     * would only apply once the messages of the tier ahead of it expired.
+     *
+     * @param message
+     * @param attempt the retry count of the message
+     * @param maxDelay the longest delay in milliseconds bringing the message back in time
+     * @return the delay of the tier, or -1 if the max delay is shorter than the first tier
+     */
+    @Override
+    protected long applyClippedDelay(Message message, int attempt, long maxDelay) {
+        long tier = -1;
+        for (long tierDelay : getDelayHandler().delays) {
+            if (tierDelay <= maxDelay) {
+                tier = Math.max(tier, tierDelay);
+            }
+        }
+        if (tier >= 0) {
+            message.getMessageProperties().setHeader(X_RETRY_DELAY, Long.toString(tier));
+            message.getMessageProperties().setExpiration(null);
+        }
+        return tier;
+    }
+
+    @Override
+    protected long jitteredDelay(ExponentialDelayHandler delayHandler, int attempt, long previousDelay) {
+        return delayHandler.nextDelayWithinTier(attempt, previousDelay);
+    }
+
+    /**
+     * Returns the delay handler, the retry queues are only declared for its tiers.
+     *
+     * @param classification
+     * @return
+     */
+    @Override
+    protected ExponentialDelayHandler scheduleOf(ExceptionClassifier.Classification classification) {
+        return getDelayHandler();
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caps the retries of a queue to a ratio of its first attempts over a sliding window, plus a minimum number of retries
+ * per second so a queue with little traffic can still retry.
+ * The window is split in slots counting the first attempts and the retries, the slot of the current time is reset
+ * once the window moved past it. The counters are updated without locking, a few concurrent updates may be lost
+ * when a slot is reset, which only makes the budget approximate.
+ */
+public class RetryBudget {
+
+    static final int SLOTS = 10;
+
+    private final double ratio;
+    private final double minRetries;
+    private final long slotMillis;
+    private final AtomicLongArray epochs = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray attempts = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray retries = new AtomicLongArray(SLOTS);
+
+    /**
+     * @param ratio               the max retries per first attempt
+     * @param minRetriesPerSecond the retries allowed whatever the first attempts
+     * @param windowMillis        the time in milliseconds the attempts and retries are counted
+     */
+    public RetryBudget(double ratio, double minRetriesPerSecond, long windowMillis) {
+        Assert.isTrue(ratio >= 0, "'ratio' cannot be negative");
+        Assert.isTrue(minRetriesPerSecond >= 0, "'minRetriesPerSecond' cannot be negative");
+        Assert.isTrue(windowMillis >= SLOTS, "'windowMillis' must be at least " + SLOTS);
+        this.ratio = ratio;
+        this.minRetries = minRetriesPerSecond * windowMillis / 1000;
+        this.slotMillis = windowMillis / SLOTS;
+    }
+
+    /**
+     * Records the first attempt of a message.
+     *
+     * @param now the current time in milliseconds
+     */
+    public void recordAttempt(long now) {
+        attempts.incrementAndGet(slot(now));
+    }
+
+    /**
+     * Takes a retry from the budget.
+     *
+     * @param now the current time in milliseconds
+     * @return false if the budget is exhausted
+     */
+    public boolean tryAcquire(long now) {
+        int slot = slot(now);
+        if (available(now) < 1) {
+            return false;
+        }
+        retries.incrementAndGet(slot);
+        return true;
+    }
+
+    /**
+     * Returns the number of retries left in the window.
+     *
+     * @param now the current time in milliseconds
+     * @return
+     */
+    public double available(long now) {
+        long oldestEpoch = now / slotMillis - SLOTS;
+        long windowAttempts = 0;
+        long windowRetries = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            if (epochs.get(i) > oldestEpoch) {
+                windowAttempts += attempts.get(i);
+                windowRetries += retries.get(i);
+            }
+        }
+        return ratio * windowAttempts + minRetries - windowRetries;
+    }
+
+    private int slot(long now) {
+        long epoch = now / slotMillis;
+        int slot = (int) (epoch % SLOTS);
+        long slotEpoch = epochs.get(slot);
+        if (slotEpoch != epoch && epochs.compareAndSet(slot, slotEpoch, epoch)) {
+            attempts.set(slot, 0);
+            retries.set(slot, 0);
+        }
+        return slot;
+    }
+
+    /**
+     * What to do with a failed message once the budget of its queue is exhausted.
+     */
+    public enum Exhaustion {
+        /**
+         * Send the message to the dlq.
+         */
+        DEAD_LETTER,
+        /**
+         * Retry the message with the longest delay, the attempt is still counted.
+         */
+        MAX_DELAY
+    }
+}
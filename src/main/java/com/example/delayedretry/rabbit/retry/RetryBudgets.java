@@ -0,0 +1,101 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link RetryBudget} of each consumer queue, shared by all the consumers of the queue.
+ * The first attempts are recorded by the {@link #attempts()} advice, the retries are taken by the recoverers.
+ */
+public class RetryBudgets {
+
+    // the budget of the messages without a consumer queue
+    private static final String NO_QUEUE = "";
+
+    private final double ratio;
+    private final double minRetriesPerSecond;
+    private final long windowMillis;
+    private final RetryBudget.Exhaustion exhaustion;
+    private final ConcurrentMap<String, RetryBudget> budgets = new ConcurrentHashMap<>();
+
+    /**
+     * @param ratio               the max retries per first attempt
+     * @param minRetriesPerSecond the retries allowed whatever the first attempts
+     * @param windowMillis        the time in milliseconds the attempts and retries are counted
+     * @param exhaustion          what to do with the failed messages once the budget is exhausted
+     */
+    public RetryBudgets(double ratio, double minRetriesPerSecond, long windowMillis, RetryBudget.Exhaustion exhaustion) {
+        Assert.isTrue(ratio >= 0, "'ratio' cannot be negative");
+        Assert.isTrue(minRetriesPerSecond >= 0, "'minRetriesPerSecond' cannot be negative");
+        Assert.isTrue(windowMillis >= RetryBudget.SLOTS, "'windowMillis' must be at least " + RetryBudget.SLOTS);
+        Assert.notNull(exhaustion, "'exhaustion' cannot be null");
+        this.ratio = ratio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.windowMillis = windowMillis;
+        this.exhaustion = exhaustion;
+    }
+
+    /**
+     * Returns the budget of the queue the message was consumed from.
+     *
+     * @param message
+     * @return
+     */
+    public RetryBudget budgetOf(Message message) {
+        String queue = message.getMessageProperties().getConsumerQueue();
+        String key = queue != null ? queue : NO_QUEUE;
+        RetryBudget budget = budgets.get(key);
+        return budget != null ? budget : budgets.computeIfAbsent(key, name -> new RetryBudget(ratio, minRetriesPerSecond, windowMillis));
+    }
+
+    /**
+     * Counts the retries of the messages consumed from the given queue in the budget of another queue.
+     *
+     * @param consumerQueue
+     * @param queueName
+     */
+    public void share(String consumerQueue, String queueName) {
+        budgets.put(consumerQueue, budgets.computeIfAbsent(queueName, name -> new RetryBudget(ratio, minRetriesPerSecond, windowMillis)));
+    }
+
+    public RetryBudget.Exhaustion getExhaustion() {
+        return exhaustion;
+    }
+
+    /**
+     * Returns the listener advice recording the first attempts of the delivered messages, single or batched.
+     * It must come before the recovery advice, so the failed first attempts are recorded before their retry is taken.
+     *
+     * @return
+     */
+    public MethodInterceptor attempts() {
+        return this::recordAttempts;
+    }
+
+    private Object recordAttempts(MethodInvocation invocation) throws Throwable {
+        Object data = invocation.getArguments()[1];
+        long now = System.currentTimeMillis();
+        if (data instanceof Message message) {
+            recordAttempt(message, now);
+        } else if (data instanceof List<?> batch) {
+            for (Object element : batch) {
+                if (element instanceof Message message) {
+                    recordAttempt(message, now);
+                }
+            }
+        }
+        return invocation.proceed();
+    }
+
+    private void recordAttempt(Message message, long now) {
+        if (RetryCounts.of(message) == 0) {
+            budgetOf(message).recordAttempt(now);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the number of times a message was already retried.
+ * Broker retries are read from the compact {@link RetryState} header if present, else counted from the "x-death" header,
+ * adding up the entries of all the retry queues the message went through,
+ * local retries are counted from the "x-local-retry-count" header written by the {@link LocalRetryScheduler}.
+ */
+public final class RetryCounts {
+
+    public static final String X_LOCAL_RETRY_COUNT = "x-local-retry-count";
+
+    private RetryCounts() {
+    }
+
+    /**
+     * Returns the total number of retries of the message.
+     *
+     * @param message
+     * @return
+     */
+    public static long of(Message message) {
+        MessageProperties messageProperties = message.getMessageProperties();
+        return brokerRetryCount(messageProperties) + localRetryCount(messageProperties);
+    }
+
+    /**
+     * Returns the number of broker retries, read from the "x-retry-state" header when the recoverer wrote one,
+     * else from the "x-death" header.
+     *
+     * @param messageProperties
+     * @return
+     */
+    public static long brokerRetryCount(MessageProperties messageProperties) {
+        Object retryState = messageProperties.getHeader(RetryState.X_RETRY_STATE);
+        if (retryState != null) {
+            long attempt = RetryState.attemptOf(retryState);
+            if (attempt >= 0) {
+                return attempt;
+            }
+        }
+        return xDeathCount(messageProperties.getXDeathHeader());
+    }
+
+    /**
+     * Returns the number of broker retries, adding up the counts of all the retry queues the message went through.
+     *
+     * @param xDeathHeader
+     * @return
+     */
+    public static long xDeathCount(List<Map<String, ?>> xDeathHeader) {
+        if (xDeathHeader == null) {
+            return 0L;
+        }
+        long retryCount = 0L;
+        for (Map<String, ?> xDeath : xDeathHeader) {
+            Object count = xDeath.get("count");
+            if (count instanceof Number number) {
+                retryCount += number.longValue();
+            }
+        }
+        return retryCount;
+    }
+
+    /**
+     * Returns the number of retries done in process.
+     *
+     * @param messageProperties
+     * @return
+     */
+    public static long localRetryCount(MessageProperties messageProperties) {
+        Object count = messageProperties.getHeader(X_LOCAL_RETRY_COUNT);
+        return count instanceof Number number ? number.longValue() : 0L;
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.util.Assert;
+
+import java.util.Date;
+
+/**
+ * Resolves the deadline after which handling a message is useless, so expired messages are neither retried nor handed to the listener.
+ * The deadline is the absolute time in epoch milliseconds of the deadline header, or the max age added to the timestamp of the message,
+ * or to the first failure of its retry state when it has no timestamp; the earliest one when both are set.
+ * The recoverers send the expired messages to the dlq or discard them, and clip the delay of the last retry so it comes back
+ * with the margin left before the deadline; a message with less than the margin left is not retried.
+ */
+public class RetryDeadline {
+
+    public static final String X_DEADLINE = "x-deadline";
+
+    private static final Logger log = LoggerFactory.getLogger(RetryDeadline.class);
+
+    // the deadline of the messages without one
+    private static final long NONE = Long.MAX_VALUE;
+    private static final long DEFAULT_MARGIN = 1000;
+
+    private final String deadlineHeader;
+    private final long maxAge;
+    private final Expiry expiry;
+    private final long margin;
+
+    /**
+     * @param deadlineHeader the header holding the deadline in epoch milliseconds, or null to only use the max age
+     * @param maxAge         the max age in milliseconds of the messages, or zero for no max age
+     * @param expiry         what to do with the expired messages
+     */
+    public RetryDeadline(String deadlineHeader, long maxAge, Expiry expiry) {
+        this(deadlineHeader, maxAge, expiry, DEFAULT_MARGIN);
+    }
+
+    /**
+     * @param deadlineHeader the header holding the deadline in epoch milliseconds, or null to only use the max age
+     * @param maxAge         the max age in milliseconds of the messages, or zero for no max age
+     * @param expiry         what to do with the expired messages
+     * @param margin         the time in milliseconds a retry must come back before the deadline to be handled in time
+     */
+    public RetryDeadline(String deadlineHeader, long maxAge, Expiry expiry, long margin) {
+        Assert.isTrue(maxAge >= 0, "'maxAge' cannot be negative");
+        Assert.notNull(expiry, "'expiry' cannot be null");
+        Assert.isTrue(margin > 0, "'margin' must be greater than zero");
+        this.deadlineHeader = deadlineHeader == null || deadlineHeader.isEmpty() ? null : deadlineHeader;
+        this.maxAge = maxAge;
+        this.expiry = expiry;
+        this.margin = margin;
+    }
+
+    /**
+     * Returns the deadline of the message in epoch milliseconds, or {@link Long#MAX_VALUE} if it has none.
+     *
+     * @param message
+     * @return
+     */
+    public long deadlineOf(Message message) {
+        MessageProperties messageProperties = message.getMessageProperties();
+        long deadline = deadlineHeader != null ? parse(messageProperties.getHeader(deadlineHeader)) : NONE;
+        if (maxAge > 0) {
+            Date timestamp = messageProperties.getTimestamp();
+            RetryState retryState = timestamp == null ? RetryState.of(messageProperties) : null;
+            long origin = timestamp != null ? timestamp.getTime() : retryState != null ? retryState.getFirstFailureAt() : NONE;
+            if (origin != NONE) {
+                deadline = Math.min(deadline, origin + maxAge);
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * Returns the time in milliseconds left before the deadline of the message, {@link Long#MAX_VALUE} if it has none.
+     *
+     * @param message
+     * @param now     the current time in milliseconds
+     * @return zero or less once the deadline is passed
+     */
+    public long remaining(Message message, long now) {
+        long deadline = deadlineOf(message);
+        return deadline == NONE ? NONE : deadline - now;
+    }
+
+    public Expiry getExpiry() {
+        return expiry;
+    }
+
+    public long getMargin() {
+        return margin;
+    }
+
+    /**
+     * Returns the listener advice skipping the messages past their deadline: a discarded message is acked without invoking the listener,
+     * otherwise a {@link DeadlineExceededException} is thrown for the recoverer to dead letter it.
+     * It must come after the recovery advice, and before the advices observing the listener failures.
+     *
+     * @return
+     */
+    public MethodInterceptor guard() {
+        return this::guard;
+    }
+
+    private Object guard(MethodInvocation invocation) throws Throwable {
+        if (invocation.getArguments()[1] instanceof Message message) {
+            long deadline = deadlineOf(message);
+            if (deadline != NONE && deadline <= System.currentTimeMillis()) {
+                if (expiry == Expiry.DISCARD) {
+                    log.debug("The message expired at {}, it is discarded", deadline);
+                    return null;
+                }
+                throw new DeadlineExceededException(deadline);
+            }
+        }
+        return invocation.proceed();
+    }
+
+    private static long parse(Object header) {
+        if (header == null) {
+            return NONE;
+        }
+        if (header instanceof Number number) {
+            return number.longValue();
+        }
+        if (header instanceof Date date) {
+            return date.getTime();
+        }
+        try {
+            return Long.parseLong(header.toString());
+        } catch (NumberFormatException e) {
+            log.debug("Ignoring the invalid deadline {}", header);
+            return NONE;
+        }
+    }
+
+    /**
+     * What to do with a message once its deadline is passed.
+     */
+    public enum Expiry {
+        /**
+         * Send the message to the dlq.
+         */
+        DEAD_LETTER,
+        /**
+         * Ack the message without handling it again.
+         */
+        DISCARD
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.delayedretry.rabbit.retry;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.util.Assert;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Micrometer metrics of the retried and dead lettered messages.
+ * Meters are tagged by consumer queue, retry attempt and exception type, and cached per queue,
+ * so recording a failure costs a map lookup and no meter registration.
+ * The observed delay of a retry is measured from the "x-retry-published-at" header written before the copy is published,
+ * so it includes the time spent waiting at the head of the retry queue and the clock skew between consumers.
+ */
+public class RetryMetrics {
+
+    public static final String X_RETRY_PUBLISHED_AT = "x-retry-published-at";
+
+    static final String REPUBLISHED = "rabbitmq.retry.republished";
+    static final String DEAD_LETTERED = "rabbitmq.retry.dead.lettered";
+    static final String RECOVER = "rabbitmq.retry.recover";
+    static final String DELAY_SCHEDULED = "rabbitmq.retry.delay.scheduled";
+    static final String DELAY_OBSERVED = "rabbitmq.retry.delay.observed";
+    static final String DELAY_LAG = "rabbitmq.retry.delay.lag";
+
+    // attempts above the last one share its counter, keeping the tag cardinality bounded
+    private static final int MAX_ATTEMPT_TAG = 16;
+    private static final String UNKNOWN_QUEUE = "unknown";
+
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentMap<String, QueueMeters> queueMeters = new ConcurrentHashMap<>();
+
+    public RetryMetrics(MeterRegistry meterRegistry) {
+        Assert.notNull(meterRegistry, "'meterRegistry' cannot be null");
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Writes the headers used to measure the observed delay on the retry copy.
+     *
+     * @param message
+     * @param delay   the scheduled delay, rendered as an expiration
+     */
+    public void beforeRetry(Message message, String delay) {
+        MessageProperties messageProperties = message.getMessageProperties();
+        messageProperties.setHeader(X_RETRY_PUBLISHED_AT, System.currentTimeMillis());
+        messageProperties.setHeader(RepublishDelayedMessageRecoverer.X_RETRY_SCHEDULED_DELAY, delay);
+    }
+
+    /**
+     * Records a message republished to the retry queue.
+     *
+     * @param message
+     * @param retryCount
+     * @param delayMillis
+     * @param startNanos  the time the recovery started, from {@link System#nanoTime()}
+     */
+    public void retried(Message message, long retryCount, long delayMillis, long startNanos) {
+        QueueMeters meters = meters(message);
+        meters.republished(retryCount).increment();
+        meters.scheduledDelay.record(delayMillis, TimeUnit.MILLISECONDS);
+        meters.recoverRetry.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records a message republished to the dead letter queue.
+     *
+     * @param message
+     * @param cause
+     * @param startNanos the time the recovery started, from {@link System#nanoTime()}
+     */
+    public void deadLettered(Message message, Throwable cause, long startNanos) {
+        QueueMeters meters = meters(message);
+        meters.deadLettered(cause).increment();
+        meters.recoverDlq.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time the message spent in the retry queue, if it is a retry copy.
+     *
+     * @param message
+     */
+    public void delivered(Message message) {
+        MessageProperties messageProperties = message.getMessageProperties();
+        Object publishedAt = messageProperties.getHeader(X_RETRY_PUBLISHED_AT);
+        if (!(publishedAt instanceof Number publishedAtMillis)) {
+            return;
+        }
+        QueueMeters meters = meters(message);
+        long observed = Math.max(System.currentTimeMillis() - publishedAtMillis.longValue(), 0L);
+        meters.observedDelay.record(observed, TimeUnit.MILLISECONDS);
+
+        Object scheduled = messageProperties.getHeader(RepublishDelayedMessageRecoverer.X_RETRY_SCHEDULED_DELAY);
+        if (scheduled != null) {
+            long scheduledMillis;
+            try {
+                scheduledMillis = Long.parseLong(scheduled.toString());
+            } catch (NumberFormatException e) {
+                // a header set by another publisher must not fail the delivery, its lag is not recorded
+                return;
+            }
+            meters.delayLag.record(Math.max(observed - scheduledMillis, 0L), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private QueueMeters meters(Message message) {
+        String queue = message.getMessageProperties().getConsumerQueue();
+        if (queue == null) {
+            queue = UNKNOWN_QUEUE;
+        }
+        QueueMeters meters = queueMeters.get(queue);
+        return meters != null ? meters : queueMeters.computeIfAbsent(queue, QueueMeters::new);
+    }
+
+    private final class QueueMeters {
+
+        private final String queue;
+        private final AtomicReferenceArray<Counter> republished = new AtomicReferenceArray<>(MAX_ATTEMPT_TAG);
+        private final ConcurrentMap<Class<?>, Counter> deadLettered = new ConcurrentHashMap<>();
+        private final Timer recoverRetry;
+        private final Timer recoverDlq;
+        private final Timer scheduledDelay;
+        private final Timer observedDelay;
+        private final Timer delayLag;
+
+        private QueueMeters(String queue) {
+            this.queue = queue;
+            this.recoverRetry = Timer.builder(RECOVER).tag("queue", queue).tag("outcome", "retry").register(meterRegistry);
+            this.recoverDlq = Timer.builder(RECOVER).tag("queue", queue).tag("outcome", "dlq").register(meterRegistry);
+            this.scheduledDelay = Timer.builder(DELAY_SCHEDULED).tag("queue", queue).register(meterRegistry);
+            this.observedDelay = Timer.builder(DELAY_OBSERVED).tag("queue", queue).publishPercentileHistogram().register(meterRegistry);
+            this.delayLag = Timer.builder(DELAY_LAG).tag("queue", queue).publishPercentileHistogram().register(meterRegistry);
+        }
+
+        private Counter republished(long retryCount) {
+            int index = (int) Math.min(retryCount, MAX_ATTEMPT_TAG - 1);
+            Counter counter = republished.get(index);
+            if (counter == null) {
+                String attempt = index == MAX_ATTEMPT_TAG - 1 ? MAX_ATTEMPT_TAG + "+" : String.valueOf(index + 1);
+                counter = Counter.builder(REPUBLISHED).tag("queue", queue).tag("attempt", attempt).register(meterRegistry);
+                republished.compareAndSet(index, null, counter);
+            }
+            return counter;
+        }
+
+        private Counter deadLettered(Throwable cause) {
+            // the listener exception is wrapped in a ListenerExecutionFailedException
+            Class<?> exceptionType = (cause.getCause() != null ? cause.getCause() : cause).getClass();
+            Counter counter = deadLettered.get(exceptionType);
+            return counter != null ? counter : deadLettered.computeIfAbsent(exceptionType, type -> Counter.builder(DEAD_LETTERED)
+                    .tag("queue", queue)
+                    .tag("exception", type.getSimpleName())
+                    .register(meterRegistry));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.util.List;
+
+/**
+ * Listener advice recording the observed delay of the retried messages in the {@link RetryMetrics}.
+ * It must be the first advice of the chain, so the delay does not include the listener execution.
+ */
+public class RetryMetricsInterceptor implements MethodInterceptor {
+
+    private final RetryMetrics metrics;
+
+    public RetryMetricsInterceptor(RetryMetrics metrics) {
+        Assert.notNull(metrics, "'metrics' cannot be null");
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        Object data = invocation.getArguments()[1];
+        if (data instanceof Message message) {
+            metrics.delivered(message);
+        } else if (data instanceof List<?> batch) {
+            for (Object element : batch) {
+                if (element instanceof Message message) {
+                    metrics.delivered(message);
+                }
+            }
+        }
+        return invocation.proceed();
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_DLQ_QUEUE_PREFIX;
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_RETRY_QUEUE_PREFIX;
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.retryShardName;
+import static com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer.X_RETRY_DELAY;
+
+/**
+ * Caches the retry and dlq routing keys of each consumer queue.
+ * The routes are registered when the topology is declared, queues that were not declared are added on their first lookup,
+ * so resolving the routing key of a failed message is a map lookup.
+ * With sharded retry queues each retry queue is split in shards, a message is routed to the shard of the hash of its shard key,
+ * or to a random shard when it has none.
+ */
+public class RetryRoutingCache {
+
+    private final ConcurrentMap<String, Routes> routes = new ConcurrentHashMap<>();
+    private int shards = 1;
+    private Function<Message, String> shardKey = message -> null;
+
+    /**
+     * Splits each retry queue in the given number of shards. Must be set before the routes are registered.
+     *
+     * @param shards   the number of shards of each retry queue, 1 to keep a single retry queue
+     * @param shardKey the key of the messages hashed to pick their shard, null for a random shard
+     */
+    public void setShards(int shards, Function<Message, String> shardKey) {
+        Assert.isTrue(shards > 0, "'shards' must be greater than zero");
+        Assert.notNull(shardKey, "'shardKey' cannot be null");
+        Assert.state(routes.isEmpty(), "The shards must be set before the routes are registered");
+        this.shards = shards;
+        this.shardKey = shardKey;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Registers the routes of a consumer queue and of its tiered retry queues.
+     *
+     * @param queueName
+     * @param tierDelays the delays of the tiered retry queues, empty for a single retry queue
+     * @return
+     */
+    public Routes register(String queueName, Collection<Long> tierDelays) {
+        Routes queueRoutes = routes(queueName);
+        tierDelays.forEach(queueRoutes::tieredRetryRoutingKey);
+        return queueRoutes;
+    }
+
+    /**
+     * Registers the routes of a consumer queue whose retries are dead lettered into another queue, shared by both queues:
+     * the retry queues are named after the retried queue and the dlq after the consumer queue.
+     *
+     * @param queueName
+     * @param retriedQueueName the queue the retry queues dead letter into
+     * @param tierDelays       the delays of the tiered retry queues, empty for a single retry queue
+     * @return
+     */
+    public Routes register(String queueName, String retriedQueueName, Collection<Long> tierDelays) {
+        Routes queueRoutes = new Routes(retriedQueueName, queueName, shards);
+        routes.put(queueName, queueRoutes);
+        routes.put(retriedQueueName, queueRoutes);
+        tierDelays.forEach(queueRoutes::tieredRetryRoutingKey);
+        return queueRoutes;
+    }
+
+    /**
+     * Returns the routes of the given consumer queue.
+     *
+     * @param consumerQueue
+     * @return
+     */
+    public Routes routes(String consumerQueue) {
+        Routes queueRoutes = routes.get(consumerQueue);
+        return queueRoutes != null ? queueRoutes : routes.computeIfAbsent(consumerQueue, queueName -> new Routes(queueName, queueName, shards));
+    }
+
+    /**
+     * Returns the routing key of the retry queue of the queue the message was consumed from.
+     *
+     * @param message
+     * @return
+     */
+    public String retryRoutingKey(Message message) {
+        String consumerQueue = message.getMessageProperties().getConsumerQueue();
+        return consumerQueue == null ? DEFAULT_RETRY_QUEUE_PREFIX + null : routes(consumerQueue).retryRoutingKeys[shard(message)];
+    }
+
+    /**
+     * Returns the name of the queue the retries of the queue the message was consumed from are delivered back to,
+     * the queue itself or its redelivery queue.
+     *
+     * @param message
+     * @return
+     */
+    public String retriedQueueName(Message message) {
+        String consumerQueue = message.getMessageProperties().getConsumerQueue();
+        return consumerQueue == null ? null : routes(consumerQueue).retriedQueueName;
+    }
+
+    /**
+     * Returns the routing key of the dlq of the queue the message was consumed from.
+     *
+     * @param message
+     * @return
+     */
+    public String dlqRoutingKey(Message message) {
+        String consumerQueue = message.getMessageProperties().getConsumerQueue();
+        return consumerQueue == null ? DEFAULT_DLQ_QUEUE_PREFIX + null : routes(consumerQueue).dlqRoutingKey;
+    }
+
+    /**
+     * Returns the routing key of the retry queue matching the "x-retry-delay" header of the message.
+     *
+     * @param message
+     * @return
+     */
+    public String tieredRetryRoutingKey(Message message) {
+        String consumerQueue = message.getMessageProperties().getConsumerQueue();
+        Object delay = message.getMessageProperties().getHeader(X_RETRY_DELAY);
+        return consumerQueue == null
+                ? DEFAULT_RETRY_QUEUE_PREFIX + null + "." + delay
+                : routes(consumerQueue).tieredRetryRoutingKeys(String.valueOf(delay))[shard(message)];
+    }
+
+    private int shard(Message message) {
+        int shards = this.shards;
+        if (shards == 1) {
+            return 0;
+        }
+        String key = shardKey.apply(message);
+        if (key == null) {
+            return ThreadLocalRandom.current().nextInt(shards);
+        }
+        // spreads the keys differing in their last characters only, like sequential ids
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return Math.floorMod(hash, shards);
+    }
+
+    public static final class Routes {
+
+        private final String retriedQueueName;
+        private final String retryRoutingKey;
+        private final String dlqRoutingKey;
+        // indexed by shard
+        private final String[] retryRoutingKeys;
+        private final ConcurrentMap<String, String[]> tieredRetryRoutingKeys = new ConcurrentHashMap<>();
+
+        private Routes(String retriedQueueName, String queueName, int shards) {
+            this.retriedQueueName = retriedQueueName;
+            this.retryRoutingKey = DEFAULT_RETRY_QUEUE_PREFIX + retriedQueueName;
+            this.dlqRoutingKey = DEFAULT_DLQ_QUEUE_PREFIX + queueName;
+            this.retryRoutingKeys = shardRoutingKeys(retryRoutingKey, shards);
+        }
+
+        /**
+         * Returns the routing key of the retry queue, or of its first shard.
+         *
+         * @return
+         */
+        public String retryRoutingKey() {
+            return retryRoutingKeys[0];
+        }
+
+        public String retryRoutingKey(int shard) {
+            return retryRoutingKeys[shard];
+        }
+
+        public String retriedQueueName() {
+            return retriedQueueName;
+        }
+
+        public String dlqRoutingKey() {
+            return dlqRoutingKey;
+        }
+
+        /**
+         * Returns the routing key of the retry queue of the given delay, or of its first shard.
+         *
+         * @param delay
+         * @return
+         */
+        public String tieredRetryRoutingKey(long delay) {
+            return tieredRetryRoutingKeys(String.valueOf(delay))[0];
+        }
+
+        public String tieredRetryRoutingKey(long delay, int shard) {
+            return tieredRetryRoutingKeys(String.valueOf(delay))[shard];
+        }
+
+        private String[] tieredRetryRoutingKeys(String delay) {
+            String[] routingKeys = tieredRetryRoutingKeys.get(delay);
+            return routingKeys != null
+                    ? routingKeys
+                    : tieredRetryRoutingKeys.computeIfAbsent(delay, d -> shardRoutingKeys(retryRoutingKey + "." + d, retryRoutingKeys.length));
+        }
+
+        private static String[] shardRoutingKeys(String routingKey, int shards) {
+            if (shards == 1) {
+                return new String[]{routingKey};
+            }
+            String[] routingKeys = new String[shards];
+            for (int shard = 0; shard < shards; shard++) {
+                routingKeys[shard] = retryShardName(routingKey, shard);
+            }
+            return routingKeys;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.springframework.amqp.core.MessageProperties;
+
+/**
+ * Compact retry state written by the recoverer in the "x-retry-state" header, as "attempt:firstFailureMillis:lastDelayMillis".
+ * Unlike the "x-death" header its size stays constant across retries, and the attempt is parsed from the head of a single string
+ * instead of walking the nested "x-death" maps.
+ */
+public final class RetryState {
+
+    public static final String X_RETRY_STATE = "x-retry-state";
+
+    private static final char SEPARATOR = ':';
+
+    private final long attempt;
+    private final long firstFailureAt;
+    private final long lastDelay;
+
+    /**
+     * @param attempt        the number of broker retries
+     * @param firstFailureAt the time of the first failure, in epoch milliseconds
+     * @param lastDelay      the delay of the last retry, in milliseconds
+     */
+    public RetryState(long attempt, long firstFailureAt, long lastDelay) {
+        this.attempt = attempt;
+        this.firstFailureAt = firstFailureAt;
+        this.lastDelay = lastDelay;
+    }
+
+    /**
+     * Returns the retry state of the message, or null if it has no valid "x-retry-state" header.
+     *
+     * @param messageProperties
+     * @return
+     */
+    public static RetryState of(MessageProperties messageProperties) {
+        Object header = messageProperties.getHeader(X_RETRY_STATE);
+        if (header == null) {
+            return null;
+        }
+        String state = header.toString();
+        int first = state.indexOf(SEPARATOR);
+        int second = first < 0 ? -1 : state.indexOf(SEPARATOR, first + 1);
+        if (second < 0) {
+            return null;
+        }
+        try {
+            return new RetryState(
+                    Long.parseLong(state, 0, first, 10),
+                    Long.parseLong(state, first + 1, second, 10),
+                    Long.parseLong(state, second + 1, state.length(), 10));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the attempt of the given "x-retry-state" header value without parsing the rest of the state, or -1 if it is not valid.
+     *
+     * @param header
+     * @return
+     */
+    public static long attemptOf(Object header) {
+        String state = header.toString();
+        int end = state.indexOf(SEPARATOR);
+        if (end <= 0) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(state, 0, end, 10);
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Renders the state as the value of the "x-retry-state" header.
+     *
+     * @return
+     */
+    public String render() {
+        return Long.toString(attempt) + SEPARATOR + firstFailureAt + SEPARATOR + lastDelay;
+    }
+
+    public long getAttempt() {
+        return attempt;
+    }
+
+    public long getFirstFailureAt() {
+        return firstFailureAt;
+    }
+
+    public long getLastDelay() {
+        return lastDelay;
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+}
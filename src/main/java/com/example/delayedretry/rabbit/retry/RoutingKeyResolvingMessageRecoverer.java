@@ -0,0 +1,134 @@
+package com.example.delayedretry.rabbit.retry;
+
+import jakarta.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.retry.RepublishMessageRecoverer;
+import org.springframework.expression.common.LiteralExpression;
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.springframework.amqp.rabbit.core.RabbitAdmin.DEFAULT_EXCHANGE_NAME;
+
+/**
+ * A {@link RepublishMessageRecoverer} that republishes messages to the default or a given exchange with a routing key resolved by a function
+ * instead of a SpEL expression, the routing key expression of the parent is a literal placeholder that is never used.
+ * Headers can be stripped from the message before it is sent, including the exception headers added by the parent,
+ * and the stack trace header can be bounded with an {@link ExceptionHeaderPolicy}.
+ * With a {@link RepublishSpillJournal} the message is appended to the journal instead of being sent while the broker blocks
+ * the publishers, or when sending it fails.
+ */
+public class RoutingKeyResolvingMessageRecoverer extends RepublishMessageRecoverer {
+
+    private static final Logger log = LoggerFactory.getLogger(RoutingKeyResolvingMessageRecoverer.class);
+
+    private static final LiteralExpression DEFAULT_EXCHANGE_EXPRESSION = new LiteralExpression(DEFAULT_EXCHANGE_NAME);
+    private static final LiteralExpression UNUSED_ROUTING_KEY_EXPRESSION = new LiteralExpression("");
+
+    private final Function<Message, String> routingKeyResolver;
+    private volatile Set<String> strippedHeaders = Set.of();
+    private volatile ExceptionHeaderPolicy exceptionHeaderPolicy;
+    private volatile RepublishSpillJournal spillJournal;
+
+    public RoutingKeyResolvingMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull Function<Message, String> routingKeyResolver) {
+        this(amqpTemplate, DEFAULT_EXCHANGE_EXPRESSION, routingKeyResolver);
+    }
+
+    /**
+     * Creates a recoverer republishing messages to the given exchange.
+     *
+     * @param amqpTemplate
+     * @param exchange
+     * @param routingKeyResolver
+     */
+    public RoutingKeyResolvingMessageRecoverer(@Nonnull AmqpTemplate amqpTemplate, @Nonnull String exchange, @Nonnull Function<Message, String> routingKeyResolver) {
+        this(amqpTemplate, new LiteralExpression(exchange), routingKeyResolver);
+    }
+
+    private RoutingKeyResolvingMessageRecoverer(AmqpTemplate amqpTemplate, LiteralExpression exchange, Function<Message, String> routingKeyResolver) {
+        super(amqpTemplate, exchange, UNUSED_ROUTING_KEY_EXPRESSION);
+        Assert.notNull(routingKeyResolver, "'routingKeyResolver' cannot be null");
+        this.routingKeyResolver = routingKeyResolver;
+    }
+
+    /**
+     * Sets the headers removed from the message before it is sent.
+     *
+     * @param strippedHeaders
+     */
+    public void setStrippedHeaders(Collection<String> strippedHeaders) {
+        Assert.notNull(strippedHeaders, "'strippedHeaders' cannot be null");
+        this.strippedHeaders = Set.copyOf(strippedHeaders);
+    }
+
+    /**
+     * Sets the policy of the stack trace header, or null to write the full stack trace.
+     *
+     * @param exceptionHeaderPolicy
+     */
+    public void setExceptionHeaderPolicy(ExceptionHeaderPolicy exceptionHeaderPolicy) {
+        this.exceptionHeaderPolicy = exceptionHeaderPolicy;
+    }
+
+    /**
+     * Sets the journal the message is spilled to when it cannot be sent, or null to let the send block or fail.
+     *
+     * @param spillJournal
+     */
+    public void setSpillJournal(RepublishSpillJournal spillJournal) {
+        this.spillJournal = spillJournal;
+    }
+
+    @Override
+    protected String getStackTraceAsString(Throwable cause) {
+        ExceptionHeaderPolicy policy = exceptionHeaderPolicy;
+        return policy == null ? super.getStackTraceAsString(cause) : policy.stackTrace(cause);
+    }
+
+    @Override
+    protected Map<? extends String, ?> additionalHeaders(Message message, Throwable cause) {
+        ExceptionHeaderPolicy policy = exceptionHeaderPolicy;
+        if (policy == null || policy.getMode() != ExceptionHeaderPolicy.Mode.FINGERPRINT) {
+            return super.additionalHeaders(message, cause);
+        }
+        return Map.of(ExceptionHeaderPolicy.X_EXCEPTION_FINGERPRINT, policy.fingerprint(cause));
+    }
+
+    @Override
+    protected void doSend(String exchange, String routingKey, Message message) {
+        Map<String, Object> headers = message.getMessageProperties().getHeaders();
+        if (!strippedHeaders.isEmpty()) {
+            for (String header : strippedHeaders) {
+                headers.remove(header);
+            }
+        }
+        ExceptionHeaderPolicy policy = exceptionHeaderPolicy;
+        if (policy != null && policy.getMode() == ExceptionHeaderPolicy.Mode.FINGERPRINT) {
+            // the parent always writes the stack trace header, empty with this policy
+            headers.remove(X_EXCEPTION_STACKTRACE);
+        }
+        String resolvedRoutingKey = routingKeyResolver.apply(message);
+        RepublishSpillJournal journal = spillJournal;
+        if (journal == null) {
+            super.doSend(exchange, resolvedRoutingKey, message);
+            return;
+        }
+        if (journal.isBlocked()) {
+            journal.append(exchange, resolvedRoutingKey, message);
+            return;
+        }
+        try {
+            super.doSend(exchange, resolvedRoutingKey, message);
+        } catch (AmqpException e) {
+            log.warn("Failed to send the message to {}, it is spilled to the journal: {}", resolvedRoutingKey, e.toString());
+            journal.append(exchange, resolvedRoutingKey, message);
+        }
+    }
+}
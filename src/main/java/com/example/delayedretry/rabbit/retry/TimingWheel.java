@@ -0,0 +1,184 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical timing wheel running tasks once their delay elapsed, with a precision of one tick.
+ * Level 0 has one slot per tick, each upper level has slots as long as a full turn of the level below,
+ * and its tasks are moved down when their slot is reached.
+ * Tasks are scheduled from any thread without locking and run on the wheel thread, so they must hand off any blocking work.
+ */
+public class TimingWheel implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final long tickNanos;
+    private final int wheelSize;
+    private final long maxDelayMillis;
+    // ticks covered by a slot of each level
+    private final long[] slotTicks;
+    // only touched by the wheel thread
+    private final Queue<Timeout>[][] slots;
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Thread worker;
+    private final long startNanos;
+    private volatile boolean running = true;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(String name, long tickMillis, int wheelSize, long maxDelayMillis) {
+        Assert.isTrue(tickMillis > 0, "'tickMillis' must be greater than zero");
+        Assert.isTrue(wheelSize > 1, "'wheelSize' must be greater than one");
+        Assert.isTrue(maxDelayMillis >= 0, "'maxDelayMillis' cannot be negative");
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheelSize = wheelSize;
+        this.maxDelayMillis = maxDelayMillis;
+
+        int levels = 1;
+        long span = wheelSize;
+        long maxTicks = maxDelayMillis / tickMillis + 1;
+        while (span <= maxTicks) {
+            span *= wheelSize;
+            levels++;
+        }
+        this.slotTicks = new long[levels];
+        this.slots = new Queue[levels][wheelSize];
+        for (int level = 0; level < levels; level++) {
+            slotTicks[level] = level == 0 ? 1 : slotTicks[level - 1] * wheelSize;
+            for (int slot = 0; slot < wheelSize; slot++) {
+                slots[level][slot] = new ArrayDeque<>();
+            }
+        }
+
+        this.startNanos = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Schedules the task to run once the delay elapsed.
+     *
+     * @param delayMillis
+     * @param task
+     * @return false if the delay is above the max delay of the wheel or the wheel is closed
+     */
+    public boolean schedule(long delayMillis, Runnable task) {
+        if (!running || delayMillis > maxDelayMillis) {
+            return false;
+        }
+        size.incrementAndGet();
+        pending.add(new Timeout(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0)), task));
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks waiting for their delay to elapse.
+     *
+     * @return
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public int levels() {
+        return slotTicks.length;
+    }
+
+    /**
+     * Stops the wheel, the tasks waiting for their delay are dropped.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            waitFor(tick + 1);
+            if (!running) {
+                return;
+            }
+            tick++;
+            cascade(tick);
+            transferPending(tick);
+            expire(tick);
+        }
+    }
+
+    private void waitFor(long tick) {
+        long deadline = startNanos + tick * tickNanos;
+        long sleep;
+        while (running && (sleep = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    private void transferPending(long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            long elapsed = timeout.deadlineNanos - startNanos;
+            timeout.deadlineTick = (elapsed + tickNanos - 1) / tickNanos;
+            place(timeout, tick);
+        }
+    }
+
+    private void cascade(long tick) {
+        for (int level = slotTicks.length - 1; level > 0; level--) {
+            if (tick % slotTicks[level] == 0) {
+                Queue<Timeout> slot = slots[level][(int) ((tick / slotTicks[level]) % wheelSize)];
+                Timeout timeout;
+                while ((timeout = slot.poll()) != null) {
+                    place(timeout, tick);
+                }
+            }
+        }
+    }
+
+    private void place(Timeout timeout, long tick) {
+        long deadlineTick = Math.max(timeout.deadlineTick, tick);
+        long delta = deadlineTick - tick;
+        int level = 0;
+        while (level < slotTicks.length - 1 && delta >= slotTicks[level] * wheelSize) {
+            level++;
+        }
+        slots[level][(int) ((deadlineTick / slotTicks[level]) % wheelSize)].add(timeout);
+    }
+
+    private void expire(long tick) {
+        Queue<Timeout> slot = slots[0][(int) (tick % wheelSize)];
+        Timeout timeout;
+        while ((timeout = slot.poll()) != null) {
+            size.decrementAndGet();
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                log.warn("Timing wheel task failed", e);
+            }
+        }
+    }
+
+    private static final class Timeout {
+
+        private final long deadlineNanos;
+        private final Runnable task;
+        private long deadlineTick;
+
+        private Timeout(long deadlineNanos, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.delayedretry.simulation;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies in milliseconds with logarithmic buckets about 2% wide, up to about 11 days.
+ * Quantiles are read as the upper bound of their bucket, recording allocates nothing.
+ */
+class LatencyHistogram {
+
+    private static final double BUCKETS_PER_E = 1 / Math.log(1.02);
+    private static final int BUCKETS = (int) (Math.log1p(1e9) * BUCKETS_PER_E) + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private double max;
+
+    void record(double latencyMillis) {
+        int bucket = latencyMillis <= 0 ? 0 : Math.min((int) (Math.log1p(latencyMillis) * BUCKETS_PER_E), BUCKETS - 1);
+        counts[bucket]++;
+        total++;
+        max = Math.max(max, latencyMillis);
+    }
+
+    double quantile(double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(Math.expm1((bucket + 1) / BUCKETS_PER_E), max);
+            }
+        }
+        return max;
+    }
+
+    double max() {
+        return max;
+    }
+
+    long total() {
+        return total;
+    }
+
+    void reset() {
+        if (total > 0) {
+            Arrays.fill(counts, 0);
+            total = 0;
+            max = 0;
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package com.example.delayedretry.simulation;
+
+import com.example.delayedretry.rabbit.RetryTopology;
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Offline discrete event simulation of a consumer queue retried through its retry queues with an {@link ExponentialDelayHandler},
+ * to size the delays against the load they generate before deploying them.
+ * Messages arrive as a Poisson process, are handled by a fixed number of consumers with a constant latency, and fail with
+ * the probability of the failure profile at the time they complete. Failed messages wait in their retry queue until they expire
+ * and are dead lettered back to the tail of the queue, or are sent to the dlq once they cannot be retried.
+ * Like RabbitMQ, a retry queue only expires the message at its head: with {@link RetryTopology#PER_MESSAGE_TTL} a message
+ * is released once its own delay elapsed and the message ahead of it was released, so a short delay waits behind a longer one.
+ * With {@link RetryTopology#DELAYED_MESSAGE_EXCHANGE} each message is released once its own delay elapsed, modelled by a FIFO per attempt
+ * as the messages of an attempt share the same delay, or by a min-heap of the release times per attempt when the delays are jittered.
+ * Every queue is a FIFO of primitive arrays and each event costs a few array accesses, so thousands of configurations can be swept in seconds.
+ * The jittered delays are drawn by the delay handler, the runs with a jitter are not reproducible.
+ */
+public class RetryLoadSimulator {
+
+    private final ExponentialDelayHandler delayHandler;
+    private final RetryTopology retryTopology;
+    private final double incomingRate;
+    private final DoubleUnaryOperator failureProfile;
+    private final double handlerLatencyMillis;
+    private final int concurrency;
+    private final double durationMillis;
+    private final double sampleIntervalMillis;
+    private final long seed;
+
+    private RetryLoadSimulator(Builder builder) {
+        this.delayHandler = builder.delayHandler;
+        this.retryTopology = builder.retryTopology;
+        this.incomingRate = builder.incomingRate;
+        this.failureProfile = builder.failureProfile;
+        this.handlerLatencyMillis = builder.handlerLatencyMillis;
+        this.concurrency = builder.concurrency;
+        this.durationMillis = builder.durationSeconds * 1000;
+        this.sampleIntervalMillis = builder.sampleIntervalSeconds * 1000;
+        this.seed = builder.seed;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns a failure profile stepping to the given failure rates, e.g. "0:0.01;60:1;180:0.01" fails 1% of the messages,
+     * all of them from the 60th second and 1% again from the 180th second.
+     *
+     * @param steps the steps separated by ';', each one the time in seconds and the failure rate from then on separated by ':'
+     * @return
+     */
+    public static DoubleUnaryOperator stepProfile(String steps) {
+        Assert.hasText(steps, "'steps' cannot be empty");
+        String[] parts = steps.trim().split(";");
+        double[] times = new double[parts.length];
+        double[] rates = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] step = parts[i].trim().split(":");
+            Assert.isTrue(step.length == 2, () -> "Invalid failure profile step: " + steps);
+            times[i] = Double.parseDouble(step[0]);
+            rates[i] = Double.parseDouble(step[1]);
+            Assert.isTrue(i == 0 || times[i] > times[i - 1], () -> "The failure profile steps must be sorted by time: " + steps);
+        }
+        return seconds -> {
+            double rate = 0;
+            for (int i = 0; i < times.length && times[i] <= seconds; i++) {
+                rate = rates[i];
+            }
+            return rate;
+        };
+    }
+
+    /**
+     * Runs the simulation.
+     *
+     * @return
+     */
+    public Summary run() {
+        return run(null);
+    }
+
+    /**
+     * Runs the simulation and writes a CSV row per sample interval to the given output.
+     *
+     * @param out
+     * @return
+     */
+    public Summary writeCsv(Appendable out) {
+        try {
+            out.append(Sample.CSV_HEADER).append('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return run(sample -> {
+            try {
+                out.append(sample.toCsv()).append('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Runs the simulation, passing a sample of the queues to the given listener at the end of each sample interval.
+     *
+     * @param listener the listener of the samples, or null
+     * @return
+     */
+    public Summary run(Consumer<Sample> listener) {
+        return new Run(listener).simulate();
+    }
+
+    private final class Run {
+
+        private final Consumer<Sample> listener;
+        private final SplittableRandom random = new SplittableRandom(seed);
+        private final Fifo queue = new Fifo();
+        private final Fifo inFlight = new Fifo();
+        private final Fifo[] retryQueues;
+        // the retry queue of each retry count
+        private final int[] retryQueueOfAttempt;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LatencyHistogram intervalLatencies;
+
+        private long published;
+        private long succeeded;
+        private long deadLettered;
+        private long republished;
+        private long retryDepth;
+        private long maxQueueDepth;
+        private long maxRetryDepth;
+        private double maxPublishRate;
+        private long intervalArrivals;
+        private long intervalDeliveries;
+        private long intervalPublishes;
+        private long intervalSuccesses;
+
+        private Run(Consumer<Sample> listener) {
+            this.listener = listener;
+            this.intervalLatencies = listener != null ? new LatencyHistogram() : null;
+            List<Long> delays = delayHandler.delays;
+            this.retryQueueOfAttempt = new int[delays.size()];
+            if (retryTopology == RetryTopology.TIERED_TTL) {
+                List<Long> tiers = new ArrayList<>();
+                for (int attempt = 0; attempt < delays.size(); attempt++) {
+                    Long tier = delayHandler.delayMillis(attempt);
+                    if (!tiers.contains(tier)) {
+                        tiers.add(tier);
+                    }
+                    retryQueueOfAttempt[attempt] = tiers.indexOf(tier);
+                }
+                this.retryQueues = new Fifo[tiers.size()];
+            } else if (retryTopology == RetryTopology.DELAYED_MESSAGE_EXCHANGE) {
+                for (int attempt = 0; attempt < delays.size(); attempt++) {
+                    retryQueueOfAttempt[attempt] = attempt;
+                }
+                this.retryQueues = new Fifo[Math.max(delays.size(), 1)];
+            } else {
+                this.retryQueues = new Fifo[1];
+            }
+            // the jittered delays of an attempt differ, the exchange releases them out of their publish order
+            boolean outOfOrder = retryTopology == RetryTopology.DELAYED_MESSAGE_EXCHANGE && delayHandler.isJittered();
+            for (int i = 0; i < retryQueues.length; i++) {
+                retryQueues[i] = outOfOrder ? new MinHeap() : new Fifo();
+            }
+        }
+
+        private Summary simulate() {
+            double nextArrival = nextArrival(0);
+            double nextSample = sampleIntervalMillis;
+            while (true) {
+                double nextCompletion = inFlight.isEmpty() ? Double.POSITIVE_INFINITY : inFlight.headTime();
+                Fifo releasing = null;
+                double nextRelease = Double.POSITIVE_INFINITY;
+                for (Fifo retryQueue : retryQueues) {
+                    if (!retryQueue.isEmpty() && retryQueue.headTime() < nextRelease) {
+                        releasing = retryQueue;
+                        nextRelease = retryQueue.headTime();
+                    }
+                }
+                double now = Math.min(Math.min(nextArrival, nextCompletion), Math.min(nextRelease, nextSample));
+                if (now > durationMillis) {
+                    break;
+                }
+
+                if (now == nextCompletion) {
+                    complete(now);
+                } else if (now == nextRelease) {
+                    // dead lettered back to the tail of the queue
+                    queue.push(now, releasing.headFirstPublished(), releasing.headAttempt(), releasing.headLastDelay());
+                    releasing.pop();
+                    retryDepth--;
+                } else if (now == nextArrival) {
+                    queue.push(now, now, 0, 0);
+                    published++;
+                    intervalArrivals++;
+                    nextArrival = nextArrival(now);
+                } else {
+                    sample(now);
+                    nextSample += sampleIntervalMillis;
+                    continue;
+                }
+                dispatch(now);
+            }
+            return new Summary(published, succeeded, deadLettered, republished, queue.size() + inFlight.size() + retryDepth,
+                    maxQueueDepth, maxRetryDepth, maxPublishRate,
+                    latencies.quantile(0.5), latencies.quantile(0.99), latencies.max());
+        }
+
+        private double nextArrival(double now) {
+            return incomingRate <= 0
+                    ? Double.POSITIVE_INFINITY
+                    : now - Math.log(1 - random.nextDouble()) / incomingRate * 1000;
+        }
+
+        private void dispatch(double now) {
+            while (inFlight.size() < concurrency && !queue.isEmpty()) {
+                inFlight.push(now + handlerLatencyMillis, queue.headFirstPublished(), queue.headAttempt(), queue.headLastDelay());
+                queue.pop();
+                intervalDeliveries++;
+            }
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+        }
+
+        private void complete(double now) {
+            double firstPublished = inFlight.headFirstPublished();
+            int attempt = inFlight.headAttempt();
+            long lastDelay = inFlight.headLastDelay();
+            inFlight.pop();
+
+            if (random.nextDouble() >= failureProfile.applyAsDouble(now / 1000)) {
+                succeeded++;
+                intervalSuccesses++;
+                latencies.record(now - firstPublished);
+                if (intervalLatencies != null) {
+                    intervalLatencies.record(now - firstPublished);
+                }
+                return;
+            }
+
+            intervalPublishes++;
+            if (!delayHandler.canRetry(attempt)) {
+                deadLettered++;
+                return;
+            }
+            long delay = delay(attempt, lastDelay);
+            Fifo retryQueue = retryQueues[retryQueueOfAttempt[Math.min(attempt, retryQueueOfAttempt.length - 1)]];
+            // expired at the head only, after the message ahead of it, the exchange releases each message on time
+            double release = retryTopology == RetryTopology.DELAYED_MESSAGE_EXCHANGE || retryQueue.isEmpty()
+                    ? now + delay
+                    : Math.max(now + delay, retryQueue.tailTime());
+            retryQueue.push(release, firstPublished, attempt + 1, delay);
+            republished++;
+            retryDepth++;
+            maxRetryDepth = Math.max(maxRetryDepth, retryDepth);
+        }
+
+        private long delay(int attempt, long lastDelay) {
+            if (!delayHandler.isJittered()) {
+                return delayHandler.delayMillis(attempt);
+            }
+            return retryTopology == RetryTopology.TIERED_TTL
+                    ? delayHandler.nextDelayWithinTier(attempt, lastDelay)
+                    : delayHandler.nextDelay(attempt, lastDelay);
+        }
+
+        private void sample(double now) {
+            double seconds = sampleIntervalMillis / 1000;
+            double publishRate = intervalPublishes / seconds;
+            maxPublishRate = Math.max(maxPublishRate, publishRate);
+            if (listener != null) {
+                listener.accept(new Sample(now / 1000, failureProfile.applyAsDouble(now / 1000), queue.size(), inFlight.size(),
+                        retryDepth, deadLettered, intervalArrivals / seconds, intervalDeliveries / seconds, publishRate,
+                        intervalSuccesses / seconds, intervalLatencies.quantile(0.5), intervalLatencies.quantile(0.99), intervalLatencies.max()));
+                intervalLatencies.reset();
+            }
+            intervalArrivals = 0;
+            intervalDeliveries = 0;
+            intervalPublishes = 0;
+            intervalSuccesses = 0;
+        }
+    }
+
+    /**
+     * Growable ring buffer of the messages of a queue, ordered by the time they are ready or completed.
+     */
+    private static class Fifo {
+
+        double[] times = new double[64];
+        double[] firstPublished = new double[64];
+        int[] attempts = new int[64];
+        long[] lastDelays = new long[64];
+        int head;
+        int size;
+
+        void push(double time, double firstPublishedAt, int attempt, long lastDelay) {
+            if (size == times.length) {
+                grow();
+            }
+            int index = (head + size) & (times.length - 1);
+            times[index] = time;
+            firstPublished[index] = firstPublishedAt;
+            attempts[index] = attempt;
+            lastDelays[index] = lastDelay;
+            size++;
+        }
+
+        void pop() {
+            head = (head + 1) & (times.length - 1);
+            size--;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        double headTime() {
+            return times[head];
+        }
+
+        double tailTime() {
+            return times[(head + size - 1) & (times.length - 1)];
+        }
+
+        double headFirstPublished() {
+            return firstPublished[head];
+        }
+
+        int headAttempt() {
+            return attempts[head];
+        }
+
+        long headLastDelay() {
+            return lastDelays[head];
+        }
+
+        void grow() {
+            int capacity = times.length * 2;
+            double[] newTimes = new double[capacity];
+            double[] newFirstPublished = new double[capacity];
+            int[] newAttempts = new int[capacity];
+            long[] newLastDelays = new long[capacity];
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) & (times.length - 1);
+                newTimes[i] = times[index];
+                newFirstPublished[i] = firstPublished[index];
+                newAttempts[i] = attempts[index];
+                newLastDelays[i] = lastDelays[index];
+            }
+            times = newTimes;
+            firstPublished = newFirstPublished;
+            attempts = newAttempts;
+            lastDelays = newLastDelays;
+            head = 0;
+        }
+    }
+
+    /**
+     * Binary min-heap of the messages of a queue ordered by the time they are ready, its head stays at the first index.
+     */
+    private static final class MinHeap extends Fifo {
+
+        @Override
+        void push(double time, double firstPublishedAt, int attempt, long lastDelay) {
+            if (size == times.length) {
+                grow();
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (times[parent] <= time) {
+                    break;
+                }
+                move(parent, index);
+                index = parent;
+            }
+            set(index, time, firstPublishedAt, attempt, lastDelay);
+        }
+
+        @Override
+        void pop() {
+            size--;
+            if (size == 0) {
+                return;
+            }
+            double time = times[size];
+            double firstPublishedAt = firstPublished[size];
+            int attempt = attempts[size];
+            long lastDelay = lastDelays[size];
+            int index = 0;
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && times[child + 1] < times[child]) {
+                    child++;
+                }
+                if (time <= times[child]) {
+                    break;
+                }
+                move(child, index);
+                index = child;
+            }
+            set(index, time, firstPublishedAt, attempt, lastDelay);
+        }
+
+        @Override
+        double tailTime() {
+            throw new UnsupportedOperationException("A heap has no tail");
+        }
+
+        private void move(int from, int to) {
+            set(to, times[from], firstPublished[from], attempts[from], lastDelays[from]);
+        }
+
+        private void set(int index, double time, double firstPublishedAt, int attempt, long lastDelay) {
+            times[index] = time;
+            firstPublished[index] = firstPublishedAt;
+            attempts[index] = attempt;
+            lastDelays[index] = lastDelay;
+        }
+    }
+
+    /**
+     * The state of the queues at the end of a sample interval, with the rates and the end to end latencies of the interval.
+     */
+    public record Sample(double timeSeconds, double failureRate, long queueDepth, long inFlight, long retryDepth, long dlqDepth,
+                         double arrivalRate, double deliveryRate, double publishRate, double successRate,
+                         double latencyP50Millis, double latencyP99Millis, double latencyMaxMillis) {
+
+        public static final String CSV_HEADER = "time_s,failure_rate,queue_depth,in_flight,retry_depth,dlq_depth,"
+                + "arrival_rate,delivery_rate,publish_rate,success_rate,latency_p50_ms,latency_p99_ms,latency_max_ms";
+
+        public String toCsv() {
+            return String.format(Locale.ROOT, "%.3f,%.4f,%d,%d,%d,%d,%.2f,%.2f,%.2f,%.2f,%.1f,%.1f,%.1f",
+                    timeSeconds, failureRate, queueDepth, inFlight, retryDepth, dlqDepth,
+                    arrivalRate, deliveryRate, publishRate, successRate, latencyP50Millis, latencyP99Millis, latencyMaxMillis);
+        }
+    }
+
+    /**
+     * The totals of a run. The publish rate counts the retry and dlq copies published by the consumers,
+     * the latencies are the end to end latencies of the messages handled successfully, from their first publish.
+     */
+    public record Summary(long published, long succeeded, long deadLettered, long republished, long backlog,
+                          long maxQueueDepth, long maxRetryDepth, double maxPublishRate,
+                          double latencyP50Millis, double latencyP99Millis, double latencyMaxMillis) {
+
+        public static final String CSV_HEADER = "published,succeeded,dead_lettered,republished,backlog,"
+                + "max_queue_depth,max_retry_depth,max_publish_rate,latency_p50_ms,latency_p99_ms,latency_max_ms";
+
+        public String toCsv() {
+            return String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%.2f,%.1f,%.1f,%.1f",
+                    published, succeeded, deadLettered, republished, backlog,
+                    maxQueueDepth, maxRetryDepth, maxPublishRate, latencyP50Millis, latencyP99Millis, latencyMaxMillis);
+        }
+    }
+
+    public static class Builder {
+
+        private ExponentialDelayHandler delayHandler;
+        private RetryTopology retryTopology = RetryTopology.PER_MESSAGE_TTL;
+        private double incomingRate = 100;
+        private DoubleUnaryOperator failureProfile = seconds -> 0;
+        private double handlerLatencyMillis = 20;
+        private int concurrency = 5;
+        private double durationSeconds = 600;
+        private double sampleIntervalSeconds = 1;
+        private long seed = 42;
+
+        private Builder() {
+        }
+
+        public Builder delayHandler(ExponentialDelayHandler delayHandler) {
+            this.delayHandler = delayHandler;
+            return this;
+        }
+
+        public Builder retryTopology(RetryTopology retryTopology) {
+            this.retryTopology = retryTopology;
+            return this;
+        }
+
+        /**
+         * The mean number of messages published per second, 100 by default.
+         *
+         * @param incomingRate
+         * @return
+         */
+        public Builder incomingRate(double incomingRate) {
+            this.incomingRate = incomingRate;
+            return this;
+        }
+
+        /**
+         * The probability a delivery fails, as a function of the time in seconds, no failure by default.
+         *
+         * @param failureProfile
+         * @return
+         */
+        public Builder failureProfile(DoubleUnaryOperator failureProfile) {
+            this.failureProfile = failureProfile;
+            return this;
+        }
+
+        /**
+         * The time in milliseconds the listener takes to handle a delivery, 20 by default.
+         *
+         * @param handlerLatencyMillis
+         * @return
+         */
+        public Builder handlerLatencyMillis(double handlerLatencyMillis) {
+            this.handlerLatencyMillis = handlerLatencyMillis;
+            return this;
+        }
+
+        /**
+         * The number of consumers, 5 by default.
+         *
+         * @param concurrency
+         * @return
+         */
+        public Builder concurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        /**
+         * The simulated time in seconds, 600 by default.
+         *
+         * @param durationSeconds
+         * @return
+         */
+        public Builder durationSeconds(double durationSeconds) {
+            this.durationSeconds = durationSeconds;
+            return this;
+        }
+
+        /**
+         * The time in seconds between two samples, 1 by default.
+         *
+         * @param sampleIntervalSeconds
+         * @return
+         */
+        public Builder sampleIntervalSeconds(double sampleIntervalSeconds) {
+            this.sampleIntervalSeconds = sampleIntervalSeconds;
+            return this;
+        }
+
+        /**
+         * The seed of the arrivals and failures, runs with the same seed and no jitter are identical.
+         *
+         * @param seed
+         * @return
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public RetryLoadSimulator build() {
+            Assert.notNull(delayHandler, "'delayHandler' cannot be null");
+            Assert.notNull(retryTopology, "'retryTopology' cannot be null");
+            Assert.notNull(failureProfile, "'failureProfile' cannot be null");
+            Assert.isTrue(incomingRate >= 0, "'incomingRate' cannot be negative");
+            Assert.isTrue(handlerLatencyMillis >= 0, "'handlerLatencyMillis' cannot be negative");
+            Assert.isTrue(concurrency > 0, "'concurrency' must be greater than zero");
+            Assert.isTrue(durationSeconds > 0, "'durationSeconds' must be greater than zero");
+            Assert.isTrue(sampleIntervalSeconds > 0, "'sampleIntervalSeconds' must be greater than zero");
+            return new RetryLoadSimulator(this);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.delayedretry.simulation;
+
+import com.example.delayedretry.rabbit.RetryTopology;
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.Jitter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command line entry point of the {@link RetryLoadSimulator}, run offline with the simulation profile:
+ * <pre>
+ * mvn -Psimulation compile exec:java -Dsimulation.args="failure=0:0.01;60:1;180:0.01 max-delay=60000"
+ * </pre>
+ * The arguments are key=value pairs, see {@link #DEFAULTS}. With single values the time series of the run is written as CSV,
+ * with comma separated values every combination is run in parallel and a summary row is written per combination,
+ * prefixed by the swept parameters. The CSV is written to the "out" file, or to the standard output.
+ */
+public final class RetryLoadSweep {
+
+    static final Map<String, String> DEFAULTS = defaults();
+
+    private RetryLoadSweep() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, List<String>> parameters = parse(args);
+        String out = parameters.remove("out").get(0);
+        List<Map<String, String>> runs = combinations(parameters);
+        List<String> swept = parameters.entrySet().stream()
+                .filter(entry -> entry.getValue().size() > 1)
+                .map(Map.Entry::getKey)
+                .toList();
+
+        try (Writer writer = out.isEmpty()
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(Path.of(out))) {
+            if (runs.size() == 1) {
+                simulator(runs.get(0)).writeCsv(writer);
+                return;
+            }
+            writer.append(swept.isEmpty() ? "" : String.join(",", swept) + ",").append(RetryLoadSimulator.Summary.CSV_HEADER).append('\n');
+            List<String> rows = runs.parallelStream()
+                    .map(run -> {
+                        StringBuilder row = new StringBuilder();
+                        swept.forEach(name -> row.append(run.get(name)).append(','));
+                        return row.append(simulator(run).run().toCsv()).toString();
+                    })
+                    .toList();
+            for (String row : rows) {
+                writer.append(row).append('\n');
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static RetryLoadSimulator simulator(Map<String, String> run) {
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(Long.parseLong(run.get("initial-delay")))
+                .multiplier(Double.parseDouble(run.get("multiplier")))
+                .maxDelay(Long.parseLong(run.get("max-delay")))
+                .maxRetryAttempts(Integer.parseInt(run.get("max-retry-attempts")))
+                .jitter(Jitter.valueOf(run.get("jitter").toUpperCase(Locale.ROOT).replace('-', '_')))
+                .build();
+        return RetryLoadSimulator.builder()
+                .delayHandler(delayHandler)
+                .retryTopology(RetryTopology.valueOf(run.get("topology").toUpperCase(Locale.ROOT).replace('-', '_')))
+                .incomingRate(Double.parseDouble(run.get("rate")))
+                .failureProfile(RetryLoadSimulator.stepProfile(run.get("failure")))
+                .handlerLatencyMillis(Double.parseDouble(run.get("latency")))
+                .concurrency(Integer.parseInt(run.get("concurrency")))
+                .durationSeconds(Double.parseDouble(run.get("duration")))
+                .sampleIntervalSeconds(Double.parseDouble(run.get("sample-interval")))
+                .seed(Long.parseLong(run.get("seed")))
+                .build();
+    }
+
+    static Map<String, List<String>> parse(String[] args) {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        DEFAULTS.forEach((name, value) -> parameters.put(name, List.of(value)));
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !DEFAULTS.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException("Unknown argument " + arg + ", expected one of " + DEFAULTS.keySet());
+            }
+            String name = arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
+            parameters.put(name, name.equals("out") ? List.of(value) : Arrays.asList(value.split(",")));
+        }
+        return parameters;
+    }
+
+    static List<Map<String, String>> combinations(Map<String, List<String>> parameters) {
+        List<Map<String, String>> runs = new ArrayList<>();
+        runs.add(new LinkedHashMap<>());
+        parameters.forEach((name, values) -> {
+            List<Map<String, String>> expanded = new ArrayList<>(runs.size() * values.size());
+            for (Map<String, String> run : runs) {
+                for (String value : values) {
+                    Map<String, String> combination = new LinkedHashMap<>(run);
+                    combination.put(name, value.trim());
+                    expanded.add(combination);
+                }
+            }
+            runs.clear();
+            runs.addAll(expanded);
+        });
+        return runs;
+    }
+
+    private static Map<String, String> defaults() {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        // messages per second
+        defaults.put("rate", "100");
+        // failure profile, "time in seconds:failure rate" steps
+        defaults.put("failure", "0:0.01;60:1;180:0.01");
+        // handler latency in milliseconds
+        defaults.put("latency", "20");
+        defaults.put("concurrency", "5");
+        defaults.put("initial-delay", "1000");
+        defaults.put("multiplier", "2");
+        defaults.put("max-delay", "60000");
+        defaults.put("max-retry-attempts", "10");
+        defaults.put("jitter", "none");
+        defaults.put("topology", "per-message-ttl");
+        // simulated time in seconds
+        defaults.put("duration", "600");
+        defaults.put("sample-interval", "1");
+        defaults.put("seed", "42");
+        defaults.put("out", "");
+        return Collections.unmodifiableMap(defaults);
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.delayedretry.rabbit;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class AdaptiveConcurrencyControllerTest {
+
+    SimpleMessageListenerContainer containerMock;
+    MethodInvocation invocationMock;
+
+    AdaptiveConcurrencyController target;
+
+    @BeforeEach
+    void setUp() {
+        containerMock = mock(SimpleMessageListenerContainer.class);
+        when(containerMock.getQueueNames()).thenReturn(new String[]{"queue"});
+        invocationMock = mock(MethodInvocation.class);
+
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("queue");
+        lenient().when(invocationMock.getArguments()).thenReturn(new Object[]{null, new Message("payload".getBytes(), messageProperties)});
+
+        target = AdaptiveConcurrencyController.builder()
+                .minConsumers(1)
+                .maxConsumers(8)
+                .maxPrefetch(8)
+                .failureRateThreshold(0.2)
+                .minSamples(10)
+                .interval(0)
+                .build();
+        target.register(containerMock);
+    }
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+    }
+
+    @Test
+    void shouldStartRegisteredContainerAtMinConsumers() {
+        verify(containerMock).setMaxConcurrentConsumers(1);
+        verify(containerMock).setConcurrentConsumers(1);
+        verify(containerMock).setPrefetchCount(8);
+    }
+
+    @Test
+    void shouldIncreaseConsumersAdditivelyWhileHealthy() throws Throwable {
+        // given
+        clearInvocations(containerMock);
+
+        // when
+        for (int round = 0; round < 3; round++) {
+            handle(10, 0);
+            target.adjust();
+        }
+
+        // then
+        InOrder inOrder = inOrder(containerMock);
+        inOrder.verify(containerMock).setMaxConcurrentConsumers(2);
+        inOrder.verify(containerMock).setConcurrentConsumers(2);
+        inOrder.verify(containerMock).setMaxConcurrentConsumers(3);
+        inOrder.verify(containerMock).setConcurrentConsumers(3);
+        inOrder.verify(containerMock).setMaxConcurrentConsumers(4);
+        inOrder.verify(containerMock).setConcurrentConsumers(4);
+    }
+
+    @Test
+    void shouldDecreaseConsumersAndPrefetchMultiplicativelyWhenFailuresClimb() throws Throwable {
+        // given a container grown to 5 consumers
+        for (int round = 0; round < 4; round++) {
+            handle(10, 0);
+            target.adjust();
+        }
+        clearInvocations(containerMock);
+
+        // when
+        handle(5, 5);
+        target.adjust();
+
+        // then the concurrent consumers shrink before the max consumers
+        InOrder inOrder = inOrder(containerMock);
+        inOrder.verify(containerMock).setPrefetchCount(4);
+        inOrder.verify(containerMock).setConcurrentConsumers(2);
+        inOrder.verify(containerMock).setMaxConcurrentConsumers(2);
+    }
+
+    @Test
+    void shouldHoldConsumersWithoutEnoughSamples() throws Throwable {
+        // given
+        clearInvocations(containerMock);
+
+        // when
+        handle(0, 5);
+        target.adjust();
+
+        // then
+        verify(containerMock, never()).setConcurrentConsumers(anyInt());
+        verify(containerMock, never()).setPrefetchCount(anyInt());
+    }
+
+    @Test
+    void shouldDecreaseConsumersWhenListenerSlowsDown() throws Throwable {
+        // given
+        target.close();
+        target = AdaptiveConcurrencyController.builder()
+                .minConsumers(2)
+                .maxConsumers(8)
+                .latencyThreshold(1)
+                .minSamples(1)
+                .interval(0)
+                .build();
+        target.register(containerMock);
+        handle(1, 0);
+        target.adjust();
+        clearInvocations(containerMock);
+
+        doAnswer(invocation -> {
+            Thread.sleep(5);
+            return null;
+        }).when(invocationMock).proceed();
+
+        // when
+        target.invoke(invocationMock);
+        target.adjust();
+
+        // then
+        verify(containerMock).setConcurrentConsumers(2);
+    }
+
+    private void handle(int successes, int failures) throws Throwable {
+        if (successes > 0) {
+            doReturn(null).when(invocationMock).proceed();
+            for (int i = 0; i < successes; i++) {
+                target.invoke(invocationMock);
+            }
+        }
+        if (failures > 0) {
+            doThrow(new IllegalStateException("Expected test exception")).when(invocationMock).proceed();
+            for (int i = 0; i < failures; i++) {
+                assertThrows(IllegalStateException.class, () -> target.invoke(invocationMock));
+            }
+        }
+    }
+}
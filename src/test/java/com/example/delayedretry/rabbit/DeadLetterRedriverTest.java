@@ -0,0 +1,157 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.RetryDeadline;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.retry.RepublishMessageRecoverer;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class DeadLetterRedriverTest {
+
+    private static final String MATCHING_TRACE = "org.springframework.amqp.rabbit.support.ListenerExecutionFailedException: Listener failed\n"
+            + "Caused by: java.lang.IllegalStateException: order not found\n";
+
+    Channel consumeChannelMock;
+    Channel publishChannelMock;
+
+    DeadLetterRedriver target;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ConnectionFactory connectionFactoryMock = mock(ConnectionFactory.class);
+        Connection connectionMock = mock(Connection.class);
+        consumeChannelMock = mock(Channel.class);
+        publishChannelMock = mock(Channel.class);
+        lenient().when(connectionFactoryMock.newConnection("dlq-redrive-queue")).thenReturn(connectionMock);
+        lenient().when(connectionMock.createChannel()).thenReturn(consumeChannelMock, publishChannelMock);
+
+        AMQP.Queue.DeclareOk declareOkMock = mock(AMQP.Queue.DeclareOk.class);
+        lenient().when(declareOkMock.getMessageCount()).thenReturn(3);
+        lenient().when(consumeChannelMock.queueDeclarePassive("dlq.queue")).thenReturn(declareOkMock);
+
+        // the dlq delivers its three messages as soon as the redrive consumes it
+        lenient().when(consumeChannelMock.basicConsume(eq("dlq.queue"), eq(false), any(Consumer.class))).thenAnswer(invocation -> {
+            Consumer consumer = invocation.getArgument(2);
+            consumer.handleDelivery("tag", new Envelope(1L, false, "", "dlq.queue"), failedProperties(MATCHING_TRACE), "1".getBytes());
+            consumer.handleDelivery("tag", new Envelope(2L, false, "", "dlq.queue"), failedProperties("java.lang.IllegalArgumentException\n"), "2".getBytes());
+            consumer.handleDelivery("tag", new Envelope(3L, false, "", "dlq.queue"), failedProperties(MATCHING_TRACE), "3".getBytes());
+            return "tag";
+        });
+
+        target = DeadLetterRedriver.builder()
+                .connectionFactory(connectionFactoryMock)
+                .batchSize(2)
+                .prefetch(10)
+                .idleTimeout(100)
+                .executor(Runnable::run)
+                .build();
+    }
+
+    @Test
+    void shouldRedriveMatchingMessagesWithResetRetryState() throws Exception {
+        // when
+        DeadLetterRedriver.Redrive redrive = target.redrive("queue", DeadLetterRedriver.exceptionType("java.lang.IllegalStateException"));
+
+        // then the matching messages are republished to the queue without their retry headers
+        verify(publishChannelMock, times(2)).basicPublish(eq(""), eq("queue"), eq(false), argThat(properties ->
+                !properties.getHeaders().containsKey("x-death")
+                        && !properties.getHeaders().containsKey(RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE)
+                        && Long.valueOf(1L).equals(properties.getHeaders().get(DeadLetterRedriver.X_REDRIVE_COUNT))
+                        && properties.getExpiration() == null), any());
+        // and the other one goes back to the tail of the dlq
+        verify(publishChannelMock, times(1)).basicPublish(eq(""), eq("dlq.queue"), eq(false), any(), eq("2".getBytes()));
+
+        // and each batch is acked once confirmed
+        verify(publishChannelMock, times(2)).waitForConfirmsOrDie(anyLong());
+        verify(consumeChannelMock, times(1)).basicAck(2L, true);
+        verify(consumeChannelMock, times(1)).basicAck(3L, true);
+
+        assertEquals(DeadLetterRedriver.Redrive.State.COMPLETED, redrive.getState());
+        assertEquals(3L, redrive.getTotal());
+        assertEquals(2L, redrive.getRedriven());
+        assertEquals(1L, redrive.getSkipped());
+    }
+
+    @Test
+    void shouldLeaveUnconfirmedBatchInDlq() throws Exception {
+        // given
+        doThrow(new IOException("nack")).when(publishChannelMock).waitForConfirmsOrDie(anyLong());
+
+        // when
+        DeadLetterRedriver.Redrive redrive = target.redrive("queue", message -> true);
+
+        // then
+        verify(consumeChannelMock, never()).basicAck(anyLong(), anyBoolean());
+        assertEquals(DeadLetterRedriver.Redrive.State.FAILED, redrive.getState());
+        assertEquals(0L, redrive.getRedriven());
+    }
+
+    @Test
+    void shouldResetRetryDeadlineOfRedrivenMessage() {
+        // given a message whose deadline and max age expired during its failed attempts
+        RetryDeadline retryDeadline = new RetryDeadline(RetryDeadline.X_DEADLINE, 60_000, RetryDeadline.Expiry.DISCARD);
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, 1_000L);
+        messageProperties.setTimestamp(new Date(1_000L));
+        Message message = new Message(new byte[0], messageProperties);
+        assertTrue(retryDeadline.remaining(message, 100_000L) <= 0);
+
+        // when
+        DeadLetterRedriver.resetRetryState(messageProperties, RetryDeadline.X_DEADLINE, 100_000L);
+
+        // then
+        assertFalse(messageProperties.getHeaders().containsKey(RetryDeadline.X_DEADLINE));
+        assertEquals(new Date(100_000L), messageProperties.getTimestamp());
+        assertEquals(60_000L, retryDeadline.remaining(message, 100_000L));
+    }
+
+    @Test
+    void shouldMatchExceptionTypeOfTheCauseOnly() {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE, MATCHING_TRACE);
+        Message message = new Message(new byte[0], messageProperties);
+
+        assertTrue(DeadLetterRedriver.exceptionType("java.lang.IllegalStateException").test(message));
+        assertTrue(DeadLetterRedriver.exceptionType("org.springframework.amqp.rabbit.support.ListenerExecutionFailedException").test(message));
+        assertFalse(DeadLetterRedriver.exceptionType("java.lang.IllegalState").test(message));
+    }
+
+    private static AMQP.BasicProperties failedProperties(String stackTrace) {
+        return new AMQP.BasicProperties.Builder()
+                .headers(Map.of(
+                        "x-death", List.of(Map.of("queue", "retry.queue", "count", 3L)),
+                        RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE, stackTrace))
+                .build();
+    }
+}
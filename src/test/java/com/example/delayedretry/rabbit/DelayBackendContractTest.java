@@ -0,0 +1,130 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer;
+import com.example.delayedretry.rabbit.retry.RetryCounts;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.HashSet;
+import java.util.List;
+
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_DLQ_QUEUE_PREFIX;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * The contract of every {@link DelayBackend}, run against an {@link InMemoryBroker}: a failed message is delivered back to its retried queue
+ * once its delay elapsed, not before, and goes to the dlq once its retries are exhausted.
+ */
+class DelayBackendContractTest {
+
+    private static final String QUEUE = "queue";
+
+    private final ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+            .initialDelay(1000)
+            .multiplier(2)
+            .maxDelay(4000)
+            .maxRetryAttempts(3)
+            .build();
+
+    @ParameterizedTest
+    @EnumSource(RetryTopology.class)
+    void shouldDeclareTheListedQueues(RetryTopology retryTopology) {
+        for (boolean isolatedRedelivery : List.of(false, true)) {
+            // given
+            InMemoryBroker broker = new InMemoryBroker();
+            QueueFamily queueFamily = new QueueFamily(QUEUE, retryTopology, delayHandler);
+
+            // when
+            template(broker, isolatedRedelivery).createQueue(queueFamily);
+
+            // then
+            assertEquals(new HashSet<>(QueueTopologyTemplate.queueNames(queueFamily, isolatedRedelivery, 1)), broker.queues().keySet());
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RetryTopology.class)
+    void shouldDeliverRetryBackOnceItsDelayElapsed(RetryTopology retryTopology) {
+        // given
+        InMemoryBroker broker = new InMemoryBroker();
+        RepublishDelayedMessageRecoverer recoverer = recoverer(broker, retryTopology, false);
+        broker.publish("", QUEUE, new Message("1".getBytes(), new MessageProperties()));
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+            // when
+            recoverer.recover(broker.consume(QUEUE), new RuntimeException("Expected test exception"));
+            broker.advance(delayHandler.delayMillis(attempt) - 1);
+
+            // then
+            assertEquals(0, broker.depth(QUEUE));
+            broker.advance(1);
+            assertEquals(1, broker.depth(QUEUE));
+            Message retried = broker.consume(QUEUE);
+            assertEquals(attempt + 1, RetryCounts.of(retried));
+            assertNull(retried.getMessageProperties().getExpiration());
+            broker.publish("", QUEUE, retried);
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(RetryTopology.class)
+    void shouldDeadLetterOnceRetriesAreExhausted(RetryTopology retryTopology) {
+        // given
+        InMemoryBroker broker = new InMemoryBroker();
+        RepublishDelayedMessageRecoverer recoverer = recoverer(broker, retryTopology, false);
+        broker.publish("", QUEUE, new Message("1".getBytes(), new MessageProperties()));
+
+        // when
+        int failures = 0;
+        Message message;
+        while ((message = broker.consume(QUEUE)) != null) {
+            recoverer.recover(message, new RuntimeException("Expected test exception"));
+            failures++;
+            broker.advance(60_000);
+        }
+
+        // then
+        assertEquals(4, failures);
+        assertEquals(1, broker.depth(DEFAULT_DLQ_QUEUE_PREFIX + QUEUE));
+        assertEquals(3, RetryCounts.of(broker.consume(DEFAULT_DLQ_QUEUE_PREFIX + QUEUE)));
+    }
+
+    @ParameterizedTest
+    @EnumSource(RetryTopology.class)
+    void shouldDeliverRetriesToRedeliveryQueueAndRetryItsFailures(RetryTopology retryTopology) {
+        // given
+        InMemoryBroker broker = new InMemoryBroker();
+        RepublishDelayedMessageRecoverer recoverer = recoverer(broker, retryTopology, true);
+        String redeliveryQueueName = QueueTopologyTemplate.redeliveryQueueName(QUEUE);
+        broker.publish("", QUEUE, new Message("1".getBytes(), new MessageProperties()));
+
+        // when
+        recoverer.recover(broker.consume(QUEUE), new RuntimeException("Expected test exception"));
+        broker.advance(1000);
+        Message redelivered = broker.consume(redeliveryQueueName);
+        assertNotNull(redelivered);
+        recoverer.recover(redelivered, new RuntimeException("Expected test exception"));
+        broker.advance(2000);
+
+        // then
+        assertEquals(0, broker.depth(QUEUE));
+        assertEquals(2, RetryCounts.of(broker.consume(redeliveryQueueName)));
+    }
+
+    private RepublishDelayedMessageRecoverer recoverer(InMemoryBroker broker, RetryTopology retryTopology, boolean isolatedRedelivery) {
+        QueueTopologyTemplate template = template(broker, isolatedRedelivery);
+        template.createQueue(new QueueFamily(QUEUE, retryTopology, delayHandler));
+        return retryTopology.getDelayBackend().createRecoverer(broker.amqpTemplate(), delayHandler, template.getRoutingCache());
+    }
+
+    private static QueueTopologyTemplate template(InMemoryBroker broker, boolean isolatedRedelivery) {
+        return new QueueTopologyTemplate(broker.amqpTemplate(), broker.amqpAdmin(), null, QueueTopologyOptions.builder()
+                .isolatedRedelivery(isolatedRedelivery)
+                .build());
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.delayedretry.rabbit;
+
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class IdempotentListenerInterceptorTest {
+
+    SimpleMeterRegistry meterRegistry;
+    MethodInvocation invocationMock;
+    MessageProperties messageProperties;
+
+    IdempotentListenerInterceptor target;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        invocationMock = mock(MethodInvocation.class);
+        messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("queue");
+        messageProperties.setMessageId("message-1");
+        Object[] arguments = {mock(Channel.class), new Message("payload".getBytes(), messageProperties)};
+        when(invocationMock.getArguments()).thenReturn(arguments);
+
+        target = new IdempotentListenerInterceptor(new ProcessedMessageCache(1_000, 60_000, false),
+                IdempotentListenerInterceptor.messageId(), meterRegistry);
+    }
+
+    @Test
+    void shouldSkipListenerForProcessedMessage() throws Throwable {
+        // given
+        doReturn("result").when(invocationMock).proceed();
+
+        // when
+        Object first = target.invoke(invocationMock);
+        Object second = target.invoke(invocationMock);
+
+        // then
+        assertEquals("result", first);
+        assertNull(second);
+        verify(invocationMock, times(1)).proceed();
+        assertEquals(1.0, meterRegistry.get(IdempotentListenerInterceptor.LOOKUPS).tag("result", "hit").counter().count());
+        assertEquals(1.0, meterRegistry.get(IdempotentListenerInterceptor.LOOKUPS).tag("result", "miss").counter().count());
+    }
+
+    @Test
+    void shouldInvokeListenerAgainWhenItFailed() throws Throwable {
+        // given
+        doThrow(new IllegalStateException("Expected test exception")).when(invocationMock).proceed();
+
+        // when
+        assertThrows(IllegalStateException.class, () -> target.invoke(invocationMock));
+        assertThrows(IllegalStateException.class, () -> target.invoke(invocationMock));
+
+        // then
+        verify(invocationMock, times(2)).proceed();
+    }
+
+    @Test
+    void shouldSkipRetryCopyOfMessageMarkedProcessedByTheListener() throws Throwable {
+        // given a listener failing after committing its side effects
+        target.markProcessed(new Message(new byte[0], messageProperties));
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(invocationMock, times(0)).proceed();
+    }
+
+    @Test
+    void shouldSkipRedeliveryOfMessageProcessedFromItsQueue() throws Throwable {
+        // given
+        target.invoke(invocationMock);
+        messageProperties.setConsumerQueue(QueueTopologyTemplate.redeliveryQueueName("queue"));
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(invocationMock, times(1)).proceed();
+    }
+
+    @Test
+    void shouldProcessSameMessageIdOnAnotherQueue() throws Throwable {
+        // given
+        target.invoke(invocationMock);
+        messageProperties.setConsumerQueue("other");
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(invocationMock, times(2)).proceed();
+    }
+
+    @Test
+    void shouldProcessMessagesWithoutKey() throws Throwable {
+        // given
+        messageProperties.setMessageId(null);
+
+        // when
+        target.invoke(invocationMock);
+        target.invoke(invocationMock);
+
+        // then
+        verify(invocationMock, times(2)).proceed();
+    }
+}
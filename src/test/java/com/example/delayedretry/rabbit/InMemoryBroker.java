@@ -0,0 +1,227 @@
+package com.example.delayedretry.rabbit;
+
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Exchange;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.Queue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.X_DEAD_LETTER_EXCHANGE;
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.X_DEAD_LETTER_ROUTING_KEY;
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.X_MESSAGE_TTL;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+
+/**
+ * In memory stand-in of a RabbitMQ broker behind mocked {@link AmqpTemplate} and {@link AmqpAdmin}, on a manual clock.
+ * Like RabbitMQ, a queue only expires the message at its head and dead letters it with a "x-death" header,
+ * and an "x-delayed-message" exchange holds each message for the delay of its "x-delay" header.
+ */
+class InMemoryBroker {
+
+    private final AmqpTemplate amqpTemplate = mock(AmqpTemplate.class);
+    private final AmqpAdmin amqpAdmin = mock(AmqpAdmin.class);
+    private final Map<String, Queue> queues = new LinkedHashMap<>();
+    private final Map<String, Deque<Entry>> contents = new HashMap<>();
+    private final Map<String, Exchange> exchanges = new HashMap<>();
+    // routing key to queue, by exchange
+    private final Map<String, Map<String, String>> bindings = new HashMap<>();
+    private final List<Delayed> delayed = new ArrayList<>();
+    private long now;
+
+    InMemoryBroker() {
+        lenient().doAnswer(invocation -> {
+            Queue queue = invocation.getArgument(0);
+            queues.put(queue.getName(), queue);
+            contents.putIfAbsent(queue.getName(), new ArrayDeque<>());
+            return queue.getName();
+        }).when(amqpAdmin).declareQueue(any(Queue.class));
+        lenient().doAnswer(invocation -> {
+            Exchange exchange = invocation.getArgument(0);
+            exchanges.put(exchange.getName(), exchange);
+            return null;
+        }).when(amqpAdmin).declareExchange(any(Exchange.class));
+        lenient().doAnswer(invocation -> {
+            Binding binding = invocation.getArgument(0);
+            bindings.computeIfAbsent(binding.getExchange(), exchange -> new HashMap<>()).put(binding.getRoutingKey(), binding.getDestination());
+            return null;
+        }).when(amqpAdmin).declareBinding(any(Binding.class));
+        lenient().doAnswer(invocation -> {
+            publish(invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2));
+            return null;
+        }).when(amqpTemplate).send(anyString(), anyString(), any(Message.class));
+    }
+
+    AmqpTemplate amqpTemplate() {
+        return amqpTemplate;
+    }
+
+    AmqpAdmin amqpAdmin() {
+        return amqpAdmin;
+    }
+
+    Map<String, Queue> queues() {
+        return queues;
+    }
+
+    Map<String, Exchange> exchanges() {
+        return exchanges;
+    }
+
+    void publish(String exchangeName, String routingKey, Message message) {
+        Message copy = copy(message);
+        if (exchangeName.isEmpty()) {
+            enqueue(routingKey, copy);
+            return;
+        }
+        Exchange exchange = exchanges.get(exchangeName);
+        if (exchange == null) {
+            throw new IllegalStateException("No exchange " + exchangeName);
+        }
+        String queueName = bindings.getOrDefault(exchangeName, Map.of()).get(routingKey);
+        if (queueName == null) {
+            throw new IllegalStateException("No queue bound to " + exchangeName + " with " + routingKey);
+        }
+        if ("x-delayed-message".equals(exchange.getType())) {
+            Object delay = copy.getMessageProperties().getHeader(MessageProperties.X_DELAY);
+            delayed.add(new Delayed(now + (delay instanceof Number number ? number.longValue() : 0), queueName, copy));
+            return;
+        }
+        enqueue(queueName, copy);
+    }
+
+    /**
+     * Consumes the message at the head of the queue.
+     *
+     * @param queueName
+     * @return the message, or null if the queue is empty
+     */
+    Message consume(String queueName) {
+        Entry entry = contents(queueName).poll();
+        if (entry == null) {
+            return null;
+        }
+        entry.message.getMessageProperties().setConsumerQueue(queueName);
+        return entry.message;
+    }
+
+    int depth(String queueName) {
+        return contents(queueName).size();
+    }
+
+    /**
+     * Advances the clock, expiring and releasing the messages in time order.
+     *
+     * @param millis
+     */
+    void advance(long millis) {
+        long until = now + millis;
+        while (true) {
+            long next = Long.MAX_VALUE;
+            for (Delayed message : delayed) {
+                next = Math.min(next, message.releaseAt);
+            }
+            for (Deque<Entry> queue : contents.values()) {
+                if (!queue.isEmpty()) {
+                    next = Math.min(next, queue.peek().expiresAt);
+                }
+            }
+            if (next > until) {
+                break;
+            }
+            now = next;
+            for (Delayed message : List.copyOf(delayed)) {
+                if (message.releaseAt <= now) {
+                    delayed.remove(message);
+                    enqueue(message.queueName, message.message);
+                }
+            }
+            for (Map.Entry<String, Deque<Entry>> queue : List.copyOf(contents.entrySet())) {
+                while (!queue.getValue().isEmpty() && queue.getValue().peek().expiresAt <= now) {
+                    deadLetter(queue.getKey(), queue.getValue().poll().message);
+                }
+            }
+        }
+        now = until;
+    }
+
+    private void enqueue(String queueName, Message message) {
+        Queue queue = queues.get(queueName);
+        if (queue == null) {
+            throw new IllegalStateException("No queue " + queueName);
+        }
+        long expiresAt = Long.MAX_VALUE;
+        if (queue.getArguments().get(X_MESSAGE_TTL) instanceof Number ttl) {
+            expiresAt = now + ttl.longValue();
+        }
+        String expiration = message.getMessageProperties().getExpiration();
+        if (expiration != null) {
+            expiresAt = Math.min(expiresAt, now + Long.parseLong(expiration));
+        }
+        contents(queueName).add(new Entry(message, expiresAt));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deadLetter(String queueName, Message message) {
+        Map<String, Object> arguments = queues.get(queueName).getArguments();
+        if (arguments.get(X_DEAD_LETTER_EXCHANGE) == null) {
+            return;
+        }
+        MessageProperties messageProperties = message.getMessageProperties();
+        List<Map<String, Object>> xDeath = new ArrayList<>();
+        Object previous = messageProperties.getHeader("x-death");
+        long count = 1;
+        if (previous instanceof List<?> entries) {
+            for (Object entry : entries) {
+                Map<String, Object> death = (Map<String, Object>) entry;
+                if (queueName.equals(death.get("queue"))) {
+                    count += ((Number) death.get("count")).longValue();
+                } else {
+                    xDeath.add(death);
+                }
+            }
+        }
+        // the most recent first
+        xDeath.add(0, Map.of("queue", queueName, "reason", "expired", "count", count));
+        messageProperties.setHeader("x-death", xDeath);
+        messageProperties.setExpiration(null);
+        publish((String) arguments.get(X_DEAD_LETTER_EXCHANGE), (String) arguments.get(X_DEAD_LETTER_ROUTING_KEY), message);
+    }
+
+    private Deque<Entry> contents(String queueName) {
+        Deque<Entry> queue = contents.get(queueName);
+        if (queue == null) {
+            throw new IllegalStateException("No queue " + queueName);
+        }
+        return queue;
+    }
+
+    private static Message copy(Message message) {
+        MessageProperties source = message.getMessageProperties();
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.getHeaders().putAll(source.getHeaders());
+        messageProperties.setExpiration(source.getExpiration());
+        messageProperties.setMessageId(source.getMessageId());
+        messageProperties.setTimestamp(source.getTimestamp());
+        return new Message(message.getBody(), messageProperties);
+    }
+
+    private record Entry(Message message, long expiresAt) {
+    }
+
+    private record Delayed(long releaseAt, String queueName, Message message) {
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.delayedretry.rabbit;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.ImmediateRequeueAmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import static com.example.delayedretry.rabbit.ListenerCircuitBreaker.State.CLOSED;
+import static com.example.delayedretry.rabbit.ListenerCircuitBreaker.State.HALF_OPEN;
+import static com.example.delayedretry.rabbit.ListenerCircuitBreaker.State.OPEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ListenerCircuitBreakerTest {
+
+    SimpleMessageListenerContainer containerMock;
+    Channel channelMock;
+    MethodInvocation invocationMock;
+    Object[] arguments;
+
+    ListenerCircuitBreaker target;
+    MethodInterceptor gate;
+    MethodInterceptor observer;
+
+    @BeforeEach
+    void setUp() {
+        containerMock = mock(SimpleMessageListenerContainer.class);
+        when(containerMock.getQueueNames()).thenReturn(new String[]{"queue"});
+        channelMock = mock(Channel.class);
+        invocationMock = mock(MethodInvocation.class);
+
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("queue");
+        messageProperties.setDeliveryTag(7L);
+        arguments = new Object[]{channelMock, new Message("payload".getBytes(), messageProperties)};
+        lenient().when(invocationMock.getArguments()).thenReturn(arguments);
+
+        build(false, 100);
+    }
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+    }
+
+    @Test
+    void shouldOpenCircuitAndStopContainerWhenFailureRateCrossesThreshold() throws Throwable {
+        // when
+        handle(5, 4);
+        assertEquals(CLOSED, target.state("queue"));
+        handle(0, 1);
+
+        // then
+        assertEquals(OPEN, target.state("queue"));
+        verify(containerMock, timeout(1_000)).stop();
+    }
+
+    @Test
+    void shouldRequeueDeliveriesWhileCircuitIsOpen() throws Throwable {
+        // given
+        target.close();
+        build(false, 60_000);
+        handle(0, 10);
+
+        // when
+        assertThrows(ImmediateRequeueAmqpException.class, () -> gate.invoke(invocationMock));
+
+        // then the listener is not invoked
+        verify(invocationMock, times(10)).proceed();
+    }
+
+    @Test
+    void shouldNackDeliveriesWhileCircuitIsOpenInManualAckMode() throws Throwable {
+        // given
+        target.close();
+        build(true, 60_000);
+        handle(0, 10);
+
+        // when
+        Object result = gate.invoke(invocationMock);
+
+        // then
+        assertNull(result);
+        verify(channelMock).basicNack(7L, false, true);
+    }
+
+    @Test
+    void shouldHalfOpenAndCloseCircuitWhenProbesSucceed() throws Throwable {
+        // given
+        handle(0, 10);
+
+        // when
+        verify(containerMock, timeout(1_000)).start();
+        assertEquals(HALF_OPEN, target.state("queue"));
+        handle(2, 0);
+
+        // then only the probes were admitted and they closed the circuit
+        assertEquals(CLOSED, target.state("queue"));
+        handle(1, 0);
+        assertEquals(CLOSED, target.state("queue"));
+    }
+
+    @Test
+    void shouldRejectDeliveriesBeyondTheProbesWhileHalfOpen() throws Throwable {
+        // given
+        handle(0, 10);
+        verify(containerMock, timeout(1_000)).start();
+
+        // when the probes are still running
+        doReturn(null).when(invocationMock).proceed();
+        gate.invoke(invocationMock);
+        gate.invoke(invocationMock);
+
+        // then
+        assertThrows(ImmediateRequeueAmqpException.class, () -> gate.invoke(invocationMock));
+        verify(channelMock, never()).basicNack(7L, false, true);
+    }
+
+    @Test
+    void shouldProbeWithSingleConsumerWithoutRequeueingWhileHalfOpen() throws Throwable {
+        // given
+        handle(0, 10);
+
+        // when
+        InOrder inOrder = inOrder(containerMock);
+        inOrder.verify(containerMock, timeout(1_000)).stop();
+        inOrder.verify(containerMock, timeout(1_000)).setConcurrentConsumers(1);
+        inOrder.verify(containerMock).setMaxConcurrentConsumers(1);
+        inOrder.verify(containerMock).setPrefetchCount(2);
+        inOrder.verify(containerMock).start();
+
+        // then the single consumer hands its deliveries to the listener one after the other, none is requeued
+        int requeues = 0;
+        doReturn(null).when(invocationMock).proceed();
+        for (int i = 0; i < 5; i++) {
+            try {
+                gate.invoke(chain());
+            } catch (ImmediateRequeueAmqpException e) {
+                requeues++;
+            }
+        }
+        assertEquals(0, requeues);
+        assertEquals(CLOSED, target.state("queue"));
+
+        // and the consumers and the prefetch of the container are restored
+        inOrder.verify(containerMock, timeout(1_000)).setPrefetchCount(50);
+        inOrder.verify(containerMock).setMaxConcurrentConsumers(8);
+        inOrder.verify(containerMock).setConcurrentConsumers(4);
+    }
+
+    @Test
+    void shouldOpenCircuitAgainWhenProbeFails() throws Throwable {
+        // given
+        handle(0, 10);
+        verify(containerMock, timeout(1_000)).start();
+
+        // when
+        handle(0, 1);
+
+        // then
+        assertEquals(OPEN, target.state("queue"));
+        verify(containerMock, timeout(1_000).times(2)).stop();
+    }
+
+    private void build(boolean manualAck, long openDuration) {
+        target = ListenerCircuitBreaker.builder()
+                .failureRateThreshold(0.5)
+                .minSamples(10)
+                .window(60_000)
+                .openDuration(openDuration)
+                .probes(2)
+                .manualAck(manualAck)
+                .build();
+        target.register(containerMock, 4, 8, 50);
+        gate = target.gate();
+        observer = target.observer();
+    }
+
+    // invokes the gate, the listener and the observer, as the advice chain does
+    private void handle(int successes, int failures) throws Throwable {
+        MethodInvocation chain = chain();
+
+        if (successes > 0) {
+            doReturn(null).when(invocationMock).proceed();
+            for (int i = 0; i < successes; i++) {
+                gate.invoke(chain);
+            }
+        }
+        if (failures > 0) {
+            doThrow(new IllegalStateException("Expected test exception")).when(invocationMock).proceed();
+            for (int i = 0; i < failures; i++) {
+                assertThrows(IllegalStateException.class, () -> gate.invoke(chain));
+            }
+        }
+    }
+
+    // the advices after the gate, invoking the listener and the observer
+    private MethodInvocation chain() throws Throwable {
+        MethodInvocation chain = mock(MethodInvocation.class);
+        lenient().when(chain.getArguments()).thenReturn(arguments);
+        lenient().when(chain.proceed()).thenAnswer(invocation -> observer.invoke(invocationMock));
+        return chain;
+    }
+}
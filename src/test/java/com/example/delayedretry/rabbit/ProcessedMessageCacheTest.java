@@ -0,0 +1,57 @@
+package com.example.delayedretry.rabbit;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProcessedMessageCacheTest {
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void shouldContainKeyUntilItExpires(boolean offHeap) {
+        // given
+        ProcessedMessageCache target = new ProcessedMessageCache(1_000, 100, offHeap);
+        long hash = ProcessedMessageCache.hash("queue", "message-1");
+
+        // when
+        target.put(hash, 1_000);
+
+        // then
+        assertTrue(target.contains(hash, 1_099));
+        assertFalse(target.contains(hash, 1_100));
+        assertFalse(target.contains(ProcessedMessageCache.hash("queue", "message-2"), 1_000));
+    }
+
+    @Test
+    void shouldEvictKeyClosestToExpiringWhenBucketIsFull() {
+        // given a single bucket
+        ProcessedMessageCache target = new ProcessedMessageCache(ProcessedMessageCache.WAYS, 1_000, false);
+        for (int i = 0; i < ProcessedMessageCache.WAYS; i++) {
+            target.put(i + 1, i);
+        }
+
+        // when
+        target.put(100, 50);
+
+        // then the oldest key was replaced
+        assertFalse(target.contains(1, 50));
+        assertTrue(target.contains(2, 50));
+        assertTrue(target.contains(100, 50));
+    }
+
+    @Test
+    void shouldRoundCapacityUpToBuckets() {
+        assertEquals(16, new ProcessedMessageCache(9, 1_000, false).capacity());
+        assertEquals(8, new ProcessedMessageCache(1, 1_000, false).capacity());
+    }
+
+    @Test
+    void shouldHashSameKeyOfTwoQueuesDifferently() {
+        assertNotEquals(ProcessedMessageCache.hash("queue-1", "message"), ProcessedMessageCache.hash("queue-2", "message"));
+    }
+}
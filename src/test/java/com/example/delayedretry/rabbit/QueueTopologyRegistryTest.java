@@ -0,0 +1,118 @@
+package com.example.delayedretry.rabbit;
+
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Queue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class QueueTopologyRegistryTest {
+
+    AmqpAdmin amqpAdminMock;
+    QueueTopologyTemplate queueTopologyTemplate;
+    ExponentialDelayHandler delayHandler;
+
+    @BeforeEach
+    void setUp() {
+        amqpAdminMock = mock(AmqpAdmin.class);
+        queueTopologyTemplate = new QueueTopologyTemplate(mock(AmqpTemplate.class), amqpAdminMock);
+        delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(4_000)
+                .maxRetryAttempts(3)
+                .multiplier(2.0)
+                .build();
+    }
+
+    @Test
+    void shouldDeclareQueueFamiliesInParallel() throws Exception {
+        // given
+        int families = 4;
+        CountDownLatch allDeclaring = new CountDownLatch(families);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        lenient().doAnswer(invocation -> {
+            threads.add(Thread.currentThread().getName());
+            allDeclaring.countDown();
+            // each declaration waits for the others, which only completes if they run concurrently
+            assertTrue(allDeclaring.await(5, TimeUnit.SECONDS));
+            return null;
+        }).when(amqpAdminMock).declareQueue(argThat(queue -> queue.getName().startsWith("dlq.")));
+
+        QueueTopologyRegistry target = new QueueTopologyRegistry(queueTopologyTemplate, families);
+        for (int i = 0; i < families; i++) {
+            target.register(new QueueFamily("queue" + i, RetryTopology.PER_MESSAGE_TTL, delayHandler));
+        }
+
+        // when
+        target.declareAll();
+
+        // then
+        assertEquals(families, threads.size());
+        verify(amqpAdminMock, times(3 * families)).declareQueue(any());
+    }
+
+    @Test
+    void shouldDeclareFamilyWhoseQueuesAreAlreadyDeclared() {
+        // given the broker checks the arguments of the existing queues on their declaration
+        QueueTopologyRegistry target = new QueueTopologyRegistry(queueTopologyTemplate, 2)
+                .register(new QueueFamily("queue", RetryTopology.TIERED_TTL, delayHandler));
+
+        // when
+        target.declareAll();
+
+        // then
+        verify(amqpAdminMock, never()).getQueueProperties(any());
+        for (String queueName : List.of("retry.queue.1000", "retry.queue.2000", "retry.queue.4000", "queue", "dlq.queue")) {
+            verify(amqpAdminMock, times(1)).declareQueue(argThat(queue -> queue.getName().equals(queueName)));
+        }
+
+        // and its tiered routes are registered
+        assertEquals("retry.queue.2000", queueTopologyTemplate.getRoutingCache().routes("queue").tieredRetryRoutingKey(2_000));
+    }
+
+    @Test
+    void shouldRethrowDeclarationFailureOnceAllFamiliesAreDeclared() {
+        // given
+        // a single answer for all the queues, the families are declared in any order
+        doAnswer(invocation -> {
+            if (invocation.<Queue>getArgument(0).getName().equals("retry.failing")) {
+                throw new AmqpException("Expected test exception");
+            }
+            return null;
+        }).when(amqpAdminMock).declareQueue(any());
+        QueueTopologyRegistry target = new QueueTopologyRegistry(queueTopologyTemplate, 2)
+                .register(new QueueFamily("failing", RetryTopology.PER_MESSAGE_TTL, delayHandler))
+                .register(new QueueFamily("queue", RetryTopology.PER_MESSAGE_TTL, delayHandler));
+
+        // when
+        assertThrows(AmqpException.class, target::declareAll);
+
+        // then
+        verify(amqpAdminMock, times(1)).declareQueue(argThat(queue -> queue.getName().equals("dlq.queue")));
+        verify(amqpAdminMock, never()).declareQueue(argThat(queue -> queue.getName().equals("dlq.failing")));
+    }
+}
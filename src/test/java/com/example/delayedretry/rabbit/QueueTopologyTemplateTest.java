@@ -1,22 +1,33 @@
 package com.example.delayedretry.rabbit;
 
 import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInterceptor;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.aop.ProxyMethodInvocation;
 import org.springframework.amqp.core.AmqpAdmin;
 import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 
 import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_DLQ_QUEUE_PREFIX;
 import static com.example.delayedretry.rabbit.QueueTopologyTemplate.DEFAULT_RETRY_QUEUE_PREFIX;
 import static com.example.delayedretry.rabbit.QueueTopologyTemplate.X_DEAD_LETTER_EXCHANGE;
 import static com.example.delayedretry.rabbit.QueueTopologyTemplate.X_DEAD_LETTER_ROUTING_KEY;
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.X_MESSAGE_TTL;
+import static com.example.delayedretry.rabbit.QueueTopologyTemplate.X_QUEUE_LEADER_LOCATOR;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.springframework.amqp.rabbit.core.RabbitAdmin.DEFAULT_EXCHANGE_NAME;
 
 @ExtendWith(MockitoExtension.class)
@@ -82,4 +93,185 @@ class QueueTopologyTemplateTest {
                                 && queue.isDurable()
                 ));
     }
-}
\ No newline at end of file
+
+    @Test
+    void shouldCreateTieredQueueTopology() {
+        // given
+        String queueName = "queueName";
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1000L)
+                .maxDelay(4000L)
+                .multiplier(2.0)
+                .maxRetryAttempts(5)
+                .build();
+
+        // when
+        target.createQueue(queueName, RetryTopology.TIERED_TTL, delayHandler);
+
+        // then
+        for (long delay : new long[]{1000L, 2000L, 4000L}) {
+            verify(amqpAdminMock, times(1))
+                    .declareQueue(argThat(queue ->
+                            queue.getName().equals(DEFAULT_RETRY_QUEUE_PREFIX + queueName + "." + delay)
+                                    && queue.getArguments().get(X_DEAD_LETTER_EXCHANGE).equals(DEFAULT_EXCHANGE_NAME)
+                                    && queue.getArguments().get(X_DEAD_LETTER_ROUTING_KEY).equals(queueName)
+                                    && queue.getArguments().get(X_MESSAGE_TTL).equals(delay)
+                                    && queue.getArguments().get("x-queue-type").equals("quorum")
+                                    && queue.isDurable()
+                    ));
+        }
+
+        verify(amqpAdminMock, times(1))
+                .declareQueue(argThat(queue ->
+                        queue.getName().equals(queueName)
+                                && queue.getArguments().get(X_DEAD_LETTER_ROUTING_KEY).equals(DEFAULT_DLQ_QUEUE_PREFIX.concat(queueName))
+                ));
+
+        verify(amqpAdminMock, times(1))
+                .declareQueue(argThat(queue -> queue.getName().equals(DEFAULT_DLQ_QUEUE_PREFIX.concat(queueName))));
+
+        // and the queue shared by the last delays is declared once
+        verify(amqpAdminMock, times(5)).declareQueue(any());
+    }
+
+    @Test
+    void shouldDeclareShardsOfEachTieredRetryQueueDeadLetteringIntoTheQueue() {
+        // given
+        String queueName = "queueName";
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1000L)
+                .maxDelay(2000L)
+                .multiplier(2.0)
+                .maxRetryAttempts(2)
+                .build();
+        target = new QueueTopologyTemplate(amqpTemplateMock, amqpAdminMock, null, QueueTopologyOptions.builder()
+                .retryShards(3, message -> message.getMessageProperties().getMessageId())
+                .build());
+
+        // when
+        target.createQueue(queueName, RetryTopology.TIERED_TTL, delayHandler);
+
+        // then
+        for (long delay : new long[]{1000L, 2000L}) {
+            for (int shard = 0; shard < 3; shard++) {
+                String shardName = DEFAULT_RETRY_QUEUE_PREFIX + queueName + "." + delay + ".shard-" + shard;
+                verify(amqpAdminMock, times(1))
+                        .declareQueue(argThat(queue ->
+                                queue.getName().equals(shardName)
+                                        && queue.getArguments().get(X_DEAD_LETTER_ROUTING_KEY).equals(queueName)
+                                        && queue.getArguments().get(X_MESSAGE_TTL).equals(delay)
+                                        && queue.getArguments().get("x-queue-type").equals("quorum")
+                                        && queue.getArguments().get(X_QUEUE_LEADER_LOCATOR).equals("balanced")
+                        ));
+            }
+        }
+        verify(amqpAdminMock, times(8)).declareQueue(any());
+        assertEquals(8, QueueTopologyTemplate.queueNames(new QueueFamily(queueName, RetryTopology.TIERED_TTL, delayHandler), false, 3).size());
+    }
+
+    @Test
+    void shouldBindQueueToDelayedMessageExchangeWithoutRetryQueue() {
+        // given
+        String queueName = "queueName";
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1000L)
+                .maxDelay(2000L)
+                .multiplier(2.0)
+                .maxRetryAttempts(2)
+                .build();
+
+        // when
+        target.createQueue(queueName, RetryTopology.DELAYED_MESSAGE_EXCHANGE, delayHandler);
+
+        // then
+        verify(amqpAdminMock, times(1)).declareExchange(argThat(exchange ->
+                exchange.getName().equals(DelayedMessageExchangeBackend.DEFAULT_DELAYED_EXCHANGE_NAME)
+                        && exchange.getType().equals(DelayedMessageExchangeBackend.X_DELAYED_MESSAGE)
+                        && exchange.getArguments().get(DelayedMessageExchangeBackend.X_DELAYED_TYPE).equals("direct")
+                        && exchange.isDurable()));
+        verify(amqpAdminMock, times(1)).declareBinding(argThat(binding ->
+                binding.getExchange().equals(DelayedMessageExchangeBackend.DEFAULT_DELAYED_EXCHANGE_NAME)
+                        && binding.getDestination().equals(queueName)
+                        && binding.getRoutingKey().equals(queueName)));
+        // the queue and its dlq only
+        verify(amqpAdminMock, times(2)).declareQueue(any());
+    }
+
+    @Test
+    void shouldRetryQueueFamilyWithItsOwnDelayHandler() throws Throwable {
+        // given
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1000L)
+                .maxDelay(4000L)
+                .multiplier(2.0)
+                .maxRetryAttempts(3)
+                .build();
+        ExponentialDelayHandler slowDelayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(30000L)
+                .maxDelay(60000L)
+                .multiplier(2.0)
+                .maxRetryAttempts(3)
+                .build();
+        MethodInterceptor interceptor = target.createDelayedRetryInterceptor(delayHandler);
+        target.createQueue(new QueueFamily("slow", RetryTopology.PER_MESSAGE_TTL, slowDelayHandler));
+
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("slow");
+        Message message = new Message("payload".getBytes(), messageProperties);
+        ProxyMethodInvocation invocationMock = mock(ProxyMethodInvocation.class);
+        when(invocationMock.getArguments()).thenReturn(new Object[]{mock(Channel.class), message});
+        when(invocationMock.getMethod()).thenReturn(Object.class.getMethod("toString"));
+        when(invocationMock.invocableClone()).thenReturn(invocationMock);
+        when(invocationMock.proceed()).thenThrow(new IllegalStateException("Expected test exception"));
+
+        // when
+        interceptor.invoke(invocationMock);
+
+        // then
+        verify(amqpTemplateMock, times(1))
+                .send(eq(DEFAULT_EXCHANGE_NAME), eq("retry.slow"), argThat(sent -> "30000".equals(sent.getMessageProperties().getExpiration())));
+    }
+
+    @Test
+    void shouldDeadLetterRetriesIntoRedeliveryQueueAndRetryItsFailures() throws Throwable {
+        // given
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1000L)
+                .maxDelay(4000L)
+                .multiplier(2.0)
+                .maxRetryAttempts(3)
+                .build();
+        target = new QueueTopologyTemplate(amqpTemplateMock, amqpAdminMock, null, QueueTopologyOptions.builder()
+                .isolatedRedelivery(true)
+                .build());
+        MethodInterceptor interceptor = target.createDelayedRetryInterceptor(delayHandler);
+
+        // when
+        target.createQueue(new QueueFamily("queueName", RetryTopology.PER_MESSAGE_TTL, delayHandler));
+
+        // then the retry queue dead letters into the redelivery queue, which dead letters into the dlq
+        verify(amqpAdminMock, times(1))
+                .declareQueue(argThat(queue ->
+                        queue.getName().equals("retry.redelivery.queueName")
+                                && queue.getArguments().get(X_DEAD_LETTER_ROUTING_KEY).equals("redelivery.queueName")));
+        verify(amqpAdminMock, times(1))
+                .declareQueue(argThat(queue ->
+                        queue.getName().equals("redelivery.queueName")
+                                && queue.getArguments().get(X_DEAD_LETTER_ROUTING_KEY).equals("dlq.queueName")));
+        verify(amqpAdminMock, times(4)).declareQueue(any());
+
+        // and a message failed on the redelivery queue is retried through the retry queue of the redelivery queue
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("redelivery.queueName");
+        Message message = new Message("payload".getBytes(), messageProperties);
+        ProxyMethodInvocation invocationMock = mock(ProxyMethodInvocation.class);
+        when(invocationMock.getArguments()).thenReturn(new Object[]{mock(Channel.class), message});
+        when(invocationMock.getMethod()).thenReturn(Object.class.getMethod("toString"));
+        when(invocationMock.invocableClone()).thenReturn(invocationMock);
+        when(invocationMock.proceed()).thenThrow(new IllegalStateException("Expected test exception"));
+
+        interceptor.invoke(invocationMock);
+
+        verify(amqpTemplateMock, times(1)).send(eq(DEFAULT_EXCHANGE_NAME), eq("retry.redelivery.queueName"), any(Message.class));
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.delayedretry.rabbit;
+
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.ImmediateRequeueAmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class VirtualThreadDispatcherTest {
+
+    Channel channelMock;
+    MethodInvocation invocationMock;
+    Object[] arguments;
+
+    VirtualThreadDispatcher target;
+
+    @BeforeEach
+    void setUp() {
+        channelMock = mock(Channel.class);
+        invocationMock = mock(MethodInvocation.class);
+
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setDeliveryTag(7L);
+        arguments = new Object[]{channelMock, new Message("payload".getBytes(), messageProperties)};
+        when(invocationMock.getArguments()).thenReturn(arguments);
+
+        // the dispatching does not depend on the thread type, platform threads keep the test on Java 17
+        target = new VirtualThreadDispatcher(2, Executors.newCachedThreadPool());
+    }
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+    }
+
+    @Test
+    void shouldAckDeliveryOnceTheChainReturns() throws Throwable {
+        // given
+        doReturn(null).when(invocationMock).proceed();
+
+        // when
+        Object result = target.invoke(invocationMock);
+
+        // then the consumer thread returns right away and the delivery is acked by the dispatched task
+        assertNull(result);
+        verify(channelMock, timeout(1_000)).basicAck(7L, false);
+    }
+
+    @Test
+    void shouldRequeueDeliveryRejectedByTheCircuitBreaker() throws Throwable {
+        // given
+        doThrow(new ImmediateRequeueAmqpException("Circuit open")).when(invocationMock).proceed();
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(channelMock, timeout(1_000)).basicNack(7L, false, true);
+        verify(channelMock, never()).basicAck(7L, false);
+    }
+
+    @Test
+    void shouldRejectDeliveryWhenRecoveryFails() throws Throwable {
+        // given
+        doThrow(new AmqpRejectAndDontRequeueException("Recovery failed")).when(invocationMock).proceed();
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(channelMock, timeout(1_000)).basicNack(7L, false, false);
+    }
+
+    @Test
+    void shouldNotLeakFailureToSettleDeliveryOnClosedChannel() throws Throwable {
+        // given
+        AtomicReference<Throwable> uncaught = new AtomicReference<>();
+        target.close();
+        target = new VirtualThreadDispatcher(2, Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setUncaughtExceptionHandler((t, e) -> uncaught.set(e));
+            return thread;
+        }));
+        AlreadyClosedException closed = new AlreadyClosedException(new ShutdownSignalException(false, false, null, channelMock));
+        doReturn(null).when(invocationMock).proceed();
+        doThrow(closed).when(channelMock).basicAck(7L, false);
+        doThrow(closed).when(channelMock).basicNack(7L, false, false);
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(channelMock, timeout(1_000)).basicNack(7L, false, false);
+        target.close();
+        assertNull(uncaught.get());
+        assertEquals(0, target.inFlight());
+    }
+
+    @Test
+    void shouldBlockConsumerThreadWhilePermitsAreTaken() throws Throwable {
+        // given two blocked deliveries
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> release.await(5, TimeUnit.SECONDS)).when(invocationMock).proceed();
+        target.invoke(invocationMock);
+        target.invoke(invocationMock);
+        assertEquals(2, target.inFlight());
+
+        // when
+        CountDownLatch dispatched = new CountDownLatch(1);
+        Thread consumer = new Thread(() -> {
+            try {
+                target.invoke(invocationMock);
+                dispatched.countDown();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        consumer.start();
+
+        // then the third delivery waits for a permit
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (consumer.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+        assertEquals(Thread.State.WAITING, consumer.getState());
+        assertEquals(1, dispatched.getCount());
+        release.countDown();
+        assertTrue(dispatched.await(1, TimeUnit.SECONDS));
+        consumer.join(1_000);
+    }
+}
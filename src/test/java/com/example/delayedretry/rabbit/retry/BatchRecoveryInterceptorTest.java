@@ -0,0 +1,166 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.amqp.rabbit.support.ListenerExecutionFailedException;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class BatchRecoveryInterceptorTest {
+
+    Channel channelMock;
+    MethodInvocation invocationMock;
+    MessageRecoverer recovererMock;
+    List<Message> batch;
+
+    BatchRecoveryInterceptor target;
+
+    @BeforeEach
+    void setUp() {
+        channelMock = mock(Channel.class);
+        invocationMock = mock(MethodInvocation.class);
+        recovererMock = mock(MessageRecoverer.class);
+        batch = List.of(message(1L, null), message(2L, null), message(3L, null));
+        when(invocationMock.getArguments()).thenReturn(new Object[]{channelMock, batch});
+
+        target = new BatchRecoveryInterceptor(recovererMock);
+    }
+
+    @Test
+    void shouldAckHandledBatchWithSingleMultipleAck() throws Throwable {
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(channelMock, times(1)).basicAck(3L, true);
+        verify(recovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldRecoverOnlyFailedMessagesOfBatch() throws Throwable {
+        // given
+        IllegalStateException failure = new IllegalStateException("Expected test exception");
+        when(invocationMock.proceed()).thenThrow(new ListenerExecutionFailedException("Listener failed",
+                new PartialBatchFailureException(Map.of(batch.get(1), failure)), batch.toArray(Message[]::new)));
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(recovererMock, times(1)).recover(same(batch.get(1)), argThat(cause -> cause.getCause() == failure));
+        verify(recovererMock, never()).recover(same(batch.get(0)), any());
+        verify(recovererMock, never()).recover(same(batch.get(2)), any());
+        verify(channelMock, times(1)).basicAck(3L, true);
+        verify(channelMock, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void shouldRecoverEveryMessageWhenWholeBatchFails() throws Throwable {
+        // given
+        when(invocationMock.proceed()).thenThrow(new IllegalStateException("Expected test exception"));
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(recovererMock, times(3)).recover(any(), any());
+        verify(channelMock, times(1)).basicAck(3L, true);
+    }
+
+    @Test
+    void shouldNackFailedMessageBeforeAckingBatchWhenRecoveryFails() throws Throwable {
+        // given
+        when(invocationMock.proceed()).thenThrow(new PartialBatchFailureException(Map.of(batch.get(0), new IllegalStateException())));
+        doThrow(new AmqpException("Expected test exception")).when(recovererMock).recover(same(batch.get(0)), any());
+
+        // when
+        target.invoke(invocationMock);
+
+        // then the messages after the nacked one are acked one by one
+        InOrder inOrder = inOrder(channelMock);
+        inOrder.verify(channelMock).basicNack(1L, false, true);
+        inOrder.verify(channelMock).basicAck(2L, false);
+        inOrder.verify(channelMock).basicAck(3L, false);
+        verify(channelMock, never()).basicAck(anyLong(), eq(true));
+    }
+
+    @Test
+    void shouldNotAckNackedLastMessageOfBatch() throws Throwable {
+        // given
+        when(invocationMock.proceed()).thenThrow(new PartialBatchFailureException(Map.of(batch.get(2), new IllegalStateException())));
+        doThrow(new AmqpException("Expected test exception")).when(recovererMock).recover(same(batch.get(2)), any());
+
+        // when
+        target.invoke(invocationMock);
+
+        // then the multiple ack stops before the nacked tag
+        InOrder inOrder = inOrder(channelMock);
+        inOrder.verify(channelMock).basicNack(3L, false, true);
+        inOrder.verify(channelMock).basicAck(2L, true);
+        verify(channelMock, never()).basicAck(eq(3L), anyBoolean());
+    }
+
+    @Test
+    void shouldRouteEachFailedMessageFromItsOwnRetryCount() throws Throwable {
+        // given
+        AmqpTemplate amqpTemplateMock = mock(AmqpTemplate.class);
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(2)
+                .multiplier(2.0)
+                .build();
+        target = new BatchRecoveryInterceptor(new RepublishDelayedMessageRecoverer(amqpTemplateMock, delayHandler));
+
+        Message firstFailure = message(4L, null);
+        Message exhausted = message(5L, List.of(Map.of("queue", "retry.queue", "count", 2L)));
+        when(invocationMock.getArguments()).thenReturn(new Object[]{channelMock, List.of(firstFailure, exhausted)});
+        when(invocationMock.proceed()).thenThrow(new PartialBatchFailureException(Map.of(
+                firstFailure, new IllegalStateException("Expected test exception"),
+                exhausted, new IllegalStateException("Expected test exception"))));
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(amqpTemplateMock, times(1)).send(eq(""), eq("retry.queue"), same(firstFailure));
+        verify(amqpTemplateMock, times(1)).send(eq(""), eq("dlq.queue"), same(exhausted));
+        verify(channelMock, times(1)).basicAck(5L, true);
+    }
+
+    private static Message message(long deliveryTag, List<Map<String, ?>> xDeath) {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setDeliveryTag(deliveryTag);
+        messageProperties.setConsumerQueue("queue");
+        if (xDeath != null) {
+            messageProperties.setHeader("x-death", xDeath);
+        }
+        return new Message("payload".getBytes(), messageProperties);
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.aop.ProxyMethodInvocation;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertTimeout;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ConfirmedRecoveryInterceptorTest {
+
+    Channel channelMock;
+    MethodInvocation invocationMock;
+    MessageRecoverer recovererMock;
+    PublisherConfirmWindow confirmWindow;
+    ExponentialDelayHandler delayHandler;
+    Message message;
+
+    ConfirmedRecoveryInterceptor target;
+
+    @BeforeEach
+    void setUp() {
+        channelMock = mock(Channel.class);
+        invocationMock = mock(MethodInvocation.class);
+        recovererMock = mock(MessageRecoverer.class);
+        confirmWindow = new PublisherConfirmWindow(10, 5_000);
+        delayHandler = ExponentialDelayHandler.builder().initialDelay(50).maxRetryAttempts(3).build();
+
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setDeliveryTag(42L);
+        message = new Message(new byte[0], messageProperties);
+        lenient().when(invocationMock.getArguments()).thenReturn(new Object[]{channelMock, message});
+
+        target = new ConfirmedRecoveryInterceptor(recovererMock, confirmWindow);
+    }
+
+    @Test
+    void shouldAckDeliveryHandledSuccessfully() throws Throwable {
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(channelMock, times(1)).basicAck(42L, false);
+        verify(recovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldAckFailedDeliveryOnceItsCopyIsConfirmed() throws Throwable {
+        // given
+        RuntimeException cause = new RuntimeException("Expected test exception");
+        when(invocationMock.proceed()).thenThrow(cause);
+
+        // and a recoverer publishing a copy
+        AtomicReference<CorrelationData> published = new AtomicReference<>();
+        doAnswer(invocation -> {
+            published.set(confirmWindow.correlate());
+            return null;
+        }).when(recovererMock).recover(message, cause);
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(channelMock, never()).basicAck(anyLong(), anyBoolean());
+
+        // when
+        published.get().getFuture().complete(new CorrelationData.Confirm(true, null));
+
+        // then
+        verify(channelMock, times(1)).basicAck(42L, false);
+    }
+
+    @Test
+    void shouldRequeueFailedDeliveryWhenRepublishFails() throws Throwable {
+        // given
+        RuntimeException cause = new RuntimeException("Expected test exception");
+        when(invocationMock.proceed()).thenThrow(cause);
+        doThrow(new AmqpException("Expected test exception")).when(recovererMock).recover(eq(message), any());
+
+        // when
+        target.invoke(invocationMock);
+
+        // then
+        verify(channelMock, times(1)).basicNack(42L, false, true);
+        verify(channelMock, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    void shouldParkFailedDeliveryWithoutAckingIt() throws Throwable {
+        // given
+        ProxyMethodInvocation proxyInvocationMock = mock(ProxyMethodInvocation.class);
+        ProxyMethodInvocation redeliveryMock = mock(ProxyMethodInvocation.class);
+        when(proxyInvocationMock.getArguments()).thenReturn(new Object[]{channelMock, message});
+        when(proxyInvocationMock.invocableClone()).thenReturn(redeliveryMock);
+        RuntimeException cause = new RuntimeException("Expected test exception");
+        when(proxyInvocationMock.proceed()).thenThrow(cause);
+        recovererMock = delayedRecoverer(cause);
+
+        LocalRetryScheduler localRetrySchedulerMock = mock(LocalRetryScheduler.class);
+        when(localRetrySchedulerMock.park(same(channelMock), same(message), same(delayHandler), any(), any())).thenReturn(true);
+        target = new ConfirmedRecoveryInterceptor(recovererMock, confirmWindow, localRetrySchedulerMock);
+
+        // when
+        target.invoke(proxyInvocationMock);
+
+        // then
+        verify(channelMock, never()).basicAck(anyLong(), anyBoolean());
+        verify(channelMock, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+        verify(recovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldRecoverFailedDeliveryRefusedByLocalRetryScheduler() throws Throwable {
+        // given
+        ProxyMethodInvocation proxyInvocationMock = mock(ProxyMethodInvocation.class);
+        when(proxyInvocationMock.getArguments()).thenReturn(new Object[]{channelMock, message});
+        when(proxyInvocationMock.invocableClone()).thenReturn(mock(ProxyMethodInvocation.class));
+        RuntimeException cause = new RuntimeException("Expected test exception");
+        when(proxyInvocationMock.proceed()).thenThrow(cause);
+        recovererMock = delayedRecoverer(cause);
+
+        LocalRetryScheduler localRetrySchedulerMock = mock(LocalRetryScheduler.class);
+        target = new ConfirmedRecoveryInterceptor(recovererMock, confirmWindow, localRetrySchedulerMock);
+
+        // when
+        target.invoke(proxyInvocationMock);
+
+        // then
+        verify(recovererMock, times(1)).recover(message, cause);
+        verify(channelMock, times(1)).basicAck(42L, false);
+    }
+
+    @Test
+    void shouldRequeueRejectedRedeliveryWithoutWaitingForFullWindow() throws Throwable {
+        // given a full window
+        confirmWindow = new PublisherConfirmWindow(1, 5_000);
+        confirmWindow.open(channelMock, 1L);
+        confirmWindow.correlate();
+        confirmWindow.close();
+
+        ProxyMethodInvocation proxyInvocationMock = mock(ProxyMethodInvocation.class);
+        when(proxyInvocationMock.getArguments()).thenReturn(new Object[]{channelMock, message});
+        when(proxyInvocationMock.invocableClone()).thenReturn(mock(ProxyMethodInvocation.class));
+        RuntimeException cause = new RuntimeException("Expected test exception");
+        when(proxyInvocationMock.proceed()).thenThrow(cause);
+        recovererMock = delayedRecoverer(cause);
+        doAnswer(invocation -> confirmWindow.correlate()).when(recovererMock).recover(message, cause);
+
+        // and a redelivery rejected by the executor of the local retries
+        AtomicReference<Runnable> fallback = new AtomicReference<>();
+        LocalRetryScheduler localRetrySchedulerMock = mock(LocalRetryScheduler.class);
+        when(localRetrySchedulerMock.park(same(channelMock), same(message), same(delayHandler), any(), any())).thenAnswer(invocation -> {
+            fallback.set(invocation.getArgument(4));
+            return true;
+        });
+        target = new ConfirmedRecoveryInterceptor(recovererMock, confirmWindow, localRetrySchedulerMock);
+        target.invoke(proxyInvocationMock);
+
+        // when
+        assertTimeout(Duration.ofSeconds(1), () -> fallback.get().run());
+
+        // then
+        verify(channelMock, times(1)).basicNack(42L, false, true);
+    }
+
+    @Test
+    void shouldParkFailedDeliveryWithScheduleOfItsQueue() throws Throwable {
+        // given
+        ProxyMethodInvocation proxyInvocationMock = mock(ProxyMethodInvocation.class);
+        when(proxyInvocationMock.getArguments()).thenReturn(new Object[]{channelMock, message});
+        when(proxyInvocationMock.invocableClone()).thenReturn(mock(ProxyMethodInvocation.class));
+        RuntimeException cause = new RuntimeException("Expected test exception");
+        when(proxyInvocationMock.proceed()).thenThrow(cause);
+        message.getMessageProperties().setConsumerQueue("queue");
+
+        // and a queue retried with its own schedule
+        ExponentialDelayHandler queueDelayHandler = ExponentialDelayHandler.builder().initialDelay(10).maxRetryAttempts(1).build();
+        RepublishDelayedMessageRecoverer queueRecovererMock = mock(RepublishDelayedMessageRecoverer.class);
+        when(queueRecovererMock.localRetrySchedule(cause)).thenReturn(queueDelayHandler);
+        recovererMock = new QueueDispatchingMessageRecoverer(mock(RepublishDelayedMessageRecoverer.class),
+                queueName -> "queue".equals(queueName) ? queueRecovererMock : null);
+
+        LocalRetryScheduler localRetrySchedulerMock = mock(LocalRetryScheduler.class);
+        when(localRetrySchedulerMock.park(same(channelMock), same(message), same(queueDelayHandler), any(), any())).thenReturn(true);
+        target = new ConfirmedRecoveryInterceptor(recovererMock, confirmWindow, localRetrySchedulerMock);
+
+        // when
+        target.invoke(proxyInvocationMock);
+
+        // then
+        verify(localRetrySchedulerMock, times(1)).park(same(channelMock), same(message), same(queueDelayHandler), any(), any());
+        verify(queueRecovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldRequeueParkedDeliveryRefusedByRedeliveryGate() throws Throwable {
+        // given
+        ProxyMethodInvocation proxyInvocationMock = mock(ProxyMethodInvocation.class);
+        ProxyMethodInvocation redeliveryMock = mock(ProxyMethodInvocation.class);
+        when(proxyInvocationMock.getArguments()).thenReturn(new Object[]{channelMock, message});
+        when(proxyInvocationMock.invocableClone()).thenReturn(redeliveryMock);
+        RuntimeException cause = new RuntimeException("Expected test exception");
+        when(proxyInvocationMock.proceed()).thenThrow(cause);
+        recovererMock = delayedRecoverer(cause);
+
+        // and a circuit opened while the delivery was parked
+        AtomicReference<Runnable> redelivery = new AtomicReference<>();
+        LocalRetryScheduler localRetrySchedulerMock = mock(LocalRetryScheduler.class);
+        when(localRetrySchedulerMock.park(same(channelMock), same(message), same(delayHandler), any(), any())).thenAnswer(invocation -> {
+            redelivery.set(invocation.getArgument(3));
+            return true;
+        });
+        target = new ConfirmedRecoveryInterceptor(recovererMock, confirmWindow, localRetrySchedulerMock)
+                .redeliveryGate(parked -> false);
+        target.invoke(proxyInvocationMock);
+
+        // when
+        redelivery.get().run();
+
+        // then
+        verify(channelMock, times(1)).basicNack(42L, false, true);
+        verify(redeliveryMock, never()).proceed();
+        verify(recovererMock, never()).recover(any(), any());
+    }
+
+    private RepublishDelayedMessageRecoverer delayedRecoverer(Throwable cause) {
+        RepublishDelayedMessageRecoverer delayedRecovererMock = mock(RepublishDelayedMessageRecoverer.class);
+        when(delayedRecovererMock.localRetrySchedule(cause)).thenReturn(delayHandler);
+        return delayedRecovererMock;
+    }
+}
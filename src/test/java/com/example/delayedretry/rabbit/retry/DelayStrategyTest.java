@@ -0,0 +1,68 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DelayStrategyTest {
+
+    private static final int DRAWS = 1_000;
+
+    @Test
+    void shouldReturnNominalDelayWithoutJitter() {
+        assertEquals(4_000L, DelayStrategy.NONE.delayMillis(4_000, 2_000));
+    }
+
+    @Test
+    void shouldDrawFullJitterBetweenZeroAndNominalDelay() {
+        // when
+        Set<Long> delays = draw(DelayStrategy.FULL_JITTER, 4_000, 0);
+
+        // then
+        assertTrue(delays.stream().allMatch(delay -> delay >= 0 && delay <= 4_000), delays::toString);
+        assertTrue(delays.size() > DRAWS / 2, "the delays are spread");
+    }
+
+    @Test
+    void shouldDrawEqualJitterBetweenHalfAndNominalDelay() {
+        // when
+        Set<Long> delays = draw(DelayStrategy.EQUAL_JITTER, 4_001, 0);
+
+        // then
+        assertTrue(delays.stream().allMatch(delay -> delay >= 2_001 && delay <= 4_001), delays::toString);
+        assertTrue(delays.size() > DRAWS / 4, "the delays are spread");
+    }
+
+    @Test
+    void shouldDrawDecorrelatedJitterFromPreviousDelayWithinBaseAndMaxDelay() {
+        // given
+        DelayStrategy target = DelayStrategy.decorrelatedJitter(1_000, 10_000);
+
+        // when
+        Set<Long> firstDelays = draw(target, 1_000, 0);
+        Set<Long> laterDelays = draw(target, 8_000, 5_000);
+
+        // then
+        assertTrue(firstDelays.stream().allMatch(delay -> delay >= 1_000 && delay <= 3_000), firstDelays::toString);
+        assertTrue(laterDelays.stream().allMatch(delay -> delay >= 1_000 && delay <= 10_000), laterDelays::toString);
+    }
+
+    @Test
+    void shouldNotJitterZeroDelay() {
+        assertEquals(0L, DelayStrategy.FULL_JITTER.delayMillis(0, 0));
+        assertEquals(0L, DelayStrategy.EQUAL_JITTER.delayMillis(0, 0));
+        assertEquals(0L, DelayStrategy.decorrelatedJitter(0, 0).delayMillis(0, 0));
+    }
+
+    private static Set<Long> draw(DelayStrategy strategy, long nominalDelay, long previousDelay) {
+        Set<Long> delays = new HashSet<>();
+        for (int i = 0; i < DRAWS; i++) {
+            delays.add(strategy.delayMillis(nominalDelay, previousDelay));
+        }
+        return delays;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExceptionClassifierTest {
+
+    @Test
+    void shouldClassifyByClosestRegisteredSuperclass() {
+        // given
+        ExceptionClassifier target = ExceptionClassifier.builder()
+                .fatal(IllegalArgumentException.class)
+                .retryable(NumberFormatException.class)
+                .build();
+
+        // when / then
+        assertTrue(target.classify(new IllegalArgumentException("Expected test exception")).isFatal());
+        assertFalse(target.classify(new NumberFormatException("Expected test exception")).isFatal());
+        assertSame(ExceptionClassifier.Classification.RETRYABLE, target.classify(new IllegalStateException("Expected test exception")));
+    }
+
+    @Test
+    void shouldClassifyWrappedCauseUnlessCauseTraversalIsDisabled() {
+        // given
+        Throwable cause = new RuntimeException("Listener failed", new MessageConversionException("Expected test exception"));
+
+        // when / then
+        assertTrue(ExceptionClassifier.builder().defaults().build().classify(cause).isFatal());
+        assertFalse(ExceptionClassifier.builder().defaults().traverseCauses(false).build().classify(cause).isFatal());
+    }
+
+    @Test
+    void shouldClassifyAnnotatedExceptionsAndTheirSubclassesAsFatal() {
+        // given
+        ExceptionClassifier target = ExceptionClassifier.builder()
+                .retryable(RetryableInvalidOrderException.class)
+                .build();
+
+        // when / then
+        assertTrue(target.classify(new InvalidOrderException()).isFatal());
+        assertTrue(target.classify(new UnknownOrderException()).isFatal());
+        assertFalse(target.classify(new RetryableInvalidOrderException()).isFatal());
+    }
+
+    @Test
+    void shouldStopWalkingCyclicCauseChain() {
+        // given
+        RuntimeException first = new RuntimeException("Expected test exception");
+        RuntimeException second = new RuntimeException("Expected test exception", first);
+        first.initCause(second);
+
+        // when / then
+        assertSame(ExceptionClassifier.Classification.RETRYABLE, ExceptionClassifier.builder().defaults().build().classify(first));
+    }
+
+    @NonRetryable
+    static class InvalidOrderException extends RuntimeException {
+    }
+
+    static class UnknownOrderException extends InvalidOrderException {
+    }
+
+    static class RetryableInvalidOrderException extends InvalidOrderException {
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExceptionHeaderPolicyTest {
+
+    @Test
+    void shouldFingerprintSameFailureWithDifferentMessagesTheSame() {
+        // given
+        ExceptionHeaderPolicy target = ExceptionHeaderPolicy.fingerprint(10, 16);
+
+        // when the same failure is thrown from the same place with different messages
+        String[] fingerprints = new String[2];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = target.fingerprint(failure("order " + i + " not found"));
+        }
+        String first = fingerprints[0];
+        String second = fingerprints[1];
+        String other = target.fingerprint(new IllegalArgumentException("order 1 not found"));
+
+        // then
+        assertEquals(first, second);
+        assertNotEquals(first, other);
+        assertNotNull(target.stackTraceOf(first));
+    }
+
+    @Test
+    void shouldEvictLeastRecentlyUsedFingerprints() {
+        // given
+        ExceptionHeaderPolicy target = ExceptionHeaderPolicy.fingerprint(10, 1);
+
+        // when
+        String first = target.fingerprint(failure("first"));
+        String second = target.fingerprint(new IllegalArgumentException("second"));
+
+        // then
+        assertNull(target.stackTraceOf(first));
+        assertNotNull(target.stackTraceOf(second));
+    }
+
+    @Test
+    void shouldTruncateEachExceptionOfTheCauseChain() {
+        // given
+        ExceptionHeaderPolicy target = ExceptionHeaderPolicy.truncated(2);
+        RuntimeException cause = new RuntimeException("wrapper", failure("root"));
+
+        // when
+        String stackTrace = target.stackTrace(cause);
+
+        // then
+        assertTrue(stackTrace.startsWith("java.lang.RuntimeException: wrapper\n"));
+        assertTrue(stackTrace.contains("Caused by: java.lang.IllegalStateException: root\n"));
+        assertEquals(4, stackTrace.lines().filter(line -> line.startsWith("\tat ")).count());
+    }
+
+    @Test
+    void shouldNotWriteStackTraceWithFingerprint() {
+        assertEquals("", ExceptionHeaderPolicy.fingerprint(10, 16).stackTrace(failure("failure")));
+    }
+
+    private static IllegalStateException failure(String message) {
+        return new IllegalStateException(message);
+    }
+}
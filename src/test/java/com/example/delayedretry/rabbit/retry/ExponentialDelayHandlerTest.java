@@ -2,8 +2,11 @@ package com.example.delayedretry.rabbit.retry;
 
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class ExponentialDelayHandlerTest {
@@ -152,4 +155,113 @@ class ExponentialDelayHandlerTest {
         // then
         assertEquals("1000", result);
     }
-}
\ No newline at end of file
+
+    @Test
+    void shouldClampPrimitiveLookupsToDelayTable() {
+        // given
+        ExponentialDelayHandler target = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(4)
+                .multiplier(3.0)
+                .build();
+
+        // then
+        assertEquals(1_000L, target.delayMillis(-1));
+        assertEquals(1_000L, target.delayMillis(0));
+        assertEquals(9_000L, target.delayMillis(2));
+        assertEquals(10_000L, target.delayMillis(3));
+        assertEquals(10_000L, target.delayMillis(Integer.MAX_VALUE));
+
+        assertEquals("1000", target.expirationFor(-1));
+        assertEquals("3000", target.expirationFor(1));
+        assertEquals("10000", target.expirationFor(42));
+    }
+
+    @Test
+    void shouldReturnPreRenderedExpirations() {
+        // given
+        ExponentialDelayHandler target = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(3)
+                .multiplier(2.0)
+                .build();
+
+        // then
+        assertSame(target.expirationFor(1), target.expirationFor(1));
+        assertSame(target.expirationFor(1), target.getDelay(1));
+    }
+
+    @Test
+    void shouldNotAllocateOnLookup() {
+        // given
+        ExponentialDelayHandler target = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(6)
+                .multiplier(2.0)
+                .build();
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // and a warmed up lookup path
+        long checksum = lookup(target, 100_000);
+
+        // when
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        checksum += lookup(target, 1_000_000);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        // then a million lookups allocate less than a single lookup used to
+        assertTrue(allocated < 1_024, "allocated " + allocated + " bytes, checksum " + checksum);
+    }
+
+    private static long lookup(ExponentialDelayHandler target, int iterations) {
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            checksum += target.delayMillis(i & 7);
+            checksum += target.expirationFor(i & 7).length();
+        }
+        return checksum;
+    }
+
+    @Test
+    void shouldJitterDelaysWithinTheirTier() {
+        // given
+        ExponentialDelayHandler target = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(5_000)
+                .maxRetryAttempts(4)
+                .multiplier(2.0)
+                .jitter(Jitter.FULL)
+                .build();
+
+        // then
+        assertTrue(target.isJittered());
+        for (int i = 0; i < 1_000; i++) {
+            long first = target.nextDelayWithinTier(0, 0);
+            long second = target.nextDelayWithinTier(1, first);
+            long last = target.nextDelayWithinTier(3, 0);
+            assertTrue(first >= 0 && first <= 1_000, "first=" + first);
+            assertTrue(second >= 1_000 && second <= 2_000, "second=" + second);
+            assertTrue(last >= 4_000 && last <= 5_000, "last=" + last);
+        }
+    }
+
+    @Test
+    void shouldUseNominalDelaysWithoutJitter() {
+        // given
+        ExponentialDelayHandler target = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(3)
+                .multiplier(2.0)
+                .build();
+
+        // then
+        assertFalse(target.isJittered());
+        assertEquals(2_000L, target.nextDelay(1, 0));
+        assertEquals(2_000L, target.nextDelayWithinTier(1, 0));
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.delayedretry.rabbit.retry.RetryCounts.X_LOCAL_RETRY_COUNT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class LocalRetrySchedulerTest {
+
+    Channel channelMock;
+    Runnable fallbackMock;
+    ExponentialDelayHandler delayHandler;
+
+    LocalRetryScheduler target;
+
+    @BeforeEach
+    void setUp() {
+        channelMock = mock(Channel.class);
+        fallbackMock = mock(Runnable.class);
+        delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(10)
+                .maxDelay(1_000)
+                .maxRetryAttempts(3)
+                .multiplier(10.0)
+                .build();
+        target = new LocalRetryScheduler(100, 2, 1, Runnable::run);
+    }
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+    }
+
+    @Test
+    void shouldRedeliverParkedMessageOnceDelayElapsed() throws InterruptedException {
+        // given
+        when(channelMock.isOpen()).thenReturn(true);
+        Message message = message(0L);
+        CountDownLatch redelivered = new CountDownLatch(1);
+
+        // when
+        boolean parked = target.park(channelMock, message, delayHandler, redelivered::countDown, fallbackMock);
+
+        // then
+        assertTrue(parked);
+        assertEquals(1L, message.getMessageProperties().<Long>getHeader(X_LOCAL_RETRY_COUNT));
+        assertTrue(redelivered.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void shouldLeaveDelayAboveCeilingToBroker() {
+        // given a message whose next delay is 1000ms
+        Message message = message(2L);
+
+        // then
+        assertFalse(target.park(channelMock, message, delayHandler, () -> {
+        }, fallbackMock));
+        assertNull(message.getMessageProperties().getHeader(X_LOCAL_RETRY_COUNT));
+    }
+
+    @Test
+    void shouldLeaveExhaustedMessageToRecoverer() {
+        assertFalse(target.park(channelMock, message(3L), delayHandler, () -> {
+        }, fallbackMock));
+    }
+
+    @Test
+    void shouldLimitParkedMessagesPerChannel() {
+        // when
+        boolean first = target.park(channelMock, message(1L), delayHandler, () -> {
+        }, fallbackMock);
+        boolean second = target.park(channelMock, message(1L), delayHandler, () -> {
+        }, fallbackMock);
+        boolean third = target.park(channelMock, message(1L), delayHandler, () -> {
+        }, fallbackMock);
+
+        // then
+        assertTrue(first);
+        assertTrue(second);
+        assertFalse(third);
+        assertTrue(target.park(mock(Channel.class), message(1L), delayHandler, () -> {
+        }, fallbackMock));
+    }
+
+    @Test
+    void shouldLeaveMessageToBrokerOnceRetryBudgetIsExhausted() {
+        // given an exhausted budget
+        target.retryBudgets(new RetryBudgets(0, 0, 10_000, RetryBudget.Exhaustion.DEAD_LETTER));
+        Message message = message(0L);
+
+        // when
+        boolean parked = target.park(channelMock, message, delayHandler, () -> {
+        }, fallbackMock);
+
+        // then
+        assertFalse(parked);
+        assertNull(message.getMessageProperties().getHeader(X_LOCAL_RETRY_COUNT));
+        assertEquals(0, target.parked());
+    }
+
+    @Test
+    void shouldNotRedeliverWhenChannelWasClosed() throws InterruptedException {
+        // given
+        when(channelMock.isOpen()).thenReturn(false);
+        CountDownLatch redelivered = new CountDownLatch(1);
+
+        // when
+        target.park(channelMock, message(0L), delayHandler, redelivered::countDown, fallbackMock);
+
+        // then
+        assertFalse(redelivered.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, target.parked());
+    }
+
+    @Test
+    void shouldRecoverThroughBrokerWhenExecutorRejectsRedelivery() {
+        // given
+        when(channelMock.isOpen()).thenReturn(true);
+        target = new LocalRetryScheduler(100, 2, 1, redelivery -> {
+            throw new RejectedExecutionException("Expected test exception");
+        });
+        Runnable redeliveryMock = mock(Runnable.class);
+
+        // when
+        boolean parked = target.park(channelMock, message(0L), delayHandler, redeliveryMock, fallbackMock);
+
+        // then
+        assertTrue(parked);
+        verify(fallbackMock, timeout(1_000).times(1)).run();
+        verify(redeliveryMock, never()).run();
+    }
+
+    private static Message message(long retryCount) {
+        MessageProperties messageProperties = new MessageProperties();
+        if (retryCount > 0) {
+            messageProperties.setHeader("x-death", List.of(Map.of("queue", "retry.queue", "count", retryCount)));
+        }
+        return new Message(new byte[0], messageProperties);
+    }
+}
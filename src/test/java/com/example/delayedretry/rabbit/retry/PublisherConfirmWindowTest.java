@@ -0,0 +1,172 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.AmqpTimeoutException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.ReturnedMessage;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeout;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class PublisherConfirmWindowTest {
+
+    Channel channelMock;
+
+    PublisherConfirmWindow target;
+
+    @BeforeEach
+    void setUp() {
+        channelMock = mock(Channel.class);
+        target = new PublisherConfirmWindow(2, 200);
+    }
+
+    @Test
+    void shouldNotCorrelateWhenNoDeliveryIsOpen() {
+        assertNull(target.correlate());
+    }
+
+    @Test
+    void shouldAckDeliveryOnlyOnceItsCopyIsConfirmed() throws Exception {
+        // given
+        target.open(channelMock, 1L);
+        CorrelationData correlationData = target.correlate();
+        target.close();
+
+        // then the delivery is not acked before the confirm
+        verify(channelMock, never()).basicAck(anyLong(), anyBoolean());
+        assertEquals(1, target.inFlight());
+
+        // when
+        correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+
+        // then
+        verify(channelMock, times(1)).basicAck(1L, false);
+        verify(channelMock, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+        assertEquals(0, target.inFlight());
+    }
+
+    @Test
+    void shouldAckDeliveryWhenNoCopyIsPublished() throws Exception {
+        // when
+        target.open(channelMock, 1L);
+        target.close();
+
+        // then
+        verify(channelMock, times(1)).basicAck(1L, false);
+    }
+
+    @Test
+    void shouldRequeueDeliveryWhenItsCopyIsNacked() throws Exception {
+        // given
+        target.open(channelMock, 1L);
+        CorrelationData correlationData = target.correlate();
+        target.close();
+
+        // when
+        correlationData.getFuture().complete(new CorrelationData.Confirm(false, "nack"));
+
+        // then
+        verify(channelMock, times(1)).basicNack(1L, false, true);
+        verify(channelMock, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    void shouldRequeueDeliveryWhenItsCopyIsReturned() throws Exception {
+        // given
+        target.open(channelMock, 1L);
+        CorrelationData correlationData = target.correlate();
+        target.close();
+
+        // when
+        correlationData.setReturned(new ReturnedMessage(new Message(new byte[0], new MessageProperties()), 312, "NO_ROUTE", "", "retry.queue"));
+        correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+
+        // then
+        verify(channelMock, times(1)).basicNack(1L, false, true);
+    }
+
+    @Test
+    void shouldRequeueDeliveryWhenItsCopyIsNotConfirmedInTime() throws Exception {
+        // given
+        target.open(channelMock, 1L);
+        assertNotNull(target.correlate());
+        target.close();
+
+        // then
+        verify(channelMock, timeout(1_000).times(1)).basicNack(1L, false, true);
+        assertEquals(0, target.inFlight());
+    }
+
+    @Test
+    void shouldWaitForFreeSlotWhenWindowIsFull() throws Exception {
+        // given
+        target = new PublisherConfirmWindow(1, 5_000);
+        target.open(channelMock, 1L);
+        CorrelationData first = target.correlate();
+        target.close();
+
+        // and the copy of the first delivery confirmed while the second one waits
+        CompletableFuture.runAsync(() -> first.getFuture().complete(new CorrelationData.Confirm(true, null)),
+                CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS));
+
+        // when
+        target.open(channelMock, 2L);
+        CorrelationData correlationData = target.correlate();
+
+        // then the slot was released by the confirmed copy of the first delivery
+        assertNotNull(correlationData);
+        verify(channelMock, times(1)).basicAck(1L, false);
+    }
+
+    @Test
+    void shouldFailRightAwayWhenWindowIsFullAndDeliveryCannotWait() {
+        // given
+        target = new PublisherConfirmWindow(1, 5_000);
+        target.open(channelMock, 1L);
+        target.correlate();
+        target.close();
+
+        // when
+        target.open(channelMock, 2L, false);
+
+        // then
+        assertTimeout(Duration.ofSeconds(1), () -> assertThrows(AmqpTimeoutException.class, () -> target.correlate()));
+    }
+
+    @Test
+    void shouldFailWhenInterruptedWaitingForFreeSlot() {
+        // given
+        target = new PublisherConfirmWindow(1, 5_000);
+        target.open(channelMock, 1L);
+        target.correlate();
+
+        // when
+        Thread.currentThread().interrupt();
+
+        // then
+        assertThrows(AmqpTimeoutException.class, () -> target.correlate());
+        assertTrue(Thread.interrupted());
+    }
+}
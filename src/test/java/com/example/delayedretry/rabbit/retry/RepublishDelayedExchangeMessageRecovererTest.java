@@ -0,0 +1,74 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class RepublishDelayedExchangeMessageRecovererTest {
+
+    AmqpTemplate amqpTemplateMock;
+    RetryRoutingCache routingCache;
+
+    RepublishDelayedMessageRecoverer target;
+
+    @BeforeEach
+    void setUp() {
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(3)
+                .multiplier(2.0)
+                .build();
+        amqpTemplateMock = mock(AmqpTemplate.class);
+        routingCache = new RetryRoutingCache();
+        target = new RepublishDelayedExchangeMessageRecoverer(amqpTemplateMock, delayHandler, routingCache, "retry.delayed")
+                .retryState(false);
+    }
+
+    @Test
+    void shouldPublishRetryToExchangeWithDelayHeaderAndRetryState() {
+        // given a message retried once, whose previous expiration is left on it
+        routingCache.register("queue", "redelivery.queue", List.of());
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("redelivery.queue");
+        messageProperties.setExpiration("1000");
+        messageProperties.setHeader(RetryState.X_RETRY_STATE, new RetryState(1, 0, 1_000).render());
+
+        // when
+        target.recover(new Message(new byte[0], messageProperties), new RuntimeException("Expected test exception"));
+
+        // then
+        verify(amqpTemplateMock).send(eq("retry.delayed"), eq("redelivery.queue"), any(Message.class));
+        assertEquals(2_000, messageProperties.getDelay());
+        assertNull(messageProperties.getExpiration());
+        assertEquals(2, RetryCounts.of(new Message(new byte[0], messageProperties)));
+    }
+
+    @Test
+    void shouldSendExhaustedMessageToDlqThroughDefaultExchange() {
+        // given
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("queue");
+        messageProperties.setHeader(RetryState.X_RETRY_STATE, new RetryState(3, 0, 4_000).render());
+
+        // when
+        target.recover(new Message(new byte[0], messageProperties), new RuntimeException("Expected test exception"));
+
+        // then
+        verify(amqpTemplateMock).send(eq(""), eq("dlq.queue"), any(Message.class));
+    }
+}
@@ -4,17 +4,27 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.AmqpTemplate;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+import org.springframework.amqp.rabbit.retry.RepublishMessageRecoverer;
+import org.springframework.amqp.rabbit.support.ListenerExecutionFailedException;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
 
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -125,4 +135,459 @@ class RepublishDelayedMessageRecovererTest {
 
         verify(errorMessageRecovererMock, times(1)).recover(message, cause);
     }
-}
\ No newline at end of file
+
+    @Test
+    void shouldRepublishMessageWithRoutingKeysFromRoutingCache() {
+        // given
+        AmqpTemplate amqpTemplateMock = mock(AmqpTemplate.class);
+        RetryRoutingCache routingCache = new RetryRoutingCache();
+        routingCache.register("queue", List.of());
+        target = new RepublishDelayedMessageRecoverer(amqpTemplateMock, delayHandlerMock, routingCache);
+
+        MessageProperties retryProperties = new MessageProperties();
+        retryProperties.setConsumerQueue("queue");
+        MessageProperties errorProperties = new MessageProperties();
+        errorProperties.setConsumerQueue("queue");
+        errorProperties.setHeaders(Map.of("x-death", List.of(Map.of("count", 3L))));
+
+        when(delayHandlerMock.canRetry(0L)).thenReturn(true);
+        when(delayHandlerMock.canRetry(3L)).thenReturn(false);
+        when(delayHandlerMock.getDelay(0)).thenReturn("1000");
+
+        // when
+        target.recover(new Message(new byte[0], retryProperties), new RuntimeException("Expected test exception"));
+        target.recover(new Message(new byte[0], errorProperties), new RuntimeException("Expected test exception"));
+
+        // then
+        verify(amqpTemplateMock, times(1))
+                .send(eq(""), eq("retry.queue"), argThat(message -> "1000".equals(message.getMessageProperties().getExpiration())));
+        verify(amqpTemplateMock, times(1)).send(eq(""), eq("dlq.queue"), any());
+    }
+
+    @Test
+    void shouldRepublishMessageWithRoutingKeysFromCustomExpressions() {
+        // given
+        AmqpTemplate amqpTemplateMock = mock(AmqpTemplate.class);
+        SpelExpressionParser parser = new SpelExpressionParser();
+        target = new RepublishDelayedMessageRecoverer(amqpTemplateMock, delayHandlerMock,
+                parser.parseExpression("'custom-retry.' + messageProperties.consumerQueue"),
+                parser.parseExpression("'custom-dlq.' + messageProperties.consumerQueue"));
+
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("queue");
+
+        when(delayHandlerMock.canRetry(0L)).thenReturn(true);
+        when(delayHandlerMock.getDelay(0)).thenReturn("1000");
+
+        // when
+        target.recover(new Message(new byte[0], messageProperties), new RuntimeException("Expected test exception"));
+
+        // then
+        verify(amqpTemplateMock, times(1)).send(eq(""), eq("custom-retry.queue"), any());
+    }
+
+    @Test
+    void shouldDrawDecorrelatedDelayFromPreviousScheduledDelay() {
+        // given
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(60_000)
+                .maxRetryAttempts(5)
+                .multiplier(2.0)
+                .jitter(Jitter.DECORRELATED)
+                .build();
+        target = new RepublishDelayedMessageRecoverer(retryMessageRecovererMock, errorMessageRecovererMock, delayHandler);
+
+        // and a message previously retried with a 10s delay
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader("x-death", List.of(Map.of("count", 1L)));
+        messageProperties.setHeader(RepublishDelayedMessageRecoverer.X_RETRY_SCHEDULED_DELAY, "10000");
+        Message message = new Message("payload".getBytes(), messageProperties);
+
+        // when
+        target.recover(message, new RuntimeException("Expected test exception"));
+
+        // then
+        long expiration = Long.parseLong(messageProperties.getExpiration());
+        assertTrue(expiration >= 1_000 && expiration <= 30_000, "expiration=" + expiration);
+        assertEquals(messageProperties.getExpiration(), messageProperties.getHeader(RepublishDelayedMessageRecoverer.X_RETRY_SCHEDULED_DELAY));
+        verify(retryMessageRecovererMock, times(1)).recover(eq(message), any());
+    }
+
+    @Test
+    void shouldRetryMessageWithInvalidPreviousScheduledDelay() {
+        // given
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(60_000)
+                .maxRetryAttempts(5)
+                .multiplier(2.0)
+                .jitter(Jitter.DECORRELATED)
+                .build();
+        target = new RepublishDelayedMessageRecoverer(retryMessageRecovererMock, errorMessageRecovererMock, delayHandler);
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader("x-death", List.of(Map.of("count", 1L)));
+        messageProperties.setHeader(RepublishDelayedMessageRecoverer.X_RETRY_SCHEDULED_DELAY, "10s");
+        Message message = new Message("payload".getBytes(), messageProperties);
+
+        // when
+        target.recover(message, new RuntimeException("Expected test exception"));
+
+        // then
+        assertTrue(Long.parseLong(messageProperties.getExpiration()) >= 1_000);
+        verify(retryMessageRecovererMock, times(1)).recover(eq(message), any());
+        verify(errorMessageRecovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldWriteRetryStateKeepingFirstFailureTime() {
+        // given
+        target.retryState(true);
+
+        // and a message retried twice, including a local retry folded into the state
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader("x-death", List.of(Map.of("count", 5L)));
+        messageProperties.setHeader(RetryState.X_RETRY_STATE, "1:1700000000000:1000");
+        messageProperties.setHeader(RetryCounts.X_LOCAL_RETRY_COUNT, 1L);
+        Message message = new Message("payload".getBytes(), messageProperties);
+
+        when(delayHandlerMock.canRetry(2L)).thenReturn(true);
+        when(delayHandlerMock.delayMillis(2)).thenReturn(4_000L);
+        when(delayHandlerMock.getDelay(2)).thenReturn("4000");
+
+        // when
+        target.recover(message, new RuntimeException("Expected test exception"));
+
+        // then the state counts the retry and the local retry count is reset
+        assertEquals("3:1700000000000:4000", messageProperties.getHeader(RetryState.X_RETRY_STATE));
+        assertNull(messageProperties.getHeader(RetryCounts.X_LOCAL_RETRY_COUNT));
+        assertEquals(3L, RetryCounts.of(message));
+        verify(retryMessageRecovererMock, times(1)).recover(eq(message), any());
+    }
+
+    @Test
+    void shouldStripRetryHeadersFromRetryCopyOnly() {
+        // given
+        AmqpTemplate amqpTemplateMock = mock(AmqpTemplate.class);
+        RetryRoutingCache routingCache = new RetryRoutingCache();
+        routingCache.register("queue", List.of());
+        target = new RepublishDelayedMessageRecoverer(amqpTemplateMock, delayHandlerMock, routingCache)
+                .retryState(true)
+                .stripRetryHeaders(true);
+
+        MessageProperties retryProperties = new MessageProperties();
+        retryProperties.setConsumerQueue("queue");
+        retryProperties.setHeader("x-death", List.of(Map.of("count", 1L)));
+        MessageProperties errorProperties = new MessageProperties();
+        errorProperties.setConsumerQueue("queue");
+        errorProperties.setHeader(RetryState.X_RETRY_STATE, "3:1700000000000:4000");
+
+        when(delayHandlerMock.canRetry(1L)).thenReturn(true);
+        when(delayHandlerMock.canRetry(3L)).thenReturn(false);
+        when(delayHandlerMock.delayMillis(1)).thenReturn(2_000L);
+        when(delayHandlerMock.getDelay(1)).thenReturn("2000");
+
+        // when
+        target.recover(new Message(new byte[0], retryProperties), new RuntimeException("Expected test exception"));
+        target.recover(new Message(new byte[0], errorProperties), new RuntimeException("Expected test exception"));
+
+        // then the retry copy only carries the retry state
+        verify(amqpTemplateMock, times(1)).send(eq(""), eq("retry.queue"), argThat(message -> {
+            Map<String, Object> headers = message.getMessageProperties().getHeaders();
+            return headers.get(RetryState.X_RETRY_STATE).toString().startsWith("2:")
+                    && !headers.containsKey("x-death")
+                    && !headers.containsKey(RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE);
+        }));
+        // and the dlq copy keeps the stack trace
+        verify(amqpTemplateMock, times(1)).send(eq(""), eq("dlq.queue"),
+                argThat(message -> message.getMessageProperties().getHeaders().containsKey(RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE)));
+    }
+
+    @Test
+    void shouldDropStaleRetryStateWhenDisabled() {
+        // given a state left by a consumer that had it enabled
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader("x-death", List.of(Map.of("count", 2L)));
+        messageProperties.setHeader(RetryState.X_RETRY_STATE, "1:1700000000000:1000");
+        Message message = new Message("payload".getBytes(), messageProperties);
+
+        when(delayHandlerMock.canRetry(1L)).thenReturn(true);
+        when(delayHandlerMock.getDelay(1)).thenReturn("2000");
+
+        // when
+        target.recover(message, new RuntimeException("Expected test exception"));
+
+        // then the next failure is counted from the "x-death" header
+        assertNull(messageProperties.getHeader(RetryState.X_RETRY_STATE));
+        assertEquals(2L, RetryCounts.of(message));
+    }
+
+    @Test
+    void shouldWriteExceptionFingerprintOnRetryCopyAndFullStackTraceOnDlqCopy() {
+        // given
+        AmqpTemplate amqpTemplateMock = mock(AmqpTemplate.class);
+        RetryRoutingCache routingCache = new RetryRoutingCache();
+        routingCache.register("queue", List.of());
+        ExceptionHeaderPolicy policy = ExceptionHeaderPolicy.fingerprint(10, 16);
+        target = new RepublishDelayedMessageRecoverer(amqpTemplateMock, delayHandlerMock, routingCache)
+                .exceptionHeaderPolicy(policy);
+
+        MessageProperties retryProperties = new MessageProperties();
+        retryProperties.setConsumerQueue("queue");
+        MessageProperties errorProperties = new MessageProperties();
+        errorProperties.setConsumerQueue("queue");
+        errorProperties.setHeaders(Map.of("x-death", List.of(Map.of("count", 3L))));
+
+        when(delayHandlerMock.canRetry(0L)).thenReturn(true);
+        when(delayHandlerMock.canRetry(3L)).thenReturn(false);
+        when(delayHandlerMock.getDelay(0)).thenReturn("1000");
+
+        // when
+        target.recover(new Message(new byte[0], retryProperties), new RuntimeException("Expected test exception"));
+        target.recover(new Message(new byte[0], errorProperties), new RuntimeException("Expected test exception"));
+
+        // then
+        verify(amqpTemplateMock, times(1)).send(eq(""), eq("retry.queue"), argThat(message -> {
+            Map<String, Object> headers = message.getMessageProperties().getHeaders();
+            return policy.stackTraceOf((String) headers.get(ExceptionHeaderPolicy.X_EXCEPTION_FINGERPRINT)) != null
+                    && !headers.containsKey(RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE);
+        }));
+        verify(amqpTemplateMock, times(1)).send(eq(""), eq("dlq.queue"), argThat(message ->
+                message.getMessageProperties().getHeaders().containsKey(RepublishMessageRecoverer.X_EXCEPTION_STACKTRACE)
+                        && !message.getMessageProperties().getHeaders().containsKey(ExceptionHeaderPolicy.X_EXCEPTION_FINGERPRINT)));
+    }
+
+    @Test
+    void shouldRejectStrippingRetryHeadersWithoutRoutingCache() {
+        // given a recoverer republishing through recoverers that cannot strip the exception headers
+        target.retryState(true);
+
+        // when then
+        assertThrows(IllegalStateException.class, () -> target.stripRetryHeaders(true));
+    }
+
+    @Test
+    void shouldRejectSpillJournalWithoutRoutingCache() {
+        // given a recoverer republishing through recoverers that cannot spill their copies
+        RepublishSpillJournal journal = mock(RepublishSpillJournal.class);
+
+        // when then
+        assertThrows(IllegalStateException.class, () -> target.spillJournal(journal));
+    }
+
+    @Test
+    void shouldRejectExceptionHeaderPolicyWithoutRoutingCache() {
+        // given a recoverer republishing through recoverers that cannot write the policy
+        ExceptionHeaderPolicy policy = ExceptionHeaderPolicy.fingerprint(10, 16);
+
+        // when then
+        assertThrows(IllegalStateException.class, () -> target.exceptionHeaderPolicy(policy));
+    }
+
+    @Test
+    void shouldRepublishFatalFailureToErrorMessageRecovererWithoutRetrying() {
+        // given
+        target.exceptionClassifier(ExceptionClassifier.builder().defaults().build());
+        Message message = new Message(new byte[0], new MessageProperties());
+        Throwable cause = new ListenerExecutionFailedException("Listener failed",
+                new MessageConversionException("Expected test exception"), message);
+
+        // when
+        target.recover(message, cause);
+
+        // then
+        verify(delayHandlerMock, never()).canRetry(anyLong());
+        verify(retryMessageRecovererMock, never()).recover(any(), any());
+        verify(errorMessageRecovererMock, times(1)).recover(message, cause);
+    }
+
+    @Test
+    void shouldRetryFailureWithScheduleOfItsException() {
+        // given
+        ExponentialDelayHandler timeoutSchedule = ExponentialDelayHandler.builder()
+                .initialDelay(30_000)
+                .maxDelay(30_000)
+                .multiplier(1)
+                .maxRetryAttempts(1)
+                .build();
+        target.exceptionClassifier(ExceptionClassifier.builder()
+                .retryable(IllegalStateException.class, timeoutSchedule)
+                .build());
+        MessageProperties retryProperties = new MessageProperties();
+        MessageProperties errorProperties = new MessageProperties();
+        errorProperties.setHeaders(Map.of("x-death", List.of(Map.of("count", 1L))));
+
+        // when
+        target.recover(new Message(new byte[0], retryProperties), new IllegalStateException("Expected test exception"));
+        target.recover(new Message(new byte[0], errorProperties), new IllegalStateException("Expected test exception"));
+
+        // then the schedule of the exception is used instead of the delay handler of the queue
+        assertEquals("30000", retryProperties.getExpiration());
+        verify(delayHandlerMock, never()).canRetry(anyLong());
+        verify(retryMessageRecovererMock, times(1)).recover(any(), any());
+        verify(errorMessageRecovererMock, times(1)).recover(any(), any());
+    }
+
+    @Test
+    void shouldClassifyFailureBeforeRetryingItLocally() {
+        // given
+        ExponentialDelayHandler timeoutSchedule = ExponentialDelayHandler.builder()
+                .initialDelay(30_000)
+                .maxRetryAttempts(1)
+                .build();
+        target.exceptionClassifier(ExceptionClassifier.builder()
+                .fatal(MessageConversionException.class)
+                .retryable(IllegalStateException.class, timeoutSchedule)
+                .build());
+
+        // when then the fatal failures are not retried locally, and the others with the schedule of their exception
+        assertNull(target.localRetrySchedule(new MessageConversionException("Expected test exception")));
+        assertEquals(timeoutSchedule, target.localRetrySchedule(new IllegalStateException("Expected test exception")));
+        assertEquals(delayHandlerMock, target.localRetrySchedule(new RuntimeException("Expected test exception")));
+    }
+
+    @Test
+    void shouldDeadLetterFailedMessageOnceRetryBudgetIsExhausted() {
+        // given
+        target.retryBudgets(new RetryBudgets(0, 0, 10_000, RetryBudget.Exhaustion.DEAD_LETTER));
+        Message message = new Message(new byte[0], new MessageProperties());
+        Throwable cause = new RuntimeException("Expected test exception");
+        when(delayHandlerMock.canRetry(0L)).thenReturn(true);
+
+        // when
+        target.recover(message, cause);
+
+        // then
+        verify(retryMessageRecovererMock, never()).recover(any(), any());
+        verify(errorMessageRecovererMock, times(1)).recover(message, cause);
+    }
+
+    @Test
+    void shouldRetryWithLongestDelayOnceRetryBudgetIsExhausted() {
+        // given
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(4_000)
+                .multiplier(2)
+                .maxRetryAttempts(3)
+                .build();
+        target = new RepublishDelayedMessageRecoverer(retryMessageRecovererMock, errorMessageRecovererMock, delayHandler)
+                .retryBudgets(new RetryBudgets(0, 0, 10_000, RetryBudget.Exhaustion.MAX_DELAY));
+        MessageProperties messageProperties = new MessageProperties();
+
+        // when
+        target.recover(new Message(new byte[0], messageProperties), new RuntimeException("Expected test exception"));
+
+        // then
+        assertEquals("4000", messageProperties.getExpiration());
+        verify(retryMessageRecovererMock, times(1)).recover(any(), any());
+        verify(errorMessageRecovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldDeadLetterFailedMessagePastItsDeadlineWithoutRetrying() {
+        // given
+        target.deadline(new RetryDeadline(RetryDeadline.X_DEADLINE, 0, RetryDeadline.Expiry.DEAD_LETTER));
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, System.currentTimeMillis() - 1);
+        Message message = new Message(new byte[0], messageProperties);
+        Throwable cause = new RuntimeException("Expected test exception");
+
+        // when
+        target.recover(message, cause);
+
+        // then
+        verify(retryMessageRecovererMock, never()).recover(any(), any());
+        verify(errorMessageRecovererMock, times(1)).recover(message, cause);
+    }
+
+    @Test
+    void shouldDeadLetterFailedMessageWithLessThanMarginLeftBeforeItsDeadline() {
+        // given
+        target.deadline(new RetryDeadline(RetryDeadline.X_DEADLINE, 0, RetryDeadline.Expiry.DEAD_LETTER, 5_000));
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, System.currentTimeMillis() + 4_000);
+        Message message = new Message(new byte[0], messageProperties);
+        Throwable cause = new RuntimeException("Expected test exception");
+
+        // when
+        target.recover(message, cause);
+
+        // then
+        verify(retryMessageRecovererMock, never()).recover(any(), any());
+        verify(errorMessageRecovererMock, times(1)).recover(message, cause);
+    }
+
+    @Test
+    void shouldClipRetryDelayToComeBackMarginBeforeDeadline() {
+        // given
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(60_000)
+                .maxDelay(60_000)
+                .multiplier(1)
+                .maxRetryAttempts(3)
+                .build();
+        target = new RepublishDelayedMessageRecoverer(retryMessageRecovererMock, errorMessageRecovererMock, delayHandler)
+                .deadline(new RetryDeadline(RetryDeadline.X_DEADLINE, 0, RetryDeadline.Expiry.DEAD_LETTER, 2_000));
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, System.currentTimeMillis() + 10_000);
+
+        // when
+        target.recover(new Message(new byte[0], messageProperties), new RuntimeException("Expected test exception"));
+
+        // then
+        long expiration = Long.parseLong(messageProperties.getExpiration());
+        assertTrue(expiration > 0 && expiration <= 8_000);
+        verify(retryMessageRecovererMock, times(1)).recover(any(), any());
+        verify(errorMessageRecovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldClipTieredRetryDelayToLongestTierComingBackBeforeDeadline() {
+        // given
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(16_000)
+                .multiplier(4)
+                .maxRetryAttempts(4)
+                .build();
+        target = new RepublishTieredMessageRecoverer(retryMessageRecovererMock, errorMessageRecovererMock, delayHandler)
+                .deadline(new RetryDeadline(RetryDeadline.X_DEADLINE, 0, RetryDeadline.Expiry.DEAD_LETTER, 1_000));
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, System.currentTimeMillis() + 10_000);
+        messageProperties.setHeader(RetryCounts.X_LOCAL_RETRY_COUNT, 2L);
+
+        // when
+        target.recover(new Message(new byte[0], messageProperties), new RuntimeException("Expected test exception"));
+
+        // then the copy waits in a shorter tier, an expiration would sit behind the messages ahead of it
+        assertEquals("4000", messageProperties.getHeader(RepublishDelayedMessageRecoverer.X_RETRY_DELAY));
+        assertNull(messageProperties.getExpiration());
+        verify(retryMessageRecovererMock, times(1)).recover(any(), any());
+        verify(errorMessageRecovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldDeadLetterTieredRetryWhenNoTierComesBackBeforeDeadline() {
+        // given
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(60_000)
+                .maxDelay(60_000)
+                .multiplier(1)
+                .maxRetryAttempts(3)
+                .build();
+        target = new RepublishTieredMessageRecoverer(retryMessageRecovererMock, errorMessageRecovererMock, delayHandler)
+                .deadline(new RetryDeadline(RetryDeadline.X_DEADLINE, 0, RetryDeadline.Expiry.DEAD_LETTER, 1_000));
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, System.currentTimeMillis() + 10_000);
+        Message message = new Message(new byte[0], messageProperties);
+        Throwable cause = new RuntimeException("Expected test exception");
+
+        // when
+        target.recover(message, cause);
+
+        // then
+        verify(retryMessageRecovererMock, never()).recover(any(), any());
+        verify(errorMessageRecovererMock, times(1)).recover(message, cause);
+    }
+}
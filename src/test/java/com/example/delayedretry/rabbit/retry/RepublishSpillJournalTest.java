@@ -0,0 +1,256 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.AmqpTimeoutException;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class RepublishSpillJournalTest {
+
+    @TempDir
+    Path directory;
+
+    ConnectionFactory connectionFactoryMock;
+    Channel channelMock;
+
+    @BeforeEach
+    void setUp() throws IOException, TimeoutException {
+        connectionFactoryMock = mock(ConnectionFactory.class);
+        Connection connectionMock = mock(Connection.class);
+        channelMock = mock(Channel.class);
+        lenient().when(connectionFactoryMock.newConnection("retry-spill-replay")).thenReturn(connectionMock);
+        lenient().when(connectionMock.createChannel()).thenReturn(channelMock);
+        lenient().when(channelMock.isOpen()).thenReturn(true);
+    }
+
+    @Test
+    void shouldReplaySpilledCopiesWithTheirPropertiesOnceConfirmed() throws Exception {
+        // given
+        RepublishSpillJournal target = journal(1024);
+        target.start();
+        target.append("", "retry.queue", message("1", "1000"));
+        target.append("", "dlq.queue", message("2", null));
+
+        // when
+        int replayed = target.replay();
+
+        // then
+        assertEquals(2, replayed);
+        assertEquals(0, target.pending());
+        verify(channelMock).confirmSelect();
+        verify(channelMock).basicPublish(eq(""), eq("retry.queue"), eq(false), argThat(properties ->
+                "1000".equals(properties.getExpiration()) && "value".equals(properties.getHeaders().get("header").toString())),
+                argThat(body -> new String(body).equals("1")));
+        verify(channelMock).basicPublish(eq(""), eq("dlq.queue"), eq(false), argThat(properties -> properties.getExpiration() == null),
+                argThat(body -> new String(body).equals("2")));
+        verify(channelMock).waitForConfirmsOrDie(5000);
+        target.close();
+    }
+
+    @Test
+    void shouldKeepCopiesPendingWhenTheirConfirmTimesOut() throws Exception {
+        // given
+        RepublishSpillJournal target = journal(1024);
+        target.start();
+        target.append("", "retry.queue", message("1", "1000"));
+        doThrow(new TimeoutException()).doNothing().when(channelMock).waitForConfirmsOrDie(anyLong());
+
+        // when
+        try {
+            target.replay();
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        // then
+        assertEquals(1, target.pending());
+        assertEquals(1, target.replay());
+        verify(channelMock, times(2)).basicPublish(eq(""), eq("retry.queue"), eq(false), any(), any());
+        target.close();
+    }
+
+    @Test
+    void shouldNotReplayWhileTheBrokerIsBlocked() throws Exception {
+        // given
+        RepublishSpillJournal target = journal(1024);
+        target.start();
+        target.append("", "retry.queue", message("1", "1000"));
+        target.blockedListener().handleBlocked("low on memory");
+
+        // when
+        int replayed = target.replay();
+
+        // then
+        assertEquals(0, replayed);
+        assertEquals(1, target.pending());
+        verify(connectionFactoryMock, never()).newConnection(anyString());
+        target.close();
+    }
+
+    @Test
+    void shouldRecoverPendingCopiesOfPreviousRunAcrossSegments() throws Exception {
+        // given segments fitting two copies each
+        RepublishSpillJournal previous = journal(200);
+        previous.start();
+        for (int i = 0; i < 5; i++) {
+            previous.append("", "retry.queue", message(Integer.toString(i), "1000"));
+        }
+        previous.close();
+
+        // when
+        RepublishSpillJournal target = journal(200);
+        target.start();
+
+        // then
+        assertEquals(5, target.pending());
+        assertEquals(5, target.replay());
+        for (int i = 0; i < 5; i++) {
+            byte[] expected = Integer.toString(i).getBytes();
+            verify(channelMock).basicPublish(eq(""), eq("retry.queue"), eq(false), any(), argThat(body -> Arrays.equals(body, expected)));
+        }
+        // the replayed segments are deleted, the one appended to is kept
+        assertEquals(1, segments().size());
+        target.close();
+    }
+
+    @Test
+    void shouldIgnoreTornRecordAndReplayedCopiesOnRecovery() throws Exception {
+        // given a replayed copy followed by a pending one whose payload was torn by a crash
+        RepublishSpillJournal previous = journal(1024);
+        previous.start();
+        previous.append("", "retry.queue", message("1", "1000"));
+        previous.replay();
+        previous.append("", "retry.queue", message("2", "1000"));
+        previous.append("", "retry.queue", message("3", "1000"));
+        previous.close();
+        Path segment = segments().get(0);
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[]{'x'}), recordPosition(segment, 2) + 20);
+        }
+
+        // when
+        RepublishSpillJournal target = journal(1024);
+        target.start();
+
+        // then only the intact pending copy is replayed
+        assertEquals(1, target.pending());
+        target.replay();
+        verify(channelMock).basicPublish(eq(""), eq("retry.queue"), eq(false), any(), argThat(body -> new String(body).equals("2")));
+        // the first copy was published by the previous run only
+        verify(channelMock).basicPublish(eq(""), eq("retry.queue"), eq(false), any(), argThat(body -> new String(body).equals("1")));
+        verify(channelMock, never()).basicPublish(eq(""), eq("retry.queue"), eq(false), any(), argThat(body -> new String(body).equals("3")));
+        // and new copies go to a new segment, the replayed one is deleted
+        target.append("", "retry.queue", message("4", "1000"));
+        assertEquals(1, segments().size());
+        assertFalse(segments().contains(segment));
+        target.close();
+    }
+
+    @Test
+    void shouldSpillCopyWhenPublishTimesOut() {
+        // given
+        RepublishSpillJournal journal = journal(64 * 1024);
+        journal.start();
+        AmqpTemplate amqpTemplateMock = mock(AmqpTemplate.class);
+        doThrow(new AmqpTimeoutException("No publisher confirm slot released")).when(amqpTemplateMock).send(anyString(), anyString(), any(Message.class));
+        RetryRoutingCache routingCache = new RetryRoutingCache();
+        routingCache.register("queue", List.of());
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder().initialDelay(1000).maxDelay(1000).multiplier(1).maxRetryAttempts(3).build();
+        RepublishDelayedMessageRecoverer target = new RepublishDelayedMessageRecoverer(amqpTemplateMock, delayHandler, routingCache)
+                .spillJournal(journal);
+        Message message = message("1", null);
+        message.getMessageProperties().setConsumerQueue("queue");
+
+        // when
+        target.recover(message, new RuntimeException("Expected test exception"));
+
+        // then
+        assertEquals(1, journal.pending());
+        journal.close();
+    }
+
+    @Test
+    void shouldSpillCopyWithoutPublishingWhileTheBrokerIsBlocked() throws Exception {
+        // given
+        RepublishSpillJournal journal = journal(64 * 1024);
+        journal.start();
+        journal.blockedListener().handleBlocked("low on disk");
+        AmqpTemplate amqpTemplateMock = mock(AmqpTemplate.class);
+        RoutingKeyResolvingMessageRecoverer target = new RoutingKeyResolvingMessageRecoverer(amqpTemplateMock, message -> "dlq.queue");
+        target.setSpillJournal(journal);
+
+        // when
+        target.recover(message("1", null), new RuntimeException("Expected test exception"));
+
+        // then
+        assertEquals(1, journal.pending());
+        verify(amqpTemplateMock, never()).send(anyString(), anyString(), any(Message.class));
+        journal.close();
+    }
+
+    private RepublishSpillJournal journal(int segmentSize) {
+        return RepublishSpillJournal.builder()
+                .directory(directory)
+                .segmentSize(segmentSize)
+                .connectionFactory(connectionFactoryMock)
+                .replayInterval(60_000)
+                .build();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    // the position of the given record, read from the lengths of the records before it
+    private static long recordPosition(Path segment, int record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int position = 0;
+        for (int i = 0; i < record; i++) {
+            position += 9 + buffer.getInt(position);
+        }
+        return position;
+    }
+
+    private static Message message(String body, String expiration) {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setExpiration(expiration);
+        messageProperties.setHeader("header", "value");
+        return new Message(body.getBytes(), messageProperties);
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.retry.MessageRecoverer;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer.X_RETRY_DELAY;
+import static com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer.X_RETRY_SCHEDULED_DELAY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class RepublishTieredMessageRecovererTest {
+
+    ExponentialDelayHandler delayHandler;
+    MessageRecoverer retryMessageRecovererMock;
+    MessageRecoverer errorMessageRecovererMock;
+
+    RepublishTieredMessageRecoverer target;
+
+    @BeforeEach
+    void setUp() {
+        delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(3)
+                .multiplier(2.0)
+                .build();
+        retryMessageRecovererMock = mock(MessageRecoverer.class);
+        errorMessageRecovererMock = mock(MessageRecoverer.class);
+        target = new RepublishTieredMessageRecoverer(retryMessageRecovererMock, errorMessageRecovererMock, delayHandler);
+    }
+
+    @Test
+    void shouldRouteMessagesWithMixedRetryCountsToTheirOwnTier() {
+        // given
+        Throwable cause = new RuntimeException("Expected test exception");
+
+        // and messages interleaved at different points of their retry schedule
+        Message firstFailure = message(null);
+        Message secondFailure = message(List.of(xDeath("retry.queue.1000", 1L)));
+        Message thirdFailure = message(List.of(xDeath("retry.queue.2000", 1L), xDeath("retry.queue.1000", 1L)));
+
+        // when
+        target.recover(thirdFailure, cause);
+        target.recover(firstFailure, cause);
+        target.recover(secondFailure, cause);
+
+        // then
+        assertEquals("4000", thirdFailure.getMessageProperties().getHeader(X_RETRY_DELAY));
+        assertEquals("1000", firstFailure.getMessageProperties().getHeader(X_RETRY_DELAY));
+        assertEquals("2000", secondFailure.getMessageProperties().getHeader(X_RETRY_DELAY));
+
+        // and no per message expiration is set
+        assertNull(thirdFailure.getMessageProperties().getExpiration());
+        assertNull(firstFailure.getMessageProperties().getExpiration());
+        assertNull(secondFailure.getMessageProperties().getExpiration());
+
+        verify(retryMessageRecovererMock, times(3)).recover(any(), eq(cause));
+        verify(errorMessageRecovererMock, never()).recover(any(), any());
+    }
+
+    @Test
+    void shouldRepublishMessageToErrorMessageRecovererWhenTiersAddUpToMaxAttempts() {
+        // given
+        Throwable cause = new RuntimeException("Expected test exception");
+        Message message = message(List.of(
+                xDeath("retry.queue.4000", 1L),
+                xDeath("retry.queue.2000", 1L),
+                xDeath("retry.queue.1000", 1L)));
+
+        // when
+        target.recover(message, cause);
+
+        // then
+        verify(retryMessageRecovererMock, never()).recover(any(), any());
+        verify(errorMessageRecovererMock, times(1)).recover(message, cause);
+    }
+
+    @Test
+    void shouldRepublishMessageToTieredRetryQueue() {
+        // given
+        AmqpTemplate amqpTemplateMock = mock(AmqpTemplate.class);
+        target = new RepublishTieredMessageRecoverer(amqpTemplateMock, delayHandler);
+
+        Message message = message(List.of(xDeath("retry.queue.1000", 1L)));
+        message.getMessageProperties().setConsumerQueue("queue");
+
+        // when
+        target.recover(message, new RuntimeException("Expected test exception"));
+
+        // then
+        verify(amqpTemplateMock, times(1))
+                .send(eq(""), eq("retry.queue.2000"), argThat(sent -> sent.getMessageProperties().getExpiration() == null));
+    }
+
+    @Test
+    void shouldJitterExpirationWithinTierOfTheRetryQueue() {
+        // given
+        delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(3)
+                .multiplier(2.0)
+                .jitter(Jitter.EQUAL)
+                .build();
+        target = new RepublishTieredMessageRecoverer(retryMessageRecovererMock, errorMessageRecovererMock, delayHandler);
+        Message message = message(List.of(xDeath("retry.queue.1000", 1L)));
+
+        // when
+        target.recover(message, new RuntimeException("Expected test exception"));
+
+        // then the message is routed to its tier and expires within it
+        assertEquals("2000", message.getMessageProperties().getHeader(X_RETRY_DELAY));
+        long expiration = Long.parseLong(message.getMessageProperties().getExpiration());
+        assertTrue(expiration >= 1_500 && expiration <= 2_000, "expiration=" + expiration);
+        assertEquals(message.getMessageProperties().getExpiration(), message.getMessageProperties().getHeader(X_RETRY_SCHEDULED_DELAY));
+    }
+
+    private static Message message(List<Map<String, ?>> xDeath) {
+        MessageProperties messageProperties = new MessageProperties();
+        if (xDeath != null) {
+            messageProperties.setHeader("x-death", xDeath);
+        }
+        return new Message("payload".getBytes(), messageProperties);
+    }
+
+    private static Map<String, ?> xDeath(String queue, long count) {
+        return Map.of("queue", queue, "reason", "expired", "count", count);
+    }
+}
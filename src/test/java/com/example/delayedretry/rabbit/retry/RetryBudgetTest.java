@@ -0,0 +1,96 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RetryBudgetTest {
+
+    @Test
+    void shouldAllowRetriesUpToRatioOfFirstAttempts() {
+        // given
+        RetryBudget target = new RetryBudget(0.2, 0, 10_000);
+        long now = 1_000_000L;
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            target.recordAttempt(now);
+        }
+
+        // then
+        assertTrue(target.tryAcquire(now));
+        assertTrue(target.tryAcquire(now));
+        assertFalse(target.tryAcquire(now));
+    }
+
+    @Test
+    void shouldAllowMinRetriesWithoutFirstAttempts() {
+        // given
+        RetryBudget target = new RetryBudget(0.2, 1, 10_000);
+        long now = 1_000_000L;
+
+        // when
+        int acquired = 0;
+        while (target.tryAcquire(now)) {
+            acquired++;
+        }
+
+        // then
+        assertEquals(10, acquired);
+    }
+
+    @Test
+    void shouldRefillOnceRetriesLeaveTheWindow() {
+        // given
+        RetryBudget target = new RetryBudget(1, 0, 10_000);
+        long now = 1_000_000L;
+        target.recordAttempt(now);
+        assertTrue(target.tryAcquire(now));
+        assertFalse(target.tryAcquire(now));
+
+        // when the window moved past the slot of the first attempt and its retry
+        long later = now + 10_000;
+        target.recordAttempt(later);
+
+        // then
+        assertEquals(1.0, target.available(later));
+        assertTrue(target.tryAcquire(later));
+    }
+
+    @Test
+    void shouldRecordOnlyFirstAttemptsInBudgetOfTheirQueue() throws Throwable {
+        // given
+        RetryBudgets target = new RetryBudgets(1, 0, 10_000, RetryBudget.Exhaustion.DEAD_LETTER);
+        MessageProperties firstAttempt = new MessageProperties();
+        firstAttempt.setConsumerQueue("queue");
+        MessageProperties retry = new MessageProperties();
+        retry.setConsumerQueue("queue");
+        retry.setHeaders(Map.of("x-death", List.of(Map.of("count", 1L))));
+        Message firstMessage = new Message(new byte[0], firstAttempt);
+        Message retryMessage = new Message(new byte[0], retry);
+
+        // when
+        for (Message message : List.of(firstMessage, retryMessage)) {
+            MethodInvocation invocation = mock(MethodInvocation.class);
+            when(invocation.getArguments()).thenReturn(new Object[]{null, message});
+            target.attempts().invoke(invocation);
+        }
+
+        // then
+        RetryBudget budget = target.budgetOf(retryMessage);
+        assertSame(budget, target.budgetOf(firstMessage));
+        assertTrue(budget.tryAcquire(System.currentTimeMillis()));
+        assertFalse(budget.tryAcquire(System.currentTimeMillis()));
+    }
+}
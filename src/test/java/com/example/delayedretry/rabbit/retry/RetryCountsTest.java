@@ -0,0 +1,78 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.example.delayedretry.rabbit.retry.RetryCounts.X_LOCAL_RETRY_COUNT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RetryCountsTest {
+
+    @Test
+    void shouldReturnZeroWhenMessageWasNeverRetried() {
+        assertEquals(0L, RetryCounts.of(new Message(new byte[0], new MessageProperties())));
+    }
+
+    @Test
+    void shouldAddUpRetryCountsOfAllRetryQueues() {
+        assertEquals(4L, RetryCounts.xDeathCount(List.of(
+                Map.of("queue", "retry.queue.10000", "count", 2L),
+                Map.of("queue", "retry.queue.1000", "count", 1L),
+                Map.of("queue", "retry.queue.2000", "count", 1L))));
+    }
+
+    @Test
+    void shouldAddLocalRetriesToBrokerRetries() {
+        // given
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader("x-death", List.of(Map.of("queue", "retry.queue", "count", 2L)));
+        messageProperties.setHeader(X_LOCAL_RETRY_COUNT, 1L);
+
+        // then
+        assertEquals(3L, RetryCounts.of(new Message(new byte[0], messageProperties)));
+    }
+
+    @Test
+    void shouldReadBrokerRetriesFromRetryStateBeforeXDeath() {
+        // given
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader("x-death", List.of(Map.of("queue", "retry.queue", "count", 1L)));
+        messageProperties.setHeader(RetryState.X_RETRY_STATE, "4:1700000000000:8000");
+        messageProperties.setHeader(X_LOCAL_RETRY_COUNT, 1L);
+
+        // then
+        assertEquals(5L, RetryCounts.of(new Message(new byte[0], messageProperties)));
+    }
+
+    @Test
+    void shouldFallBackToXDeathWhenRetryStateIsMalformed() {
+        // given
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader("x-death", List.of(Map.of("queue", "retry.queue", "count", 2L)));
+        messageProperties.setHeader(RetryState.X_RETRY_STATE, "garbage");
+
+        // then
+        assertEquals(2L, RetryCounts.of(new Message(new byte[0], messageProperties)));
+        assertNull(RetryState.of(messageProperties));
+    }
+
+    @Test
+    void shouldRenderAndParseRetryState() {
+        // given
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryState.X_RETRY_STATE, new RetryState(2L, 1700000000000L, 4000L).render());
+
+        // when
+        RetryState retryState = RetryState.of(messageProperties);
+
+        // then
+        assertEquals(2L, retryState.getAttempt());
+        assertEquals(1700000000000L, retryState.getFirstFailureAt());
+        assertEquals(4000L, retryState.getLastDelay());
+    }
+}
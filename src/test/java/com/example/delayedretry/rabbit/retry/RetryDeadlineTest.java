@@ -0,0 +1,78 @@
+package com.example.delayedretry.rabbit.retry;
+
+import com.rabbitmq.client.Channel;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class RetryDeadlineTest {
+
+    @Test
+    void shouldTakeEarliestOfDeadlineHeaderAndMaxAge() {
+        // given
+        RetryDeadline target = new RetryDeadline(RetryDeadline.X_DEADLINE, 10_000, RetryDeadline.Expiry.DEAD_LETTER);
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setTimestamp(new Date(100_000));
+        Message message = new Message(new byte[0], messageProperties);
+
+        // when
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, "105000");
+        long headerDeadline = target.deadlineOf(message);
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, 120_000L);
+        long maxAgeDeadline = target.deadlineOf(message);
+
+        // then
+        assertEquals(105_000, headerDeadline);
+        assertEquals(110_000, maxAgeDeadline);
+        assertEquals(5_000, target.remaining(message, 105_000));
+    }
+
+    @Test
+    void shouldFallBackToFirstFailureOfRetryStateWithoutTimestamp() {
+        // given
+        RetryDeadline target = new RetryDeadline(null, 10_000, RetryDeadline.Expiry.DEAD_LETTER);
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryState.X_RETRY_STATE, new RetryState(2, 50_000, 1_000).render());
+
+        // when
+        long deadline = target.deadlineOf(new Message(new byte[0], messageProperties));
+
+        // then
+        assertEquals(60_000, deadline);
+        assertEquals(Long.MAX_VALUE, target.deadlineOf(new Message(new byte[0], new MessageProperties())));
+    }
+
+    @Test
+    void shouldSkipListenerWhenDeliveryIsPastItsDeadline() throws Throwable {
+        // given
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader(RetryDeadline.X_DEADLINE, System.currentTimeMillis() - 1);
+        MethodInvocation invocationMock = mock(MethodInvocation.class);
+        when(invocationMock.getArguments()).thenReturn(new Object[]{mock(Channel.class), new Message(new byte[0], messageProperties)});
+        MethodInterceptor deadLetter = new RetryDeadline(RetryDeadline.X_DEADLINE, 0, RetryDeadline.Expiry.DEAD_LETTER).guard();
+        MethodInterceptor discard = new RetryDeadline(RetryDeadline.X_DEADLINE, 0, RetryDeadline.Expiry.DISCARD).guard();
+
+        // when
+        assertThrows(DeadlineExceededException.class, () -> deadLetter.invoke(invocationMock));
+        Object discarded = discard.invoke(invocationMock);
+
+        // then
+        assertNull(discarded);
+        verify(invocationMock, never()).proceed();
+    }
+}
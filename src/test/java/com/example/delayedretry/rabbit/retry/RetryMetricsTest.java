@@ -0,0 +1,128 @@
+package com.example.delayedretry.rabbit.retry;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.support.ListenerExecutionFailedException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer.X_RETRY_SCHEDULED_DELAY;
+import static com.example.delayedretry.rabbit.retry.RetryMetrics.X_RETRY_PUBLISHED_AT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class RetryMetricsTest {
+
+    SimpleMeterRegistry meterRegistry;
+    RetryMetrics metrics;
+    RepublishDelayedMessageRecoverer target;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        metrics = new RetryMetrics(meterRegistry);
+        ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(1_000)
+                .maxDelay(10_000)
+                .maxRetryAttempts(2)
+                .multiplier(2.0)
+                .build();
+        target = new RepublishDelayedMessageRecoverer(mock(AmqpTemplate.class), delayHandler).metrics(metrics);
+    }
+
+    @Test
+    void shouldCountRetriesByQueueAndAttempt() {
+        // given
+        Message firstFailure = message(null);
+        Message secondFailure = message(List.of(Map.of("queue", "retry.queue", "count", 1L)));
+
+        // when
+        target.recover(firstFailure, new RuntimeException("Expected test exception"));
+        target.recover(secondFailure, new RuntimeException("Expected test exception"));
+
+        // then
+        assertEquals(1.0, meterRegistry.get("rabbitmq.retry.republished").tags("queue", "queue", "attempt", "1").counter().count());
+        assertEquals(1.0, meterRegistry.get("rabbitmq.retry.republished").tags("queue", "queue", "attempt", "2").counter().count());
+        assertEquals(2, meterRegistry.get("rabbitmq.retry.recover").tags("queue", "queue", "outcome", "retry").timer().count());
+        assertEquals(3_000.0, meterRegistry.get("rabbitmq.retry.delay.scheduled").timer().totalTime(TimeUnit.MILLISECONDS));
+
+        // and the retry copies carry the headers measuring their observed delay
+        assertEquals("1000", firstFailure.getMessageProperties().getHeader(X_RETRY_SCHEDULED_DELAY));
+        assertNotNull(firstFailure.getMessageProperties().getHeader(X_RETRY_PUBLISHED_AT));
+    }
+
+    @Test
+    void shouldCountDeadLetteredMessagesByListenerExceptionType() {
+        // given
+        Message message = message(List.of(Map.of("queue", "retry.queue", "count", 2L)));
+        Throwable cause = new ListenerExecutionFailedException("Listener failed", new IllegalStateException("Expected test exception"), message);
+
+        // when
+        target.recover(message, cause);
+
+        // then
+        assertEquals(1.0, meterRegistry.get("rabbitmq.retry.dead.lettered")
+                .tags("queue", "queue", "exception", "IllegalStateException").counter().count());
+        assertEquals(1, meterRegistry.get("rabbitmq.retry.recover").tags("queue", "queue", "outcome", "dlq").timer().count());
+        assertNull(meterRegistry.find("rabbitmq.retry.republished").counter());
+    }
+
+    @Test
+    void shouldRecordObservedDelayAndLagOfRetriedMessage() {
+        // given
+        Message message = message(null);
+        message.getMessageProperties().setHeader(X_RETRY_PUBLISHED_AT, System.currentTimeMillis() - 1_500);
+        message.getMessageProperties().setHeader(X_RETRY_SCHEDULED_DELAY, "1000");
+
+        // when
+        metrics.delivered(message);
+
+        // then
+        double observed = meterRegistry.get("rabbitmq.retry.delay.observed").timer().max(TimeUnit.MILLISECONDS);
+        double lag = meterRegistry.get("rabbitmq.retry.delay.lag").timer().max(TimeUnit.MILLISECONDS);
+        assertTrue(observed >= 1_500, "observed=" + observed);
+        assertTrue(lag >= 500 && lag < observed, "lag=" + lag);
+    }
+
+    @Test
+    void shouldNotRecordLagOfRetriedMessageWithInvalidScheduledDelay() {
+        // given
+        Message message = message(null);
+        message.getMessageProperties().setHeader(X_RETRY_PUBLISHED_AT, System.currentTimeMillis() - 1_500);
+        message.getMessageProperties().setHeader(X_RETRY_SCHEDULED_DELAY, "1s");
+
+        // when
+        metrics.delivered(message);
+
+        // then
+        assertEquals(1, meterRegistry.get("rabbitmq.retry.delay.observed").timer().count());
+        assertEquals(0, meterRegistry.get("rabbitmq.retry.delay.lag").timer().count());
+    }
+
+    @Test
+    void shouldNotRecordDelayOfFirstDelivery() {
+        // when
+        metrics.delivered(message(null));
+
+        // then
+        assertNull(meterRegistry.find("rabbitmq.retry.delay.observed").timer());
+    }
+
+    private static Message message(List<Map<String, ?>> xDeath) {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue("queue");
+        if (xDeath != null) {
+            messageProperties.setHeader("x-death", xDeath);
+        }
+        return new Message("payload".getBytes(), messageProperties);
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.example.delayedretry.rabbit.retry.RepublishDelayedMessageRecoverer.X_RETRY_DELAY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class RetryRoutingCacheTest {
+
+    RetryRoutingCache target;
+
+    @BeforeEach
+    void setUp() {
+        target = new RetryRoutingCache();
+    }
+
+    @Test
+    void shouldResolveRoutingKeysOfRegisteredQueue() {
+        // given
+        target.register("queue", List.of(1000L, 2000L));
+        Message message = message("queue", "2000");
+
+        // then
+        assertEquals("retry.queue", target.retryRoutingKey(message));
+        assertEquals("dlq.queue", target.dlqRoutingKey(message));
+        assertEquals("retry.queue.2000", target.tieredRetryRoutingKey(message));
+    }
+
+    @Test
+    void shouldReturnSameRoutingKeyInstanceOnEveryLookup() {
+        // given
+        Message message = message("queue", "1000");
+
+        // then the keys are built on the first lookup only
+        assertSame(target.retryRoutingKey(message), target.retryRoutingKey(message));
+        assertSame(target.dlqRoutingKey(message), target.dlqRoutingKey(message));
+        assertSame(target.tieredRetryRoutingKey(message), target.tieredRetryRoutingKey(message));
+    }
+
+    @Test
+    void shouldResolveRoutingKeysOfMessageWithoutConsumerQueue() {
+        // given
+        Message message = message(null, "1000");
+
+        // then
+        assertEquals("retry.null", target.retryRoutingKey(message));
+        assertEquals("dlq.null", target.dlqRoutingKey(message));
+        assertEquals("retry.null.1000", target.tieredRetryRoutingKey(message));
+    }
+
+    @Test
+    void shouldShareRoutesOfQueueWithItsRedeliveryQueue() {
+        // given
+        target.register("queue", "redelivery.queue", List.of(1000L));
+
+        // then the retries of both queues go through the retry queues of the redelivery queue
+        for (String consumerQueue : List.of("queue", "redelivery.queue")) {
+            Message message = message(consumerQueue, "1000");
+            assertEquals("retry.redelivery.queue", target.retryRoutingKey(message));
+            assertEquals("dlq.queue", target.dlqRoutingKey(message));
+            assertEquals("retry.redelivery.queue.1000", target.tieredRetryRoutingKey(message));
+        }
+    }
+
+    @Test
+    void shouldRouteMessagesToTheShardOfTheirKey() {
+        // given
+        target.setShards(4, message -> message.getMessageProperties().getMessageId());
+        target.register("queue", List.of(1000L));
+        Set<String> retryRoutingKeys = new HashSet<>();
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            Message message = message("queue", "1000");
+            message.getMessageProperties().setMessageId("id-" + i);
+            String retryRoutingKey = target.retryRoutingKey(message);
+            retryRoutingKeys.add(retryRoutingKey);
+
+            // then a message is always routed to the same shard, of the same index for each tier
+            assertSame(retryRoutingKey, target.retryRoutingKey(message));
+            assertEquals(target.tieredRetryRoutingKey(message), retryRoutingKey.replace("retry.queue", "retry.queue.1000"));
+        }
+
+        // and the messages are spread over all the shards
+        assertEquals(Set.of("retry.queue.shard-0", "retry.queue.shard-1", "retry.queue.shard-2", "retry.queue.shard-3"), retryRoutingKeys);
+        assertEquals("dlq.queue", target.dlqRoutingKey(message("queue", "1000")));
+    }
+
+    private static Message message(String consumerQueue, String delay) {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setConsumerQueue(consumerQueue);
+        messageProperties.setHeader(X_RETRY_DELAY, delay);
+        return new Message(new byte[0], messageProperties);
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.delayedretry.rabbit.retry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    TimingWheel target;
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+    }
+
+    @Test
+    void shouldAddLevelsToCoverMaxDelay() {
+        // given
+        target = new TimingWheel("test-wheel", 1, 8, 1_000);
+
+        // then 8 * 8 * 8 * 8 ticks cover 1000ms
+        assertEquals(4, target.levels());
+    }
+
+    @Test
+    void shouldRejectDelayAboveMaxDelay() {
+        // given
+        target = new TimingWheel("test-wheel", 1, 8, 100);
+
+        // then
+        assertFalse(target.schedule(101, () -> {
+        }));
+        assertEquals(0, target.size());
+    }
+
+    @Test
+    void shouldRunTasksInDelayOrderAcrossLevels() throws InterruptedException {
+        // given a wheel whose delays span three levels
+        target = new TimingWheel("test-wheel", 1, 4, 200);
+        List<Long> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(4);
+        long start = System.nanoTime();
+
+        // when
+        for (long delay : new long[]{150, 2, 40, 9}) {
+            assertTrue(target.schedule(delay, () -> {
+                ran.add(delay);
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= delay);
+                latch.countDown();
+            }));
+        }
+
+        // then
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(2L, 9L, 40L, 150L), ran);
+        assertEquals(0, target.size());
+    }
+
+    @Test
+    void shouldNotRunTasksAfterClose() throws InterruptedException {
+        // given
+        target = new TimingWheel("test-wheel", 1, 8, 100);
+        CountDownLatch latch = new CountDownLatch(1);
+        target.schedule(20, latch::countDown);
+
+        // when
+        target.close();
+
+        // then
+        assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(target.schedule(1, latch::countDown));
+    }
+}
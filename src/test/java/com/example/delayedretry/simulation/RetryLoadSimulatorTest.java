@@ -0,0 +1,103 @@
+package com.example.delayedretry.simulation;
+
+import com.example.delayedretry.rabbit.RetryTopology;
+import com.example.delayedretry.rabbit.retry.ExponentialDelayHandler;
+import com.example.delayedretry.rabbit.retry.Jitter;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryLoadSimulatorTest {
+
+    private final ExponentialDelayHandler delayHandler = ExponentialDelayHandler.builder()
+            .initialDelay(1000)
+            .multiplier(4)
+            .maxDelay(64_000)
+            .maxRetryAttempts(3)
+            .build();
+
+    @Test
+    void shouldNotRetryWithoutFailures() {
+        // given
+        RetryLoadSimulator target = RetryLoadSimulator.builder()
+                .delayHandler(delayHandler)
+                .durationSeconds(60)
+                .build();
+        List<RetryLoadSimulator.Sample> samples = new ArrayList<>();
+
+        // when
+        RetryLoadSimulator.Summary summary = target.run(samples::add);
+
+        // then
+        assertEquals(60, samples.size());
+        assertEquals(0, summary.republished());
+        assertEquals(0, summary.deadLettered());
+        assertEquals(0, summary.maxRetryDepth());
+        assertEquals(summary.published(), summary.succeeded() + summary.backlog());
+        assertEquals(20, summary.latencyP50Millis(), 1);
+        assertTrue(summary.latencyP99Millis() < 100);
+    }
+
+    @Test
+    void shouldDeadLetterEveryMessageOnceRetriesAreExhausted() {
+        // given
+        RetryLoadSimulator target = RetryLoadSimulator.builder()
+                .delayHandler(delayHandler)
+                .failureProfile(RetryLoadSimulator.stepProfile("0:1"))
+                .incomingRate(10)
+                .durationSeconds(120)
+                .build();
+
+        // when
+        RetryLoadSimulator.Summary summary = target.run();
+
+        // then
+        assertEquals(0, summary.succeeded());
+        assertEquals(summary.published(), summary.deadLettered() + summary.backlog());
+        assertTrue(summary.republished() >= 3 * summary.deadLettered());
+        assertTrue(summary.republished() <= 3 * (summary.deadLettered() + summary.backlog()));
+    }
+
+    @Test
+    void shouldDelayShortRetriesBehindLongerOnesInSingleRetryQueue() {
+        // given failures during the first 10 seconds only, the first retries wait behind the second ones in the single retry queue
+        RetryLoadSimulator.Builder builder = RetryLoadSimulator.builder()
+                .delayHandler(delayHandler)
+                .failureProfile(RetryLoadSimulator.stepProfile("0:1;10:0"))
+                .durationSeconds(300);
+
+        // when
+        RetryLoadSimulator.Summary perMessageTtl = builder.retryTopology(RetryTopology.PER_MESSAGE_TTL).build().run();
+        RetryLoadSimulator.Summary tieredTtl = builder.retryTopology(RetryTopology.TIERED_TTL).build().run();
+
+        // then
+        assertEquals(0, perMessageTtl.deadLettered());
+        assertEquals(0, tieredTtl.deadLettered());
+        assertTrue(perMessageTtl.maxRetryDepth() > tieredTtl.maxRetryDepth());
+    }
+
+    @Test
+    void shouldReleaseJitteredRetriesOnTimeThroughDelayedMessageExchange() {
+        // given jittered delays, a short delay waits behind a longer one in a retry queue but not in the exchange
+        ExponentialDelayHandler jitteredDelayHandler = ExponentialDelayHandler.builder()
+                .initialDelay(8000)
+                .maxRetryAttempts(1)
+                .jitter(Jitter.FULL)
+                .build();
+        RetryLoadSimulator.Builder builder = RetryLoadSimulator.builder()
+                .delayHandler(jitteredDelayHandler)
+                .failureProfile(RetryLoadSimulator.stepProfile("0:1;60:0"))
+                .durationSeconds(120);
+
+        // when
+        RetryLoadSimulator.Summary perMessageTtl = builder.retryTopology(RetryTopology.PER_MESSAGE_TTL).build().run();
+        RetryLoadSimulator.Summary delayedMessageExchange = builder.retryTopology(RetryTopology.DELAYED_MESSAGE_EXCHANGE).build().run();
+
+        // then
+        assertTrue(delayedMessageExchange.maxRetryDepth() < perMessageTtl.maxRetryDepth() * 3 / 4);
+    }
+}